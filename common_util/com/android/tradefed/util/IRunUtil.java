@@ -24,6 +24,8 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.lang.ProcessBuilder.Redirect;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Interface for running timed operations and system commands.
@@ -88,6 +90,12 @@ public interface IRunUtil {
      */
     public void unsetEnvVariable(String key);
 
+    /** Returns the environment variables set with {@link #setEnvVariable(String, String)}. */
+    public Map<String, String> getEnvVariables();
+
+    /** Returns the environment variables unset with {@link #unsetEnvVariable(String)}. */
+    public Set<String> getUnsetEnvVariables();
+
     /**
      * Set the standard error stream to redirect to the standard output stream when running system
      * commands. Initial value is false.
@@ -377,6 +385,17 @@ public interface IRunUtil {
      */
     public void setEnvVariablePriority(EnvPriority priority);
 
+    /**
+     * Bound the stdout and stderr captured in the {@link CommandResult} of the commands to a
+     * maximum number of bytes each. Bytes beyond the limit are dropped and their count is noted at
+     * the end of the output. Outputs redirected to a stream or a file are not bounded.
+     *
+     * <p>Cannot be used on the default {@link IRunUtil} instance.
+     *
+     * @param maxBytes the maximum number of bytes captured per output, 0 for no limit.
+     */
+    public void setOutputCaptureLimit(long maxBytes);
+
     /**
      * Allow to use linux 'kill' interruption on process running through #runTimed methods when it
      * reaches a timeout.
@@ -30,6 +30,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
 import java.lang.ProcessBuilder.Redirect;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -39,7 +40,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.annotation.Nonnull;
 
@@ -56,12 +61,14 @@ public class RunUtil implements IRunUtil {
     private static final long IO_THREAD_JOIN_INTERVAL = 5 * 1000;
     private static final long PROCESS_DESTROY_TIMEOUT_SEC = 2;
     private static IRunUtil sDefaultInstance = null;
+    private static volatile boolean sUseSharedProcessPump = false;
     private File mWorkingDir = null;
     private Map<String, String> mEnvVariables = new HashMap<String, String>();
     private Set<String> mUnsetEnvVariables = new HashSet<String>();
     private EnvPriority mEnvVariablePriority = EnvPriority.UNSET;
     private boolean mRedirectStderr = false;
     private boolean mLinuxInterruptProcess = false;
+    private long mOutputCaptureLimit = 0L;
 
     private final CommandInterrupter mInterrupter;
 
@@ -77,6 +84,14 @@ public class RunUtil implements IRunUtil {
         mInterrupter = interrupter;
     }
 
+    /**
+     * Sets whether the commands are run and have their output pumped by threads shared across
+     * commands, instead of new threads for each command. Applies to all {@link RunUtil}.
+     */
+    public static void setUseSharedProcessPump(boolean useSharedPump) {
+        sUseSharedProcessPump = useSharedPump;
+    }
+
     /**
      * Get a reference to the default {@link RunUtil} object.
      * <p/>
@@ -130,6 +145,18 @@ public class RunUtil implements IRunUtil {
         mUnsetEnvVariables.add(key);
     }
 
+    /** {@inheritDoc} */
+    @Override
+    public synchronized Map<String, String> getEnvVariables() {
+        return new HashMap<>(mEnvVariables);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public synchronized Set<String> getUnsetEnvVariables() {
+        return new HashSet<>(mUnsetEnvVariables);
+    }
+
     /** {@inheritDoc} */
     @Override
     public void setRedirectStderrToStdout(boolean redirect) {
@@ -563,25 +590,51 @@ public class RunUtil implements IRunUtil {
     }
 
     /**
-     * Helper thread that wraps a runnable, and notifies when done.
+     * Helper that runs a runnable on its own thread, or a shared one, and notifies when done.
      */
-    private static class RunnableNotifier extends Thread {
+    private static class RunnableNotifier implements Runnable {
 
         private final IRunUtil.IRunnableResult mRunnable;
+        private final CountDownLatch mDone = new CountDownLatch(1);
         private CommandStatus mStatus = CommandStatus.TIMED_OUT;
         private boolean mLogErrors = true;
 
         RunnableNotifier(IRunUtil.IRunnableResult runnable, boolean logErrors) {
-            // Set this thread to be a daemon so that it does not prevent
-            // TF from shutting down.
-            setName(RUNNABLE_NOTIFIER_NAME);
-            setDaemon(true);
             mRunnable = runnable;
             mLogErrors = logErrors;
         }
 
+        void start() {
+            if (sUseSharedProcessPump) {
+                SharedProcessPump.execute(this, RUNNABLE_NOTIFIER_NAME);
+                return;
+            }
+            Thread thread = new Thread(this, RUNNABLE_NOTIFIER_NAME);
+            // Set this thread to be a daemon so that it does not prevent
+            // TF from shutting down.
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /** Wait at most the given time in milliseconds for the runnable to be done. */
+        void join(long millis) throws InterruptedException {
+            mDone.await(millis, TimeUnit.MILLISECONDS);
+        }
+
+        boolean isAlive() {
+            return mDone.getCount() > 0;
+        }
+
         @Override
         public void run() {
+            try {
+                runAndNotify();
+            } finally {
+                mDone.countDown();
+            }
+        }
+
+        private void runAndNotify() {
             CommandStatus status;
             try {
                 status = mRunnable.run() ? CommandStatus.SUCCESS : CommandStatus.FAILED;
@@ -674,8 +727,8 @@ public class RunUtil implements IRunUtil {
 
             // Redirect IO, so that the outputstream for the spawn process does not fill up
             // and cause deadlock.
-            mStdOut = stdoutStream != null ? stdoutStream : new ByteArrayOutputStream();
-            mStdErr = stderrStream != null ? stderrStream : new ByteArrayOutputStream();
+            mStdOut = stdoutStream != null ? stdoutStream : createCaptureStream();
+            mStdErr = stderrStream != null ? stderrStream : createCaptureStream();
         }
 
         @Override
@@ -698,8 +751,8 @@ public class RunUtil implements IRunUtil {
         public boolean run() throws Exception {
             File stdoutFile = mProcessBuilder.redirectOutput().file();
             File stderrFile = mProcessBuilder.redirectError().file();
-            Thread stdoutThread = null;
-            Thread stderrThread = null;
+            Future<?> stdoutPump = null;
+            Future<?> stderrPump = null;
             synchronized (mLock) {
                 if (mCancelled) {
                     // if cancel() was called before run() took the lock, we do not even attempt
@@ -717,7 +770,7 @@ public class RunUtil implements IRunUtil {
                 }
 
                 if (stdoutFile == null) {
-                    stdoutThread =
+                    stdoutPump =
                             inheritIO(
                                     mProcess.getInputStream(),
                                     mStdOut,
@@ -725,7 +778,7 @@ public class RunUtil implements IRunUtil {
                                             "inheritio-stdout-%s", mProcessBuilder.command()));
                 }
                 if (stderrFile == null) {
-                    stderrThread =
+                    stderrPump =
                             inheritIO(
                                     mProcess.getErrorStream(),
                                     mStdErr,
@@ -739,18 +792,8 @@ public class RunUtil implements IRunUtil {
                 try {
                     rc = mProcess.waitFor();
                     // wait for stdout and stderr to be read
-                    if (stdoutThread != null) {
-                        stdoutThread.join(IO_THREAD_JOIN_INTERVAL);
-                        if (stdoutThread.isAlive()) {
-                            CLog.d("stdout read thread %s still alive.", stdoutThread.toString());
-                        }
-                    }
-                    if (stderrThread != null) {
-                        stderrThread.join(IO_THREAD_JOIN_INTERVAL);
-                        if (stderrThread.isAlive()) {
-                            CLog.d("stderr read thread %s still alive.", stderrThread.toString());
-                        }
-                    }
+                    waitForIO(stdoutPump, "stdout");
+                    waitForIO(stderrPump, "stderr");
                 } finally {
                     rc = (rc != null) ? rc : 1; // In case of interruption ReturnCode is null
                     mCommandResult.setExitCode(rc);
@@ -827,6 +870,19 @@ public class RunUtil implements IRunUtil {
             }
         }
 
+        private void waitForIO(Future<?> pump, String name) throws InterruptedException {
+            if (pump == null) {
+                return;
+            }
+            try {
+                pump.get(IO_THREAD_JOIN_INTERVAL, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                CLog.d("%s read of %s still alive.", name, mProcessBuilder.command());
+            } catch (ExecutionException e) {
+                CLog.e(e.getCause());
+            }
+        }
+
         @Override
         public String toString() {
             return "RunnableResult [command="
@@ -840,29 +896,83 @@ public class RunUtil implements IRunUtil {
      *
      * @param src {@link InputStream} to inherit/redirect from
      * @param dest {@link BufferedOutputStream} to inherit/redirect to
-     * @param name the name of the thread returned.
-     * @return a {@link Thread} started that receives the IO.
+     * @param name the name of the thread receiving the IO.
+     * @return a {@link Future} completed once all the IO is received.
      */
-    private static Thread inheritIO(final InputStream src, final OutputStream dest, String name) {
+    private static Future<?> inheritIO(
+            final InputStream src, final OutputStream dest, String name) {
         // In case of some Process redirect, source stream can be null.
         if (src == null) {
             return null;
         }
-        Thread t =
-                new Thread(
-                        new Runnable() {
-                            @Override
-                            public void run() {
-                                try {
-                                    StreamUtil.copyStreams(src, dest);
-                                } catch (IOException e) {
-                                    CLog.e("Failed to read input stream %s.", name);
-                                }
-                            }
-                        });
+        Runnable pump =
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            StreamUtil.copyStreams(src, dest);
+                        } catch (IOException e) {
+                            CLog.e("Failed to read input stream %s.", name);
+                        }
+                    }
+                };
+        if (sUseSharedProcessPump) {
+            return SharedProcessPump.execute(pump, name);
+        }
+        FutureTask<?> task = new FutureTask<>(pump, null);
+        Thread t = new Thread(task);
         t.setName(name);
         t.start();
-        return t;
+        return task;
+    }
+
+    /** Returns the stream capturing an output of a command, bounded by the capture limit. */
+    private OutputStream createCaptureStream() {
+        if (mOutputCaptureLimit > 0L) {
+            return new BoundedByteArrayOutputStream(mOutputCaptureLimit);
+        }
+        return new ByteArrayOutputStream();
+    }
+
+    /**
+     * A {@link ByteArrayOutputStream} keeping only the first bytes written to it, and noting how
+     * many were dropped when converted to a string.
+     */
+    private static class BoundedByteArrayOutputStream extends ByteArrayOutputStream {
+        private final long mLimit;
+        private long mDropped = 0L;
+
+        BoundedByteArrayOutputStream(long limit) {
+            mLimit = limit;
+        }
+
+        @Override
+        public synchronized void write(int b) {
+            if (count < mLimit) {
+                super.write(b);
+            } else {
+                mDropped++;
+            }
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            int kept = (int) Math.max(0L, Math.min(len, mLimit - count));
+            super.write(b, off, kept);
+            mDropped += len - kept;
+        }
+
+        @Override
+        public synchronized String toString(String charsetName)
+                throws UnsupportedEncodingException {
+            String captured = super.toString(charsetName);
+            if (mDropped == 0L) {
+                return captured;
+            }
+            return String.format(
+                    "%s\n[%d bytes of output dropped after the first %d]",
+                    captured, mDropped, mLimit);
+        }
     }
 
     /** {@inheritDoc} */
@@ -875,6 +985,16 @@ public class RunUtil implements IRunUtil {
         mEnvVariablePriority = priority;
     }
 
+    /** {@inheritDoc} */
+    @Override
+    public void setOutputCaptureLimit(long maxBytes) {
+        if (this.equals(sDefaultInstance)) {
+            throw new UnsupportedOperationException(
+                    "Cannot setOutputCaptureLimit on default RunUtil");
+        }
+        mOutputCaptureLimit = maxBytes;
+    }
+
     /** {@inheritDoc} */
     @Override
     public void setLinuxInterruptProcess(boolean interrupt) {
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared threads waiting for the processes started by {@link RunUtil} and pumping their output,
+ * used instead of starting new threads for each command.
+ *
+ * <p>Threads are reused by the following commands and exit once idle for {@link
+ * #KEEP_ALIVE_SEC}. Each thread group has its own threads, so the logs of the commands still go
+ * to the invocation running them.
+ */
+class SharedProcessPump {
+
+    static final String THREAD_PREFIX = "process-pump-";
+
+    private static final long KEEP_ALIVE_SEC = 30;
+    private static final AtomicInteger sThreadCount = new AtomicInteger();
+    // Thread group to its threads. Guarded by itself.
+    private static final Map<ThreadGroup, ExecutorService> sExecutors = new WeakHashMap<>();
+
+    private SharedProcessPump() {}
+
+    /**
+     * Run a task on a shared thread of the thread group of the caller.
+     *
+     * @param task the {@link Runnable} to run.
+     * @param name the name of the thread while it runs the task.
+     * @return the {@link Future} completed once the task is done.
+     */
+    static Future<?> execute(Runnable task, String name) {
+        return getExecutor(Thread.currentThread().getThreadGroup())
+                .submit(
+                        () -> {
+                            Thread thread = Thread.currentThread();
+                            String idleName = thread.getName();
+                            thread.setName(name);
+                            try {
+                                task.run();
+                            } finally {
+                                thread.setName(idleName);
+                            }
+                        });
+    }
+
+    private static ExecutorService getExecutor(ThreadGroup group) {
+        synchronized (sExecutors) {
+            return sExecutors.computeIfAbsent(group, SharedProcessPump::createExecutor);
+        }
+    }
+
+    private static ExecutorService createExecutor(ThreadGroup group) {
+        // Only a weak reference to the group is kept, so it is released with the invocation.
+        WeakReference<ThreadGroup> groupRef = new WeakReference<>(group);
+        return new ThreadPoolExecutor(
+                0,
+                Integer.MAX_VALUE,
+                KEEP_ALIVE_SEC,
+                TimeUnit.SECONDS,
+                new SynchronousQueue<>(),
+                r -> {
+                    String name = THREAD_PREFIX + sThreadCount.incrementAndGet();
+                    Thread thread;
+                    try {
+                        thread = new Thread(groupRef.get(), r, name);
+                    } catch (IllegalThreadStateException e) {
+                        // The group was destroyed, fallback to the group of the caller.
+                        thread = new Thread(r, name);
+                    }
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+}
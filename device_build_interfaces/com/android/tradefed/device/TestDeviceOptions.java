@@ -72,6 +72,13 @@ public class TestDeviceOptions {
             "be used. Only used if --enable-logcat is set")
     private String mLogcatOptions = null;
 
+    @Option(
+            name = "logcat-ring-buffer",
+            description =
+                    "Capture the background logcat in a fixed size memory-mapped ring file of "
+                            + "--max-tmp-logcat-file bytes. Only used if --enable-logcat is set")
+    private boolean mUseLogcatRingBuffer = false;
+
     @Option(name = "fastboot-timeout", description =
             "time in ms to wait for a device to boot into fastboot.")
     private int mFastbootTimeout = 1 * 60 * 1000;
@@ -148,6 +155,28 @@ public class TestDeviceOptions {
     )
     private boolean mUseContentProvider = true;
 
+    @Option(
+            name = "push-dir-transfer-threads",
+            description =
+                    "The number of files pushed concurrently by pushDir and syncFiles. By "
+                            + "default they are pushed one at a time.")
+    private int mPushDirTransferThreads = 1;
+
+    @Option(
+            name = "push-dir-archive-max-file-size",
+            description =
+                    "Files up to this size in bytes are bundled in a single tar archive when "
+                            + "pushing a directory, instead of being pushed one by one. 0, the "
+                            + "default, pushes every file on its own.")
+    private long mPushDirArchiveMaxFileSize = 0L;
+
+    @Option(
+            name = "push-dir-skip-identical-files",
+            description =
+                    "Whether pushDir should skip the files already on the device with the same "
+                            + "size and md5.")
+    private boolean mPushDirSkipIdenticalFiles = false;
+
     // ====================== Options Related to Virtual Devices ======================
     @Option(
             name = INSTANCE_TYPE_OPTION,
@@ -493,6 +522,16 @@ public class TestDeviceOptions {
         mLogcatOptions = logcatOptions;
     }
 
+    /** Returns true if the background logcat should be captured in a ring buffer. */
+    public boolean useLogcatRingBuffer() {
+        return mUseLogcatRingBuffer;
+    }
+
+    /** Sets whether the background logcat should be captured in a ring buffer. */
+    public void setUseLogcatRingBuffer(boolean useLogcatRingBuffer) {
+        mUseLogcatRingBuffer = useLogcatRingBuffer;
+    }
+
     /**
      * @return if device reboot should be disabled
      */
@@ -522,6 +561,21 @@ public class TestDeviceOptions {
         return mUseContentProvider;
     }
 
+    /** Returns the number of files pushed concurrently by pushDir and syncFiles. */
+    public int getPushDirTransferThreads() {
+        return mPushDirTransferThreads;
+    }
+
+    /** Returns the maximum size of the files bundled in an archive when pushing a directory. */
+    public long getPushDirArchiveMaxFileSize() {
+        return mPushDirArchiveMaxFileSize;
+    }
+
+    /** Returns whether pushDir skips the files already identical on the device. */
+    public boolean shouldPushDirSkipIdenticalFiles() {
+        return mPushDirSkipIdenticalFiles;
+    }
+
     // =========================== Getter and Setter for Virtual Devices
     /** Return the Gce Avd timeout for the instance to come online. */
     public long getGceCmdTimeout() {
@@ -75,6 +75,63 @@ public class HostOptions implements IHostOptions {
             + "filesystem.")
     private File mDownloadCacheDir = new File(System.getProperty("java.io.tmpdir"), "lc_cache");
 
+    @Option(
+            name = "content-addressed-download-cache",
+            description =
+                    "Store artifacts in the download cache by content digest, so identical "
+                            + "artifacts are only stored once and fetches of unrelated remote "
+                            + "paths do not contend with each other.")
+    private boolean mContentAddressedDownloadCache = false;
+
+    @Option(
+            name = "shared-proto-receiver",
+            description =
+                    "Receive the proto results of all subprocesses on a single shared selector "
+                            + "thread instead of one thread per subprocess.")
+    private boolean mSharedProtoReceiver = false;
+
+    @Option(
+            name = "shared-process-pump",
+            description =
+                    "Run the host commands and pump their output on threads shared across "
+                            + "commands instead of new threads for each command.")
+    private boolean mSharedProcessPump = false;
+
+    @Option(
+            name = "sandbox-worker-pool-size",
+            description =
+                    "Number of warm JVMs kept ready to dump the sandbox configurations, instead of "
+                            + "starting a new JVM for each dump. Disabled if 0.")
+    private int mSandboxWorkerPoolSize = 0;
+
+    @Option(
+            name = "sandbox-worker-max-runs",
+            description = "Number of configuration dumps after which a sandbox worker is recycled.")
+    private int mSandboxWorkerMaxRuns = 20;
+
+    @Option(
+            name = "sandbox-worker-max-count",
+            description =
+                    "Maximum number of sandbox workers kept across all classpaths and "
+                            + "environments. Idle workers of other environments are stopped to "
+                            + "stay under it.")
+    private int mSandboxWorkerMaxCount = 8;
+
+    @Option(
+            name = "sandbox-worker-idle-timeout",
+            description =
+                    "Time after which the sandbox workers of an unused environment are stopped.",
+            isTimeVal = true)
+    private long mSandboxWorkerIdleTimeout = 10 * 60 * 1000L;
+
+    @Option(
+            name = "config-cache-dir",
+            description =
+                    "Directory where parsed configurations and the classpath configuration index "
+                            + "are persisted, so new invocations do not parse them again. "
+                            + "Disabled if not set.")
+    private File mConfigCacheDir = null;
+
     @Option(name = "use-sso-client", description = "Use a SingleSignOn client for HTTP requests.")
     private Boolean mUseSsoClient = true;
 
@@ -144,6 +201,54 @@ public class HostOptions implements IHostOptions {
         return mDownloadCacheDir;
     }
 
+    /** {@inheritDoc} */
+    @Override
+    public boolean shouldUseContentAddressedDownloadCache() {
+        return mContentAddressedDownloadCache;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean shouldUseSharedProtoReceiver() {
+        return mSharedProtoReceiver;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean shouldUseSharedProcessPump() {
+        return mSharedProcessPump;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getSandboxWorkerPoolSize() {
+        return mSandboxWorkerPoolSize;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getSandboxWorkerMaxRuns() {
+        return mSandboxWorkerMaxRuns;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getSandboxWorkerMaxCount() {
+        return mSandboxWorkerMaxCount;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getSandboxWorkerIdleTimeout() {
+        return mSandboxWorkerIdleTimeout;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public File getConfigCacheDir() {
+        return mConfigCacheDir;
+    }
+
     /** {@inheritDoc} */
     @Override
     public Boolean shouldUseSsoClient() {
@@ -61,6 +61,30 @@ public interface IHostOptions {
     /** Returns the path used for storing downloaded artifacts. */
     File getDownloadCacheDir();
 
+    /** Returns whether the download cache should store artifacts by content digest. */
+    boolean shouldUseContentAddressedDownloadCache();
+
+    /** Returns whether subprocess proto results should be received on a shared selector. */
+    boolean shouldUseSharedProtoReceiver();
+
+    /** Returns whether commands should be run and have their output pumped by shared threads. */
+    boolean shouldUseSharedProcessPump();
+
+    /** Returns the number of warm JVMs dumping the sandbox configurations, 0 if disabled. */
+    int getSandboxWorkerPoolSize();
+
+    /** Returns the number of configuration dumps after which a sandbox worker is recycled. */
+    int getSandboxWorkerMaxRuns();
+
+    /** Returns the maximum number of sandbox workers across all environments. */
+    int getSandboxWorkerMaxCount();
+
+    /** Returns the time in milliseconds after which the workers of an unused environment stop. */
+    long getSandboxWorkerIdleTimeout();
+
+    /** Returns the directory persisting parsed configurations, or null if disabled. */
+    File getConfigCacheDir();
+
     /** Check if it should use the SingleSignOn client or not. */
     Boolean shouldUseSsoClient();
 
@@ -15,11 +15,8 @@
  */
 package com.android.tradefed.invoker.logger;
 
-import com.android.tradefed.log.LogUtil.CLog;
-
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /** A utility class for an invocation to log some metrics. */
 public class InvocationMetricLogger {
@@ -40,6 +37,14 @@ public class InvocationMetricLogger {
         INSTRUMENTATION_RERUN_FROM_FILE("instrumentation_rerun_from_file", true),
         INSTRUMENTATION_RERUN_SERIAL("instrumentation_rerun_serial", true),
         DOWNLOAD_RETRY_COUNT("download_retry_count", true),
+        // Cluster events dropped by the background uploader, and its failed uploads.
+        CLUSTER_EVENT_DROPPED_COUNT("cluster_event_dropped_count", true),
+        CLUSTER_EVENT_UPLOAD_FAILURE_COUNT("cluster_event_upload_failure_count", true),
+        // Batches of cluster events uploaded in the background and the time spent uploading them.
+        CLUSTER_EVENT_UPLOAD_COUNT("cluster_event_upload_count", true),
+        CLUSTER_EVENT_UPLOAD_TIME("cluster_event_upload_time_ms", true),
+        // Cluster events waiting to be uploaded when the invocation last posted or flushed events.
+        CLUSTER_EVENT_QUEUE_DEPTH("cluster_event_queue_depth", false),
         // -- Disk memory usage --
         // Approximate peak disk space usage of the invocation
         // Represent files that would usually live for the full invocation (min usage)
@@ -148,7 +153,9 @@ public class InvocationMetricLogger {
 
     /** Grouping allows to log several groups under a same key. */
     public enum InvocationGroupMetricKey {
-        TEST_TYPE_COUNT("test-type-count", true);
+        TEST_TYPE_COUNT("test-type-count", true),
+        // Time it took to flash each partition
+        FLASHING_PARTITION_TIME("flashing_partition_time_ms", true);
 
         private final String mGroupName;
         // Whether or not to add the value when the key is added again.
@@ -175,8 +182,8 @@ public class InvocationMetricLogger {
      * Track metrics per ThreadGroup as a proxy to invocation since an invocation run within one
      * threadgroup.
      */
-    private static final Map<ThreadGroup, Map<String, String>> mPerGroupMetrics =
-            Collections.synchronizedMap(new HashMap<ThreadGroup, Map<String, String>>());
+    private static final Map<ThreadGroup, InvocationMetricStore> mPerGroupMetrics =
+            new ConcurrentHashMap<>();
 
     /**
      * Add one key-value to be tracked at the invocation level.
@@ -186,20 +193,10 @@ public class InvocationMetricLogger {
      */
     public static void addInvocationMetrics(InvocationMetricKey key, long value) {
         if (key.shouldAdd()) {
-            String existingVal = getInvocationMetrics().get(key.toString());
-            long existingLong = 0L;
-            if (existingVal != null) {
-                try {
-                    existingLong = Long.parseLong(existingVal);
-                } catch (NumberFormatException e) {
-                    CLog.e(
-                            "%s is expected to contain a number, instead found: %s",
-                            key.toString(), existingVal);
-                }
-            }
-            value += existingLong;
+            getMetricStore().add(key.toString(), value);
+        } else {
+            getMetricStore().set(key.toString(), value);
         }
-        addInvocationMetrics(key.toString(), Long.toString(value));
     }
 
     /**
@@ -213,20 +210,10 @@ public class InvocationMetricLogger {
             InvocationGroupMetricKey groupKey, String group, long value) {
         String key = groupKey.toString() + ":" + group;
         if (groupKey.shouldAdd()) {
-            String existingVal = getInvocationMetrics().get(key);
-            long existingLong = 0L;
-            if (existingVal != null) {
-                try {
-                    existingLong = Long.parseLong(existingVal);
-                } catch (NumberFormatException e) {
-                    CLog.e(
-                            "%s is expected to contain a number, instead found: %s",
-                            key.toString(), existingVal);
-                }
-            }
-            value += existingLong;
+            getMetricStore().add(key, value);
+        } else {
+            getMetricStore().set(key, value);
         }
-        addInvocationMetrics(key, Long.toString(value));
     }
 
     /**
@@ -237,12 +224,10 @@ public class InvocationMetricLogger {
      */
     public static void addInvocationMetrics(InvocationMetricKey key, String value) {
         if (key.shouldAdd()) {
-            String existingVal = getInvocationMetrics().get(key.toString());
-            if (existingVal != null) {
-                value = String.format("%s,%s", existingVal, value);
-            }
+            getMetricStore().append(key.toString(), value);
+        } else {
+            getMetricStore().set(key.toString(), value);
         }
-        addInvocationMetrics(key.toString(), value);
     }
 
     /**
@@ -253,14 +238,11 @@ public class InvocationMetricLogger {
      * @param end The end value of the invocation metric.
      */
     public static void addInvocationPairMetrics(InvocationMetricKey key, long start, long end) {
-        String value = start + ":" + end;
         if (key.shouldAdd()) {
-            String existingVal = getInvocationMetrics().get(key.toString());
-            if (existingVal != null) {
-                value = String.format("%s,%s", existingVal, value);
-            }
+            getMetricStore().appendPair(key.toString(), start, end);
+        } else {
+            getMetricStore().setPair(key.toString(), start, end);
         }
-        addInvocationMetrics(key.toString(), value);
     }
 
     /**
@@ -274,47 +256,30 @@ public class InvocationMetricLogger {
             InvocationGroupMetricKey groupKey, String group, String value) {
         String key = groupKey.toString() + ":" + group;
         if (groupKey.shouldAdd()) {
-            String existingVal = getInvocationMetrics().get(key.toString());
-            if (existingVal != null) {
-                value = String.format("%s,%s", existingVal, value);
-            }
+            getMetricStore().append(key, value);
+        } else {
+            getMetricStore().set(key, value);
         }
-        addInvocationMetrics(key, value);
     }
 
     /**
-     * Add one key-value to be tracked at the invocation level. Don't expose the String key yet to
-     * avoid abuse, stick to the official {@link InvocationMetricKey} to start with.
-     *
-     * @param key The key under which the invocation metric will be tracked.
-     * @param value The value of the invocation metric.
+     * Returns the Map of invocation metrics for the invocation in progress. Metrics are converted
+     * to their {@link String} representation on each call, so this is meant to be called when
+     * reporting rather than while updating metrics.
      */
-    private static void addInvocationMetrics(String key, String value) {
-        ThreadGroup group = Thread.currentThread().getThreadGroup();
-        synchronized (mPerGroupMetrics) {
-            if (mPerGroupMetrics.get(group) == null) {
-                mPerGroupMetrics.put(group, new HashMap<>());
-            }
-            mPerGroupMetrics.get(group).put(key, value);
-        }
-    }
-
-    /** Returns the Map of invocation metrics for the invocation in progress. */
     public static Map<String, String> getInvocationMetrics() {
-        ThreadGroup group = Thread.currentThread().getThreadGroup();
-        synchronized (mPerGroupMetrics) {
-            if (mPerGroupMetrics.get(group) == null) {
-                mPerGroupMetrics.put(group, new HashMap<>());
-            }
-        }
-        return new HashMap<>(mPerGroupMetrics.get(group));
+        return getMetricStore().render();
     }
 
     /** Clear the invocation metrics for an invocation. */
     public static void clearInvocationMetrics() {
         ThreadGroup group = Thread.currentThread().getThreadGroup();
-        synchronized (mPerGroupMetrics) {
-            mPerGroupMetrics.remove(group);
-        }
+        mPerGroupMetrics.remove(group);
+    }
+
+    /** Returns the {@link InvocationMetricStore} of the invocation in progress. */
+    private static InvocationMetricStore getMetricStore() {
+        ThreadGroup group = Thread.currentThread().getThreadGroup();
+        return mPerGroupMetrics.computeIfAbsent(group, k -> new InvocationMetricStore());
     }
 }
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.invoker.logger;
+
+import com.android.tradefed.log.LogUtil.CLog;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Typed storage for the metrics of one invocation.
+ *
+ * <p>Values are kept in their primitive form (counters, timestamp pairs, appended strings) and are
+ * only converted to their {@link String} representation when {@link #render()} is called, usually
+ * once at the end of the invocation. Updating a metric with its usual type does not take any
+ * lock shared with other metrics. Mixing types under the same key is supported and behaves like
+ * the string representation would: numbers are summed, other values are appended with a comma.
+ */
+class InvocationMetricStore {
+
+    /** A metric that can be rendered as a string. */
+    private interface Metric {
+        String render();
+    }
+
+    /** A last-value-wins metric. */
+    private static final class Value implements Metric {
+        private final Object mValue;
+
+        Value(Object value) {
+            mValue = value;
+        }
+
+        @Override
+        public String render() {
+            if (mValue instanceof long[]) {
+                long[] pair = (long[]) mValue;
+                return pair[0] + ":" + pair[1];
+            }
+            return String.valueOf(mValue);
+        }
+    }
+
+    /** An additive numeric metric. */
+    private static final class Counter implements Metric {
+        private final LongAdder mValue = new LongAdder();
+
+        Counter(long initial) {
+            mValue.add(initial);
+        }
+
+        void add(long value) {
+            mValue.add(value);
+        }
+
+        @Override
+        public String render() {
+            return Long.toString(mValue.sum());
+        }
+    }
+
+    /** A series of start and end timestamps. */
+    private static final class PairSeries implements Metric {
+        private long[] mValues = new long[8];
+        private int mSize = 0;
+
+        PairSeries(long start, long end) {
+            add(start, end);
+        }
+
+        synchronized void add(long start, long end) {
+            if (mSize + 2 > mValues.length) {
+                mValues = Arrays.copyOf(mValues, mValues.length * 2);
+            }
+            mValues[mSize++] = start;
+            mValues[mSize++] = end;
+        }
+
+        @Override
+        public synchronized String render() {
+            StringBuilder builder = new StringBuilder();
+            for (int i = 0; i < mSize; i += 2) {
+                if (i > 0) {
+                    builder.append(',');
+                }
+                builder.append(mValues[i]).append(':').append(mValues[i + 1]);
+            }
+            return builder.toString();
+        }
+    }
+
+    /** A series of appended string values. */
+    private static final class StringSeries implements Metric {
+        private final List<String> mValues = new ArrayList<>();
+
+        StringSeries(String... values) {
+            mValues.addAll(Arrays.asList(values));
+        }
+
+        synchronized void add(String value) {
+            mValues.add(value);
+        }
+
+        @Override
+        public synchronized String render() {
+            return String.join(",", mValues);
+        }
+    }
+
+    private final Map<String, Metric> mMetrics = new ConcurrentHashMap<>();
+
+    /** Set the value of a key, replacing any existing value. */
+    void set(String key, String value) {
+        mMetrics.put(key, new Value(value));
+    }
+
+    /** Set the value of a key, replacing any existing value. */
+    void set(String key, long value) {
+        mMetrics.put(key, new Value(value));
+    }
+
+    /** Set the pair value of a key, replacing any existing value. */
+    void setPair(String key, long start, long end) {
+        mMetrics.put(key, new Value(new long[] {start, end}));
+    }
+
+    /** Add a value to the number tracked under the key. */
+    void add(String key, long value) {
+        Metric metric = mMetrics.get(key);
+        if (metric instanceof Counter) {
+            ((Counter) metric).add(value);
+            return;
+        }
+        mMetrics.compute(
+                key,
+                (k, existing) -> {
+                    if (existing == null) {
+                        return new Counter(value);
+                    }
+                    if (existing instanceof Counter) {
+                        ((Counter) existing).add(value);
+                        return existing;
+                    }
+                    String existingVal = existing.render();
+                    long existingLong = 0L;
+                    try {
+                        existingLong = Long.parseLong(existingVal);
+                    } catch (NumberFormatException e) {
+                        CLog.e(
+                                "%s is expected to contain a number, instead found: %s",
+                                key, existingVal);
+                    }
+                    return new Counter(existingLong + value);
+                });
+    }
+
+    /** Append a string value to the key. */
+    void append(String key, String value) {
+        Metric metric = mMetrics.get(key);
+        if (metric instanceof StringSeries) {
+            ((StringSeries) metric).add(value);
+            return;
+        }
+        mMetrics.compute(
+                key,
+                (k, existing) -> {
+                    if (existing == null) {
+                        return new StringSeries(value);
+                    }
+                    if (existing instanceof StringSeries) {
+                        ((StringSeries) existing).add(value);
+                        return existing;
+                    }
+                    return new StringSeries(existing.render(), value);
+                });
+    }
+
+    /** Append a start and end pair to the key. */
+    void appendPair(String key, long start, long end) {
+        Metric metric = mMetrics.get(key);
+        if (metric instanceof PairSeries) {
+            ((PairSeries) metric).add(start, end);
+            return;
+        }
+        mMetrics.compute(
+                key,
+                (k, existing) -> {
+                    if (existing == null) {
+                        return new PairSeries(start, end);
+                    }
+                    if (existing instanceof PairSeries) {
+                        ((PairSeries) existing).add(start, end);
+                        return existing;
+                    }
+                    if (existing instanceof StringSeries) {
+                        ((StringSeries) existing).add(start + ":" + end);
+                        return existing;
+                    }
+                    return new StringSeries(existing.render(), start + ":" + end);
+                });
+    }
+
+    /** Returns the {@link String} representation of all the metrics. */
+    Map<String, String> render() {
+        Map<String, String> rendered = new HashMap<>();
+        for (Map.Entry<String, Metric> entry : mMetrics.entrySet()) {
+            rendered.put(entry.getKey(), entry.getValue().render());
+        }
+        return rendered;
+    }
+}
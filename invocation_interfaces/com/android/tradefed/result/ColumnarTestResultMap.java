@@ -0,0 +1,784 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import com.android.ddmlib.testrunner.TestResult.TestStatus;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
+import com.android.tradefed.util.FileUtil;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.lang.ref.Cleaner;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A compact {@link Map} of {@link TestResult}s for runs with a very large number of test cases.
+ *
+ * <p>Each test gets an integer id, and its status and times are stored in primitive arrays indexed
+ * by it. The tests are only held by an array, looked up through an open addressing table of ids.
+ * Once most ids belong to removed tests, the remaining tests are renumbered in order so the ids
+ * are reused.
+ * Metrics and failure messages, the bulk of a result, are written to a spill file and only read
+ * back when the result of that test is requested. Iteration follows the insertion order, like the
+ * {@link LinkedHashMap} used by default in {@link TestRunResult}.
+ *
+ * <p>{@link TestResult}s are materialized on read: changing a returned result does not change the
+ * map, it has to be put back with {@link #store(TestDescription, TestResult)}.
+ *
+ * <p>The spill file is deleted by {@link #close()}, or once the map is not reachable anymore.
+ *
+ * <p>Not thread safe.
+ */
+public class ColumnarTestResultMap extends AbstractMap<TestDescription, TestResult>
+        implements Closeable {
+
+    private static final Cleaner CLEANER = Cleaner.create();
+    private static final TestStatus[] STATUSES = TestStatus.values();
+    private static final int INITIAL_CAPACITY = 64;
+    private static final long NO_PAYLOAD = -1L;
+
+    // Ids of the tests in the map by the hash of their test, with linear probing. A slot holds
+    // the id + 1, 0 for an empty slot. Kept at most half full.
+    private int[] mSlots = new int[INITIAL_CAPACITY * 2];
+    private int mSize = 0;
+    private TestDescription[] mTests = new TestDescription[INITIAL_CAPACITY];
+    private byte[] mStatuses = new byte[INITIAL_CAPACITY];
+    private long[] mStartTimes = new long[INITIAL_CAPACITY];
+    private long[] mEndTimes = new long[INITIAL_CAPACITY];
+    private long[] mPayloadOffsets = new long[INITIAL_CAPACITY];
+    // Failures without their message when it is spilled, or the full failure otherwise.
+    private FailureDescription[] mFailures = new FailureDescription[INITIAL_CAPACITY];
+    private Object[] mLoggedFiles = new Object[INITIAL_CAPACITY];
+    /** Number of ids given, including the ones of removed tests until they are renumbered. */
+    private int mIdCount = 0;
+
+    private final SpillFile mSpillFile;
+
+    /** Create an empty map spilling to the default temporary directory. */
+    public ColumnarTestResultMap() {
+        this(null);
+    }
+
+    /**
+     * Create an empty map.
+     *
+     * @param spillDir the directory of the spill file, or null for the default temporary directory.
+     */
+    public ColumnarTestResultMap(File spillDir) {
+        mSpillFile = new SpillFile(spillDir);
+        // In case the map is not closed, the spill file is deleted once it is not reachable.
+        CLEANER.register(this, mSpillFile);
+    }
+
+    /** Remove all the results and delete the spill file. The map can still be used after. */
+    @Override
+    public void close() {
+        clear();
+    }
+
+    /**
+     * Write the buffered payloads to the spill file and release the memory of the buffer, once the
+     * results are not expected to change anymore.
+     */
+    public void flush() {
+        try {
+            mSpillFile.release();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Store the result of a test. Unlike {@link #put(Object, Object)}, the previous result is not
+     * read back from the spill file to be returned.
+     */
+    public void store(TestDescription test, TestResult result) {
+        int id = indexOf(test);
+        if (id < 0) {
+            compactIdsIfNeeded();
+            id = mIdCount++;
+            ensureCapacity(mIdCount);
+            mTests[id] = test;
+            mPayloadOffsets[id] = NO_PAYLOAD;
+            insert(id);
+        }
+        mStatuses[id] = (byte) result.getStatus().ordinal();
+        mStartTimes[id] = result.getStartTime();
+        mEndTimes[id] = result.getEndTime();
+
+        FailureDescription failure = result.getFailure();
+        String spilledMessage = null;
+        if (failure != null
+                && FailureDescription.class.equals(failure.getClass())
+                && failure.getErrorMessage() != null) {
+            spilledMessage = failure.getErrorMessage();
+            failure = copyOf(failure, null);
+        }
+        mFailures[id] = failure;
+        mPayloadOffsets[id] =
+                writePayload(
+                        mPayloadOffsets[id],
+                        spilledMessage,
+                        result.getMetrics(),
+                        result.getProtoMetrics());
+        compactSpillFileIfNeeded();
+        Map<String, LogFile> loggedFiles = result.getLoggedFiles();
+        mLoggedFiles[id] = loggedFiles.isEmpty() ? null : loggedFiles;
+    }
+
+    /**
+     * Add a logged file to the result of a test, without materializing it.
+     *
+     * @return false if the test is not in the map.
+     */
+    @SuppressWarnings("unchecked")
+    public boolean addLoggedFile(TestDescription test, String dataName, LogFile logFile) {
+        int id = indexOf(test);
+        if (id < 0) {
+            return false;
+        }
+        // The stored maps are copies made by TestResult#getLoggedFiles, they can be updated.
+        Map<String, LogFile> loggedFiles = (Map<String, LogFile>) mLoggedFiles[id];
+        if (loggedFiles == null) {
+            loggedFiles = new LinkedHashMap<>();
+            mLoggedFiles[id] = loggedFiles;
+        }
+        loggedFiles.put(dataName, logFile);
+        return true;
+    }
+
+    /** Returns the number of ids in use, including the ones of removed tests. */
+    @VisibleForTesting
+    int getIdCount() {
+        return mIdCount;
+    }
+
+    /** Returns the number of tests in each {@link TestStatus}, indexed by their ordinal. */
+    public int[] getStatusCounts() {
+        int[] counts = new int[STATUSES.length];
+        for (int id = 0; id < mIdCount; id++) {
+            if (mTests[id] != null) {
+                counts[mStatuses[id]]++;
+            }
+        }
+        return counts;
+    }
+
+    /** Returns the tests in one of the given statuses, in insertion order. */
+    public Set<TestDescription> getTestsInState(Collection<TestStatus> statuses) {
+        Set<TestDescription> tests = new LinkedHashSet<>();
+        for (int id = 0; id < mIdCount; id++) {
+            if (mTests[id] != null && statuses.contains(STATUSES[mStatuses[id]])) {
+                tests.add(mTests[id]);
+            }
+        }
+        return tests;
+    }
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    @Override
+    public boolean containsKey(Object test) {
+        return indexOf(test) >= 0;
+    }
+
+    @Override
+    public TestResult get(Object test) {
+        int id = indexOf(test);
+        return id < 0 ? null : materialize(id);
+    }
+
+    @Override
+    public TestResult put(TestDescription test, TestResult result) {
+        TestResult previous = get(test);
+        store(test, result);
+        return previous;
+    }
+
+    @Override
+    public TestResult remove(Object test) {
+        int id = delete(test);
+        if (id < 0) {
+            return null;
+        }
+        TestResult previous = materialize(id);
+        clear(id);
+        compactSpillFileIfNeeded();
+        compactIdsIfNeeded();
+        return previous;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(mSlots, 0);
+        mSize = 0;
+        for (int id = 0; id < mIdCount; id++) {
+            // The whole spill file is deleted below.
+            mPayloadOffsets[id] = NO_PAYLOAD;
+            clear(id);
+        }
+        mIdCount = 0;
+        mSpillFile.run();
+    }
+
+    @Override
+    public Set<Map.Entry<TestDescription, TestResult>> entrySet() {
+        return new AbstractSet<Map.Entry<TestDescription, TestResult>>() {
+            @Override
+            public int size() {
+                return mSize;
+            }
+
+            @Override
+            public Iterator<Map.Entry<TestDescription, TestResult>> iterator() {
+                return new EntryIterator();
+            }
+        };
+    }
+
+    /** Iterates over the tests in insertion order, results are only materialized when read. */
+    private class EntryIterator implements Iterator<Map.Entry<TestDescription, TestResult>> {
+        private int mNext = nextId(0);
+        private int mLast = -1;
+
+        private int nextId(int from) {
+            int id = from;
+            while (id < mIdCount && mTests[id] == null) {
+                id++;
+            }
+            return id;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return mNext < mIdCount;
+        }
+
+        @Override
+        public Map.Entry<TestDescription, TestResult> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            mLast = mNext;
+            mNext = nextId(mNext + 1);
+            final int id = mLast;
+            final TestDescription test = mTests[id];
+            return new Map.Entry<TestDescription, TestResult>() {
+                @Override
+                public TestDescription getKey() {
+                    return test;
+                }
+
+                @Override
+                public TestResult getValue() {
+                    return materialize(id);
+                }
+
+                @Override
+                public TestResult setValue(TestResult value) {
+                    return put(test, value);
+                }
+
+                @Override
+                public boolean equals(Object o) {
+                    if (!(o instanceof Map.Entry)) {
+                        return false;
+                    }
+                    Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+                    return test.equals(e.getKey()) && getValue().equals(e.getValue());
+                }
+
+                @Override
+                public int hashCode() {
+                    return test.hashCode() ^ getValue().hashCode();
+                }
+            };
+        }
+
+        @Override
+        public void remove() {
+            if (mLast < 0 || mTests[mLast] == null) {
+                throw new IllegalStateException();
+            }
+            delete(mTests[mLast]);
+            clear(mLast);
+            compactSpillFileIfNeeded();
+        }
+    }
+
+    /** Returns the id of a test, or -1 if it is not in the map. */
+    private int indexOf(Object test) {
+        if (test == null) {
+            return -1;
+        }
+        int mask = mSlots.length - 1;
+        for (int slot = hash(test) & mask; mSlots[slot] != 0; slot = (slot + 1) & mask) {
+            int id = mSlots[slot] - 1;
+            if (mTests[id].equals(test)) {
+                return id;
+            }
+        }
+        return -1;
+    }
+
+    /** Add the id of a test that is not in the map yet. */
+    private void insert(int id) {
+        if ((mSize + 1) * 2 > mSlots.length) {
+            int[] previous = mSlots;
+            mSlots = new int[previous.length * 2];
+            for (int slotValue : previous) {
+                if (slotValue != 0) {
+                    place(slotValue);
+                }
+            }
+        }
+        place(id + 1);
+        mSize++;
+    }
+
+    private void place(int slotValue) {
+        int mask = mSlots.length - 1;
+        int slot = hash(mTests[slotValue - 1]) & mask;
+        while (mSlots[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        mSlots[slot] = slotValue;
+    }
+
+    /**
+     * Remove a test from the table, shifting back the following ids of its probe sequence so they
+     * can still be found.
+     *
+     * @return the id of the test, or -1 if it is not in the map.
+     */
+    private int delete(Object test) {
+        if (test == null) {
+            return -1;
+        }
+        int mask = mSlots.length - 1;
+        int slot = hash(test) & mask;
+        while (mSlots[slot] != 0 && !mTests[mSlots[slot] - 1].equals(test)) {
+            slot = (slot + 1) & mask;
+        }
+        if (mSlots[slot] == 0) {
+            return -1;
+        }
+        int id = mSlots[slot] - 1;
+        int hole = slot;
+        mSlots[hole] = 0;
+        for (int next = (hole + 1) & mask; mSlots[next] != 0; next = (next + 1) & mask) {
+            int home = hash(mTests[mSlots[next] - 1]) & mask;
+            // Move the id to the hole unless its home slot is between the hole and it.
+            boolean reachable =
+                    hole <= next ? (hole < home && home <= next) : (hole < home || home <= next);
+            if (!reachable) {
+                mSlots[hole] = mSlots[next];
+                mSlots[next] = 0;
+                hole = next;
+            }
+        }
+        mSize--;
+        return id;
+    }
+
+    private static int hash(Object test) {
+        int h = test.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private void clear(int id) {
+        mTests[id] = null;
+        mFailures[id] = null;
+        mLoggedFiles[id] = null;
+        if (mPayloadOffsets[id] != NO_PAYLOAD) {
+            try {
+                mSpillFile.free(mPayloadOffsets[id]);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        mPayloadOffsets[id] = NO_PAYLOAD;
+    }
+
+    /**
+     * Renumber the tests in insertion order once most ids belong to removed tests, so the ids and
+     * the space of their columns are reused. Invalidates the ids held by iterators.
+     */
+    private void compactIdsIfNeeded() {
+        if (mIdCount < INITIAL_CAPACITY || mSize * 2 > mIdCount) {
+            return;
+        }
+        int next = 0;
+        for (int id = 0; id < mIdCount; id++) {
+            if (mTests[id] == null) {
+                continue;
+            }
+            if (id != next) {
+                mTests[next] = mTests[id];
+                mStatuses[next] = mStatuses[id];
+                mStartTimes[next] = mStartTimes[id];
+                mEndTimes[next] = mEndTimes[id];
+                mPayloadOffsets[next] = mPayloadOffsets[id];
+                mFailures[next] = mFailures[id];
+                mLoggedFiles[next] = mLoggedFiles[id];
+                // The payload moved with the test, it must not be freed.
+                mPayloadOffsets[id] = NO_PAYLOAD;
+                clear(id);
+            }
+            next++;
+        }
+        mIdCount = next;
+        Arrays.fill(mSlots, 0);
+        for (int id = 0; id < mIdCount; id++) {
+            place(id + 1);
+        }
+    }
+
+    /** Move the payloads to the start of the spill file once most of it is unused. */
+    private void compactSpillFileIfNeeded() {
+        if (!mSpillFile.shouldCompact()) {
+            return;
+        }
+        List<Integer> ids = new ArrayList<>();
+        for (int id = 0; id < mIdCount; id++) {
+            if (mPayloadOffsets[id] != NO_PAYLOAD) {
+                ids.add(id);
+            }
+        }
+        ids.sort((a, b) -> Long.compare(mPayloadOffsets[a], mPayloadOffsets[b]));
+        long[] offsets = new long[ids.size()];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = mPayloadOffsets[ids.get(i)];
+        }
+        try {
+            mSpillFile.compact(offsets);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        for (int i = 0; i < offsets.length; i++) {
+            mPayloadOffsets[ids.get(i)] = offsets[i];
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= mTests.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, mTests.length * 2);
+        mTests = Arrays.copyOf(mTests, newCapacity);
+        mStatuses = Arrays.copyOf(mStatuses, newCapacity);
+        mStartTimes = Arrays.copyOf(mStartTimes, newCapacity);
+        mEndTimes = Arrays.copyOf(mEndTimes, newCapacity);
+        mPayloadOffsets = Arrays.copyOf(mPayloadOffsets, newCapacity);
+        mFailures = Arrays.copyOf(mFailures, newCapacity);
+        mLoggedFiles = Arrays.copyOf(mLoggedFiles, newCapacity);
+    }
+
+    @SuppressWarnings("unchecked")
+    private TestResult materialize(int id) {
+        TestResult result = new TestResult();
+        result.setStatus(STATUSES[mStatuses[id]]);
+        result.setStartTime(mStartTimes[id]);
+        result.setEndTime(mEndTimes[id]);
+        FailureDescription failure = mFailures[id];
+        if (mPayloadOffsets[id] != NO_PAYLOAD) {
+            readPayload(mPayloadOffsets[id], result, failure);
+        } else {
+            result.setFailure(failure);
+        }
+        if (mLoggedFiles[id] != null) {
+            for (Map.Entry<String, LogFile> entry :
+                    ((Map<String, LogFile>) mLoggedFiles[id]).entrySet()) {
+                result.addLoggedFile(entry.getKey(), entry.getValue());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Write a payload to the spill file, in place of the previous payload of the test if it fits.
+     *
+     * @param previousOffset the offset of the previous payload of the test, or {@link #NO_PAYLOAD}.
+     * @return the offset of the payload in the spill file, or {@link #NO_PAYLOAD}.
+     */
+    private long writePayload(
+            long previousOffset,
+            String message,
+            Map<String, String> metrics,
+            Map<String, Metric> protoMetrics) {
+        boolean hasMetrics = metrics != null && !metrics.isEmpty();
+        boolean hasProtoMetrics = protoMetrics != null && !protoMetrics.isEmpty();
+        try {
+            if (message == null && !hasMetrics && !hasProtoMetrics) {
+                if (previousOffset != NO_PAYLOAD) {
+                    mSpillFile.free(previousOffset);
+                }
+                return NO_PAYLOAD;
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeBoolean(message != null);
+            if (message != null) {
+                writeString(out, message);
+            }
+            out.writeInt(hasMetrics ? metrics.size() : 0);
+            if (hasMetrics) {
+                for (Map.Entry<String, String> metric : metrics.entrySet()) {
+                    writeString(out, metric.getKey());
+                    writeString(out, metric.getValue());
+                }
+            }
+            out.writeInt(hasProtoMetrics ? protoMetrics.size() : 0);
+            if (hasProtoMetrics) {
+                for (Map.Entry<String, Metric> metric : protoMetrics.entrySet()) {
+                    writeString(out, metric.getKey());
+                    byte[] metricBytes = metric.getValue().toByteArray();
+                    out.writeInt(metricBytes.length);
+                    out.write(metricBytes);
+                }
+            }
+            out.flush();
+            return mSpillFile.write(previousOffset, bytes.toByteArray());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void readPayload(long offset, TestResult result, FailureDescription failure) {
+        try (DataInputStream in =
+                new DataInputStream(new ByteArrayInputStream(mSpillFile.read(offset)))) {
+            if (in.readBoolean()) {
+                failure = copyOf(failure, readString(in));
+            }
+            result.setFailure(failure);
+            int metricCount = in.readInt();
+            Map<String, String> metrics = new HashMap<>();
+            for (int i = 0; i < metricCount; i++) {
+                metrics.put(readString(in), readString(in));
+            }
+            result.setMetrics(metrics);
+            int protoMetricCount = in.readInt();
+            HashMap<String, Metric> protoMetrics = new HashMap<>();
+            for (int i = 0; i < protoMetricCount; i++) {
+                String key = readString(in);
+                byte[] metricBytes = new byte[in.readInt()];
+                in.readFully(metricBytes);
+                protoMetrics.put(key, Metric.parseFrom(metricBytes));
+            }
+            result.setProtoMetrics(protoMetrics);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        // writeUTF is limited to 64K, stack traces can be longer.
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Copy a {@link FailureDescription} with a different error message. */
+    private static FailureDescription copyOf(FailureDescription failure, String message) {
+        return FailureDescription.create(message, failure.getFailureStatus())
+                .setActionInProgress(failure.getActionInProgress())
+                .setDebugHelpMessage(failure.getDebugHelpMessage())
+                .setCause(failure.getCause())
+                .setRetriable(failure.isRetriable())
+                .setFullRerun(failure.rerunFull())
+                .setErrorIdentifier(failure.getErrorIdentifier())
+                .setOrigin(failure.getOrigin());
+    }
+
+    /**
+     * A file of records, each prefixed by the size of its slot and its length. A record is
+     * rewritten in place when the new one fits in its slot, otherwise it is appended and its old
+     * slot becomes unused. Appends are buffered. The file is only opened for the duration of each
+     * access, so maps kept for a whole invocation do not hold file descriptors. {@link #run()},
+     * also called by the {@link Cleaner}, deletes the file; a new one is created by the next write.
+     */
+    private static class SpillFile implements Runnable {
+        private static final int BUFFER_SIZE = 64 * 1024;
+        private static final int HEADER_SIZE = 8;
+        private static final long MIN_COMPACTION_SIZE = 1024 * 1024;
+
+        private final File mDir;
+        private ByteArrayOutputStream mBuffer = new ByteArrayOutputStream();
+        private File mFile = null;
+        private long mFlushedLength = 0L;
+        private long mUnusedBytes = 0L;
+
+        SpillFile(File dir) {
+            mDir = dir;
+        }
+
+        /**
+         * Write a record.
+         *
+         * @param previousOffset the offset of the record it replaces, or {@link #NO_PAYLOAD}.
+         * @return the offset of the record.
+         */
+        synchronized long write(long previousOffset, byte[] record) throws IOException {
+            if (previousOffset != NO_PAYLOAD) {
+                flush();
+                try (RandomAccessFile access = open()) {
+                    access.seek(previousOffset);
+                    int slotSize = access.readInt();
+                    if (record.length <= slotSize) {
+                        access.writeInt(record.length);
+                        access.write(record);
+                        return previousOffset;
+                    }
+                    mUnusedBytes += HEADER_SIZE + slotSize;
+                }
+            }
+            long offset = mFlushedLength + mBuffer.size();
+            DataOutputStream out = new DataOutputStream(mBuffer);
+            out.writeInt(record.length);
+            out.writeInt(record.length);
+            out.write(record);
+            if (mBuffer.size() >= BUFFER_SIZE) {
+                flush();
+            }
+            return offset;
+        }
+
+        synchronized byte[] read(long offset) throws IOException {
+            if (offset >= mFlushedLength) {
+                flush();
+            }
+            try (RandomAccessFile access = open()) {
+                return read(access, offset);
+            }
+        }
+
+        private static byte[] read(RandomAccessFile access, long offset) throws IOException {
+            access.seek(offset + HEADER_SIZE / 2);
+            byte[] record = new byte[access.readInt()];
+            access.readFully(record);
+            return record;
+        }
+
+        /** Mark the slot of a record as unused. */
+        synchronized void free(long offset) throws IOException {
+            flush();
+            try (RandomAccessFile access = open()) {
+                access.seek(offset);
+                mUnusedBytes += HEADER_SIZE + access.readInt();
+            }
+        }
+
+        /** Returns whether more than half of a large file is unused. */
+        synchronized boolean shouldCompact() {
+            long length = mFlushedLength + mBuffer.size();
+            return length >= MIN_COMPACTION_SIZE && mUnusedBytes * 2 > length;
+        }
+
+        /**
+         * Move the records to the start of the file, each in a slot of its length.
+         *
+         * @param offsets the offsets of all the records in use, in increasing order. Replaced by
+         *     their new offsets.
+         */
+        synchronized void compact(long[] offsets) throws IOException {
+            flush();
+            long position = 0L;
+            if (mFile != null) {
+                try (RandomAccessFile access = open()) {
+                    for (int i = 0; i < offsets.length; i++) {
+                        // Records only move toward the start, so a record is read before being
+                        // overwritten.
+                        byte[] record = read(access, offsets[i]);
+                        access.seek(position);
+                        access.writeInt(record.length);
+                        access.writeInt(record.length);
+                        access.write(record);
+                        offsets[i] = position;
+                        position += HEADER_SIZE + record.length;
+                    }
+                    access.setLength(position);
+                }
+            }
+            mFlushedLength = position;
+            mUnusedBytes = 0L;
+        }
+
+        /** Write the buffered records and release the memory of the buffer. */
+        synchronized void release() throws IOException {
+            flush();
+            mBuffer = new ByteArrayOutputStream();
+        }
+
+        private void flush() throws IOException {
+            if (mBuffer.size() == 0) {
+                return;
+            }
+            try (RandomAccessFile access = open()) {
+                access.seek(mFlushedLength);
+                access.write(mBuffer.toByteArray());
+            }
+            mFlushedLength += mBuffer.size();
+            mBuffer.reset();
+        }
+
+        private RandomAccessFile open() throws IOException {
+            if (mFile == null) {
+                mFile = FileUtil.createTempFile("test-results", ".spill", mDir);
+            }
+            return new RandomAccessFile(mFile, "rw");
+        }
+
+        @Override
+        public synchronized void run() {
+            FileUtil.deleteFile(mFile);
+            mFile = null;
+            mBuffer = new ByteArrayOutputStream();
+            mFlushedLength = 0L;
+            mUnusedBytes = 0L;
+        }
+    }
+}
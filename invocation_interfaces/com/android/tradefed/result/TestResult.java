@@ -196,105 +196,143 @@ public class TestResult {
             throw new IllegalArgumentException(
                     "TestResult#merge cannot be called with NO_MERGE strategy.");
         }
-        TestResult mergedResult = new TestResult();
+        MergedAttempts attempts = new MergedAttempts();
+        for (TestResult attempt : results) {
+            attempts.add(attempt);
+        }
+        return attempts.merge(strategy, null);
+    }
 
-        long earliestStartTime = Long.MAX_VALUE;
-        long latestEndTime = Long.MIN_VALUE;
+    /**
+     * The attempts of a same test case, accumulated one at a time so they can be merged without
+     * going through all the attempts again.
+     */
+    static final class MergedAttempts {
+        private final HashMap<String, Metric> mProtoMetrics = new HashMap<>();
+        private final Map<String, String> mMetrics = new HashMap<>();
+        private final Map<String, LogFile> mLoggedFiles = new LinkedHashMap<>();
+        private final List<FailureDescription> mErrors = new ArrayList<>();
+        private final int[] mStatusCounts = new int[TestStatus.values().length];
+        private long mEarliestStartTime = Long.MAX_VALUE;
+        private long mLatestEndTime = Long.MIN_VALUE;
+        private TestStatus mLastStatus = null;
 
-        List<FailureDescription> errors = new ArrayList<>();
-        int pass = 0;
-        int fail = 0;
-        int assumption_failure = 0;
-        int ignored = 0;
-        int incomplete = 0;
+        /** Accumulate one more attempt. */
+        void add(TestResult attempt) {
+            mProtoMetrics.putAll(attempt.getProtoMetrics());
+            mMetrics.putAll(attempt.getMetrics());
+            mLoggedFiles.putAll(attempt.getLoggedFiles());
+            mEarliestStartTime = Math.min(attempt.getStartTime(), mEarliestStartTime);
+            mLatestEndTime = Math.max(attempt.getEndTime(), mLatestEndTime);
+            addFailure(mErrors, attempt);
+            mStatusCounts[attempt.getStatus().ordinal()]++;
+            mLastStatus = attempt.getStatus();
+        }
 
-        TestStatus lastStatus = null;
-        for (TestResult attempt : results) {
-            mergedResult.mProtoMetrics.putAll(attempt.getProtoMetrics());
-            mergedResult.mMetrics.putAll(attempt.getMetrics());
-            mergedResult.mLoggedFiles.putAll(attempt.getLoggedFiles());
-            earliestStartTime = Math.min(attempt.getStartTime(), earliestStartTime);
-            latestEndTime = Math.max(attempt.getEndTime(), latestEndTime);
-            switch (attempt.getStatus()) {
-                case PASSED:
-                    pass++;
+        /**
+         * Merge the accumulated attempts based on the merging strategy.
+         *
+         * @param strategy the {@link MergeStrategy} to be used to determine the merging outcome.
+         * @param lastAttempt an optional attempt merged after the accumulated ones, without being
+         *     accumulated.
+         * @return the merged {@link TestResult}.
+         */
+        TestResult merge(MergeStrategy strategy, TestResult lastAttempt) {
+            TestResult mergedResult = new TestResult();
+            mergedResult.mProtoMetrics.putAll(mProtoMetrics);
+            mergedResult.mMetrics.putAll(mMetrics);
+            mergedResult.mLoggedFiles.putAll(mLoggedFiles);
+            long earliestStartTime = mEarliestStartTime;
+            long latestEndTime = mLatestEndTime;
+            List<FailureDescription> errors = new ArrayList<>(mErrors);
+            int[] counts = mStatusCounts.clone();
+            TestStatus lastStatus = mLastStatus;
+            if (lastAttempt != null) {
+                mergedResult.mProtoMetrics.putAll(lastAttempt.getProtoMetrics());
+                mergedResult.mMetrics.putAll(lastAttempt.getMetrics());
+                mergedResult.mLoggedFiles.putAll(lastAttempt.getLoggedFiles());
+                earliestStartTime = Math.min(lastAttempt.getStartTime(), earliestStartTime);
+                latestEndTime = Math.max(lastAttempt.getEndTime(), latestEndTime);
+                addFailure(errors, lastAttempt);
+                counts[lastAttempt.getStatus().ordinal()]++;
+                lastStatus = lastAttempt.getStatus();
+            }
+            int pass = counts[TestStatus.PASSED.ordinal()];
+            int fail = counts[TestStatus.FAILURE.ordinal()];
+            int assumption_failure = counts[TestStatus.ASSUMPTION_FAILURE.ordinal()];
+            int ignored = counts[TestStatus.IGNORED.ordinal()];
+            int incomplete = counts[TestStatus.INCOMPLETE.ordinal()];
+
+            switch (strategy) {
+                case ANY_PASS_IS_PASS:
+                case ONE_TESTCASE_PASS_IS_PASS:
+                    // We prioritize passing the test due to the merging strategy.
+                    if (pass > 0) {
+                        mergedResult.setStatus(TestStatus.PASSED);
+                        if (fail > 0) {
+                            mergedResult.markFlaky();
+                        }
+                    } else if (fail == 0) {
+                        if (ignored > 0) {
+                            mergedResult.setStatus(TestStatus.IGNORED);
+                        } else if (assumption_failure > 0) {
+                            mergedResult.setStatus(TestStatus.ASSUMPTION_FAILURE);
+                        } else if (incomplete > 0) {
+                            mergedResult.setStatus(TestStatus.INCOMPLETE);
+                        }
+                    } else {
+                        if (TestStatus.ASSUMPTION_FAILURE.equals(lastStatus)) {
+                            mergedResult.setStatus(TestStatus.ASSUMPTION_FAILURE);
+                        } else if (TestStatus.IGNORED.equals(lastStatus)) {
+                            mergedResult.setStatus(TestStatus.IGNORED);
+                        } else {
+                            mergedResult.setStatus(TestStatus.FAILURE);
+                        }
+                    }
+                    break;
+                default:
+                    // We keep a default of one failure is a failure that should be reported.
+                    if (fail > 0) {
+                        mergedResult.setStatus(TestStatus.FAILURE);
+                    } else {
+                        if (ignored > 0) {
+                            mergedResult.setStatus(TestStatus.IGNORED);
+                        } else if (assumption_failure > 0) {
+                            mergedResult.setStatus(TestStatus.ASSUMPTION_FAILURE);
+                        } else if (incomplete > 0) {
+                            mergedResult.setStatus(TestStatus.INCOMPLETE);
+                        } else {
+                            mergedResult.setStatus(TestStatus.PASSED);
+                        }
+                    }
                     break;
+            }
+            if (errors.isEmpty()) {
+                mergedResult.mFailureDescription = null;
+            } else if (errors.size() == 1) {
+                mergedResult.mFailureDescription = errors.get(0);
+            } else {
+                mergedResult.mFailureDescription = new MultiFailureDescription(errors);
+            }
+            mergedResult.setStartTime(earliestStartTime);
+            mergedResult.setEndTime(latestEndTime);
+            return mergedResult;
+        }
+
+        private static void addFailure(List<FailureDescription> errors, TestResult attempt) {
+            switch (attempt.getStatus()) {
                 case FAILURE:
-                    fail++;
+                case ASSUMPTION_FAILURE:
                     if (attempt.getFailure() != null) {
                         errors.add(attempt.getFailure());
                     }
                     break;
                 case INCOMPLETE:
-                    incomplete++;
                     errors.add(FailureDescription.create("incomplete test case result."));
                     break;
-                case ASSUMPTION_FAILURE:
-                    assumption_failure++;
-                    if (attempt.getFailure() != null) {
-                        errors.add(attempt.getFailure());
-                    }
-                    break;
-                case IGNORED:
-                    ignored++;
+                default:
                     break;
             }
-            lastStatus = attempt.getStatus();
-        }
-
-        switch (strategy) {
-            case ANY_PASS_IS_PASS:
-            case ONE_TESTCASE_PASS_IS_PASS:
-                // We prioritize passing the test due to the merging strategy.
-                if (pass > 0) {
-                    mergedResult.setStatus(TestStatus.PASSED);
-                    if (fail > 0) {
-                        mergedResult.markFlaky();
-                    }
-                } else if (fail == 0) {
-                    if (ignored > 0) {
-                        mergedResult.setStatus(TestStatus.IGNORED);
-                    } else if (assumption_failure > 0) {
-                        mergedResult.setStatus(TestStatus.ASSUMPTION_FAILURE);
-                    } else if (incomplete > 0) {
-                        mergedResult.setStatus(TestStatus.INCOMPLETE);
-                    }
-                } else {
-                    if (TestStatus.ASSUMPTION_FAILURE.equals(lastStatus)) {
-                        mergedResult.setStatus(TestStatus.ASSUMPTION_FAILURE);
-                    } else if (TestStatus.IGNORED.equals(lastStatus)) {
-                        mergedResult.setStatus(TestStatus.IGNORED);
-                    } else {
-                        mergedResult.setStatus(TestStatus.FAILURE);
-                    }
-                }
-                break;
-            default:
-                // We keep a default of one failure is a failure that should be reported.
-                if (fail > 0) {
-                    mergedResult.setStatus(TestStatus.FAILURE);
-                } else {
-                    if (ignored > 0) {
-                        mergedResult.setStatus(TestStatus.IGNORED);
-                    } else if (assumption_failure > 0) {
-                        mergedResult.setStatus(TestStatus.ASSUMPTION_FAILURE);
-                    } else if (incomplete > 0) {
-                        mergedResult.setStatus(TestStatus.INCOMPLETE);
-                    } else {
-                        mergedResult.setStatus(TestStatus.PASSED);
-                    }
-                }
-                break;
-        }
-        if (errors.isEmpty()) {
-            mergedResult.mFailureDescription = null;
-        } else if (errors.size() == 1) {
-            mergedResult.mFailureDescription = errors.get(0);
-        } else {
-            mergedResult.mFailureDescription = new MultiFailureDescription(errors);
         }
-        mergedResult.setStartTime(earliestStartTime);
-        mergedResult.setEndTime(latestEndTime);
-        return mergedResult;
     }
 }
@@ -55,6 +55,7 @@ public class TestRunResult {
     private long mStartTime = 0L;
 
     private TestResult mCurrentTestResult;
+    private TestDescription mCurrentTest;
 
     /** represents sums of tests in each TestStatus state. Indexed by TestStatus.ordinal() */
     private int[] mStatusCounts = new int[TestStatus.values().length];
@@ -77,6 +78,40 @@ public class TestRunResult {
         mAggregateMetrics = metricAggregation;
     }
 
+    /**
+     * Sets whether or not to keep the test results in a {@link ColumnarTestResultMap}. It uses much
+     * less memory for runs with a very large number of test cases, at the cost of reading metrics
+     * and failures back from disk when a result is requested.
+     */
+    public void setColumnarStorage(boolean columnar) {
+        if (columnar == isColumnarStorage()) {
+            return;
+        }
+        Map<TestDescription, TestResult> results =
+                columnar ? new ColumnarTestResultMap() : new LinkedHashMap<>();
+        results.putAll(mTestResults);
+        if (mTestResults instanceof ColumnarTestResultMap) {
+            ((ColumnarTestResultMap) mTestResults).close();
+        }
+        mTestResults = results;
+    }
+
+    /**
+     * Drop the test results, once this run result is not used anymore. It releases the spill file
+     * of the {@link ColumnarTestResultMap} without waiting for this run result to be garbage
+     * collected.
+     */
+    public void close() {
+        if (mTestResults instanceof ColumnarTestResultMap) {
+            ((ColumnarTestResultMap) mTestResults).close();
+        }
+    }
+
+    /** Returns whether or not the test results are kept in a {@link ColumnarTestResultMap}. */
+    public boolean isColumnarStorage() {
+        return mTestResults instanceof ColumnarTestResultMap;
+    }
+
     /** @return the test run name */
     public String getName() {
         return mTestRunName;
@@ -120,6 +155,10 @@ public class TestRunResult {
 
     /** Gets the set of tests in given statuses. */
     private Set<TestDescription> getTestsInState(List<TestStatus> statuses) {
+        if (isColumnarStorage()) {
+            // Avoid reading back all the results.
+            return ((ColumnarTestResultMap) mTestResults).getTestsInState(statuses);
+        }
         Set<TestDescription> tests = new LinkedHashSet<>();
         for (Map.Entry<TestDescription, TestResult> testEntry : getTestResults().entrySet()) {
             TestStatus status = testEntry.getValue().getStatus();
@@ -161,8 +200,12 @@ public class TestRunResult {
                 mStatusCounts[i] = 0;
             }
             // now recalculate
-            for (TestResult r : mTestResults.values()) {
-                mStatusCounts[r.getStatus().ordinal()]++;
+            if (isColumnarStorage()) {
+                mStatusCounts = ((ColumnarTestResultMap) mTestResults).getStatusCounts();
+            } else {
+                for (TestResult r : mTestResults.values()) {
+                    mStatusCounts[r.getStatus().ordinal()]++;
+                }
             }
             mIsCountDirty = false;
         }
@@ -278,12 +321,17 @@ public class TestRunResult {
     public void testStarted(TestDescription test, long startTime) {
         mCurrentTestResult = new TestResult();
         mCurrentTestResult.setStartTime(startTime);
+        mCurrentTest = test;
         addTestResult(test, mCurrentTestResult);
     }
 
-    private void addTestResult(TestDescription test, TestResult testResult) {
+    void addTestResult(TestDescription test, TestResult testResult) {
         mIsCountDirty = true;
-        mTestResults.put(test, testResult);
+        if (isColumnarStorage()) {
+            ((ColumnarTestResultMap) mTestResults).store(test, testResult);
+        } else {
+            mTestResults.put(test, testResult);
+        }
     }
 
     private void updateTestResult(
@@ -337,6 +385,7 @@ public class TestRunResult {
         result.setProtoMetrics(testMetrics);
         addTestResult(test, result);
         mCurrentTestResult = null;
+        mCurrentTest = null;
     }
 
     // TODO: Remove when done updating
@@ -386,6 +435,10 @@ public class TestRunResult {
 
         mElapsedTime += elapsedTime;
         mIsRunComplete = true;
+        if (mTestResults instanceof ColumnarTestResultMap) {
+            // The results of a finished run are not expected to change.
+            ((ColumnarTestResultMap) mTestResults).flush();
+        }
     }
 
     /** New interface using the new proto metrics. */
@@ -453,7 +506,10 @@ public class TestRunResult {
      *     information about it.
      */
     public void testLogSaved(String dataName, LogFile logFile) {
-        if (mCurrentTestResult != null) {
+        if (mCurrentTestResult != null && isColumnarStorage()) {
+            // Columnar results are copies, update the stored one.
+            ((ColumnarTestResultMap) mTestResults).addLoggedFile(mCurrentTest, dataName, logFile);
+        } else if (mCurrentTestResult != null) {
             // We have a test case in progress, we can associate the log to it.
             mCurrentTestResult.addLoggedFile(dataName, logFile);
         } else {
@@ -489,17 +545,24 @@ public class TestRunResult {
             throw new IllegalArgumentException(
                     "TestRunResult#merge cannot be called with NO_MERGE strategy.");
         }
-        if (testRunResults.size() == 1) {
-            // No merging is needed in case of a single test run result.
-            return testRunResults.get(0);
-        }
+        return new TestRunResultMerger(strategy).merge(testRunResults);
+    }
+
+    /**
+     * Merge multiple TestRunResults of the same testRunName, using a {@link TestRunResultMerger}
+     * holding the test cases of the attempts it already merged.
+     */
+    static TestRunResult merge(
+            List<TestRunResult> testRunResults,
+            MergeStrategy strategy,
+            TestRunResultMerger merger) {
         TestRunResult finalRunResult = new TestRunResult();
 
         String testRunName = testRunResults.get(0).getName();
         Map<String, String> finalRunMetrics = new HashMap<>();
         HashMap<String, Metric> finalRunProtoMetrics = new HashMap<>();
         MultiMap<String, LogFile> finalRunLoggedFiles = new MultiMap<>();
-        Map<TestDescription, List<TestResult>> testResultsAttempts = new LinkedHashMap<>();
+        boolean columnar = false;
 
         // Keep track of if one of the run is not complete
         boolean isAtLeastOneCompleted = false;
@@ -552,18 +615,12 @@ public class TestRunResult {
             finalRunLoggedFiles.putAll(eachRunResult.getRunLoggedFiles());
             // TODO: We are not handling the TestResult log files in the merging logic (different
             // from the TestRunResult log files). Need to improve in the future.
-            for (Map.Entry<TestDescription, TestResult> testResultEntry :
-                    eachRunResult.getTestResults().entrySet()) {
-                if (!testResultsAttempts.containsKey(testResultEntry.getKey())) {
-                    testResultsAttempts.put(testResultEntry.getKey(), new ArrayList<>());
-                }
-                List<TestResult> results = testResultsAttempts.get(testResultEntry.getKey());
-                results.add(testResultEntry.getValue());
-            }
+            columnar |= eachRunResult.isColumnarStorage();
         }
 
         // Evaluate test cases based on strategy
-        finalRunResult.mTestResults = evaluateTestCases(testResultsAttempts, strategy);
+        finalRunResult.setColumnarStorage(columnar);
+        merger.mergeTestCases(finalRunResult, testRunResults);
         // Evaluate the run error status based on strategy
         boolean isRunFailure = isRunFailed(atLeastOneFailure, allFailure, strategy);
         if (isRunFailure) {
@@ -588,18 +645,6 @@ public class TestRunResult {
         return finalRunResult;
     }
 
-    /** Merge the different test cases attempts based on the strategy. */
-    private static Map<TestDescription, TestResult> evaluateTestCases(
-            Map<TestDescription, List<TestResult>> results, MergeStrategy strategy) {
-        Map<TestDescription, TestResult> finalTestResults = new LinkedHashMap<>();
-        for (TestDescription description : results.keySet()) {
-            List<TestResult> attemptRes = results.get(description);
-            TestResult aggResult = TestResult.merge(attemptRes, strategy);
-            finalTestResults.put(description, aggResult);
-        }
-        return finalTestResults;
-    }
-
     /** Decides whether or not considering an aggregation of runs a pass or fail. */
     private static boolean isRunFailed(
             boolean atLeastOneFailure, boolean allFailures, MergeStrategy strategy) {
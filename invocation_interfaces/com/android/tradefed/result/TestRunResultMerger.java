@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import com.android.tradefed.result.TestResult.MergedAttempts;
+import com.android.tradefed.retry.MergeStrategy;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Incrementally merges the attempts of a test run, see {@link TestRunResult#merge(List,
+ * MergeStrategy)}.
+ *
+ * <p>All the attempts but the last one are considered done: their test cases are accumulated once
+ * and kept by the merger. Merging the same attempts again, with new attempts added after them,
+ * only goes through the test cases of the new attempts and of the last one, so the cost of a merge
+ * does not grow with the number of attempts. If an attempt already accumulated may still change,
+ * {@link #reset()} must be called.
+ */
+public class TestRunResultMerger {
+
+    private final MergeStrategy mStrategy;
+    // Attempts whose test cases are accumulated, in order.
+    private final List<TestRunResult> mAccumulatedAttempts = new ArrayList<>();
+    // Keep the order in which the test cases first appeared.
+    private final Map<TestDescription, MergedAttempts> mTestAttempts = new LinkedHashMap<>();
+
+    /**
+     * Ctor.
+     *
+     * @param strategy the {@link MergeStrategy} used to merge the attempts.
+     */
+    public TestRunResultMerger(MergeStrategy strategy) {
+        if (MergeStrategy.NO_MERGE.equals(strategy)) {
+            throw new IllegalArgumentException(
+                    "TestRunResultMerger cannot be used with NO_MERGE strategy.");
+        }
+        mStrategy = strategy;
+    }
+
+    /**
+     * Merge the attempts of a same test run.
+     *
+     * @param testRunResults the attempts of the test run, in order.
+     * @return the merged {@link TestRunResult}, the only attempt if there is a single one, or null
+     *     if there are no attempts.
+     */
+    public TestRunResult merge(List<TestRunResult> testRunResults) {
+        if (testRunResults.isEmpty()) {
+            return null;
+        }
+        if (testRunResults.size() == 1) {
+            // No merging is needed in case of a single test run result.
+            return testRunResults.get(0);
+        }
+        return TestRunResult.merge(testRunResults, mStrategy, this);
+    }
+
+    /** Drop the accumulated attempts, the next merge goes through all the attempts again. */
+    public void reset() {
+        mAccumulatedAttempts.clear();
+        mTestAttempts.clear();
+    }
+
+    /** Returns the number of attempts whose test cases are accumulated. */
+    public int getAccumulatedAttemptCount() {
+        return mAccumulatedAttempts.size();
+    }
+
+    /** Merge the test cases of the attempts into the final {@link TestRunResult}. */
+    void mergeTestCases(TestRunResult finalRunResult, List<TestRunResult> testRunResults) {
+        if (!startsWithAccumulatedAttempts(testRunResults)) {
+            reset();
+        }
+        int lastIndex = testRunResults.size() - 1;
+        for (int i = mAccumulatedAttempts.size(); i < lastIndex; i++) {
+            accumulate(testRunResults.get(i));
+        }
+        Map<TestDescription, TestResult> lastResults =
+                testRunResults.get(lastIndex).getTestResults();
+        for (Map.Entry<TestDescription, MergedAttempts> entry : mTestAttempts.entrySet()) {
+            TestResult lastAttempt = lastResults.get(entry.getKey());
+            finalRunResult.addTestResult(
+                    entry.getKey(), entry.getValue().merge(mStrategy, lastAttempt));
+        }
+        for (TestDescription test : lastResults.keySet()) {
+            if (!mTestAttempts.containsKey(test)) {
+                finalRunResult.addTestResult(
+                        test, new MergedAttempts().merge(mStrategy, lastResults.get(test)));
+            }
+        }
+    }
+
+    private boolean startsWithAccumulatedAttempts(List<TestRunResult> testRunResults) {
+        // The last attempt is never accumulated, it may still be in progress.
+        if (mAccumulatedAttempts.size() >= testRunResults.size()) {
+            return false;
+        }
+        for (int i = 0; i < mAccumulatedAttempts.size(); i++) {
+            if (mAccumulatedAttempts.get(i) != testRunResults.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void accumulate(TestRunResult attempt) {
+        for (Map.Entry<TestDescription, TestResult> entry : attempt.getTestResults().entrySet()) {
+            mTestAttempts
+                    .computeIfAbsent(entry.getKey(), k -> new MergedAttempts())
+                    .add(entry.getValue());
+        }
+        mAccumulatedAttempts.add(attempt);
+    }
+}
@@ -31,13 +31,19 @@ import org.junit.runner.Request;
 import org.junit.runner.Runner;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Properties;
 
 /**
  * A process to remotely execute locally stored JUnit tests.
@@ -46,6 +52,10 @@ import java.util.List;
  * address and port. 2) Receive instructions on which tests to run from that socket connection. 3)
  * Setup result forwarding over the socket connection. 4) Execute the tests specified in #2 with the
  * result forwarders from #3.
+ *
+ * <p>The process keeps running the tests it receives until it is stopped, so the host can reuse it
+ * for several modules. Tests sent with a classpath are loaded in a new classloader for each
+ * request.
  */
 public final class IsolationRunner {
     private static final String EXCLUDE_NO_TEST_FAILURE = "org.junit.runner.manipulation.Filter";
@@ -73,6 +83,10 @@ public final class IsolationRunner {
         mainLoop:
         while (true) {
             RunnerMessage message = RunnerMessage.parseDelimitedFrom(mSocket.getInputStream());
+            if (message == null) {
+                System.out.println("Host closed the connection");
+                break mainLoop;
+            }
             RunnerReply reply;
             switch (message.getCommand()) {
                 case RUNNER_OP_STOP:
@@ -115,73 +129,132 @@ public final class IsolationRunner {
         System.out.println("Filters: ");
         System.out.println(params.getFilter());
 
-        List<Class<?>> klasses = this.getClasses(params);
-
+        // When the runner is reused, the tests of each request are isolated from the previous
+        // ones by loading them in a new classloader and restoring the system properties. A JNI
+        // library stays bound to the first classloader that loaded it, so the host does not reuse
+        // runners for tests with native libraries.
+        ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+        Properties properties = (Properties) System.getProperties().clone();
+        URLClassLoader testClassLoader = null;
+        String error = null;
         try {
-            for (Class<?> klass : klasses) {
-                System.out.println("Starting class: " + klass);
-                IsolationResultForwarder list = new IsolationResultForwarder(output);
-                JUnitCore runnerCore = new JUnitCore();
-                runnerCore.addListener(list);
-
-                Request req = Request.aClass(klass);
-
-                if (params.hasFilter()) {
-                    req = req.filterWith(new IsolationFilter(params.getFilter()));
-                }
-
-                if (req.getRunner() instanceof ErrorReportingRunner) {
-                    boolean isFilterError =
-                            EXCLUDE_NO_TEST_FAILURE.equals(
-                                    req.getRunner().getDescription().getClassName());
-                    if (!params.hasFilter() && isFilterError) {
-                        System.err.println(
-                                String.format(
-                                        "Found ErrorRunner when trying to run class: %s", klass));
-                        runnerCore.run(req.getRunner());
-                    }
-                } else if (req.getRunner() instanceof IgnoredClassRunner) {
-                    // Do nothing since class was ignored
-                } else {
-                    System.out.println("Executing class: " + klass);
-                    Runner checkRunner = req.getRunner();
-
-                    if (params.getDryRun()) {
-                        checkRunner = new DryRunner(req.getRunner().getDescription());
-                    } else {
-                        checkRunner = req.getRunner();
-                    }
-
-                    runnerCore.run(checkRunner);
-                    System.out.println("Done executing class: " + klass);
-                }
+            ClassLoader classLoader = this.getClass().getClassLoader();
+            if (params.getClasspathCount() > 0) {
+                testClassLoader = createClassLoader(params.getClasspathList(), classLoader);
+                classLoader = testClassLoader;
+                Thread.currentThread().setContextClassLoader(classLoader);
+            }
+            List<Class<?>> klasses = this.getClasses(params, classLoader);
+            try {
+                runClasses(output, params, klasses);
+            } catch (RuntimeException e) {
+                ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+                PrintStream bytePrintStream = new PrintStream(outputStream);
+                e.printStackTrace(bytePrintStream);
+                bytePrintStream.flush();
+                error = outputStream.toString();
+            }
+        } finally {
+            System.setProperties(properties);
+            Thread.currentThread().setContextClassLoader(contextClassLoader);
+            if (testClassLoader != null) {
+                testClassLoader.close();
             }
-        } catch (RuntimeException e) {
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-            PrintStream bytePrintStream = new PrintStream(outputStream);
-            e.printStackTrace(bytePrintStream);
+        }
+        // Ensure the logs of the tests are written before the host reads them.
+        System.out.flush();
+        System.err.flush();
+
+        if (error != null) {
             RunnerReply.newBuilder()
                     .setRunnerStatus(RunnerStatus.RUNNER_STATUS_FINISHED_ERROR)
-                    .setMessage(outputStream.toString())
+                    .setMessage(error)
                     .build()
                     .writeDelimitedTo(output);
             return;
         }
-
         RunnerReply.newBuilder()
                 .setRunnerStatus(RunnerStatus.RUNNER_STATUS_FINISHED_OK)
                 .build()
                 .writeDelimitedTo(output);
     }
 
-    private List<Class<?>> getClasses(TestParameters params) {
+    /**
+     * Create the classloader of the tests from classpath entries. Entries ending with '*' include
+     * all the jars of their directory, like in the java command line.
+     */
+    private static URLClassLoader createClassLoader(List<String> classpath, ClassLoader parent)
+            throws IOException {
+        List<URL> urls = new ArrayList<>();
+        for (String entry : classpath) {
+            if (entry.equals("*") || entry.endsWith(File.separator + "*")) {
+                File dir = new File(entry.substring(0, entry.length() - 1));
+                File[] jars =
+                        dir.listFiles(f -> f.isFile() && f.getName().toLowerCase().endsWith(".jar"));
+                if (jars == null) {
+                    continue;
+                }
+                Arrays.sort(jars);
+                for (File jar : jars) {
+                    urls.add(jar.toURI().toURL());
+                }
+            } else {
+                urls.add(new File(entry).toURI().toURL());
+            }
+        }
+        return new URLClassLoader(urls.toArray(new URL[0]), parent);
+    }
+
+    private void runClasses(OutputStream output, TestParameters params, List<Class<?>> klasses)
+            throws IOException {
+        for (Class<?> klass : klasses) {
+            System.out.println("Starting class: " + klass);
+            IsolationResultForwarder list = new IsolationResultForwarder(output);
+            JUnitCore runnerCore = new JUnitCore();
+            runnerCore.addListener(list);
+
+            Request req = Request.aClass(klass);
+
+            if (params.hasFilter()) {
+                req = req.filterWith(new IsolationFilter(params.getFilter()));
+            }
+
+            if (req.getRunner() instanceof ErrorReportingRunner) {
+                boolean isFilterError =
+                        EXCLUDE_NO_TEST_FAILURE.equals(
+                                req.getRunner().getDescription().getClassName());
+                if (!params.hasFilter() && isFilterError) {
+                    System.err.println(
+                            String.format(
+                                    "Found ErrorRunner when trying to run class: %s", klass));
+                    runnerCore.run(req.getRunner());
+                }
+            } else if (req.getRunner() instanceof IgnoredClassRunner) {
+                // Do nothing since class was ignored
+            } else {
+                System.out.println("Executing class: " + klass);
+                Runner checkRunner = req.getRunner();
+
+                if (params.getDryRun()) {
+                    checkRunner = new DryRunner(req.getRunner().getDescription());
+                } else {
+                    checkRunner = req.getRunner();
+                }
+
+                runnerCore.run(checkRunner);
+                System.out.println("Done executing class: " + klass);
+            }
+        }
+    }
+
+    private List<Class<?>> getClasses(TestParameters params, ClassLoader classLoader) {
         System.out.println("Excluded paths:");
         params.getExcludePathsList().stream().forEach(path -> System.out.println(path));
         return HostUtils.getJUnitClasses(
                 new HashSet<>(params.getTestClassesList()),
                 new HashSet<>(params.getTestJarAbsPathsList()),
                 params.getExcludePathsList(),
-                this.getClass().getClassLoader());
+                classLoader);
     }
 
     private static final class RunnerConfig {
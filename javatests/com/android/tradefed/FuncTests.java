@@ -21,10 +21,12 @@ import com.android.tradefed.cluster.ClusterEventUploaderFuncTest;
 import com.android.tradefed.command.CommandSchedulerFuncTest;
 import com.android.tradefed.command.remote.RemoteManagerFuncTest;
 import com.android.tradefed.device.metric.DeviceMetricDataFuncTest;
+import com.android.tradefed.result.proto.ProtoEventReceiverServiceFuncTest;
 import com.android.tradefed.util.FileUtilFuncTest;
 import com.android.tradefed.util.GCSFileDownloaderFuncTest;
 import com.android.tradefed.util.GCSFileUploaderFuncTest;
 import com.android.tradefed.util.RunUtilFuncTest;
+import com.android.tradefed.util.StreamingStatsFuncTest;
 import com.android.tradefed.util.ZipUtilFuncTest;
 import com.android.tradefed.util.net.HttpHelperFuncTest;
 
@@ -46,12 +48,15 @@ import org.junit.runners.Suite.SuiteClasses;
     RemoteManagerFuncTest.class,
     // device.metric
     DeviceMetricDataFuncTest.class,
+    // result.proto
+    ProtoEventReceiverServiceFuncTest.class,
     // util
     FileUtilFuncTest.class,
     GCSFileDownloaderFuncTest.class,
     GCSFileUploaderFuncTest.class,
     HttpHelperFuncTest.class,
     RunUtilFuncTest.class,
+    StreamingStatsFuncTest.class,
     ZipUtilFuncTest.class,
 })
 public class FuncTests {}
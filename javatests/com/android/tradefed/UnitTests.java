@@ -20,6 +20,7 @@ import com.android.tradefed.auth.ServiceAccountKeyCredentialFactoryTest;
 import com.android.tradefed.build.AppDeviceBuildInfoTest;
 import com.android.tradefed.build.BootstrapBuildProviderTest;
 import com.android.tradefed.build.BuildInfoTest;
+import com.android.tradefed.build.ContentAddressedFileDownloadCacheTest;
 import com.android.tradefed.build.DeviceBuildDescriptorTest;
 import com.android.tradefed.build.DeviceBuildInfoTest;
 import com.android.tradefed.build.DeviceFolderBuildInfoTest;
@@ -27,6 +28,7 @@ import com.android.tradefed.build.FileDownloadCacheTest;
 import com.android.tradefed.build.LocalDeviceBuildProviderTest;
 import com.android.tradefed.build.OtaZipfileBuildProviderTest;
 import com.android.tradefed.clearcut.ClearcutClientTest;
+import com.android.tradefed.cluster.BackgroundClusterEventUploaderTest;
 import com.android.tradefed.cluster.ClusterBuildProviderTest;
 import com.android.tradefed.cluster.ClusterCommandConfigBuilderTest;
 import com.android.tradefed.cluster.ClusterCommandEventTest;
@@ -47,10 +49,12 @@ import com.android.tradefed.command.CommandOptionsTest;
 import com.android.tradefed.command.CommandRunnerTest;
 import com.android.tradefed.command.CommandSchedulerTest;
 import com.android.tradefed.command.ConsoleTest;
+import com.android.tradefed.command.ReadyCommandIndexTest;
 import com.android.tradefed.command.console.ConfigCompleterTest;
 import com.android.tradefed.command.remote.RemoteManagerTest;
 import com.android.tradefed.command.remote.RemoteOperationTest;
 import com.android.tradefed.config.ArgsOptionParserTest;
+import com.android.tradefed.config.ConfigurationDefCacheTest;
 import com.android.tradefed.config.ConfigurationDefTest;
 import com.android.tradefed.config.ConfigurationDescriptorTest;
 import com.android.tradefed.config.ConfigurationFactoryTest;
@@ -84,6 +88,7 @@ import com.android.tradefed.device.ManagedDeviceListTest;
 import com.android.tradefed.device.ManagedTestDeviceFactoryTest;
 import com.android.tradefed.device.NativeDeviceTest;
 import com.android.tradefed.device.RemoteAndroidDeviceTest;
+import com.android.tradefed.device.RingBufferOutputReceiverTest;
 import com.android.tradefed.device.TestDeviceTest;
 import com.android.tradefed.device.WaitDeviceRecoveryTest;
 import com.android.tradefed.device.WifiHelperTest;
@@ -143,14 +148,18 @@ import com.android.tradefed.invoker.logger.InvocationLocalTest;
 import com.android.tradefed.invoker.logger.InvocationMetricLoggerTest;
 import com.android.tradefed.invoker.logger.TfObjectTrackerTest;
 import com.android.tradefed.invoker.sandbox.ParentSandboxInvocationExecutionTest;
+import com.android.tradefed.invoker.shard.RuntimeHistoryReporterTest;
+import com.android.tradefed.invoker.shard.RuntimeHistoryStoreTest;
 import com.android.tradefed.invoker.shard.ShardHelperTest;
 import com.android.tradefed.invoker.shard.StrictShardHelperTest;
 import com.android.tradefed.invoker.shard.TestsPoolPollerTest;
+import com.android.tradefed.invoker.shard.WorkStealingTestsPoolTest;
 import com.android.tradefed.invoker.shard.token.CecControllerTokenProviderTest;
 import com.android.tradefed.invoker.shard.token.TelephonyTokenProviderTest;
 import com.android.tradefed.invoker.shard.token.TokenProviderHelperTest;
 import com.android.tradefed.lite.DryRunnerTest;
 import com.android.tradefed.lite.HostUtilsTest;
+import com.android.tradefed.log.AsyncLogWriterTest;
 import com.android.tradefed.log.FileLoggerTest;
 import com.android.tradefed.log.HistoryLoggerTest;
 import com.android.tradefed.log.LogRegistryTest;
@@ -173,6 +182,7 @@ import com.android.tradefed.postprocessor.StatsdGenericPostProcessorTest;
 import com.android.tradefed.result.ATestFileSystemLogSaverTest;
 import com.android.tradefed.result.BugreportCollectorTest;
 import com.android.tradefed.result.CollectingTestListenerTest;
+import com.android.tradefed.result.ColumnarTestResultMapTest;
 import com.android.tradefed.result.ConsoleResultReporterTest;
 import com.android.tradefed.result.CountingTestResultListenerTest;
 import com.android.tradefed.result.DeviceFileReporterTest;
@@ -193,6 +203,7 @@ import com.android.tradefed.result.SubprocessResultsReporterTest;
 import com.android.tradefed.result.TestDescriptionTest;
 import com.android.tradefed.result.TestResultListenerTest;
 import com.android.tradefed.result.TestResultTest;
+import com.android.tradefed.result.TestRunResultMergerTest;
 import com.android.tradefed.result.TestRunResultTest;
 import com.android.tradefed.result.TestSummaryTest;
 import com.android.tradefed.result.XmlResultReporterTest;
@@ -200,16 +211,19 @@ import com.android.tradefed.result.ddmlib.InstrumentationResultProtoParserTest;
 import com.android.tradefed.result.ddmlib.TestRunToTestInvocationForwarderTest;
 import com.android.tradefed.result.error.ErrorIdentifierTest;
 import com.android.tradefed.result.proto.FileProtoResultReporterTest;
+import com.android.tradefed.result.proto.ProtoEventReceiverServiceTest;
 import com.android.tradefed.result.proto.ProtoResultParserTest;
 import com.android.tradefed.result.proto.ProtoResultReporterTest;
 import com.android.tradefed.result.proto.StreamProtoResultReporterTest;
 import com.android.tradefed.result.suite.FormattedGeneratorReporterTest;
+import com.android.tradefed.result.suite.XmlFormattedGeneratorReporterTest;
 import com.android.tradefed.result.suite.XmlSuiteResultFormatterTest;
 import com.android.tradefed.retry.BaseRetryDecisionTest;
 import com.android.tradefed.retry.ResultAggregatorTest;
 import com.android.tradefed.sandbox.SandboxConfigDumpTest;
 import com.android.tradefed.sandbox.SandboxConfigUtilTest;
 import com.android.tradefed.sandbox.SandboxInvocationRunnerTest;
+import com.android.tradefed.sandbox.SandboxWorkerPoolTest;
 import com.android.tradefed.sandbox.TradefedSandboxTest;
 import com.android.tradefed.suite.checker.ActivityStatusCheckerTest;
 import com.android.tradefed.suite.checker.DeviceSettingCheckerTest;
@@ -291,6 +305,7 @@ import com.android.tradefed.testtype.InstalledInstrumentationsTestTest;
 import com.android.tradefed.testtype.InstrumentationFileTestTest;
 import com.android.tradefed.testtype.InstrumentationTestTest;
 import com.android.tradefed.testtype.IsolatedHostTestTest;
+import com.android.tradefed.testtype.IsolationRunnerWorkerTest;
 import com.android.tradefed.testtype.JarHostTestTest;
 import com.android.tradefed.testtype.NativeBenchmarkTestParserTest;
 import com.android.tradefed.testtype.NativeBenchmarkTestTest;
@@ -402,12 +417,14 @@ import com.android.tradefed.util.SizeLimitedOutputStreamTest;
 import com.android.tradefed.util.Sl4aBluetoothUtilTest;
 import com.android.tradefed.util.SparseImageUtilTest;
 import com.android.tradefed.util.StreamUtilTest;
+import com.android.tradefed.util.StreamingStatsTest;
 import com.android.tradefed.util.StringEscapeUtilsTest;
 import com.android.tradefed.util.StringUtilTest;
 import com.android.tradefed.util.SubprocessTestResultsParserTest;
 import com.android.tradefed.util.TableBuilderTest;
 import com.android.tradefed.util.TableFormatterTest;
 import com.android.tradefed.util.TarUtilTest;
+import com.android.tradefed.util.TestFilterIndexTest;
 import com.android.tradefed.util.TimeUtilTest;
 import com.android.tradefed.util.TimeValTest;
 import com.android.tradefed.util.VersionParserTest;
@@ -449,6 +466,7 @@ import org.junit.runners.Suite.SuiteClasses;
     AppDeviceBuildInfoTest.class,
     BootstrapBuildProviderTest.class,
     BuildInfoTest.class,
+    ContentAddressedFileDownloadCacheTest.class,
     DeviceBuildInfoTest.class,
     DeviceBuildDescriptorTest.class,
     DeviceFolderBuildInfoTest.class,
@@ -460,6 +478,7 @@ import org.junit.runners.Suite.SuiteClasses;
     ClearcutClientTest.class,
 
     // cluster
+    BackgroundClusterEventUploaderTest.class,
     ClusterBuildProviderTest.class,
     ClusterCommandConfigBuilderTest.class,
     ClusterCommandEventTest.class,
@@ -482,6 +501,7 @@ import org.junit.runners.Suite.SuiteClasses;
     CommandRunnerTest.class,
     CommandSchedulerTest.class,
     ConsoleTest.class,
+    ReadyCommandIndexTest.class,
 
     // command.console
     ConfigCompleterTest.class,
@@ -492,6 +512,7 @@ import org.junit.runners.Suite.SuiteClasses;
 
     // config
     ArgsOptionParserTest.class,
+    ConfigurationDefCacheTest.class,
     ConfigurationDefTest.class,
     ConfigurationDescriptorTest.class,
     ConfigurationFactoryTest.class,
@@ -537,6 +558,7 @@ import org.junit.runners.Suite.SuiteClasses;
     ManagedTestDeviceFactoryTest.class,
     NativeDeviceTest.class,
     RemoteAndroidDeviceTest.class,
+    RingBufferOutputReceiverTest.class,
     PropertyChangerTest.class,
     TestDeviceTest.class,
     WaitDeviceRecoveryTest.class,
@@ -621,9 +643,12 @@ import org.junit.runners.Suite.SuiteClasses;
     TfObjectTrackerTest.class,
 
     // invoker.shard
+    RuntimeHistoryReporterTest.class,
+    RuntimeHistoryStoreTest.class,
     ShardHelperTest.class,
     StrictShardHelperTest.class,
     TestsPoolPollerTest.class,
+    WorkStealingTestsPoolTest.class,
 
     // invoker.shard.token
     CecControllerTokenProviderTest.class,
@@ -638,6 +663,7 @@ import org.junit.runners.Suite.SuiteClasses;
     HostUtilsTest.class,
 
     // log
+    AsyncLogWriterTest.class,
     FileLoggerTest.class,
     HistoryLoggerTest.class,
     LogRegistryTest.class,
@@ -658,6 +684,7 @@ import org.junit.runners.Suite.SuiteClasses;
     ATestFileSystemLogSaverTest.class,
     BugreportCollectorTest.class,
     CollectingTestListenerTest.class,
+    ColumnarTestResultMapTest.class,
     ConsoleResultReporterTest.class,
     CountingTestResultListenerTest.class,
     DeviceFileReporterTest.class,
@@ -678,6 +705,7 @@ import org.junit.runners.Suite.SuiteClasses;
     TestDescriptionTest.class,
     TestResultListenerTest.class,
     TestResultTest.class,
+    TestRunResultMergerTest.class,
     TestRunResultTest.class,
     TestSummaryTest.class,
     XmlResultReporterTest.class,
@@ -691,12 +719,14 @@ import org.junit.runners.Suite.SuiteClasses;
 
     // result.proto
     FileProtoResultReporterTest.class,
+    ProtoEventReceiverServiceTest.class,
     ProtoResultParserTest.class,
     ProtoResultReporterTest.class,
     StreamProtoResultReporterTest.class,
 
     // result.suite
     FormattedGeneratorReporterTest.class,
+    XmlFormattedGeneratorReporterTest.class,
     XmlSuiteResultFormatterTest.class,
 
     // retry
@@ -765,6 +795,7 @@ import org.junit.runners.Suite.SuiteClasses;
     SandboxConfigUtilTest.class,
     SandboxedInvocationExecutionTest.class,
     SandboxInvocationRunnerTest.class,
+    SandboxWorkerPoolTest.class,
     TradefedSandboxTest.class,
 
     // suite/checker
@@ -804,6 +835,7 @@ import org.junit.runners.Suite.SuiteClasses;
     InstrumentationFileTestTest.class,
     InstrumentationTestTest.class,
     IsolatedHostTestTest.class,
+    IsolationRunnerWorkerTest.class,
     JarHostTestTest.class,
     NativeBenchmarkTestParserTest.class,
     NativeBenchmarkTestTest.class,
@@ -934,12 +966,14 @@ import org.junit.runners.Suite.SuiteClasses;
     Sl4aBluetoothUtilTest.class,
     SparseImageUtilTest.class,
     StreamUtilTest.class,
+    StreamingStatsTest.class,
     StringEscapeUtilsTest.class,
     StringUtilTest.class,
     SubprocessTestResultsParserTest.class,
     TableBuilderTest.class,
     TableFormatterTest.class,
     TarUtilTest.class,
+    TestFilterIndexTest.class,
     TimeUtilTest.class,
     TimeValTest.class,
     VersionParserTest.class,
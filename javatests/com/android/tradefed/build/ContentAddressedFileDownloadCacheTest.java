@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.build;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.android.tradefed.result.error.InfraErrorIdentifier;
+import com.android.tradefed.util.FileUtil;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+
+import java.io.File;
+
+/** Unit tests for {@link ContentAddressedFileDownloadCache}. */
+@RunWith(JUnit4.class)
+public class ContentAddressedFileDownloadCacheTest {
+
+    private static final String REMOTE_PATH = "foo/path";
+    private static final String OTHER_REMOTE_PATH = "bar/other_path";
+    private static final String DOWNLOADED_CONTENTS = "downloaded contents";
+
+    @Mock IFileDownloader mMockDownloader;
+
+    private File mCacheDir;
+    private ContentAddressedFileDownloadCache mCache;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+
+        mCacheDir = FileUtil.createTempDir("unittest");
+        mCache = new ContentAddressedFileDownloadCache(mCacheDir);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mCache.empty();
+        FileUtil.recursiveDelete(mCacheDir);
+    }
+
+    /** Test basic case for {@link ContentAddressedFileDownloadCache#fetchRemoteFile}. */
+    @Test
+    public void testFetchRemoteFile() throws Exception {
+        setDownloadExpectations(REMOTE_PATH, DOWNLOADED_CONTENTS);
+
+        File fileCopy = mCache.fetchRemoteFile(mMockDownloader, REMOTE_PATH);
+        try {
+            assertEquals(DOWNLOADED_CONTENTS, FileUtil.readStringFromFile(fileCopy));
+            File cachedFile = mCache.getCachedFile(REMOTE_PATH);
+            assertNotNull(cachedFile);
+            assertEquals(
+                    ContentAddressedFileDownloadCache.computeDigest(fileCopy),
+                    cachedFile.getName());
+            assertEquals(1, mCache.getBlobCount());
+            assertEquals(DOWNLOADED_CONTENTS.length(), mCache.getCurrentCacheSize());
+        } finally {
+            FileUtil.deleteFile(fileCopy);
+        }
+    }
+
+    /** Test that a second fetch of the same path is served from the cache. */
+    @Test
+    public void testFetchRemoteFile_cacheHit() throws Exception {
+        setDownloadExpectations(REMOTE_PATH, DOWNLOADED_CONTENTS);
+        when(mMockDownloader.isFresh(Mockito.<File>any(), eq(REMOTE_PATH))).thenReturn(true);
+
+        FileUtil.deleteFile(mCache.fetchRemoteFile(mMockDownloader, REMOTE_PATH));
+        File fileCopy = mCache.fetchRemoteFile(mMockDownloader, REMOTE_PATH);
+        try {
+            assertEquals(DOWNLOADED_CONTENTS, FileUtil.readStringFromFile(fileCopy));
+        } finally {
+            FileUtil.deleteFile(fileCopy);
+        }
+        verify(mMockDownloader, times(1)).downloadFile(eq(REMOTE_PATH), any(File.class));
+    }
+
+    /** Test that a stale cached entry is downloaded again. */
+    @Test
+    public void testFetchRemoteFile_cacheHit_notFresh() throws Exception {
+        setDownloadExpectations(REMOTE_PATH, DOWNLOADED_CONTENTS);
+        when(mMockDownloader.isFresh(Mockito.<File>any(), eq(REMOTE_PATH))).thenReturn(false);
+
+        FileUtil.deleteFile(mCache.fetchRemoteFile(mMockDownloader, REMOTE_PATH));
+        FileUtil.deleteFile(mCache.fetchRemoteFile(mMockDownloader, REMOTE_PATH));
+        verify(mMockDownloader, times(2)).downloadFile(eq(REMOTE_PATH), any(File.class));
+        assertEquals(1, mCache.getBlobCount());
+    }
+
+    /** Test that identical content fetched from two remote paths is only stored once. */
+    @Test
+    public void testFetchRemoteFile_deduplicated() throws Exception {
+        setDownloadExpectations(REMOTE_PATH, DOWNLOADED_CONTENTS);
+        setDownloadExpectations(OTHER_REMOTE_PATH, DOWNLOADED_CONTENTS);
+
+        FileUtil.deleteFile(mCache.fetchRemoteFile(mMockDownloader, REMOTE_PATH));
+        FileUtil.deleteFile(mCache.fetchRemoteFile(mMockDownloader, OTHER_REMOTE_PATH));
+
+        assertEquals(1, mCache.getBlobCount());
+        assertEquals(DOWNLOADED_CONTENTS.length(), mCache.getCurrentCacheSize());
+        assertEquals(mCache.getCachedFile(REMOTE_PATH), mCache.getCachedFile(OTHER_REMOTE_PATH));
+
+        // Deleting one path keeps the content for the other one.
+        mCache.deleteCacheEntry(REMOTE_PATH);
+        assertNull(mCache.getCachedFile(REMOTE_PATH));
+        assertNotNull(mCache.getCachedFile(OTHER_REMOTE_PATH));
+        assertTrue(mCache.getCachedFile(OTHER_REMOTE_PATH).exists());
+    }
+
+    /** Test that least recently used content is evicted when the cache grows over its size. */
+    @Test
+    public void testFetchRemoteFile_cacheSizeExceeded() throws Exception {
+        mCache.setMaxCacheSize(DOWNLOADED_CONTENTS.length() + 1);
+        setDownloadExpectations(OTHER_REMOTE_PATH, "other contents");
+        setDownloadExpectations(REMOTE_PATH, DOWNLOADED_CONTENTS);
+
+        FileUtil.deleteFile(mCache.fetchRemoteFile(mMockDownloader, OTHER_REMOTE_PATH));
+        assertEquals(OTHER_REMOTE_PATH, mCache.getOldestEntry());
+        FileUtil.deleteFile(mCache.fetchRemoteFile(mMockDownloader, REMOTE_PATH));
+        mCache.waitForEviction();
+
+        assertNotNull(mCache.getCachedFile(REMOTE_PATH));
+        assertNull(mCache.getCachedFile(OTHER_REMOTE_PATH));
+        assertEquals(1, mCache.getBlobCount());
+        assertEquals(DOWNLOADED_CONTENTS.length(), mCache.getCurrentCacheSize());
+    }
+
+    /** Test that a failed download does not leave an entry behind. */
+    @Test
+    public void testFetchRemoteFile_downloadFailed() throws Exception {
+        doThrow(
+                        new BuildRetrievalError(
+                                "download error", InfraErrorIdentifier.ARTIFACT_DOWNLOAD_ERROR))
+                .when(mMockDownloader)
+                .downloadFile(eq(REMOTE_PATH), any(File.class));
+
+        try {
+            mCache.fetchRemoteFile(mMockDownloader, REMOTE_PATH);
+            fail("BuildRetrievalError not thrown");
+        } catch (BuildRetrievalError e) {
+            // expected
+        }
+        assertNull(mCache.getCachedFile(REMOTE_PATH));
+        assertEquals(0, mCache.getBlobCount());
+        File[] tmpDirs = new File(mCacheDir, ContentAddressedFileDownloadCache.TMP_DIR).listFiles();
+        assertEquals(1, tmpDirs.length);
+        assertEquals(0, tmpDirs[0].list().length);
+    }
+
+    /** Test that content which fails to be copied is dropped from the cache. */
+    @Test
+    public void testFetchRemoteFile_copyFailed() throws Exception {
+        setDownloadExpectations(REMOTE_PATH, DOWNLOADED_CONTENTS);
+        File destFile = new File(mCacheDir, "missing/dest");
+
+        try {
+            mCache.fetchRemoteFile(mMockDownloader, REMOTE_PATH, destFile);
+            fail("BuildRetrievalError not thrown");
+        } catch (BuildRetrievalError e) {
+            // expected
+        }
+        assertEquals(0, mCache.getBlobCount());
+        assertEquals(0, mCache.getCurrentCacheSize());
+    }
+
+    /** Test that content deleted by another process is downloaded again. */
+    @Test
+    public void testFetchRemoteFile_deletedByOtherProcess() throws Exception {
+        setDownloadExpectations(REMOTE_PATH, DOWNLOADED_CONTENTS);
+        when(mMockDownloader.isFresh(Mockito.<File>any(), eq(REMOTE_PATH))).thenReturn(true);
+
+        FileUtil.deleteFile(mCache.fetchRemoteFile(mMockDownloader, REMOTE_PATH));
+        // Another process evicted the content, this one still has it in its index.
+        ContentAddressedFileDownloadCache other = new ContentAddressedFileDownloadCache(mCacheDir);
+        other.empty();
+        File fileCopy = mCache.fetchRemoteFile(mMockDownloader, REMOTE_PATH);
+        try {
+            assertEquals(DOWNLOADED_CONTENTS, FileUtil.readStringFromFile(fileCopy));
+        } finally {
+            FileUtil.deleteFile(fileCopy);
+        }
+        verify(mMockDownloader, times(2)).downloadFile(eq(REMOTE_PATH), any(File.class));
+        assertEquals(1, mCache.getBlobCount());
+        assertNotNull(mCache.getCachedFile(REMOTE_PATH));
+    }
+
+    /** Test that only abandoned temporary files are deleted on startup. */
+    @Test
+    public void testCleanTmp() throws Exception {
+        File tmpDir = new File(mCacheDir, ContentAddressedFileDownloadCache.TMP_DIR);
+        File abandoned = new File(tmpDir, "abandoned");
+        File inProgress = new File(tmpDir, "in_progress");
+        FileUtil.writeToFile(DOWNLOADED_CONTENTS, abandoned);
+        FileUtil.writeToFile(DOWNLOADED_CONTENTS, inProgress);
+        abandoned.setLastModified(
+                System.currentTimeMillis() - ContentAddressedFileDownloadCache.TMP_EXPIRY_MS - 1);
+
+        new ContentAddressedFileDownloadCache(mCacheDir);
+        assertFalse(abandoned.exists());
+        assertTrue(inProgress.exists());
+    }
+
+    /** Test that the index is rebuilt from the content of an existing cache directory. */
+    @Test
+    public void testCacheRebuild() throws Exception {
+        setDownloadExpectations(REMOTE_PATH, DOWNLOADED_CONTENTS);
+        FileUtil.deleteFile(mCache.fetchRemoteFile(mMockDownloader, REMOTE_PATH));
+        File cachedFile = mCache.getCachedFile(REMOTE_PATH);
+
+        ContentAddressedFileDownloadCache rebuilt =
+                new ContentAddressedFileDownloadCache(mCacheDir);
+        assertEquals(cachedFile, rebuilt.getCachedFile(REMOTE_PATH));
+        assertEquals(DOWNLOADED_CONTENTS.length(), rebuilt.getCurrentCacheSize());
+    }
+
+    /** Test that directories are hashed by their relative paths and contents. */
+    @Test
+    public void testComputeDigest_directory() throws Exception {
+        File dir1 = FileUtil.createTempDir("digest");
+        File dir2 = FileUtil.createTempDir("digest");
+        try {
+            FileUtil.writeToFile(DOWNLOADED_CONTENTS, new File(dir1, "a"));
+            FileUtil.writeToFile(DOWNLOADED_CONTENTS, new File(dir2, "a"));
+            assertEquals(
+                    ContentAddressedFileDownloadCache.computeDigest(dir1),
+                    ContentAddressedFileDownloadCache.computeDigest(dir2));
+            FileUtil.writeToFile(DOWNLOADED_CONTENTS, new File(dir2, "b"));
+            assertNotEquals(
+                    ContentAddressedFileDownloadCache.computeDigest(dir1),
+                    ContentAddressedFileDownloadCache.computeDigest(dir2));
+        } finally {
+            FileUtil.recursiveDelete(dir1);
+            FileUtil.recursiveDelete(dir2);
+        }
+    }
+
+    private void setDownloadExpectations(String remotePath, String contents)
+            throws BuildRetrievalError {
+        doAnswer(
+                        invocation -> {
+                            File fileArg = (File) invocation.getArguments()[1];
+                            FileUtil.writeToFile(contents, fileArg);
+                            return null;
+                        })
+                .when(mMockDownloader)
+                .downloadFile(eq(remotePath), any(File.class));
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.cluster;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import com.android.tradefed.cluster.ClusterEventUploaderTest.Event;
+import com.android.tradefed.invoker.logger.InvocationMetricLogger;
+import com.android.tradefed.invoker.logger.InvocationMetricLogger.InvocationMetricKey;
+import com.android.tradefed.util.RunUtil;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+
+/** Unit tests for {@link BackgroundClusterEventUploader}. */
+@RunWith(JUnit4.class)
+public class BackgroundClusterEventUploaderTest {
+
+    private static final long WAIT_MS = 5000L;
+
+    private List<Event> mUploadedEvents;
+    private List<Integer> mBatchSizes;
+    private CountDownLatch mRelease;
+    private BackgroundClusterEventUploader<Event> mUploader;
+
+    @Before
+    public void setUp() {
+        mUploadedEvents = new CopyOnWriteArrayList<>();
+        mBatchSizes = new CopyOnWriteArrayList<>();
+        mRelease = new CountDownLatch(0);
+        InvocationMetricLogger.clearInvocationMetrics();
+    }
+
+    @After
+    public void tearDown() {
+        if (mUploader != null) {
+            mUploader.close();
+        }
+        InvocationMetricLogger.clearInvocationMetrics();
+    }
+
+    private BackgroundClusterEventUploader<Event> createUploader(
+            int maxInFlight, int maxQueueSize) {
+        return createUploader(maxInFlight, maxQueueSize, e -> "");
+    }
+
+    private BackgroundClusterEventUploader<Event> createUploader(
+            int maxInFlight, int maxQueueSize, Function<Event, String> orderingKey) {
+        ClusterEventUploader<Event> delegate =
+                new ClusterEventUploader<Event>() {
+                    @Override
+                    protected void doUploadEvents(List<Event> events) throws IOException {
+                        try {
+                            mRelease.await();
+                        } catch (InterruptedException e) {
+                            throw new IOException(e);
+                        }
+                        for (Event e : events) {
+                            if (!e.mUploadSuccess) {
+                                throw new IOException();
+                            }
+                        }
+                        mBatchSizes.add(events.size());
+                        mUploadedEvents.addAll(events);
+                    }
+                };
+        return new BackgroundClusterEventUploader<>(
+                delegate, maxInFlight, maxQueueSize, orderingKey);
+    }
+
+    private static void waitFor(BooleanSupplier condition) {
+        long deadline = System.currentTimeMillis() + WAIT_MS;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            RunUtil.getDefault().sleep(10);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+
+    /** Test that flush waits for the queued events to be uploaded. */
+    @Test
+    public void testFlush() {
+        mUploader = createUploader(2, 100);
+        mUploader.setMaxBatchSize(2);
+        for (int i = 0; i < 5; i++) {
+            mUploader.postEvent(new Event("event" + i));
+        }
+        mUploader.flush();
+        assertEquals(5, mUploadedEvents.size());
+        assertEquals(0, mUploader.getQueueDepth());
+        // The uploads are reported as invocation metrics by the flushing thread.
+        Map<String, String> metrics = InvocationMetricLogger.getInvocationMetrics();
+        assertEquals(
+                Integer.toString(mBatchSizes.size()),
+                metrics.get(InvocationMetricKey.CLUSTER_EVENT_UPLOAD_COUNT.toString()));
+        assertNotNull(metrics.get(InvocationMetricKey.CLUSTER_EVENT_UPLOAD_TIME.toString()));
+        assertEquals("0", metrics.get(InvocationMetricKey.CLUSTER_EVENT_QUEUE_DEPTH.toString()));
+    }
+
+    /** Test that a full batch is uploaded without waiting for the time window. */
+    @Test
+    public void testPostEvent_batchSize() {
+        mUploader = createUploader(2, 100);
+        mUploader.setEventUploadInterval(60 * 1000L);
+        mUploader.setMaxBatchSize(3);
+        for (int i = 0; i < 4; i++) {
+            mUploader.postEvent(new Event("event" + i));
+        }
+        waitFor(() -> mUploadedEvents.size() == 3);
+        assertEquals(3, (int) mBatchSizes.get(0));
+        assertEquals(1, mUploader.getQueueDepth());
+    }
+
+    /** Test that events are uploaded once the oldest one waited for the time window. */
+    @Test
+    public void testPostEvent_timeWindow() {
+        mUploader = createUploader(2, 100);
+        mUploader.setEventUploadInterval(50L);
+        mUploader.postEvent(new Event("event"));
+        waitFor(() -> mUploadedEvents.size() == 1);
+    }
+
+    /** Test that several batches are uploaded at once, up to the limit. */
+    @Test
+    public void testPostEvent_inFlight() {
+        mRelease = new CountDownLatch(1);
+        mUploader = createUploader(2, 100, e -> e.mName);
+        mUploader.setEventUploadInterval(60 * 1000L);
+        mUploader.setMaxBatchSize(1);
+        for (int i = 0; i < 3; i++) {
+            mUploader.postEvent(new Event("event" + i));
+        }
+        waitFor(() -> mUploader.getInFlightBatchCount() == 2);
+        assertEquals(1, mUploader.getQueueDepth());
+
+        mRelease.countDown();
+        mUploader.flush();
+        assertEquals(3, mUploadedEvents.size());
+        assertEquals(0, mUploader.getInFlightBatchCount());
+    }
+
+    /** Test that a single batch of events with the same key is uploaded at a time. */
+    @Test
+    public void testPostEvent_inFlightSameKey() {
+        mRelease = new CountDownLatch(1);
+        mUploader = createUploader(2, 100, e -> e.mName.substring(0, 1));
+        mUploader.setEventUploadInterval(60 * 1000L);
+        mUploader.setMaxBatchSize(1);
+        mUploader.postEvent(new Event("a1"));
+        mUploader.postEvent(new Event("a2"));
+        mUploader.postEvent(new Event("b1"));
+        waitFor(() -> mUploader.getInFlightBatchCount() == 2);
+        assertEquals(1, mUploader.getQueueDepth());
+
+        mRelease.countDown();
+        mUploader.flush();
+        assertEquals(3, mUploadedEvents.size());
+        assertTrue(indexOf("a1") < indexOf("a2"));
+    }
+
+    /** Test that the events of a key stay in order when its batch fails. */
+    @Test
+    public void testFlush_failedSameKey() {
+        mUploader = createUploader(2, 100, e -> e.mName.substring(0, 1));
+        mUploader.setMaxBatchSize(1);
+        Event failedEvent = new Event("a1", false);
+        mUploader.postEvent(failedEvent);
+        mUploader.postEvent(new Event("a2"));
+        mUploader.flush();
+        assertEquals(0, mUploadedEvents.size());
+        assertEquals(1L, mUploader.getFailedUploadCount());
+
+        failedEvent.mUploadSuccess = true;
+        mUploader.flush();
+        assertEquals(2, mUploadedEvents.size());
+        assertEquals("a1", mUploadedEvents.get(0).mName);
+        assertEquals("a2", mUploadedEvents.get(1).mName);
+    }
+
+    private int indexOf(String name) {
+        for (int i = 0; i < mUploadedEvents.size(); i++) {
+            if (name.equals(mUploadedEvents.get(i).mName)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** Test that a failed batch is kept and uploaded by the next flush. */
+    @Test
+    public void testFlush_failed() {
+        mUploader = createUploader(1, 100);
+        Event failedEvent = new Event("failedEvent", false);
+        mUploader.postEvent(new Event("event"));
+        mUploader.postEvent(failedEvent);
+        mUploader.flush();
+        assertEquals(0, mUploadedEvents.size());
+        assertEquals(2, mUploader.getQueueDepth());
+        assertEquals(
+                "1",
+                InvocationMetricLogger.getInvocationMetrics()
+                        .get(InvocationMetricKey.CLUSTER_EVENT_UPLOAD_FAILURE_COUNT.toString()));
+
+        failedEvent.mUploadSuccess = true;
+        mUploader.flush();
+        assertEquals(2, mUploadedEvents.size());
+        assertEquals("event", mUploadedEvents.get(0).mName);
+        assertEquals("failedEvent", mUploadedEvents.get(1).mName);
+    }
+
+    /** Test that the oldest events are dropped when the queue is full. */
+    @Test
+    public void testPostEvent_queueFull() {
+        mUploader = createUploader(1, 2);
+        mUploader.setEventUploadInterval(60 * 1000L);
+        mUploader.setMaxBatchSize(10);
+        for (int i = 0; i < 3; i++) {
+            mUploader.postEvent(new Event("event" + i));
+        }
+        assertEquals(1L, mUploader.getDroppedEventCount());
+        assertEquals(
+                "1",
+                InvocationMetricLogger.getInvocationMetrics()
+                        .get(InvocationMetricKey.CLUSTER_EVENT_DROPPED_COUNT.toString()));
+        mUploader.flush();
+        assertEquals(2, mUploadedEvents.size());
+        assertEquals("event1", mUploadedEvents.get(0).mName);
+    }
+
+    /** Test the exponential backoff between failed uploads. */
+    @Test
+    public void testGetBackoffMs() {
+        assertEquals(0L, BackgroundClusterEventUploader.getBackoffMs(0));
+        assertEquals(1000L, BackgroundClusterEventUploader.getBackoffMs(1));
+        assertEquals(2000L, BackgroundClusterEventUploader.getBackoffMs(2));
+        assertEquals(8000L, BackgroundClusterEventUploader.getBackoffMs(4));
+        assertEquals(
+                TimeUnit.MINUTES.toMillis(1), BackgroundClusterEventUploader.getBackoffMs(100));
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.command;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.android.tradefed.config.Configuration;
+import com.android.tradefed.config.DeviceConfigurationHolder;
+import com.android.tradefed.config.IConfiguration;
+import com.android.tradefed.device.DeviceSelectionOptions;
+import com.android.tradefed.device.IDeviceSelection;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/** Unit tests for {@link ReadyCommandIndex}. */
+@RunWith(JUnit4.class)
+public class ReadyCommandIndexTest {
+
+    private ReadyCommandIndex<String> mIndex;
+    private List<String> mAttempted;
+    private List<String> mUnmatched;
+
+    @Before
+    public void setUp() {
+        mIndex = new ReadyCommandIndex<>();
+        mAttempted = new ArrayList<>();
+        mUnmatched = new ArrayList<>();
+    }
+
+    /** Test that commands are dispatched in priority order across groups. */
+    @Test
+    public void testDispatch_priorityOrder() {
+        mIndex.add("c", "phone");
+        mIndex.add("a", "tablet");
+        mIndex.add("b", "phone");
+
+        dispatch(Arrays.asList("a", "b", "c"));
+
+        assertEquals(Arrays.asList("a", "b", "c"), mAttempted);
+        assertEquals(0, mIndex.size());
+        assertEquals(0, mIndex.getBucketCount());
+    }
+
+    /** Test that a failed allocation blocks all commands with the same requirements. */
+    @Test
+    public void testDispatch_blockedGroup() {
+        for (int i = 0; i < 100; i++) {
+            mIndex.add("phone" + i, "phone");
+        }
+        mIndex.add("tablet", "tablet");
+
+        dispatch(Arrays.asList("tablet"));
+
+        // Only one attempt for the whole phone group.
+        assertEquals(2, mAttempted.size());
+        assertEquals(100, mIndex.size());
+        assertEquals(100, mUnmatched.size());
+
+        // Nothing changed in the device pool, the group is not attempted again.
+        mAttempted.clear();
+        dispatch(Arrays.asList("phone0"));
+        assertTrue(mAttempted.isEmpty());
+
+        // Once devices changed, the group is retried.
+        mIndex.notifyDevicesChanged();
+        dispatch(Arrays.asList("phone0", "phone1"));
+        assertEquals(Arrays.asList("phone0", "phone1", "phone10"), mAttempted);
+        assertEquals(98, mIndex.size());
+    }
+
+    /** Test that new commands joining a blocked group do not trigger allocation. */
+    @Test
+    public void testDispatch_addToBlockedGroup() {
+        mIndex.add("phone0", "phone");
+        dispatch(Arrays.asList());
+        mAttempted.clear();
+
+        mIndex.add("phone1", "phone");
+        mIndex.add("tablet", "tablet");
+        dispatch(Arrays.asList());
+        assertEquals(Arrays.asList("tablet"), mAttempted);
+    }
+
+    /** Test that commands without a key are never grouped together. */
+    @Test
+    public void testDispatch_ungrouped() {
+        mIndex.add("a", null);
+        mIndex.add("b", null);
+        assertEquals(2, mIndex.getBucketCount());
+
+        dispatch(Arrays.asList("b"));
+        assertEquals(Arrays.asList("a", "b"), mAttempted);
+        assertEquals(Arrays.asList("a"), mIndex.getCommands());
+    }
+
+    /** Test removing commands from the index. */
+    @Test
+    public void testRemove() {
+        mIndex.add("a", "phone");
+        mIndex.add("b", "phone");
+        mIndex.add("c", "tablet");
+
+        assertTrue(mIndex.remove("a"));
+        mIndex.removeIf(cmd -> cmd.equals("c"));
+        assertEquals(Arrays.asList("b"), mIndex.getCommands());
+        assertEquals(1, mIndex.getBucketCount());
+        mIndex.clear();
+        assertEquals(0, mIndex.size());
+    }
+
+    /** Test that configurations requesting the same devices share the same key. */
+    @Test
+    public void testGetRequirementsKey() throws Exception {
+        IConfiguration phone1 = createConfig("phone");
+        IConfiguration phone2 = createConfig("phone");
+        IConfiguration tablet = createConfig("tablet");
+
+        assertEquals(
+                ReadyCommandIndex.getRequirementsKey(phone1),
+                ReadyCommandIndex.getRequirementsKey(phone2));
+        assertNotEquals(
+                ReadyCommandIndex.getRequirementsKey(phone1),
+                ReadyCommandIndex.getRequirementsKey(tablet));
+    }
+
+    /** Test that custom device selections are not grouped. */
+    @Test
+    public void testGetRequirementsKey_customSelection() throws Exception {
+        IConfiguration config = new Configuration("test", "test");
+        DeviceConfigurationHolder holder = new DeviceConfigurationHolder("device");
+        holder.addSpecificConfig(Mockito.mock(IDeviceSelection.class));
+        config.setDeviceConfig(holder);
+
+        assertNull(ReadyCommandIndex.getRequirementsKey(config));
+    }
+
+    private IConfiguration createConfig(String productType) throws Exception {
+        IConfiguration config = new Configuration("test", "test");
+        DeviceSelectionOptions options = new DeviceSelectionOptions();
+        options.addProductType(productType);
+        DeviceConfigurationHolder holder = new DeviceConfigurationHolder("device");
+        holder.addSpecificConfig(options);
+        config.setDeviceConfig(holder);
+        return config;
+    }
+
+    /** Dispatch the index, only allowing allocation of the given commands. */
+    private void dispatch(List<String> allocatable) {
+        mIndex.dispatch(
+                Comparator.naturalOrder(),
+                cmd -> {
+                    mAttempted.add(cmd);
+                    return allocatable.contains(cmd);
+                },
+                mUnmatched::add);
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+
+import com.android.tradefed.util.FileUtil;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Unit tests for {@link ConfigurationDefCache}. */
+@RunWith(JUnit4.class)
+public class ConfigurationDefCacheTest {
+
+    private static final String CONFIG =
+            "<configuration description=\"%s\">\n"
+                    + "    <test class=\"com.android.tradefed.testtype.StubTest\" />\n"
+                    + "</configuration>";
+
+    private File mCacheDir;
+    private File mConfigFile;
+    private AtomicInteger mStreamCount;
+
+    @Before
+    public void setUp() throws Exception {
+        mCacheDir = FileUtil.createTempDir("config-cache");
+        mConfigFile = FileUtil.createTempFile("cached-config", ".xml");
+        FileUtil.writeToFile(String.format(CONFIG, "first"), mConfigFile);
+        mStreamCount = new AtomicInteger();
+    }
+
+    @After
+    public void tearDown() {
+        FileUtil.recursiveDelete(mCacheDir);
+        FileUtil.deleteFile(mConfigFile);
+    }
+
+    /** A new factory, like the one of a new process, using the cache directory. */
+    private ConfigurationFactory createFactory() {
+        return new ConfigurationFactory() {
+            @Override
+            File getConfigCacheDir() {
+                return mCacheDir;
+            }
+
+            @Override
+            protected BufferedInputStream getConfigStream(String name)
+                    throws ConfigurationException {
+                mStreamCount.incrementAndGet();
+                return super.getConfigStream(name);
+            }
+        };
+    }
+
+    /** Test that a new factory reuses the definition parsed by a previous one. */
+    @Test
+    public void testGetConfigurationDef_persisted() throws Exception {
+        String path = mConfigFile.getAbsolutePath();
+        ConfigurationDef first = createFactory().getConfigurationDef(path, false, null);
+        assertEquals("first", first.getDescription());
+        // Parsed, then digested for the cache.
+        assertEquals(2, mStreamCount.get());
+
+        mStreamCount.set(0);
+        ConfigurationDef second = createFactory().getConfigurationDef(path, false, null);
+        assertNotSame(first, second);
+        assertEquals("first", second.getDescription());
+        assertEquals(first.getObjectClassMap().keySet(), second.getObjectClassMap().keySet());
+        assertEquals(0, mStreamCount.get());
+        assertEquals(1, second.createConfiguration().getTests().size());
+    }
+
+    /** Test that a modified configuration is parsed again. */
+    @Test
+    public void testGetConfigurationDef_modified() throws Exception {
+        String path = mConfigFile.getAbsolutePath();
+        createFactory().getConfigurationDef(path, false, null);
+
+        FileUtil.writeToFile(String.format(CONFIG, "second-version"), mConfigFile);
+        mStreamCount.set(0);
+        ConfigurationDef def = createFactory().getConfigurationDef(path, false, null);
+        assertEquals("second-version", def.getDescription());
+        // Digested by the lookup, then parsed. The digest is reused for the new entry.
+        assertEquals(2, mStreamCount.get());
+    }
+
+    /** Test that templates are part of the key of the entries. */
+    @Test
+    public void testGet_templates() throws Exception {
+        ConfigurationDefCache cache = new ConfigurationDefCache(mCacheDir, createFactory());
+        String path = mConfigFile.getAbsolutePath();
+        Map<String, String> templates = new HashMap<>();
+        templates.put("key", "value");
+        ConfigurationDef def = new ConfigurationDef(path);
+        cache.put(path, templates, Arrays.asList(path), def);
+
+        assertNull(cache.get(path, null));
+        templates.put("key", "other");
+        assertNull(cache.get(path, templates));
+        templates.put("key", "value");
+        assertEquals(path, cache.get(path, templates).getName());
+    }
+
+    /** Test that a touched configuration with the same content is still served by digest. */
+    @Test
+    public void testGet_sameDigest() throws Exception {
+        ConfigurationDefCache cache = new ConfigurationDefCache(mCacheDir, createFactory());
+        String path = mConfigFile.getAbsolutePath();
+        ConfigurationDef def = new ConfigurationDef(path);
+        def.setDescription("cached");
+        cache.put(path, null, Arrays.asList(path), def);
+
+        mConfigFile.setLastModified(mConfigFile.lastModified() + 10000L);
+        assertEquals("cached", cache.get(path, null).getDescription());
+    }
+
+    /** Test that an unreadable entry is ignored and removed. */
+    @Test
+    public void testGet_corrupted() throws Exception {
+        ConfigurationDefCache cache = new ConfigurationDefCache(mCacheDir, createFactory());
+        String path = mConfigFile.getAbsolutePath();
+        cache.put(path, null, Arrays.asList(path), new ConfigurationDef(path));
+        File[] entries = mCacheDir.listFiles();
+        assertEquals(1, entries.length);
+        FileUtil.writeToFile("not an entry", entries[0]);
+
+        assertNull(cache.get(path, null));
+        assertEquals(0, mCacheDir.listFiles().length);
+    }
+
+    /** Test that objects other than the ones of an entry are not read back. */
+    @Test
+    public void testGet_unexpectedClass() throws Exception {
+        ConfigurationDefCache cache = new ConfigurationDefCache(mCacheDir, createFactory());
+        String path = mConfigFile.getAbsolutePath();
+        cache.put(path, null, Arrays.asList(path), new ConfigurationDef(path));
+        File[] entries = mCacheDir.listFiles();
+        assertEquals(1, entries.length);
+        try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(entries[0]))) {
+            out.writeObject(new UnexpectedObject());
+        }
+
+        assertNull(cache.get(path, null));
+        assertEquals(0, UnexpectedObject.sReadCount.get());
+        assertEquals(0, mCacheDir.listFiles().length);
+    }
+
+    /** A {@link Serializable} that is not part of an entry, counting when it is read. */
+    private static class UnexpectedObject implements Serializable {
+        private static final long serialVersionUID = 1L;
+        static final AtomicInteger sReadCount = new AtomicInteger();
+
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+            sReadCount.incrementAndGet();
+            in.defaultReadObject();
+        }
+    }
+
+    /** Test that the classpath index is invalidated when a jar of the classpath changes. */
+    @Test
+    public void testClasspathIndex() throws Exception {
+        String classPath = System.getProperty("java.class.path");
+        File jar = FileUtil.createTempFile("classpath", ".jar");
+        try {
+            System.setProperty("java.class.path", jar.getAbsolutePath());
+            ConfigurationDefCache cache = new ConfigurationDefCache(mCacheDir, createFactory());
+            Set<String> names = new LinkedHashSet<>(Arrays.asList("a", "b"));
+            assertNull(cache.getClasspathIndex("config/"));
+            cache.putClasspathIndex("config/", names);
+
+            assertEquals(names, cache.getClasspathIndex("config/"));
+            assertNull(cache.getClasspathIndex("config/other"));
+
+            FileUtil.writeToFile("new content", jar);
+            assertNull(cache.getClasspathIndex("config/"));
+        } finally {
+            System.setProperty("java.class.path", classPath);
+            FileUtil.deleteFile(jar);
+        }
+    }
+}
@@ -73,6 +73,7 @@ import java.util.Map;
 import java.util.ServiceLoader;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.jar.JarEntry;
 import java.util.jar.JarOutputStream;
@@ -251,6 +252,114 @@ public class DynamicRemoteFileResolverTest {
         }
     }
 
+    /** Test that remote files are resolved once each when resolving concurrently. */
+    @Test
+    public void testResolve_concurrent() throws Exception {
+        RemoteFileOption object = new RemoteFileOption();
+        OptionSetter setter = new OptionSetter(object);
+        setter.setOptionValue("remote-file", "gs://fake/path");
+        setter.setOptionValue("remote-file-list", "fake/file");
+        setter.setOptionValue("remote-file-list", "gs://fake/path");
+        setter.setOptionValue("remote-file-list", "gs://fake/path2");
+
+        File fake = temporaryFolder.newFile();
+        File fake2 = temporaryFolder.newFile();
+        RemoteFileResolverArgs args1 = new RemoteFileResolverArgs();
+        args1.setConsideredFile(new File("gs:/fake/path"));
+        when(mMockResolver.resolveRemoteFile(args1)).thenReturn(new ResolvedFile(fake));
+        RemoteFileResolverArgs args2 = new RemoteFileResolverArgs();
+        args2.setConsideredFile(new File("gs:/fake/path2"));
+        when(mMockResolver.resolveRemoteFile(args2)).thenReturn(new ResolvedFile(fake2));
+
+        mResolver.setMaxConcurrentResolutionsPerScheme(4);
+        Set<File> downloadedFile = setter.validateRemoteFilePath(mResolver);
+
+        assertThat(downloadedFile)
+                .comparingElementsUsing(FILE_PATH_EQUIVALENCE)
+                .containsExactly(fake, fake2);
+        assertEquals(fake.getAbsolutePath(), object.remoteFile.getAbsolutePath());
+        assertThat(object.remoteFileList)
+                .comparingElementsUsing(FILE_PATH_EQUIVALENCE)
+                .containsExactly(new File("fake/file"), fake, fake2);
+        // The file referenced twice was only downloaded once.
+        verify(mMockResolver, Mockito.times(1)).resolveRemoteFile(args1);
+    }
+
+    /** Test that no option is replaced when a concurrent resolution fails. */
+    @Test
+    public void testResolve_concurrent_downloadError() throws Exception {
+        RemoteFileOption object = new RemoteFileOption();
+        OptionSetter setter = new OptionSetter(object);
+        setter.setOptionValue("remote-file-list", "gs://success/fake/path");
+        setter.setOptionValue("remote-file-list", "gs://failure/test");
+
+        File fake = temporaryFolder.newFile();
+        RemoteFileResolverArgs args1 = new RemoteFileResolverArgs();
+        args1.setConsideredFile(new File("gs://success/fake/path"));
+        when(mMockResolver.resolveRemoteFile(args1)).thenReturn(new ResolvedFile(fake));
+        RemoteFileResolverArgs args2 = new RemoteFileResolverArgs();
+        args2.setConsideredFile(new File("gs://failure/test"));
+        when(mMockResolver.resolveRemoteFile(args2))
+                .thenThrow(
+                        new BuildRetrievalError(
+                                "retrieval error", InfraErrorIdentifier.ARTIFACT_DOWNLOAD_ERROR));
+
+        mResolver.setMaxConcurrentResolutionsPerScheme(2);
+        try {
+            setter.validateRemoteFilePath(mResolver);
+            fail("Should have thrown an exception");
+        } catch (BuildRetrievalError expected) {
+            assertTrue(expected.getMessage().contains("retrieval error"));
+        }
+        assertThat(object.remoteFileList)
+                .comparingElementsUsing(FILE_PATH_EQUIVALENCE)
+                .containsExactly(new File("gs://success/fake/path"), new File("gs://failure/test"));
+    }
+
+    /**
+     * Test that a file still downloading when another resolution fails is waited for and cleaned
+     * up.
+     */
+    @Test
+    public void testResolve_concurrent_downloadErrorWhileRunning() throws Exception {
+        RemoteFileOption object = new RemoteFileOption();
+        OptionSetter setter = new OptionSetter(object);
+        setter.setOptionValue("remote-file-list", "gs://failure/test");
+        setter.setOptionValue("remote-file-list", "gs://slow/fake/path");
+
+        File fake = temporaryFolder.newFile();
+        CountDownLatch slowStarted = new CountDownLatch(1);
+        RemoteFileResolverArgs args1 = new RemoteFileResolverArgs();
+        args1.setConsideredFile(new File("gs://failure/test"));
+        when(mMockResolver.resolveRemoteFile(args1))
+                .thenAnswer(
+                        invocation -> {
+                            slowStarted.await();
+                            throw new BuildRetrievalError(
+                                    "retrieval error",
+                                    InfraErrorIdentifier.ARTIFACT_DOWNLOAD_ERROR);
+                        });
+        RemoteFileResolverArgs args2 = new RemoteFileResolverArgs();
+        args2.setConsideredFile(new File("gs://slow/fake/path"));
+        when(mMockResolver.resolveRemoteFile(args2))
+                .thenAnswer(
+                        invocation -> {
+                            slowStarted.countDown();
+                            RunUtil.getDefault().sleep(200L);
+                            return new ResolvedFile(fake);
+                        });
+
+        mResolver.setMaxConcurrentResolutionsPerScheme(2);
+        try {
+            setter.validateRemoteFilePath(mResolver);
+            fail("Should have thrown an exception");
+        } catch (BuildRetrievalError expected) {
+            assertTrue(expected.getMessage().contains("retrieval error"));
+        }
+        // The download finished after the failure, it was still cleaned up.
+        assertFalse(fake.exists());
+    }
+
     @Test
     public void testResolve_remoteMap() throws Exception {
         RemoteFileOption object = new RemoteFileOption();
@@ -25,6 +25,7 @@ import static org.junit.Assert.fail;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -77,6 +78,7 @@ import java.time.Clock;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -352,6 +354,118 @@ public class NativeDeviceTest {
         }
     }
 
+    /**
+     * Test that {@link NativeDevice#pushDir(File, String)} creates the directories in one command
+     * and pushes all the files.
+     */
+    @Test
+    public void testPushDir_batched() throws Exception {
+        List<String> commands = new ArrayList<>();
+        Set<String> pushed = Collections.synchronizedSet(new HashSet<>());
+        mTestDevice =
+                new TestableAndroidNativeDevice() {
+                    @Override
+                    public String executeShellCommand(String cmd)
+                            throws DeviceNotAvailableException {
+                        commands.add(cmd);
+                        return "";
+                    }
+
+                    @Override
+                    public boolean pushFileInternal(
+                            File localFile, String remoteFilePath, boolean skipContentProvider)
+                            throws DeviceNotAvailableException {
+                        pushed.add(remoteFilePath);
+                        return true;
+                    }
+                };
+        OptionSetter setter = new OptionSetter(mTestDevice.getOptions());
+        setter.setOptionValue("push-dir-archive-max-file-size", "0");
+        File testDir = FileUtil.createTempDir("pushDirTest");
+        try {
+            File subDir1 = new File(testDir, "sub1");
+            File subDir2 = new File(subDir1, "sub2");
+            subDir2.mkdirs();
+            FileUtil.writeToFile("1", new File(testDir, "file1"));
+            FileUtil.writeToFile("2", new File(subDir1, "file2"));
+            FileUtil.writeToFile("3", new File(subDir2, "file3"));
+            // Empty files are not archived either.
+            FileUtil.writeToFile("", new File(subDir2, "empty"));
+
+            assertTrue(mTestDevice.pushDir(testDir, "/data"));
+            assertEquals(1, commands.size());
+            assertTrue(commands.get(0).startsWith("mkdir -p"));
+            assertTrue(commands.get(0).contains("\"/data/sub1\""));
+            assertTrue(commands.get(0).contains("\"/data/sub1/sub2\""));
+            assertEquals(
+                    new HashSet<>(
+                            Arrays.asList(
+                                    "/data/file1",
+                                    "/data/sub1/file2",
+                                    "/data/sub1/sub2/file3",
+                                    "/data/sub1/sub2/empty")),
+                    pushed);
+        } finally {
+            FileUtil.recursiveDelete(testDir);
+        }
+    }
+
+    /**
+     * Test that {@link NativeDevice#pushDir(File, String)} skips the files identical on the device
+     * and bundles the small files in an archive.
+     */
+    @Test
+    public void testPushDir_archiveAndSkipIdentical() throws Exception {
+        File testDir = FileUtil.createTempDir("pushDirTest");
+        try {
+            File identical = new File(testDir, "identical");
+            FileUtil.writeToFile("same", identical);
+            FileUtil.writeToFile("new1", new File(testDir, "new1"));
+            FileUtil.writeToFile("new2", new File(testDir, "new2"));
+            String md5 = FileUtil.calculateMd5(identical);
+            List<String> pushed = new ArrayList<>();
+            mTestDevice =
+                    new TestableAndroidNativeDevice() {
+                        @Override
+                        public String executeShellCommand(String cmd)
+                                throws DeviceNotAvailableException {
+                            if (cmd.startsWith("stat")) {
+                                return "4 /data/identical\n";
+                            }
+                            if (cmd.startsWith("md5sum")) {
+                                assertFalse(cmd.contains("new1"));
+                                return md5 + "  /data/identical\n";
+                            }
+                            return "";
+                        }
+
+                        @Override
+                        public CommandResult executeShellV2Command(String cmd)
+                                throws DeviceNotAvailableException {
+                            assertTrue(cmd.startsWith("tar -xf"));
+                            return new CommandResult(CommandStatus.SUCCESS);
+                        }
+
+                        @Override
+                        public boolean pushFileInternal(
+                                File localFile, String remoteFilePath, boolean skipContentProvider)
+                                throws DeviceNotAvailableException {
+                            pushed.add(remoteFilePath);
+                            return true;
+                        }
+                    };
+            OptionSetter setter = new OptionSetter(mTestDevice.getOptions());
+            setter.setOptionValue("push-dir-skip-identical-files", "true");
+            setter.setOptionValue("push-dir-archive-max-file-size", "65536");
+
+            assertTrue(mTestDevice.pushDir(testDir, "/data"));
+            assertEquals(1, pushed.size());
+            assertTrue(pushed.get(0).endsWith(".tar"));
+        } finally {
+            FileUtil.recursiveDelete(testDir);
+        }
+    }
+
     /** Test {@link NativeDevice#pullDir(String, File)} when the remote directory is empty. */
     @Test
     public void testPullDir_nothingToDo() throws Exception {
@@ -3002,6 +3116,60 @@ public class NativeDeviceTest {
                         Mockito.any());
     }
 
+    /**
+     * Test that {@link NativeDevice#getLogcatSince(long)} uses the background logcat when it holds
+     * everything since the date.
+     */
+    @Test
+    public void testGetLogcatSince_backgroundLogcat() throws Exception {
+        ILogcatReceiver receiver = mock(ILogcatReceiver.class);
+        InputStreamSource captured = new ByteArrayInputStreamSource("logcat".getBytes());
+        when(receiver.getLogcatDataSince(1512990942000L)).thenReturn(captured);
+        TestableAndroidNativeDevice testDevice =
+                new TestableAndroidNativeDevice() {
+                    @Override
+                    ILogcatReceiver createLogcatReceiver() {
+                        return receiver;
+                    }
+                };
+        testDevice.startLogcat();
+
+        assertEquals(captured, testDevice.getLogcatSince(1512990942000L));
+        verify(mMockIDevice, never())
+                .executeShellCommand(Mockito.startsWith("logcat"), Mockito.any());
+    }
+
+    /**
+     * Test that {@link NativeDevice#getLogcatSince(long)} queries the device when the background
+     * logcat does not reach back to the date, for example after it wrapped or was cleared.
+     */
+    @Test
+    public void testGetLogcatSince_backgroundLogcatTooShort() throws Exception {
+        long date = 1512990942000L; // 2017-12-11 03:15:42.015
+        setGetPropertyExpectation("ro.build.version.sdk", "23");
+        ILogcatReceiver receiver = mock(ILogcatReceiver.class);
+        when(receiver.getLogcatDataSince(date)).thenReturn(null);
+        TestableAndroidNativeDevice testDevice =
+                new TestableAndroidNativeDevice() {
+                    @Override
+                    ILogcatReceiver createLogcatReceiver() {
+                        return receiver;
+                    }
+                };
+        testDevice.startLogcat();
+
+        SimpleDateFormat format = new SimpleDateFormat("MM-dd HH:mm:ss.mmm");
+        String dateFormatted = format.format(new Date(date));
+        InputStreamSource res = testDevice.getLogcatSince(date);
+        StreamUtil.close(res);
+
+        verify(receiver).getLogcatDataSince(date);
+        verify(mMockIDevice)
+                .executeShellCommand(
+                        Mockito.eq(String.format("logcat -v threadtime -t '%s'", dateFormatted)),
+                        Mockito.any());
+    }
+
     @Test
     public void testGetProductVariant() throws Exception {
         setGetPropertyExpectation(DeviceProperties.VARIANT, "variant");
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.android.tradefed.result.InputStreamSource;
+import com.android.tradefed.util.StreamUtil;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.InputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Unit tests for {@link RingBufferOutputReceiver}. */
+@RunWith(JUnit4.class)
+public class RingBufferOutputReceiverTest {
+
+    private RingBufferOutputReceiver mReceiver;
+
+    @Before
+    public void setUp() {
+        mReceiver = new RingBufferOutputReceiver("test", "serial", 64, 0L);
+    }
+
+    @After
+    public void tearDown() {
+        mReceiver.cancel();
+        mReceiver.delete();
+    }
+
+    /** Test that the data written can be read back. */
+    @Test
+    public void testGetData() throws Exception {
+        add("hello ");
+        add("world");
+        assertEquals("hello world", read(mReceiver.getData()));
+        assertEquals("world", read(mReceiver.getData(5)));
+        assertEquals("ld", read(mReceiver.getData(2, 3)));
+        assertEquals("world", read(mReceiver.getData(100, 6)));
+        assertEquals(11, mReceiver.getData().size());
+    }
+
+    /** Test that only the latest data is kept once the ring is full. */
+    @Test
+    public void testGetData_wrapAround() throws Exception {
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 30; i++) {
+            String line = String.format("line%02d\n", i);
+            add(line);
+            expected.append(line);
+        }
+        String all = expected.toString();
+        assertEquals(all.substring(all.length() - 64), read(mReceiver.getData()));
+    }
+
+    /** Test that a single write larger than the ring keeps its tail. */
+    @Test
+    public void testAddOutput_largerThanRing() throws Exception {
+        StringBuilder data = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            data.append((char) ('a' + i % 26));
+        }
+        add(data.toString());
+        assertEquals(data.substring(36), read(mReceiver.getData()));
+    }
+
+    /** Test that a view skips the data overwritten after it was created. */
+    @Test
+    public void testGetData_overwrittenView() throws Exception {
+        add("0123456789");
+        InputStreamSource view = mReceiver.getData();
+        for (int i = 0; i < 6; i++) {
+            add("abcdefghij");
+        }
+        // The first 6 bytes of the view were overwritten
+        assertEquals("6789", read(view));
+    }
+
+    /** Test that clearing the receiver discards the previous data. */
+    @Test
+    public void testClear() throws Exception {
+        add("before");
+        mReceiver.clear();
+        add("after");
+        assertEquals("after", read(mReceiver.getData()));
+    }
+
+    /** Test that concurrent writers do not lose any data. */
+    @Test
+    public void testAddOutput_concurrent() throws Exception {
+        mReceiver.delete();
+        mReceiver = new RingBufferOutputReceiver("test", "serial", 1024 * 1024, 0L);
+        List<Thread> writers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Thread t =
+                    new Thread(
+                            () -> {
+                                for (int j = 0; j < 1000; j++) {
+                                    add("0123456789");
+                                }
+                            });
+            writers.add(t);
+            t.start();
+        }
+        for (Thread t : writers) {
+            t.join();
+        }
+        String data = read(mReceiver.getData());
+        assertEquals(40000, data.length());
+        assertTrue(data.replace("0123456789", "").isEmpty());
+    }
+
+    /** Test getting the logcat since a given date. */
+    @Test
+    public void testGetDataSince() throws Exception {
+        mReceiver.delete();
+        mReceiver = new RingBufferOutputReceiver("test", "serial", 1024, 0L);
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        add("06-01 10:00:00.000  123  123 I tag: first\n");
+        add("06-01 10:00:01.000  123  123 I tag: second\n");
+        add("06-01 10:00:02.000  123  123 I tag: third\n");
+
+        long date = format.parse("2022-06-01 10:00:01.500").getTime();
+        String since = read(mReceiver.getDataSince(date));
+        assertEquals(
+                "06-01 10:00:01.000  123  123 I tag: second\n"
+                        + "06-01 10:00:02.000  123  123 I tag: third\n",
+                since);
+
+        // Nothing older than the date was captured, the output since it might be incomplete.
+        date = format.parse("2022-06-01 09:00:00.000").getTime();
+        assertNull(mReceiver.getDataSince(date));
+    }
+
+    /** Test that a date older than what is left in the ring cannot be looked up. */
+    @Test
+    public void testGetDataSince_overwritten() throws Exception {
+        mReceiver.delete();
+        mReceiver = new RingBufferOutputReceiver("test", "serial", 100, 0L);
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        add("06-01 10:00:00.000  123  123 I tag: first\n");
+        add("06-01 10:00:01.000  123  123 I tag: second\n");
+        add("06-01 10:00:02.000  123  123 I tag: third\n");
+
+        // The first line was overwritten.
+        long date = format.parse("2022-06-01 10:00:00.500").getTime();
+        assertNull(mReceiver.getDataSince(date));
+        date = format.parse("2022-06-01 10:00:02.500").getTime();
+        assertEquals(
+                "06-01 10:00:02.000  123  123 I tag: third\n", read(mReceiver.getDataSince(date)));
+    }
+
+    /** Test that a date before the last clear cannot be looked up. */
+    @Test
+    public void testGetDataSince_cleared() throws Exception {
+        mReceiver.delete();
+        mReceiver = new RingBufferOutputReceiver("test", "serial", 1024, 0L);
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        add("06-01 10:00:00.000  123  123 I tag: first\n");
+        mReceiver.clear();
+        add("06-01 10:00:01.000  123  123 I tag: second\n");
+
+        long date = format.parse("2022-06-01 10:00:00.500").getTime();
+        assertNull(mReceiver.getDataSince(date));
+    }
+
+    /** Test that output without logcat timestamps cannot be looked up by date. */
+    @Test
+    public void testGetDataSince_notIndexed() throws Exception {
+        add("some output\n");
+        assertNull(mReceiver.getDataSince(System.currentTimeMillis()));
+    }
+
+    /** Test parsing the logcat timestamps. */
+    @Test
+    public void testParseTimestamp() {
+        assertTrue(
+                RingBufferOutputReceiver.parseTimestamp("06-01 10:00:01.000")
+                        < RingBufferOutputReceiver.parseTimestamp("06-01 10:00:01.001"));
+        assertTrue(
+                RingBufferOutputReceiver.parseTimestamp("05-31 23:59:59.999")
+                        < RingBufferOutputReceiver.parseTimestamp("06-01 00:00:00.000"));
+        assertEquals(-1, RingBufferOutputReceiver.parseTimestamp("--------- beginning"));
+    }
+
+    private void add(String data) {
+        byte[] bytes = data.getBytes();
+        mReceiver.addOutput(bytes, 0, bytes.length);
+    }
+
+    private String read(InputStreamSource source) throws Exception {
+        try (InputStream stream = source.createInputStream()) {
+            return StreamUtil.getStringFromStream(stream);
+        }
+    }
+}
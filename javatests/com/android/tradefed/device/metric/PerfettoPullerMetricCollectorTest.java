@@ -16,6 +16,7 @@
 
 package com.android.tradefed.device.metric;
 
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.doReturn;
@@ -32,6 +33,7 @@ import com.android.tradefed.result.LogDataType;
 import com.android.tradefed.result.TestDescription;
 import com.android.tradefed.util.CommandResult;
 import com.android.tradefed.util.CommandStatus;
+import com.android.tradefed.util.FileUtil;
 import com.android.tradefed.util.Pair;
 import com.android.tradefed.util.proto.TfMetricProtoUtil;
 
@@ -49,6 +51,9 @@ import java.io.File;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /** Unit tests for {@link PerfettoPullerMetricCollector}. */
 @RunWith(JUnit4.class)
@@ -206,6 +211,92 @@ public class PerfettoPullerMetricCollectorTest {
                         .getSingleDouble() >= 0);
     }
 
+    /** Test that the pulled traces are processed concurrently and all reported. */
+    @Test
+    public void testProcessingFlow_concurrentTraces() throws Exception {
+        OptionSetter setter = new OptionSetter(mPerfettoMetricCollector);
+        setter.setOptionValue("pull-pattern-keys", "perfettofile");
+        setter.setOptionValue("perfetto-binary-path", "trx");
+        setter.setOptionValue("convert-metric-file", "false");
+        setter.setOptionValue("trace-processing-threads", "2");
+        HashMap<String, Metric> currentMetrics = new HashMap<>();
+        currentMetrics.put("perfettofile1", TfMetricProtoUtil.stringToMetric("/data/trace1.pb"));
+        currentMetrics.put("perfettofile2", TfMetricProtoUtil.stringToMetric("/data/trace2.pb"));
+        Mockito.when(mMockDevice.pullFile(Mockito.eq("/data/trace1.pb")))
+                .thenReturn(new File("trace1"));
+        Mockito.when(mMockDevice.pullFile(Mockito.eq("/data/trace2.pb")))
+                .thenReturn(new File("trace2"));
+
+        TestDescription testDesc = new TestDescription("xyz", "abc");
+        CommandResult cr = new CommandResult();
+        cr.setStatus(CommandStatus.SUCCESS);
+        cr.setStdout("trace-duration-ms:12");
+        // Both scripts must be running at the same time to return without waiting.
+        CountDownLatch running = new CountDownLatch(2);
+        AtomicBoolean concurrent = new AtomicBoolean(true);
+        Mockito.doAnswer(
+                        invocation -> {
+                            running.countDown();
+                            if (!running.await(5, TimeUnit.SECONDS)) {
+                                concurrent.set(false);
+                            }
+                            return cr;
+                        })
+                .when(mPerfettoMetricCollector)
+                .runHostCommand(Mockito.anyLong(), Mockito.any(), Mockito.any(), Mockito.any());
+
+        mPerfettoMetricCollector.testRunStarted("runName", 1);
+        mPerfettoMetricCollector.testStarted(testDesc);
+        mPerfettoMetricCollector.testEnded(testDesc, currentMetrics);
+        mPerfettoMetricCollector.testRunEnded(100L, currentMetrics);
+
+        assertTrue("Traces were not processed concurrently.", concurrent.get());
+        Mockito.verify(mPerfettoMetricCollector, times(2)).runHostCommand(Mockito.anyLong(),
+                Mockito.any(), Mockito.any(), Mockito.any());
+        Mockito.verify(mMockListener)
+                .testLog(Mockito.eq("trace1"), Mockito.eq(LogDataType.PERFETTO), Mockito.any());
+        Mockito.verify(mMockListener)
+                .testLog(Mockito.eq("trace2"), Mockito.eq(LogDataType.PERFETTO), Mockito.any());
+        assertTrue("Expected two metrics that includes success status",
+                currentMetrics.get("perfetto_trace_extractor_status").getMeasurements()
+                        .getSingleString().equals("1"));
+        assertTrue("Script metric not available but expected.",
+                currentMetrics.get("perfetto_trace-duration-ms").getMeasurements()
+                        .getSingleString().equals("12"));
+    }
+
+    /** Test that the files of a trace whose processing failed are deleted. */
+    @Test
+    public void testProcessingFlow_concurrentTraceFailure() throws Exception {
+        OptionSetter setter = new OptionSetter(mPerfettoMetricCollector);
+        setter.setOptionValue("pull-pattern-keys", "perfettofile");
+        setter.setOptionValue("perfetto-binary-path", "trx");
+        setter.setOptionValue("convert-metric-file", "false");
+        setter.setOptionValue("trace-processing-threads", "2");
+        HashMap<String, Metric> currentMetrics = new HashMap<>();
+        currentMetrics.put("perfettofile", TfMetricProtoUtil.stringToMetric("/data/trace.pb"));
+        File trace = FileUtil.createTempFile("trace", ".pb");
+        try {
+            Mockito.when(mMockDevice.pullFile(Mockito.eq("/data/trace.pb"))).thenReturn(trace);
+            Mockito.doThrow(new RuntimeException("script failed"))
+                    .when(mPerfettoMetricCollector)
+                    .runHostCommand(
+                            Mockito.anyLong(), Mockito.any(), Mockito.any(), Mockito.any());
+
+            TestDescription testDesc = new TestDescription("xyz", "abc");
+            mPerfettoMetricCollector.testRunStarted("runName", 1);
+            mPerfettoMetricCollector.testStarted(testDesc);
+            mPerfettoMetricCollector.testEnded(testDesc, currentMetrics);
+            mPerfettoMetricCollector.testRunEnded(100L, currentMetrics);
+
+            assertFalse(trace.exists());
+            Mockito.verify(mMockListener, Mockito.never())
+                    .testLog(Mockito.any(), Mockito.any(), Mockito.any());
+        } finally {
+            FileUtil.deleteFile(trace);
+        }
+    }
+
     @Test
     public void testScriptFailureStatus() throws Exception {
 
@@ -24,6 +24,9 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
@@ -52,6 +55,114 @@ public class InvocationMetricLoggerTest {
                 result.get(InvocationMetricKey.STAGE_TESTS_INDIVIDUAL_DOWNLOADS.toString()));
     }
 
+    @Test
+    public void testLogMetrics_additiveLong() throws Exception {
+        Map<String, String> result =
+                runInGroup(
+                        () -> {
+                            InvocationMetricLogger.addInvocationMetrics(
+                                    InvocationMetricKey.PUSH_FILE_COUNT, 2);
+                            InvocationMetricLogger.addInvocationMetrics(
+                                    InvocationMetricKey.PUSH_FILE_COUNT, 3);
+                            InvocationMetricLogger.addInvocationMetrics(
+                                    InvocationMetricKey.DEVICE_COUNT, 2);
+                            InvocationMetricLogger.addInvocationMetrics(
+                                    InvocationMetricKey.DEVICE_COUNT, 3);
+                        });
+        assertEquals("5", result.get(InvocationMetricKey.PUSH_FILE_COUNT.toString()));
+        // Non-additive key keeps the latest value
+        assertEquals("3", result.get(InvocationMetricKey.DEVICE_COUNT.toString()));
+    }
+
+    @Test
+    public void testLogMetrics_pairs() throws Exception {
+        Map<String, String> result =
+                runInGroup(
+                        () -> {
+                            InvocationMetricLogger.addInvocationPairMetrics(
+                                    InvocationMetricKey.SETUP_PAIR, 1L, 2L);
+                            InvocationMetricLogger.addInvocationPairMetrics(
+                                    InvocationMetricKey.SETUP_PAIR, 3L, 4L);
+                            InvocationMetricLogger.addInvocationPairMetrics(
+                                    InvocationMetricKey.TEST_PAIR, 1L, 2L);
+                            InvocationMetricLogger.addInvocationPairMetrics(
+                                    InvocationMetricKey.TEST_PAIR, 3L, 4L);
+                        });
+        assertEquals("1:2,3:4", result.get(InvocationMetricKey.SETUP_PAIR.toString()));
+        assertEquals("3:4", result.get(InvocationMetricKey.TEST_PAIR.toString()));
+    }
+
+    @Test
+    public void testLogMetrics_mixedTypes() throws Exception {
+        Map<String, String> result =
+                runInGroup(
+                        () -> {
+                            InvocationMetricLogger.addInvocationMetrics(
+                                    InvocationMetricKey.CRASH_FAILURES, "5");
+                            InvocationMetricLogger.addInvocationMetrics(
+                                    InvocationMetricKey.CRASH_FAILURES, 2);
+                            InvocationMetricLogger.addInvocationMetrics(
+                                    InvocationMetricKey.DEVICE_RESET_MODULES, 1);
+                            InvocationMetricLogger.addInvocationMetrics(
+                                    InvocationMetricKey.DEVICE_RESET_MODULES, "module");
+                            InvocationMetricLogger.addInvocationPairMetrics(
+                                    InvocationMetricKey.DEVICE_RESET_MODULES, 1L, 2L);
+                        });
+        assertEquals("7", result.get(InvocationMetricKey.CRASH_FAILURES.toString()));
+        assertEquals(
+                "1,module,1:2", result.get(InvocationMetricKey.DEVICE_RESET_MODULES.toString()));
+    }
+
+    @Test
+    public void testLogMetrics_concurrentUpdates() throws Exception {
+        Runnable increment =
+                () -> {
+                    for (int i = 0; i < 1000; i++) {
+                        InvocationMetricLogger.addInvocationMetrics(
+                                InvocationMetricKey.PULL_FILE_COUNT, 1);
+                    }
+                };
+        Map<String, String> result =
+                runInGroup(
+                        () -> {
+                            // Threads inherit the thread group of the invocation
+                            List<Thread> threads = new ArrayList<>();
+                            for (int i = 0; i < 4; i++) {
+                                Thread t = new Thread(increment);
+                                threads.add(t);
+                                t.start();
+                            }
+                            for (Thread t : threads) {
+                                try {
+                                    t.join();
+                                } catch (InterruptedException e) {
+                                    throw new RuntimeException(e);
+                                }
+                            }
+                        });
+        assertEquals("4000", result.get(InvocationMetricKey.PULL_FILE_COUNT.toString()));
+    }
+
+    /** Run the metric logging in its own thread group and return the resulting metrics. */
+    private Map<String, String> runInGroup(Runnable logging) throws Exception {
+        String uuid = UUID.randomUUID().toString();
+        ThreadGroup testGroup = new ThreadGroup("unit-test-group-" + uuid);
+        Map<String, String> result = new HashMap<>();
+        Thread testThread =
+                new Thread(
+                        testGroup,
+                        () -> {
+                            logging.run();
+                            result.putAll(InvocationMetricLogger.getInvocationMetrics());
+                            InvocationMetricLogger.clearInvocationMetrics();
+                        });
+        testThread.setName("InvocationMetricLoggerTest-test-thread");
+        testThread.setDaemon(true);
+        testThread.start();
+        testThread.join(10000);
+        return result;
+    }
+
     private Map<String, String> logMetric(InvocationMetricKey key, String value, String value2)
             throws Exception {
         String uuid = UUID.randomUUID().toString();
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.invoker.shard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import com.android.tradefed.config.OptionSetter;
+import com.android.tradefed.invoker.IInvocationContext;
+import com.android.tradefed.invoker.InvocationContext;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
+import com.android.tradefed.result.TestDescription;
+import com.android.tradefed.testtype.suite.ModuleDefinition;
+import com.android.tradefed.util.FileUtil;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.util.HashMap;
+
+/** Unit tests for {@link RuntimeHistoryReporter}. */
+@RunWith(JUnit4.class)
+public class RuntimeHistoryReporterTest {
+
+    private File mTmpDir;
+    private File mHistoryFile;
+    private RuntimeHistoryReporter mReporter;
+
+    @Before
+    public void setUp() throws Exception {
+        mTmpDir = FileUtil.createTempDir("runtime-history-test");
+        mHistoryFile = new File(mTmpDir, "history.txt");
+        mReporter = new RuntimeHistoryReporter();
+        OptionSetter setter = new OptionSetter(mReporter);
+        setter.setOptionValue("runtime-history-file", mHistoryFile.getAbsolutePath());
+    }
+
+    @After
+    public void tearDown() {
+        FileUtil.recursiveDelete(mTmpDir);
+    }
+
+    /** Test that the module and test durations are recorded at the end of the invocation. */
+    @Test
+    public void testRecord() throws Exception {
+        TestDescription test1 = new TestDescription("class", "test1");
+        TestDescription test2 = new TestDescription("class", "test2");
+        mReporter.invocationStarted(new InvocationContext());
+        mReporter.testModuleStarted(createModuleContext("arm64 module1"));
+        mReporter.testRunStarted("run", 2);
+        mReporter.testStarted(test1, 1000L);
+        mReporter.testEnded(test1, 1500L, new HashMap<String, Metric>());
+        mReporter.testStarted(test2, 1500L);
+        mReporter.testEnded(test2, 1700L, new HashMap<String, Metric>());
+        mReporter.testRunEnded(700L, new HashMap<String, Metric>());
+        mReporter.testModuleEnded();
+        // Tests outside of a module are not recorded
+        mReporter.testStarted(test1, 2000L);
+        mReporter.testEnded(test1, 9000L, new HashMap<String, Metric>());
+        mReporter.invocationEnded(1000L);
+
+        assertTrue(mHistoryFile.exists());
+        RuntimeHistoryStore store = new RuntimeHistoryStore(mHistoryFile);
+        assertNotNull(store.getModuleDuration("arm64 module1", 1));
+        assertEquals(Long.valueOf(700L), store.getTestsDuration("arm64 module1"));
+    }
+
+    private IInvocationContext createModuleContext(String moduleId) {
+        IInvocationContext context = new InvocationContext();
+        context.addInvocationAttribute(ModuleDefinition.MODULE_ID, moduleId);
+        return context;
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.invoker.shard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.android.tradefed.util.FileUtil;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Unit tests for {@link RuntimeHistoryStore}. */
+@RunWith(JUnit4.class)
+public class RuntimeHistoryStoreTest {
+
+    private File mTmpDir;
+    private File mHistoryFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mTmpDir = FileUtil.createTempDir("runtime-history-test");
+        mHistoryFile = new File(mTmpDir, "history.txt");
+    }
+
+    @After
+    public void tearDown() {
+        FileUtil.recursiveDelete(mTmpDir);
+    }
+
+    /** Test that the recorded durations are persisted and loaded back. */
+    @Test
+    public void testRecordAndLoad() throws Exception {
+        RuntimeHistoryStore store = new RuntimeHistoryStore(mHistoryFile);
+        assertTrue(store.isEmpty());
+        Map<String, Long> tests = new HashMap<>();
+        tests.put("module1#class#test1", 100L);
+        tests.put("module1#class#test2", 200L);
+        tests.put("module10#class#test1", 5000L);
+        store.record(1, Collections.singletonMap("module1", 1000L), tests);
+        assertEquals(Long.valueOf(1000L), store.getModuleDuration("module1", 1));
+
+        RuntimeHistoryStore loaded = new RuntimeHistoryStore(mHistoryFile);
+        assertFalse(loaded.isEmpty());
+        assertEquals(Long.valueOf(1000L), loaded.getModuleDuration("module1", 1));
+        assertNull(loaded.getModuleDuration("module2", 1));
+        assertEquals(Long.valueOf(300L), loaded.getTestsDuration("module1"));
+        assertNull(loaded.getTestsDuration("module2"));
+    }
+
+    /** Test that new samples are averaged with the previous ones. */
+    @Test
+    public void testRecord_average() throws Exception {
+        new RuntimeHistoryStore(mHistoryFile)
+                .record(1, Collections.singletonMap("module1", 1000L), Collections.emptyMap());
+        new RuntimeHistoryStore(mHistoryFile)
+                .record(1, Collections.singletonMap("module1", 2000L), Collections.emptyMap());
+        RuntimeHistoryStore loaded = new RuntimeHistoryStore(mHistoryFile);
+        assertEquals(Long.valueOf(1300L), loaded.getModuleDuration("module1", 1));
+    }
+
+    /** Test that recording merges with the updates made by other stores since loading. */
+    @Test
+    public void testRecord_merge() throws Exception {
+        RuntimeHistoryStore store1 = new RuntimeHistoryStore(mHistoryFile);
+        RuntimeHistoryStore store2 = new RuntimeHistoryStore(mHistoryFile);
+        store1.record(1, Collections.singletonMap("module1", 1000L), Collections.emptyMap());
+        store2.record(1, Collections.singletonMap("module2", 2000L), Collections.emptyMap());
+        RuntimeHistoryStore loaded = new RuntimeHistoryStore(mHistoryFile);
+        assertEquals(Long.valueOf(1000L), loaded.getModuleDuration("module1", 1));
+        assertEquals(Long.valueOf(2000L), loaded.getModuleDuration("module2", 1));
+    }
+
+    /** Test that the module durations are kept per shard count. */
+    @Test
+    public void testRecord_shardCount() throws Exception {
+        RuntimeHistoryStore store = new RuntimeHistoryStore(mHistoryFile);
+        store.record(1, Collections.singletonMap("module1", 1000L), Collections.emptyMap());
+        store.record(2, Collections.singletonMap("module1", 400L), Collections.emptyMap());
+        assertEquals(Long.valueOf(1000L), store.getModuleDuration("module1", 1));
+        assertEquals(Long.valueOf(400L), store.getModuleDuration("module1", 2));
+        assertNull(store.getModuleDuration("module1", 3));
+    }
+
+    /** Test that the entries not updated by the last recordings are dropped. */
+    @Test
+    public void testRecord_prune() throws Exception {
+        RuntimeHistoryStore store = new RuntimeHistoryStore(mHistoryFile);
+        store.record(
+                1,
+                Collections.singletonMap("module1", 1000L),
+                Collections.singletonMap("module1#class#test1", 100L));
+        for (int i = 0; i < 99; i++) {
+            store.record(1, Collections.singletonMap("module2", 1000L), Collections.emptyMap());
+        }
+        assertEquals(Long.valueOf(1000L), store.getModuleDuration("module1", 1));
+        assertEquals(Long.valueOf(100L), store.getTestsDuration("module1"));
+
+        store.record(1, Collections.singletonMap("module2", 1000L), Collections.emptyMap());
+        assertNull(store.getModuleDuration("module1", 1));
+        assertNull(store.getTestsDuration("module1"));
+        assertEquals(Long.valueOf(1000L), store.getModuleDuration("module2", 1));
+
+        RuntimeHistoryStore loaded = new RuntimeHistoryStore(mHistoryFile);
+        assertNull(loaded.getModuleDuration("module1", 1));
+        assertEquals(Long.valueOf(1000L), loaded.getModuleDuration("module2", 1));
+    }
+
+    /** Test that a recording appends its samples instead of rewriting the file. */
+    @Test
+    public void testRecord_append() throws Exception {
+        RuntimeHistoryStore store = new RuntimeHistoryStore(mHistoryFile);
+        store.record(1, Collections.singletonMap("module1", 1000L), Collections.emptyMap());
+        String snapshot = FileUtil.readStringFromFile(mHistoryFile);
+
+        store.record(1, Collections.singletonMap("module1", 2000L), Collections.emptyMap());
+        String content = FileUtil.readStringFromFile(mHistoryFile);
+        assertTrue(content.startsWith(snapshot));
+        assertEquals("+\n+\tmodule1@1\t2000\n", content.substring(snapshot.length()));
+        assertEquals(FileUtil.calculateMd5(mHistoryFile), store.getDigest());
+        RuntimeHistoryStore loaded = new RuntimeHistoryStore(mHistoryFile);
+        assertEquals(Long.valueOf(1300L), loaded.getModuleDuration("module1", 1));
+        assertEquals(store.getDigest(), loaded.getDigest());
+    }
+
+    /** Test that the appended samples are regularly folded into a new snapshot. */
+    @Test
+    public void testRecord_snapshot() throws Exception {
+        RuntimeHistoryStore store = new RuntimeHistoryStore(mHistoryFile);
+        for (int i = 0; i < 21; i++) {
+            store.record(1, Collections.singletonMap("module1", 1000L), Collections.emptyMap());
+        }
+        // The first recording creates the snapshot, the 20 next ones are folded into a new one.
+        assertEquals(
+                "records\t21\nmodule1@1\t21\t1000.0\t21\n",
+                FileUtil.readStringFromFile(mHistoryFile));
+    }
+
+    /** Test that malformed lines are ignored. */
+    @Test
+    public void testLoad_malformed() throws Exception {
+        FileUtil.writeToFile(
+                "module1@1\t1\t1000.0\t1\ngarbage\nmodule2@1\tx\t1\t1\n", mHistoryFile);
+        RuntimeHistoryStore store = new RuntimeHistoryStore(mHistoryFile);
+        assertEquals(Long.valueOf(1000L), store.getModuleDuration("module1", 1));
+        assertNull(store.getModuleDuration("module2", 1));
+    }
+}
@@ -18,6 +18,7 @@ package com.android.tradefed.invoker.shard;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
@@ -47,6 +48,7 @@ import com.android.tradefed.testtype.IRemoteTest;
 import com.android.tradefed.testtype.IShardableTest;
 import com.android.tradefed.testtype.StubTest;
 import com.android.tradefed.testtype.suite.ITestSuite;
+import com.android.tradefed.testtype.suite.ModuleDefinition;
 import com.android.tradefed.util.FileUtil;
 
 import org.junit.Assert;
@@ -62,8 +64,11 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /** Unit tests for {@link StrictShardHelper}. */
 @RunWith(JUnit4.class)
@@ -570,6 +575,120 @@ public class StrictShardHelperTest {
         assertEquals(2, res.get(5).size());
     }
 
+    /** Test that the shards are balanced with the runtime history. */
+    @Test
+    public void testDistribution_runtimeHistory() throws Exception {
+        File tmpDir = FileUtil.createTempDir("runtime-history");
+        try {
+            RuntimeHistoryStore history = new RuntimeHistoryStore(new File(tmpDir, "history"));
+            Map<String, Long> durations = new HashMap<>();
+            durations.put("module1", 100L);
+            durations.put("module2", 700L);
+            durations.put("module3", 300L);
+            durations.put("module4", 400L);
+            durations.put("module5", 200L);
+            history.record(2, durations, new HashMap<>());
+            mHelper.setRuntimeHistory(history);
+
+            List<IRemoteTest> testList = new ArrayList<>();
+            for (int i = 1; i <= 6; i++) {
+                testList.add(createSuiteWithId("module" + i));
+            }
+            List<List<IRemoteTest>> res = mHelper.splitTests(testList, 2);
+            // module6 has no history and is estimated with the median (300ms): both shards get
+            // 1000ms.
+            assertEquals(Arrays.asList(testList.get(1), testList.get(5)), res.get(0));
+            assertEquals(
+                    Arrays.asList(
+                            testList.get(0), testList.get(2), testList.get(3), testList.get(4)),
+                    res.get(1));
+        } finally {
+            FileUtil.recursiveDelete(tmpDir);
+        }
+    }
+
+    /**
+     * Test that the pieces of a split module are estimated with the recorded module duration,
+     * which is already the duration of a piece, and with their share of the test cases.
+     */
+    @Test
+    public void testDistribution_runtimeHistory_splitModule() throws Exception {
+        File tmpDir = FileUtil.createTempDir("runtime-history");
+        try {
+            RuntimeHistoryStore history = new RuntimeHistoryStore(new File(tmpDir, "history"));
+            Map<String, Long> durations = new HashMap<>();
+            durations.put("long", 1200L);
+            durations.put("split", 600L);
+            durations.put("short", 500L);
+            Map<String, Long> tests = new HashMap<>();
+            tests.put("tests#class#test1", 700L);
+            tests.put("tests#class#test2", 500L);
+            history.record(3, durations, tests);
+            // Durations recorded with another shard count are not used.
+            history.record(1, Collections.singletonMap("tests", 5000L), new HashMap<>());
+            mHelper.setRuntimeHistory(history);
+
+            List<IRemoteTest> testList = new ArrayList<>();
+            testList.add(createSuiteWithId("long"));
+            testList.add(createSuiteWithId("split"));
+            testList.add(createSuiteWithId("split"));
+            testList.add(createSuiteWithId("short"));
+            testList.add(createSuiteWithId("tests"));
+            testList.add(createSuiteWithId("tests"));
+            List<List<IRemoteTest>> res = mHelper.splitTests(testList, 3);
+            // Pieces of "split" are estimated 600ms each, pieces of "tests" 600ms each.
+            assertEquals(Arrays.asList(testList.get(0), testList.get(3)), res.get(0));
+            assertEquals(Arrays.asList(testList.get(1), testList.get(4)), res.get(1));
+            assertEquals(Arrays.asList(testList.get(2), testList.get(5)), res.get(2));
+        } finally {
+            FileUtil.recursiveDelete(tmpDir);
+        }
+    }
+
+    /** Test that the default distribution is used when none of the tests has a history. */
+    @Test
+    public void testDistribution_runtimeHistory_noMatch() throws Exception {
+        File tmpDir = FileUtil.createTempDir("runtime-history");
+        try {
+            RuntimeHistoryStore history = new RuntimeHistoryStore(new File(tmpDir, "history"));
+            history.record(6, Collections.singletonMap("other", 100L), new HashMap<>());
+            mHelper.setRuntimeHistory(history);
+            List<List<IRemoteTest>> res = mHelper.splitTests(createFakeTestList(7), 6);
+            assertEquals(2, res.get(0).size());
+            assertEquals(1, res.get(5).size());
+        } finally {
+            FileUtil.recursiveDelete(tmpDir);
+        }
+    }
+
+    /** Test that the runtime history is only used if all shards are given the same content. */
+    @Test
+    public void testLoadRuntimeHistory_digest() throws Exception {
+        File tmpDir = FileUtil.createTempDir("runtime-history");
+        try {
+            File historyFile = new File(tmpDir, "history");
+            new RuntimeHistoryStore(historyFile)
+                    .record(2, Collections.singletonMap("module1", 100L), new HashMap<>());
+            String digest = FileUtil.calculateMd5(historyFile);
+
+            RuntimeHistoryStore history = mHelper.loadRuntimeHistory(historyFile, digest);
+            assertEquals(Long.valueOf(100L), history.getModuleDuration("module1", 2));
+            assertNull(mHelper.loadRuntimeHistory(historyFile, null));
+            assertNull(mHelper.loadRuntimeHistory(historyFile, "otherdigest"));
+            assertNull(mHelper.loadRuntimeHistory(new File(tmpDir, "missing"), digest));
+        } finally {
+            FileUtil.recursiveDelete(tmpDir);
+        }
+    }
+
+    private ITestSuite createSuiteWithId(String id) {
+        ITestSuite suite = mock(ITestSuite.class);
+        ModuleDefinition module = mock(ModuleDefinition.class);
+        Mockito.when(module.getId()).thenReturn(id);
+        Mockito.when(suite.getDirectModule()).thenReturn(module);
+        return suite;
+    }
+
     private File createTmpConfig(String objType, Object obj) throws IOException {
         File configFile = FileUtil.createTempFile("shard-helper-test", ".xml");
         String content = String.format(TEST_CONFIG, objType, obj.getClass().getCanonicalName());
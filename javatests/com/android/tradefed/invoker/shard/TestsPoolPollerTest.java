@@ -113,6 +113,30 @@ public class TestsPoolPollerTest {
         assertNull(poller2.poll());
     }
 
+    /** Tests that pollers sharing a {@link WorkStealingTestsPool} take each test once. */
+    @Test
+    public void testMultiPolling_workStealing() {
+        int numTests = 5;
+        List<IRemoteTest> testsList = new ArrayList<>();
+        for (int i = 0; i < numTests; i++) {
+            testsList.add(new StubTest());
+        }
+        CountDownLatch tracker = new CountDownLatch(2);
+        WorkStealingTestsPool pool = new WorkStealingTestsPool(testsList, 2);
+        TestsPoolPoller poller1 = new TestsPoolPoller(pool, 0, null, tracker);
+        TestsPoolPoller poller2 = new TestsPoolPoller(pool, 1, null, tracker);
+        assertEquals(numTests, pool.size());
+        assertNotNull(poller1.poll());
+        assertNotNull(poller1.poll());
+        assertNotNull(poller1.poll());
+        // Poller 1 steals from poller 2
+        assertNotNull(poller1.poll());
+        assertNotNull(poller2.poll());
+        assertEquals(0, pool.size());
+        assertNull(poller1.poll());
+        assertNull(poller2.poll());
+    }
+
     /**
      * Tests that {@link TestsPoolPoller#run(TestInformation, ITestInvocationListener)} is properly
      * running and redirecting the invocation callbacks.
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.invoker.shard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import com.android.tradefed.invoker.TestInformation;
+import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.testtype.IRemoteTest;
+import com.android.tradefed.testtype.IRuntimeHintProvider;
+import com.android.tradefed.testtype.StubTest;
+import com.android.tradefed.testtype.suite.ITestSuite;
+import com.android.tradefed.testtype.suite.ModuleDefinition;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Unit tests for {@link WorkStealingTestsPool}. */
+@RunWith(JUnit4.class)
+public class WorkStealingTestsPoolTest {
+
+    /** A test with a runtime hint. */
+    private static class HintedTest implements IRemoteTest, IRuntimeHintProvider {
+        private final long mHint;
+
+        HintedTest(long hint) {
+            mHint = hint;
+        }
+
+        @Override
+        public long getRuntimeHint() {
+            return mHint;
+        }
+
+        @Override
+        public void run(TestInformation testInfo, ITestInvocationListener listener) {
+            // Nothing to run
+        }
+    }
+
+    /** Test that a poller drains its own queue before stealing from the tail of another one. */
+    @Test
+    public void testPoll_steal() {
+        List<IRemoteTest> tests = createTests(6);
+        WorkStealingTestsPool pool = new WorkStealingTestsPool(tests, 2);
+        // Tests are dealt round robin: poller 0 has 0, 2, 4 and poller 1 has 1, 3, 5.
+        assertSame(tests.get(0), pool.poll(0));
+        assertSame(tests.get(2), pool.poll(0));
+        assertSame(tests.get(4), pool.poll(0));
+        assertSame(tests.get(5), pool.poll(0));
+        assertSame(tests.get(1), pool.poll(1));
+        assertSame(tests.get(3), pool.poll(1));
+        assertNull(pool.poll(0));
+        assertNull(pool.poll(1));
+    }
+
+    /** Test that the longest tests are handed out first. */
+    @Test
+    public void testPoll_longestFirst() {
+        IRemoteTest short1 = new HintedTest(10L);
+        IRemoteTest long1 = new HintedTest(1000L);
+        IRemoteTest medium = new HintedTest(100L);
+        IRemoteTest noHint = new StubTest();
+        WorkStealingTestsPool pool =
+                new WorkStealingTestsPool(Arrays.asList(short1, noHint, long1, medium), 1);
+        assertSame(long1, pool.poll(0));
+        assertSame(medium, pool.poll(0));
+        assertSame(short1, pool.poll(0));
+        assertSame(noHint, pool.poll(0));
+    }
+
+    /** Test that module pieces whose batches were all taken are skipped. */
+    @Test
+    public void testPoll_exhaustedModule() {
+        ITestSuite exhausted = createSuite(2);
+        ITestSuite remaining = createSuite(3);
+        WorkStealingTestsPool pool =
+                new WorkStealingTestsPool(Arrays.asList(exhausted, remaining), 2);
+        // Other pieces of the module took its batches.
+        Mockito.when(exhausted.getDirectModule().numTests()).thenReturn(0);
+        assertSame(remaining, pool.poll(0));
+        assertNull(pool.poll(1));
+        assertEquals(0, pool.size());
+    }
+
+    /** Test that modules without test cases are still handed out to report their empty run. */
+    @Test
+    public void testPoll_emptyModule() {
+        ITestSuite empty = createSuite(0);
+        ITestSuite remaining = createSuite(3);
+        WorkStealingTestsPool pool = new WorkStealingTestsPool(Arrays.asList(empty, remaining), 1);
+        assertSame(empty, pool.poll(0));
+        assertSame(remaining, pool.poll(0));
+        assertNull(pool.poll(0));
+    }
+
+    /** Test that remaining tests can be polled to be reported as not executed. */
+    @Test
+    public void testPollAny() {
+        ITestSuite exhausted = createSuite(0);
+        WorkStealingTestsPool pool =
+                new WorkStealingTestsPool(Collections.singletonList(exhausted), 2);
+        assertEquals(1, pool.size());
+        assertSame(exhausted, pool.pollAny());
+        assertNull(pool.pollAny());
+    }
+
+    /** Test that concurrent pollers take each test exactly once. */
+    @Test
+    public void testPoll_concurrent() throws Exception {
+        List<IRemoteTest> tests = createTests(2000);
+        int pollerCount = 4;
+        WorkStealingTestsPool pool = new WorkStealingTestsPool(tests, pollerCount);
+        Set<IRemoteTest> polled = Collections.newSetFromMap(new IdentityHashMap<>());
+        AtomicInteger pollCount = new AtomicInteger();
+        List<Thread> pollers = new ArrayList<>();
+        for (int i = 0; i < pollerCount; i++) {
+            final int index = i;
+            Thread t =
+                    new Thread(
+                            () -> {
+                                IRemoteTest test;
+                                while ((test = pool.poll(index)) != null) {
+                                    pollCount.incrementAndGet();
+                                    synchronized (polled) {
+                                        polled.add(test);
+                                    }
+                                }
+                            });
+            pollers.add(t);
+            t.start();
+        }
+        for (Thread t : pollers) {
+            t.join();
+        }
+        assertEquals(tests.size(), pollCount.get());
+        assertEquals(tests.size(), polled.size());
+    }
+
+    private List<IRemoteTest> createTests(int count) {
+        List<IRemoteTest> tests = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            tests.add(new StubTest());
+        }
+        return tests;
+    }
+
+    private ITestSuite createSuite(int remainingBatches) {
+        ITestSuite suite = Mockito.mock(ITestSuite.class);
+        ModuleDefinition module = Mockito.mock(ModuleDefinition.class);
+        Mockito.when(module.numTests()).thenReturn(remainingBatches);
+        Mockito.when(module.getId()).thenReturn("module");
+        Mockito.when(suite.getDirectModule()).thenReturn(module);
+        return suite;
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.log;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.android.tradefed.log.AsyncLogWriter.OverflowPolicy;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/** Unit tests for {@link AsyncLogWriter}. */
+@RunWith(JUnit4.class)
+public class AsyncLogWriterTest {
+
+    private final StringBuffer mOutput = new StringBuffer();
+
+    /** Test that records of concurrent producers are all written, in order for each producer. */
+    @Test
+    public void testOffer_concurrentProducers() throws Exception {
+        AsyncLogWriter writer =
+                new AsyncLogWriter("test-writer", mOutput::append, 16, OverflowPolicy.BLOCK);
+        final int producers = 4;
+        final int records = 2000;
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            Thread t =
+                    new Thread(
+                            () -> {
+                                for (int i = 0; i < records; i++) {
+                                    writer.offer(String.format("%d:%d\n", producer, i));
+                                }
+                            });
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        writer.flush();
+
+        int[] next = new int[producers];
+        String[] lines = mOutput.toString().split("\n");
+        assertEquals(producers * records, lines.length);
+        for (String line : lines) {
+            String[] fields = line.split(":");
+            int producer = Integer.parseInt(fields[0]);
+            assertEquals(next[producer], Integer.parseInt(fields[1]));
+            next[producer]++;
+        }
+        assertEquals(0L, writer.getDroppedCount());
+        writer.close();
+    }
+
+    /** Test that records are dropped and reported when the buffer is full. */
+    @Test
+    public void testOffer_drop() throws Exception {
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AsyncLogWriter writer =
+                new AsyncLogWriter(
+                        "test-writer",
+                        batch -> {
+                            writing.countDown();
+                            try {
+                                release.await();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                            mOutput.append(batch);
+                        },
+                        4,
+                        OverflowPolicy.DROP);
+        writer.offer("first\n");
+        assertTrue(writing.await(5, TimeUnit.SECONDS));
+        // The writer is stuck on the first record, which still holds its slot: fill the buffer.
+        for (int i = 0; i < 3; i++) {
+            assertTrue(writer.offer("buffered\n"));
+        }
+        assertFalse(writer.offer("dropped\n"));
+        assertEquals(1L, writer.getDroppedCount());
+
+        release.countDown();
+        writer.close();
+        String output = mOutput.toString();
+        assertTrue(output.startsWith("first\nbuffered\n"));
+        assertFalse(output.contains("dropped\n"));
+        assertTrue(output.contains("1 log records dropped"));
+    }
+
+    /** Test that closing writes the pending records and rejects new ones. */
+    @Test
+    public void testClose() throws Exception {
+        AsyncLogWriter writer =
+                new AsyncLogWriter("test-writer", mOutput::append, 1024, OverflowPolicy.BLOCK);
+        for (int i = 0; i < 100; i++) {
+            writer.offer("record\n");
+        }
+        writer.close();
+        assertEquals(100, mOutput.toString().split("\n").length);
+        assertFalse(writer.offer("late\n"));
+    }
+}
@@ -249,4 +249,27 @@ public class FileLoggerTest {
             logger.closeLog();
         }
     }
+
+    /** Test that the log written from the background writer is complete when retrieved. */
+    @Test
+    public void testAsyncLog() throws Exception {
+        FileLogger logger = new FileLogger();
+        InputStreamSource logSource = null;
+        try {
+            OptionSetter setter = new OptionSetter(logger);
+            setter.setOptionValue("async-log", "true");
+            setter.setOptionValue("async-log-buffer-size", "8");
+            logger.init();
+            for (int i = 0; i < 100; i++) {
+                logger.printLog(LogLevel.INFO, LOG_TAG, "message " + i);
+            }
+            logSource = logger.getLog();
+            String content = StreamUtil.getStringFromSource(logSource);
+            assertEquals(100, content.split("\n").length);
+            assertTrue(content.trim().endsWith("message 99"));
+        } finally {
+            StreamUtil.cancel(logSource);
+            logger.closeLog();
+        }
+    }
 }
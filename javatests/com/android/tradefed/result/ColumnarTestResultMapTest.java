@@ -0,0 +1,331 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.android.ddmlib.testrunner.TestResult.TestStatus;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Measurements;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
+import com.android.tradefed.result.proto.TestRecordProto.FailureStatus;
+import com.android.tradefed.util.FileUtil;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/** Unit tests for {@link ColumnarTestResultMap}. */
+@RunWith(JUnit4.class)
+public class ColumnarTestResultMapTest {
+
+    private File mSpillDir;
+    private ColumnarTestResultMap mResults;
+
+    @Before
+    public void setUp() throws Exception {
+        mSpillDir = FileUtil.createTempDir("columnar-results");
+        mResults = new ColumnarTestResultMap(mSpillDir);
+    }
+
+    @After
+    public void tearDown() {
+        FileUtil.recursiveDelete(mSpillDir);
+    }
+
+    private static TestResult createResult(TestStatus status, String message, String metric) {
+        TestResult result = new TestResult();
+        result.setStartTime(10L);
+        result.setStatus(status);
+        if (message != null) {
+            result.setFailure(
+                    FailureDescription.create(message, FailureStatus.TEST_FAILURE)
+                            .setRetriable(false));
+        }
+        if (metric != null) {
+            Map<String, String> metrics = new HashMap<>();
+            metrics.put("key", metric);
+            HashMap<String, Metric> protoMetrics = new HashMap<>();
+            protoMetrics.put(
+                    "proto",
+                    Metric.newBuilder()
+                            .setMeasurements(
+                                    Measurements.newBuilder().setSingleString(metric))
+                            .build());
+            result.setMetrics(metrics);
+            result.setProtoMetrics(protoMetrics);
+        }
+        result.setEndTime(20L);
+        return result;
+    }
+
+    /** Test that results are read back with their spilled failure and metrics. */
+    @Test
+    public void testStoreAndGet() {
+        TestDescription test = new TestDescription("FooTest", "testFoo");
+        mResults.store(test, createResult(TestStatus.FAILURE, "failure message", "value"));
+
+        TestResult result = mResults.get(test);
+        assertEquals(TestStatus.FAILURE, result.getStatus());
+        assertEquals(10L, result.getStartTime());
+        assertEquals(20L, result.getEndTime());
+        assertEquals("failure message", result.getFailure().getErrorMessage());
+        assertEquals(FailureStatus.TEST_FAILURE, result.getFailure().getFailureStatus());
+        assertFalse(result.getFailure().isRetriable());
+        assertEquals("value", result.getMetrics().get("key"));
+        assertEquals(
+                "value", result.getProtoMetrics().get("proto").getMeasurements().getSingleString());
+        assertNull(mResults.get(new TestDescription("FooTest", "testOther")));
+    }
+
+    /** Test that storing a test again replaces its result but keeps its position. */
+    @Test
+    public void testStore_replace() {
+        TestDescription first = new TestDescription("FooTest", "testFirst");
+        TestDescription second = new TestDescription("FooTest", "testSecond");
+        mResults.store(first, createResult(TestStatus.INCOMPLETE, null, null));
+        mResults.store(second, createResult(TestStatus.PASSED, null, "value"));
+        TestResult previous =
+                mResults.put(first, createResult(TestStatus.FAILURE, "message", null));
+
+        assertEquals(TestStatus.INCOMPLETE, previous.getStatus());
+        assertEquals(2, mResults.size());
+        assertEquals(Arrays.asList(first, second), new ArrayList<>(mResults.keySet()));
+        assertEquals("message", mResults.get(first).getFailure().getErrorMessage());
+        int[] counts = mResults.getStatusCounts();
+        assertEquals(1, counts[TestStatus.FAILURE.ordinal()]);
+        assertEquals(1, counts[TestStatus.PASSED.ordinal()]);
+        assertEquals(0, counts[TestStatus.INCOMPLETE.ordinal()]);
+    }
+
+    /** Test that removed tests are skipped by the iteration and the counts. */
+    @Test
+    public void testRemove() {
+        List<TestDescription> tests = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            TestDescription test = new TestDescription("FooTest", "test" + i);
+            tests.add(test);
+            mResults.store(test, createResult(TestStatus.PASSED, null, "value" + i));
+        }
+        mResults.remove(tests.get(0));
+        Iterator<Map.Entry<TestDescription, TestResult>> it = mResults.entrySet().iterator();
+        assertEquals(tests.get(1), it.next().getKey());
+        it.remove();
+
+        assertEquals(198, mResults.size());
+        assertFalse(mResults.containsKey(tests.get(1)));
+        assertEquals(198, mResults.getStatusCounts()[TestStatus.PASSED.ordinal()]);
+        assertEquals("value199", mResults.get(tests.get(199)).getMetrics().get("key"));
+        assertTrue(
+                mResults.getTestsInState(Arrays.asList(TestStatus.PASSED))
+                        .contains(tests.get(2)));
+    }
+
+    /** Test that the remaining tests are still found after removing many of them. */
+    @Test
+    public void testRemove_lookup() {
+        List<TestDescription> tests = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            TestDescription test = new TestDescription("FooTest", "test" + i);
+            tests.add(test);
+            mResults.store(test, createResult(TestStatus.PASSED, null, null));
+        }
+        for (int i = 0; i < tests.size(); i += 3) {
+            assertEquals(TestStatus.PASSED, mResults.remove(tests.get(i)).getStatus());
+        }
+        for (int i = 0; i < tests.size(); i++) {
+            assertEquals(i % 3 != 0, mResults.containsKey(tests.get(i)));
+        }
+        assertEquals(666, mResults.size());
+        assertNull(mResults.remove(tests.get(0)));
+
+        mResults.store(tests.get(0), createResult(TestStatus.FAILURE, null, null));
+        assertEquals(TestStatus.FAILURE, mResults.get(tests.get(0)).getStatus());
+        assertEquals(tests.get(0), new ArrayList<>(mResults.keySet()).get(666));
+    }
+
+    /** Test that the ids of removed tests are reused, keeping the insertion order. */
+    @Test
+    public void testRemove_reuseIds() {
+        List<TestDescription> tests = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            TestDescription test = new TestDescription("FooTest", "test" + i);
+            tests.add(test);
+            mResults.store(test, createResult(TestStatus.PASSED, null, "value" + i));
+        }
+        for (int i = 0; i < 150; i++) {
+            mResults.remove(tests.get(i));
+        }
+        assertTrue(mResults.getIdCount() < 100);
+        TestDescription added = new TestDescription("FooTest", "added");
+        mResults.store(added, createResult(TestStatus.FAILURE, "message", null));
+
+        List<TestDescription> expected = new ArrayList<>(tests.subList(150, 200));
+        expected.add(added);
+        assertEquals(expected, new ArrayList<>(mResults.keySet()));
+        assertEquals("value160", mResults.get(tests.get(160)).getMetrics().get("key"));
+        assertEquals("message", mResults.get(added).getFailure().getErrorMessage());
+        assertFalse(mResults.containsKey(tests.get(10)));
+    }
+
+    /** Test that the spill file is not kept open between accesses. */
+    @Test
+    public void testFlush() throws Exception {
+        TestDescription test = new TestDescription("FooTest", "testFoo");
+        mResults.store(test, createResult(TestStatus.FAILURE, "message", "value"));
+        assertEquals(0L, getSpillSize());
+
+        mResults.flush();
+        assertTrue(getSpillSize() > 0L);
+        // Deleting the file is possible and noticed since no handle is kept on it.
+        FileUtil.recursiveDelete(mSpillDir);
+        try {
+            mResults.get(test);
+            fail("Should have failed to read the deleted spill file");
+        } catch (UncheckedIOException expected) {
+            // expected
+        }
+    }
+
+    /** Test that a logged file is added to a stored result without changing the rest of it. */
+    @Test
+    public void testAddLoggedFile() {
+        TestDescription test = new TestDescription("FooTest", "testFoo");
+        mResults.store(test, createResult(TestStatus.FAILURE, "message", "value"));
+        assertTrue(
+                mResults.addLoggedFile(
+                        test, "log1", new LogFile("path1", "url", LogDataType.TEXT)));
+        assertTrue(
+                mResults.addLoggedFile(
+                        test, "log2", new LogFile("path2", "url", LogDataType.TEXT)));
+        assertFalse(
+                mResults.addLoggedFile(
+                        new TestDescription("FooTest", "testOther"),
+                        "log",
+                        new LogFile("path", "url", LogDataType.TEXT)));
+
+        TestResult result = mResults.get(test);
+        assertEquals(2, result.getLoggedFiles().size());
+        assertEquals("path2", result.getLoggedFiles().get("log2").getPath());
+        assertEquals("message", result.getFailure().getErrorMessage());
+        assertEquals("value", result.getMetrics().get("key"));
+    }
+
+    /** Test that results stored again reuse their space, and that most unused space is freed. */
+    @Test
+    public void testStore_reuseSpillFile() {
+        List<TestDescription> tests = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            TestDescription test = new TestDescription("FooTest", "test" + i);
+            tests.add(test);
+            mResults.store(test, createResult(TestStatus.INCOMPLETE, null, "value"));
+        }
+        // Reading the last result flushes the buffered records.
+        mResults.get(tests.get(999));
+        long spillSize = getSpillSize();
+        for (TestDescription test : tests) {
+            mResults.store(test, createResult(TestStatus.PASSED, null, "other"));
+        }
+        assertEquals(spillSize, getSpillSize());
+
+        String longMessage = new String(new char[2000]).replace('\0', 'x');
+        for (TestDescription test : tests) {
+            mResults.store(test, createResult(TestStatus.FAILURE, longMessage, "value"));
+        }
+        for (int i = 0; i < tests.size(); i++) {
+            if (i % 4 != 1) {
+                mResults.store(tests.get(i), createResult(TestStatus.PASSED, null, null));
+            }
+        }
+        // Only a quarter of the long records are still used, the rest has been compacted.
+        assertTrue(getSpillSize() < 1000 * 2000);
+        assertNull(mResults.get(tests.get(0)).getFailure());
+        assertEquals(longMessage, mResults.get(tests.get(1)).getFailure().getErrorMessage());
+        assertEquals("value", mResults.get(tests.get(997)).getMetrics().get("key"));
+    }
+
+    /** Test that the spill file is deleted when the map is closed or cleared. */
+    @Test
+    public void testClose() {
+        TestDescription test = new TestDescription("FooTest", "testFoo");
+        mResults.store(test, createResult(TestStatus.FAILURE, "message", "value"));
+        mResults.get(test);
+        assertEquals(1, mSpillDir.listFiles().length);
+
+        mResults.close();
+        assertEquals(0, mSpillDir.listFiles().length);
+        assertTrue(mResults.isEmpty());
+
+        mResults.store(test, createResult(TestStatus.FAILURE, "message", "value"));
+        assertEquals("message", mResults.get(test).getFailure().getErrorMessage());
+        mResults.clear();
+        assertEquals(0, mSpillDir.listFiles().length);
+    }
+
+    private long getSpillSize() {
+        long size = 0L;
+        for (File file : mSpillDir.listFiles()) {
+            size += file.length();
+        }
+        return size;
+    }
+
+    /** Test that a {@link TestRunResult} in columnar mode behaves like the default one. */
+    @Test
+    public void testTestRunResult_columnar() {
+        TestRunResult runResult = new TestRunResult();
+        runResult.setColumnarStorage(true);
+        TestDescription test = new TestDescription("FooTest", "testFoo");
+        runResult.testRunStarted("run", 1);
+        runResult.testStarted(test);
+        runResult.testFailed(test, "failure");
+        runResult.testLogSaved("log", new LogFile("path", "url", LogDataType.TEXT));
+        runResult.testEnded(test, new HashMap<String, Metric>());
+        runResult.testRunEnded(0L, new HashMap<String, Metric>());
+
+        assertTrue(runResult.isColumnarStorage());
+        assertEquals(1, runResult.getNumTestsInState(TestStatus.FAILURE));
+        assertEquals(1, runResult.getFailedTests().size());
+        TestResult result = runResult.getTestResults().get(test);
+        assertEquals("failure", result.getFailure().getErrorMessage());
+        assertEquals("path", result.getLoggedFiles().get("log").getPath());
+
+        // A passing retry in the default storage: the merged run is columnar.
+        TestRunResult retry = new TestRunResult();
+        retry.testRunStarted("run", 1);
+        retry.testStarted(test);
+        retry.testEnded(test, new HashMap<String, Metric>());
+        retry.testRunEnded(0L, new HashMap<String, Metric>());
+        TestRunResult merged = TestRunResult.merge(Arrays.asList(runResult, retry));
+        assertTrue(merged.isColumnarStorage());
+        assertEquals(1, merged.getNumTestsInState(TestStatus.PASSED));
+        assertEquals(0, merged.getNumTestsInState(TestStatus.FAILURE));
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.android.ddmlib.testrunner.TestResult.TestStatus;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
+import com.android.tradefed.retry.MergeStrategy;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/** Unit tests for {@link TestRunResultMerger}. */
+@RunWith(JUnit4.class)
+public class TestRunResultMergerTest {
+
+    private static final TestDescription TEST_1 = new TestDescription("FooTest", "test1");
+    private static final TestDescription TEST_2 = new TestDescription("FooTest", "test2");
+
+    private static TestRunResult createAttempt(boolean test1Pass, TestDescription... tests) {
+        TestRunResult attempt = new TestRunResult();
+        attempt.testRunStarted("run", tests.length);
+        for (TestDescription test : tests) {
+            attempt.testStarted(test);
+            if (test.equals(TEST_1) && !test1Pass) {
+                attempt.testFailed(test, "failed");
+            }
+            attempt.testEnded(test, new HashMap<String, Metric>());
+        }
+        attempt.testRunEnded(0L, new HashMap<String, Metric>());
+        return attempt;
+    }
+
+    /** Test that merging attempts as they come gives the same result as merging them at once. */
+    @Test
+    public void testMerge_incremental() {
+        TestRunResultMerger merger = new TestRunResultMerger(MergeStrategy.ANY_FAIL_IS_FAIL);
+        List<TestRunResult> attempts = new ArrayList<>();
+        attempts.add(createAttempt(true, TEST_1));
+        assertEquals(attempts.get(0), merger.merge(attempts));
+
+        attempts.add(createAttempt(false, TEST_1, TEST_2));
+        TestRunResult merged = merger.merge(attempts);
+        assertEquals(1, merger.getAccumulatedAttemptCount());
+        assertEquals(1, merged.getNumTestsInState(TestStatus.FAILURE));
+
+        attempts.add(createAttempt(true, TEST_2, TEST_1));
+        merged = merger.merge(attempts);
+        assertEquals(2, merger.getAccumulatedAttemptCount());
+        TestRunResult expected = TestRunResult.merge(attempts, MergeStrategy.ANY_FAIL_IS_FAIL);
+        assertEquals(expected.getTestResults(), merged.getTestResults());
+        assertEquals(
+                new ArrayList<>(expected.getTestResults().keySet()),
+                new ArrayList<>(merged.getTestResults().keySet()));
+        assertEquals(TestStatus.FAILURE, merged.getTestResults().get(TEST_1).getStatus());
+        assertEquals(TestStatus.PASSED, merged.getTestResults().get(TEST_2).getStatus());
+    }
+
+    /** Test that the last attempt is merged again, since it may still be in progress. */
+    @Test
+    public void testMerge_lastAttemptInProgress() {
+        TestRunResultMerger merger =
+                new TestRunResultMerger(MergeStrategy.ONE_TESTCASE_PASS_IS_PASS);
+        List<TestRunResult> attempts = new ArrayList<>();
+        attempts.add(createAttempt(false, TEST_1));
+        TestRunResult inProgress = new TestRunResult();
+        inProgress.testRunStarted("run", 1);
+        attempts.add(inProgress);
+        assertFalse(merger.merge(attempts).getTestResults().containsKey(TEST_2));
+
+        inProgress.testStarted(TEST_1);
+        inProgress.testEnded(TEST_1, new HashMap<String, Metric>());
+        TestResult result = merger.merge(attempts).getTestResults().get(TEST_1);
+        assertEquals(TestStatus.PASSED, result.getStatus());
+        assertTrue(result.getProtoMetrics().containsKey(TestResult.IS_FLAKY));
+    }
+
+    /** Test that accumulated attempts are dropped when they are not the first ones anymore. */
+    @Test
+    public void testMerge_differentAttempts() {
+        TestRunResultMerger merger = new TestRunResultMerger(MergeStrategy.ANY_FAIL_IS_FAIL);
+        List<TestRunResult> attempts = new ArrayList<>();
+        attempts.add(createAttempt(false, TEST_1));
+        attempts.add(createAttempt(false, TEST_1));
+        attempts.add(createAttempt(false, TEST_1));
+        merger.merge(attempts);
+        assertEquals(2, merger.getAccumulatedAttemptCount());
+
+        attempts.set(0, createAttempt(true, TEST_1));
+        attempts.set(1, createAttempt(true, TEST_1));
+        attempts.set(2, createAttempt(true, TEST_1));
+        TestRunResult merged = merger.merge(attempts);
+        assertEquals(TestStatus.PASSED, merged.getTestResults().get(TEST_1).getStatus());
+    }
+}
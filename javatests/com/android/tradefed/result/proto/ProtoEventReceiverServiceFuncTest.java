@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result.proto;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.android.tradefed.config.ConfigurationDescriptor;
+import com.android.tradefed.config.OptionSetter;
+import com.android.tradefed.invoker.IInvocationContext;
+import com.android.tradefed.invoker.InvocationContext;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
+import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.result.SubprocessResultsReporter;
+import com.android.tradefed.result.TestDescription;
+import com.android.tradefed.result.proto.ProtoEventReceiverService.Registration;
+import com.android.tradefed.util.SubprocessTestResultsParser;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares the throughput of the subprocess result receivers: the text based {@link
+ * SubprocessTestResultsParser}, the thread based {@link StreamProtoReceiver} and the shared {@link
+ * ProtoEventReceiverService}.
+ */
+@RunWith(JUnit4.class)
+public class ProtoEventReceiverServiceFuncTest {
+
+    private static final int TEST_COUNT = 20000;
+    private static final long TIMEOUT_MS = 60000L;
+
+    private IInvocationContext mContext;
+    private CountingListener mListener;
+
+    /** Listener counting the number of test cases received. */
+    private static class CountingListener implements ITestInvocationListener {
+        final AtomicInteger mTestEnded = new AtomicInteger();
+
+        @Override
+        public void testEnded(TestDescription test, HashMap<String, Metric> testMetrics) {
+            mTestEnded.incrementAndGet();
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mContext = new InvocationContext();
+        mContext.setConfigurationDescriptor(new ConfigurationDescriptor());
+        mContext.setTestTag("stub");
+        mListener = new CountingListener();
+    }
+
+    /** Measure the text protocol over {@link SubprocessTestResultsParser}. */
+    @Test
+    public void testTextReceiver() throws Exception {
+        long start = System.nanoTime();
+        try (SubprocessTestResultsParser parser =
+                new SubprocessTestResultsParser(mListener, true, mContext)) {
+            SubprocessResultsReporter reporter = new SubprocessResultsReporter();
+            OptionSetter setter = new OptionSetter(reporter);
+            setter.setOptionValue(
+                    "subprocess-report-port", Integer.toString(parser.getSocketServerPort()));
+            sendEvents(reporter);
+            reporter.close();
+            assertTrue(parser.joinReceiver(TIMEOUT_MS));
+        }
+        report("text", start);
+    }
+
+    /** Measure the proto protocol over the dedicated thread of {@link StreamProtoReceiver}. */
+    @Test
+    public void testProtoReceiverThread() throws Exception {
+        long start = System.nanoTime();
+        try (StreamProtoReceiver receiver = new StreamProtoReceiver(mListener, mContext, false)) {
+            StreamProtoResultReporter reporter = new StreamProtoResultReporter();
+            reporter.setProtoReportPort(receiver.getSocketServerPort());
+            sendEvents(reporter);
+            assertTrue(receiver.joinReceiver(TIMEOUT_MS));
+        }
+        report("proto thread", start);
+    }
+
+    /** Measure the proto protocol over the shared {@link ProtoEventReceiverService}. */
+    @Test
+    public void testProtoReceiverService() throws Exception {
+        long start = System.nanoTime();
+        ProtoResultParser parser = new ProtoResultParser(mListener, mContext, false);
+        parser.setQuiet(true);
+        Registration registration =
+                ProtoEventReceiverService.getInstance().register(parser::processNewProto);
+        try {
+            StreamProtoResultReporter reporter = new StreamProtoResultReporter();
+            reporter.setProtoReportPort(registration.getPort());
+            sendEvents(reporter);
+            assertTrue(registration.awaitCompletion(TIMEOUT_MS));
+        } finally {
+            registration.close();
+        }
+        report("proto shared service", start);
+    }
+
+    private void sendEvents(ITestInvocationListener reporter) {
+        reporter.invocationStarted(mContext);
+        reporter.testRunStarted("run", TEST_COUNT);
+        for (int i = 0; i < TEST_COUNT; i++) {
+            TestDescription test = new TestDescription("class", "test" + i);
+            reporter.testStarted(test, i);
+            reporter.testEnded(test, i + 1, new HashMap<String, Metric>());
+        }
+        reporter.testRunEnded(TEST_COUNT, new HashMap<String, Metric>());
+        reporter.invocationEnded(TEST_COUNT);
+    }
+
+    private void report(String receiver, long startNanos) {
+        assertEquals(TEST_COUNT, mListener.mTestEnded.get());
+        long elapsedMs = Math.max(1L, (System.nanoTime() - startNanos) / 1000000L);
+        // Each test case is a started and an ended event.
+        long events = 2L * TEST_COUNT;
+        CLog.i(
+                "%s receiver: %d events in %d ms (%d events/sec)",
+                receiver, events, elapsedMs, events * 1000L / elapsedMs);
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result.proto;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.android.tradefed.invoker.logger.InvocationMetricLogger;
+import com.android.tradefed.invoker.logger.InvocationMetricLogger.InvocationMetricKey;
+import com.android.tradefed.result.proto.ProtoEventReceiverService.Registration;
+import com.android.tradefed.result.proto.TestRecordProto.TestRecord;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/** Unit tests for {@link ProtoEventReceiverService}. */
+@RunWith(JUnit4.class)
+public class ProtoEventReceiverServiceTest {
+
+    private static final long TIMEOUT_MS = 10000L;
+
+    private ProtoEventReceiverService mService;
+
+    @Before
+    public void setUp() throws Exception {
+        mService = new ProtoEventReceiverService(1024 * 1024);
+    }
+
+    @After
+    public void tearDown() {
+        mService.shutdown();
+    }
+
+    /** Test that several streams are received concurrently and in order. */
+    @Test
+    public void testMultipleStreams() throws Exception {
+        List<List<String>> received = new ArrayList<>();
+        List<Registration> registrations = new ArrayList<>();
+        List<Thread> senders = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            List<String> ids = Collections.synchronizedList(new ArrayList<>());
+            received.add(ids);
+            Registration registration = mService.register(r -> ids.add(r.getTestRecordId()));
+            registrations.add(registration);
+            senders.add(startSender(registration.getPort(), "stream" + i, 1000, 10));
+        }
+        for (int i = 0; i < 4; i++) {
+            senders.get(i).join(TIMEOUT_MS);
+            assertTrue(registrations.get(i).awaitCompletion(TIMEOUT_MS));
+            assertEquals(expectedIds("stream" + i, 1000), received.get(i));
+        }
+    }
+
+    /** Test that many streams share a bounded number of dispatch threads. */
+    @Test
+    public void testDispatchThreadsBounded() throws Exception {
+        Set<Thread> threads = ConcurrentHashMap.newKeySet();
+        List<List<String>> received = new ArrayList<>();
+        List<Registration> registrations = new ArrayList<>();
+        List<Thread> senders = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            List<String> ids = Collections.synchronizedList(new ArrayList<>());
+            received.add(ids);
+            Registration registration =
+                    mService.register(
+                            r -> {
+                                threads.add(Thread.currentThread());
+                                ids.add(r.getTestRecordId());
+                            });
+            registrations.add(registration);
+            senders.add(startSender(registration.getPort(), "stream" + i, 500, 10));
+        }
+        for (int i = 0; i < 16; i++) {
+            senders.get(i).join(TIMEOUT_MS);
+            assertTrue(registrations.get(i).awaitCompletion(TIMEOUT_MS));
+            assertEquals(expectedIds("stream" + i, 500), received.get(i));
+        }
+        assertTrue(threads.size() <= 4);
+    }
+
+    /** Test that reading is paused while the handler is behind, without losing events. */
+    @Test
+    public void testBackpressure() throws Exception {
+        mService.shutdown();
+        mService = new ProtoEventReceiverService(1024);
+        CountDownLatch gate = new CountDownLatch(1);
+        List<String> ids = Collections.synchronizedList(new ArrayList<>());
+        Registration registration =
+                mService.register(
+                        r -> {
+                            try {
+                                gate.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                            } catch (InterruptedException e) {
+                                throw new RuntimeException(e);
+                            }
+                            ids.add(r.getTestRecordId());
+                        });
+        Thread sender = startSender(registration.getPort(), "test", 5000, 100);
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!registration.isPaused() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(registration.isPaused());
+        gate.countDown();
+        sender.join(TIMEOUT_MS);
+        assertTrue(registration.awaitCompletion(TIMEOUT_MS));
+        assertFalse(registration.isPaused());
+        assertEquals(expectedIds("test", 5000), ids);
+    }
+
+    /** Test that a frame larger than the read buffer is received. */
+    @Test
+    public void testLargeFrame() throws Exception {
+        List<String> ids = Collections.synchronizedList(new ArrayList<>());
+        Registration registration = mService.register(r -> ids.add(r.getTestRecordId()));
+        Thread sender = startSender(registration.getPort(), "test", 3, 200 * 1024);
+        sender.join(TIMEOUT_MS);
+        assertTrue(registration.awaitCompletion(TIMEOUT_MS));
+        assertEquals(expectedIds("test", 3), ids);
+    }
+
+    /** Test that a failing handler closes the stream. */
+    @Test
+    public void testHandlerFailure() throws Exception {
+        List<String> ids = Collections.synchronizedList(new ArrayList<>());
+        Registration registration =
+                mService.register(
+                        r -> {
+                            ids.add(r.getTestRecordId());
+                            throw new IllegalStateException("failed");
+                        });
+        Thread sender = startSender(registration.getPort(), "test", 10, 10);
+        assertTrue(registration.awaitCompletion(TIMEOUT_MS));
+        sender.join(TIMEOUT_MS);
+        assertEquals(1, ids.size());
+    }
+
+    /** Test that events are dispatched in the thread group of the invocation that registered. */
+    @Test
+    public void testDispatchInRegisteringGroup() throws Exception {
+        Map<String, String> metrics = new ConcurrentHashMap<>();
+        Map<String, ThreadGroup> groups = new ConcurrentHashMap<>();
+        List<Thread> invocations = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            String name = "invocation" + i;
+            int count = 10 * (i + 1);
+            Thread invocation =
+                    new Thread(
+                            new ThreadGroup(name),
+                            () -> metrics.put(name, runInvocation(name, count, groups)));
+            invocation.start();
+            invocations.add(invocation);
+        }
+        for (Thread invocation : invocations) {
+            invocation.join(TIMEOUT_MS);
+        }
+        assertEquals("10", metrics.get("invocation0"));
+        assertEquals("20", metrics.get("invocation1"));
+        assertEquals(30, groups.size());
+        for (Map.Entry<String, ThreadGroup> entry : groups.entrySet()) {
+            assertTrue(entry.getKey().startsWith(entry.getValue().getName() + "-"));
+        }
+    }
+
+    /**
+     * Receive a stream counting its events as invocation metrics, and return the count seen by the
+     * invocation.
+     */
+    private String runInvocation(String name, int count, Map<String, ThreadGroup> groups) {
+        InvocationMetricKey key = InvocationMetricKey.DOWNLOAD_RETRY_COUNT;
+        try {
+            Registration registration =
+                    mService.register(
+                            r -> {
+                                groups.put(
+                                        r.getTestRecordId(),
+                                        Thread.currentThread().getThreadGroup());
+                                InvocationMetricLogger.addInvocationMetrics(key, 1);
+                            });
+            Thread sender = startSender(registration.getPort(), name, count, 10);
+            sender.join(TIMEOUT_MS);
+            assertTrue(registration.awaitCompletion(TIMEOUT_MS));
+            return InvocationMetricLogger.getInvocationMetrics().get(key.toString());
+        } catch (IOException | InterruptedException e) {
+            throw new RuntimeException(e);
+        } finally {
+            InvocationMetricLogger.clearInvocationMetrics();
+        }
+    }
+
+    /** Test closing a stream that never connected. */
+    @Test
+    public void testClose_notConnected() throws Exception {
+        Registration registration = mService.register(r -> {});
+        assertFalse(registration.awaitCompletion(100));
+        registration.close();
+        assertTrue(registration.awaitCompletion(TIMEOUT_MS));
+    }
+
+    private Thread startSender(int port, String prefix, int count, int padding) {
+        StringBuilder pad = new StringBuilder();
+        for (int i = 0; i < padding; i++) {
+            pad.append('x');
+        }
+        Thread sender =
+                new Thread(
+                        () -> {
+                            try (Socket socket = new Socket("localhost", port)) {
+                                OutputStream out = socket.getOutputStream();
+                                for (int i = 0; i < count; i++) {
+                                    TestRecord.newBuilder()
+                                            .setTestRecordId(prefix + "-" + i)
+                                            .setParentTestRecordId(pad.toString())
+                                            .build()
+                                            .writeDelimitedTo(out);
+                                }
+                            } catch (IOException e) {
+                                // Expected when the receiver closes the stream
+                            }
+                        });
+        sender.start();
+        return sender;
+    }
+
+    private List<String> expectedIds(String prefix, int count) {
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            ids.add(prefix + "-" + i);
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result.suite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.android.ddmlib.testrunner.TestResult.TestStatus;
+import com.android.tradefed.build.BuildInfo;
+import com.android.tradefed.config.Configuration;
+import com.android.tradefed.invoker.IInvocationContext;
+import com.android.tradefed.invoker.InvocationContext;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
+import com.android.tradefed.result.TestDescription;
+import com.android.tradefed.result.TestRunResult;
+import com.android.tradefed.testtype.suite.ModuleDefinition;
+import com.android.tradefed.util.FileUtil;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/** Unit tests for {@link XmlFormattedGeneratorReporter}. */
+@RunWith(JUnit4.class)
+public class XmlFormattedGeneratorReporterTest {
+
+    private XmlFormattedGeneratorReporter mReporter;
+    private File mResultDir;
+    private File mReportFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mResultDir = FileUtil.createTempDir("xml-reporter-test");
+        mReporter =
+                new XmlFormattedGeneratorReporter() {
+                    @Override
+                    public File createResultDir() {
+                        return mResultDir;
+                    }
+
+                    @Override
+                    public void postFormattingStep(File resultDir, File reportFile) {
+                        mReportFile = reportFile;
+                    }
+                };
+        mReporter.setConfiguration(new Configuration("stub", "stub"));
+    }
+
+    @After
+    public void tearDown() {
+        FileUtil.recursiveDelete(mResultDir);
+    }
+
+    /** Test that modules written as they end and runs outside modules end up in the report. */
+    @Test
+    public void testStreamedModules() throws Exception {
+        IInvocationContext context = new InvocationContext();
+        context.addDeviceBuildInfo("default", new BuildInfo());
+        mReporter.invocationStarted(context);
+        runModule("arm64-v8a module2", "arm64-v8a", 0, 2);
+        runModule("module1", null, 0, 1);
+        // The results of the modules written are released.
+        assertNull(mReporter.getMergedTestRunResult("module1"));
+        assertTrue(mReporter.getMergedTestRunResults().isEmpty());
+        // A run reported outside of a module is written at the end.
+        runTests("module3", 0, 3);
+        mReporter.invocationEnded(500L);
+        assertEquals(3, mReporter.getTotalModules());
+        assertEquals(6, mReporter.getPassedTests());
+
+        assertNotNull(mReportFile);
+        assertEquals(1, mResultDir.listFiles().length);
+        SuiteResultHolder holder = new XmlSuiteResultFormatter().parseResults(mResultDir, false);
+        List<TestRunResult> modules = new ArrayList<>(holder.runResults);
+        assertEquals(3, modules.size());
+        assertEquals("module1", modules.get(0).getName());
+        assertEquals("arm64-v8a module2", modules.get(1).getName());
+        assertEquals(2, modules.get(1).getNumTestsInState(TestStatus.PASSED));
+        assertEquals("arm64-v8a", holder.modulesAbi.get("arm64-v8a module2").getName());
+        assertEquals("module3", modules.get(2).getName());
+        assertEquals(6, holder.passedTests);
+    }
+
+    /** Test that a module running again after being written is merged with its first results. */
+    @Test
+    public void testModuleRunAgain() throws Exception {
+        IInvocationContext context = new InvocationContext();
+        context.addDeviceBuildInfo("default", new BuildInfo());
+        mReporter.invocationStarted(context);
+        runModule("module1", null, 0, 2);
+        runModule("module1", null, 2, 3);
+        mReporter.invocationEnded(500L);
+
+        assertEquals(1, mReporter.getTotalModules());
+        assertEquals(5, mReporter.getPassedTests());
+        SuiteResultHolder holder = new XmlSuiteResultFormatter().parseResults(mResultDir, false);
+        List<TestRunResult> modules = new ArrayList<>(holder.runResults);
+        assertEquals(1, modules.size());
+        assertEquals("module1", modules.get(0).getName());
+        assertEquals(5, modules.get(0).getNumTestsInState(TestStatus.PASSED));
+    }
+
+    private void runModule(String moduleId, String abi, int firstTest, int numTests) {
+        IInvocationContext moduleContext = new InvocationContext();
+        moduleContext.addInvocationAttribute(ModuleDefinition.MODULE_ID, moduleId);
+        if (abi != null) {
+            moduleContext.addInvocationAttribute(ModuleDefinition.MODULE_ABI, abi);
+        }
+        mReporter.testModuleStarted(moduleContext);
+        runTests(moduleId, firstTest, numTests);
+        mReporter.testModuleEnded();
+    }
+
+    private void runTests(String runName, int firstTest, int numTests) {
+        mReporter.testRunStarted(runName, numTests);
+        for (int i = firstTest; i < firstTest + numTests; i++) {
+            TestDescription test = new TestDescription("com.class." + runName, "test" + i);
+            mReporter.testStarted(test);
+            mReporter.testEnded(test, new HashMap<String, Metric>());
+        }
+        mReporter.testRunEnded(10L, new HashMap<String, Metric>());
+    }
+}
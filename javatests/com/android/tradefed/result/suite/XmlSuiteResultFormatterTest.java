@@ -24,6 +24,7 @@ import com.android.ddmlib.testrunner.TestResult.TestStatus;
 import com.android.tradefed.invoker.IInvocationContext;
 import com.android.tradefed.invoker.InvocationContext;
 import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
+import com.android.tradefed.result.CollectingTestListener;
 import com.android.tradefed.result.LogDataType;
 import com.android.tradefed.result.LogFile;
 import com.android.tradefed.result.TestDescription;
@@ -31,6 +32,7 @@ import com.android.tradefed.result.TestResult;
 import com.android.tradefed.result.TestRunResult;
 import com.android.tradefed.testtype.Abi;
 import com.android.tradefed.testtype.IAbi;
+import com.android.tradefed.testtype.suite.ModuleDefinition;
 import com.android.tradefed.util.FileUtil;
 import com.android.tradefed.util.proto.TfMetricProtoUtil;
 
@@ -631,6 +633,116 @@ public class XmlSuiteResultFormatterTest {
         assertEquals("armeabi-v7a module4", sortedResult.get(5).getName());
     }
 
+    /** Test writing the modules one by one, they are sorted in the result file. */
+    @Test
+    public void testStreamingWriter() throws Exception {
+        mResultHolder.context = mContext;
+        mResultHolder.completeModules = 3;
+        mResultHolder.totalModules = 3;
+        mResultHolder.passedTests = 6;
+        mResultHolder.startTime = 0L;
+        mResultHolder.endTime = 10L;
+        TestRunResult module2 = createFakeResult("armeabi-v7a module2", 2, 0, 0, 0);
+        TestRunResult module1 = createFakeResult("module1", 1, 0, 0, 0);
+        TestRunResult module3 = createFakeResult("module3", 3, 0, 0, 0);
+        Map<String, IAbi> modulesAbi = new HashMap<>();
+        modulesAbi.put("armeabi-v7a module2", new Abi("armeabi-v7a", "32"));
+        mResultHolder.modulesAbi = modulesAbi;
+        mResultHolder.runResults = Arrays.asList(module2, module1, module3);
+        try (StreamingXmlSuiteResultWriter writer = new StreamingXmlSuiteResultWriter()) {
+            writer.writeModule(module2, modulesAbi.get("armeabi-v7a module2"));
+            // A module that runs again replaces its previous results.
+            writer.writeModule(createFakeResult("module1", 5, 0, 0, 0), null);
+            writer.writeModule(module1, null);
+            assertEquals(2, writer.getModuleCount());
+            // module3 was not written yet, it is written when finishing.
+            mFormatter.writeResults(mResultHolder, mResultDir, writer);
+            assertEquals(3, writer.getModuleCount());
+        }
+        // Only the result file is in the result directory
+        assertEquals(1, mResultDir.listFiles().length);
+
+        SuiteResultHolder holder = mFormatter.parseResults(mResultDir, false);
+        assertEquals(6, holder.passedTests);
+        List<TestRunResult> modules = new ArrayList<>(holder.runResults);
+        assertEquals(3, modules.size());
+        assertEquals("module1", modules.get(0).getName());
+        assertEquals(1, modules.get(0).getNumTests());
+        assertEquals("armeabi-v7a module2", modules.get(1).getName());
+        assertEquals(2, modules.get(1).getNumTestsInState(TestStatus.PASSED));
+        assertEquals("module3", modules.get(2).getName());
+        assertEquals("armeabi-v7a", holder.modulesAbi.get("armeabi-v7a module2").getName());
+    }
+
+    /** Test reading the results one module at a time. */
+    @Test
+    public void testReader() throws Exception {
+        mResultHolder.context = mContext;
+        Collection<TestRunResult> runResults = new ArrayList<>();
+        runResults.add(createFakeResult("module1", 2, 1, 0, 0, true, false));
+        runResults.add(createFakeResult("arm64-v8a module2", 1, 0, 1, 0));
+        mResultHolder.runResults = runResults;
+        Map<String, IAbi> modulesAbi = new HashMap<>();
+        modulesAbi.put("arm64-v8a module2", new Abi("arm64-v8a", "64"));
+        mResultHolder.modulesAbi = modulesAbi;
+        mResultHolder.completeModules = 2;
+        mResultHolder.totalModules = 2;
+        mFormatter.writeResults(mResultHolder, mResultDir);
+
+        XmlSuiteResultReader reader = XmlSuiteResultReader.open(mFormatter, mResultDir);
+        assertEquals(2, reader.getResultHolder().totalModules);
+        assertEquals(Arrays.asList("module1", "arm64-v8a module2"), reader.getModuleIds());
+        assertEquals("arm64-v8a", reader.getModulesAbi().get("arm64-v8a module2").getName());
+
+        TestRunResult module2 = reader.getModuleResults("arm64-v8a module2");
+        assertEquals("arm64-v8a module2", module2.getName());
+        assertEquals(1, module2.getNumTestsInState(TestStatus.PASSED));
+        assertEquals(1, module2.getNumTestsInState(TestStatus.ASSUMPTION_FAILURE));
+        assertEquals(null, reader.getModuleResults("module3"));
+
+        List<String> iterated = new ArrayList<>();
+        for (TestRunResult module : reader) {
+            iterated.add(module.getName());
+        }
+        assertEquals(reader.getModuleIds(), iterated);
+
+        CollectingTestListener listener = new CollectingTestListener();
+        reader.replay(listener);
+        assertEquals(2, listener.getMergedTestRunResults().size());
+        assertEquals(3, listener.getNumTestsInState(TestStatus.PASSED));
+        assertEquals(1, listener.getNumTestsInState(TestStatus.FAILURE));
+        assertEquals(
+                "arm64-v8a",
+                listener.getModuleContextForRunResult("arm64-v8a module2")
+                        .getAttributes()
+                        .getUniqueMap()
+                        .get(ModuleDefinition.MODULE_ABI));
+    }
+
+    /** Test reading a module without test cases, written as an empty element. */
+    @Test
+    public void testReader_emptyModule() throws Exception {
+        mResultHolder.context = mContext;
+        Collection<TestRunResult> runResults = new ArrayList<>();
+        runResults.add(createFakeResult("module1", 1, 0, 0, 0));
+        runResults.add(createFakeResult("module2", 0, 0, 0, 0));
+        runResults.add(createFakeResult("module3", 2, 0, 0, 0));
+        mResultHolder.runResults = runResults;
+        mResultHolder.modulesAbi = new HashMap<>();
+        mResultHolder.completeModules = 3;
+        mResultHolder.totalModules = 3;
+        File result = mFormatter.writeResults(mResultHolder, mResultDir);
+        assertTrue(FileUtil.readStringFromFile(result).contains("<Module name=\"module2\""));
+
+        XmlSuiteResultReader reader = XmlSuiteResultReader.open(mFormatter, mResultDir);
+        assertEquals(Arrays.asList("module1", "module2", "module3"), reader.getModuleIds());
+        TestRunResult module2 = reader.getModuleResults("module2");
+        assertEquals("module2", module2.getName());
+        assertEquals(0, module2.getNumTests());
+        assertTrue(module2.isRunComplete());
+        assertEquals(2, reader.getModuleResults("module3").getNumTests());
+    }
+
     private TestRunResult createResultWithLog(String runName, int count, LogDataType type) {
         TestRunResult fakeRes = new TestRunResult();
         fakeRes.testRunStarted(runName, count);
@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.sandbox;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import com.android.tradefed.service.TradefedFeatureServer;
+import com.android.tradefed.util.CommandResult;
+import com.android.tradefed.util.CommandStatus;
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.IRunUtil;
+import com.android.tradefed.util.RunUtil;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Unit tests for {@link SandboxWorkerPool}. */
+@RunWith(JUnit4.class)
+public class SandboxWorkerPoolTest {
+
+    private static final long TIMEOUT_MS = 10000L;
+
+    private AtomicInteger mStartedWorkers;
+    private List<Map<String, String>> mWorkerEnvs;
+    private List<Map<String, String>> mDumpEnvs;
+    private IRunUtil mRunUtil;
+    private File mDestination;
+
+    /** Worker writing its id as the dump, or failing if the command line is "fail". */
+    private static class FakeSandboxWorker extends SandboxWorker {
+        private final int mId;
+        private final List<Map<String, String>> mDumpEnvs;
+
+        FakeSandboxWorker(int id, List<Map<String, String>> dumpEnvs) {
+            mId = id;
+            mDumpEnvs = dumpEnvs;
+        }
+
+        @Override
+        int dumpConfig(Map<String, String> dumpEnv, String[] args) {
+            mDumpEnvs.add(dumpEnv);
+            if ("fail".equals(args[2])) {
+                System.err.print("dump failed");
+                return 1;
+            }
+            try {
+                FileUtil.writeToFile(Integer.toString(mId), new File(args[1]));
+            } catch (IOException e) {
+                return 1;
+            }
+            return 0;
+        }
+    }
+
+    /** Pool running the fake workers in threads of this process. */
+    private class TestSandboxWorkerPool extends SandboxWorkerPool {
+        TestSandboxWorkerPool(int poolSize, int maxRuns) {
+            this(poolSize, maxRuns, poolSize);
+        }
+
+        TestSandboxWorkerPool(int poolSize, int maxRuns, int maxCount) {
+            // Idle groups are only stopped when requested by the tests.
+            super(poolSize, maxRuns, maxCount, 0L);
+        }
+
+        @Override
+        Worker startWorker(
+                String classpath,
+                File globalConfig,
+                Map<String, String> env,
+                Set<String> unsetEnv)
+                throws IOException {
+            int id = mStartedWorkers.incrementAndGet();
+            mWorkerEnvs.add(env);
+            try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+                int port = server.getLocalPort();
+                Thread thread =
+                        new Thread(
+                                () -> {
+                                    try (Socket socket =
+                                            new Socket(InetAddress.getLoopbackAddress(), port)) {
+                                        new FakeSandboxWorker(id, mDumpEnvs)
+                                                .serve(
+                                                        socket.getInputStream(),
+                                                        socket.getOutputStream());
+                                    } catch (IOException e) {
+                                        // The connection was closed.
+                                    }
+                                });
+                thread.setDaemon(true);
+                thread.start();
+                return new Worker(server.accept(), null, null);
+            }
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mStartedWorkers = new AtomicInteger();
+        mWorkerEnvs = new CopyOnWriteArrayList<>();
+        mDumpEnvs = new CopyOnWriteArrayList<>();
+        mRunUtil = new RunUtil();
+        mDestination = FileUtil.createTempFile("sandbox-worker-pool-test", ".xml");
+    }
+
+    @After
+    public void tearDown() {
+        FileUtil.deleteFile(mDestination);
+    }
+
+    private CommandResult dump(SandboxWorkerPool pool, String commandLine) throws IOException {
+        return pool.dumpConfig(
+                "classpath",
+                null,
+                mRunUtil,
+                Arrays.asList(
+                        SandboxConfigDump.DumpCmd.RUN_CONFIG.toString(),
+                        mDestination.getAbsolutePath(),
+                        commandLine),
+                TIMEOUT_MS);
+    }
+
+    /** Test that a worker is kept warm and runs the following dumps. */
+    @Test
+    public void testDumpConfig_reuseWorker() throws Exception {
+        SandboxWorkerPool pool = new TestSandboxWorkerPool(1, 5);
+        CommandResult result = dump(pool, "empty");
+        assertEquals(CommandStatus.SUCCESS, result.getStatus());
+        String firstWorker = FileUtil.readStringFromFile(mDestination);
+
+        result = dump(pool, "empty");
+        assertEquals(CommandStatus.SUCCESS, result.getStatus());
+        assertEquals(firstWorker, FileUtil.readStringFromFile(mDestination));
+        assertEquals(1, mStartedWorkers.get());
+    }
+
+    /** Test that a worker is recycled once it ran the maximum number of dumps. */
+    @Test
+    public void testDumpConfig_maxRuns() throws Exception {
+        SandboxWorkerPool pool = new TestSandboxWorkerPool(1, 2);
+        dump(pool, "empty");
+        String firstWorker = FileUtil.readStringFromFile(mDestination);
+        dump(pool, "empty");
+        assertEquals(firstWorker, FileUtil.readStringFromFile(mDestination));
+
+        CommandResult result = dump(pool, "empty");
+        assertEquals(CommandStatus.SUCCESS, result.getStatus());
+        assertNotEquals(firstWorker, FileUtil.readStringFromFile(mDestination));
+    }
+
+    /** Test that workers only run the dumps of callers with the same environment variables. */
+    @Test
+    public void testDumpConfig_environment() throws Exception {
+        SandboxWorkerPool pool = new TestSandboxWorkerPool(1, 5);
+        mRunUtil.setEnvVariable("VAR", "value1");
+        dump(pool, "empty");
+        String firstWorker = FileUtil.readStringFromFile(mDestination);
+
+        mRunUtil = new RunUtil();
+        mRunUtil.setEnvVariable("VAR", "value2");
+        CommandResult result = dump(pool, "empty");
+        assertEquals(CommandStatus.SUCCESS, result.getStatus());
+        assertNotEquals(firstWorker, FileUtil.readStringFromFile(mDestination));
+        assertEquals(Collections.singletonMap("VAR", "value1"), mWorkerEnvs.get(0));
+        assertEquals(Collections.singletonMap("VAR", "value2"), mWorkerEnvs.get(1));
+    }
+
+    /** Test that a failed dump is reported and its worker is recycled. */
+    @Test
+    public void testDumpConfig_failure() throws Exception {
+        SandboxWorkerPool pool = new TestSandboxWorkerPool(1, 5);
+        dump(pool, "empty");
+        String firstWorker = FileUtil.readStringFromFile(mDestination);
+
+        CommandResult result = dump(pool, "fail");
+        assertEquals(CommandStatus.FAILED, result.getStatus());
+        assertEquals(Integer.valueOf(1), result.getExitCode());
+        assertEquals("dump failed", result.getStderr());
+
+        result = dump(pool, "empty");
+        assertEquals(CommandStatus.SUCCESS, result.getStatus());
+        assertNotEquals(firstWorker, FileUtil.readStringFromFile(mDestination));
+    }
+
+    /** Test that consecutive invocations reuse the same worker with their own feature server. */
+    @Test
+    public void testDumpConfig_reuseAcrossInvocations() throws Exception {
+        SandboxWorkerPool pool = new TestSandboxWorkerPool(1, 5);
+        mRunUtil.setEnvVariable(TradefedFeatureServer.SERVER_REFERENCE, "invocation1");
+        dump(pool, "empty");
+        String firstWorker = FileUtil.readStringFromFile(mDestination);
+
+        mRunUtil = new RunUtil();
+        mRunUtil.setEnvVariable(TradefedFeatureServer.SERVER_REFERENCE, "invocation2");
+        CommandResult result = dump(pool, "empty");
+        assertEquals(CommandStatus.SUCCESS, result.getStatus());
+        assertEquals(firstWorker, FileUtil.readStringFromFile(mDestination));
+        assertEquals(1, mStartedWorkers.get());
+        assertEquals(Collections.emptyMap(), mWorkerEnvs.get(0));
+        assertEquals(
+                Collections.singletonMap(TradefedFeatureServer.SERVER_REFERENCE, "invocation1"),
+                mDumpEnvs.get(0));
+        assertEquals(
+                Collections.singletonMap(TradefedFeatureServer.SERVER_REFERENCE, "invocation2"),
+                mDumpEnvs.get(1));
+    }
+
+    /** Test that idle workers of other environments are stopped to stay under the maximum. */
+    @Test
+    public void testDumpConfig_maxCount() throws Exception {
+        SandboxWorkerPool pool = new TestSandboxWorkerPool(1, 5, 1);
+        mRunUtil.setEnvVariable("VAR", "value1");
+        dump(pool, "empty");
+        assertEquals(1, pool.getWorkerCount());
+
+        mRunUtil = new RunUtil();
+        mRunUtil.setEnvVariable("VAR", "value2");
+        CommandResult result = dump(pool, "empty");
+        assertEquals(CommandStatus.SUCCESS, result.getStatus());
+        assertEquals(2, mStartedWorkers.get());
+        assertEquals(1, pool.getWorkerCount());
+    }
+
+    /** Test that the workers of an unused environment are stopped. */
+    @Test
+    public void testStopIdleGroups() throws Exception {
+        SandboxWorkerPool pool = new TestSandboxWorkerPool(1, 5);
+        dump(pool, "empty");
+        String firstWorker = FileUtil.readStringFromFile(mDestination);
+        assertEquals(1, pool.getWorkerCount());
+
+        pool.stopIdleGroups();
+        assertEquals(0, pool.getWorkerCount());
+        CommandResult result = dump(pool, "empty");
+        assertEquals(CommandStatus.SUCCESS, result.getStatus());
+        assertNotEquals(firstWorker, FileUtil.readStringFromFile(mDestination));
+        assertEquals(2, mStartedWorkers.get());
+    }
+}
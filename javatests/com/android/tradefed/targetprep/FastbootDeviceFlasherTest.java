@@ -42,6 +42,7 @@ import com.android.tradefed.util.CommandResult;
 import com.android.tradefed.util.CommandStatus;
 import com.android.tradefed.util.FileUtil;
 import com.android.tradefed.util.IRunUtil;
+import com.android.tradefed.util.ZipUtil;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -57,6 +58,7 @@ import java.io.IOException;
 import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 /** Unit tests for {@link FastbootDeviceFlasher}. */
 @RunWith(JUnit4.class)
@@ -799,6 +801,74 @@ public class FastbootDeviceFlasherTest {
         }
     }
 
+    /**
+     * Test that the userdata image is extracted ahead of flashing when preparing images, and that
+     * it is reused when flashing the same build again.
+     */
+    @Test
+    public void testFlash_prepareImagesAhead() throws Exception {
+        FastbootDeviceFlasher flasher =
+                new FastbootDeviceFlasher() {
+                    @Override
+                    protected void downloadFlashingResources(
+                            ITestDevice device, IDeviceBuildInfo localBuild) {}
+
+                    @Override
+                    protected boolean checkAndFlashBootloader(
+                            ITestDevice device, IDeviceBuildInfo deviceBuild) {
+                        return false;
+                    }
+
+                    @Override
+                    protected void checkAndFlashBaseband(
+                            ITestDevice device, IDeviceBuildInfo deviceBuild) {}
+
+                    @Override
+                    protected void wipeCache(ITestDevice device) {}
+
+                    @Override
+                    protected boolean checkAndFlashSystem(
+                            ITestDevice device,
+                            String systemBuildId,
+                            String systemBuildFlavor,
+                            IDeviceBuildInfo deviceBuild) {
+                        return false;
+                    }
+                };
+        flasher.setUserDataFlashOption(UserDataFlashOption.FLASH_IMG_ZIP);
+        flasher.setPrepareImagesAhead(true);
+        File tmpDir = FileUtil.createTempDir("prepare-images-ahead");
+        try {
+            File userdata = new File(tmpDir, "userdata.img");
+            FileUtil.writeToFile("userdata", userdata);
+            File deviceImage = ZipUtil.createZip(Arrays.asList(userdata));
+            IDeviceBuildInfo build = new DeviceBuildInfo("1234", TEST_STRING);
+            build.setDeviceImageFile(deviceImage, "1234");
+            List<String> flashedContents = new ArrayList<>();
+            when(mMockDevice.executeLongFastbootCommand(
+                            Mockito.eq("flash"), Mockito.eq("userdata"), Mockito.any()))
+                    .thenAnswer(
+                            invocation -> {
+                                File image = new File((String) invocation.getArgument(2));
+                                flashedContents.add(FileUtil.readStringFromFile(image));
+                                CommandResult result = new CommandResult(CommandStatus.SUCCESS);
+                                result.setStderr("");
+                                return result;
+                            });
+
+            flasher.flash(mMockDevice, build);
+            assertTrue(flasher.getPartitionFlashingTimes().containsKey("userdata"));
+            // The extracted image is cached for the build, the device image is not needed anymore.
+            FileUtil.deleteFile(deviceImage);
+            flasher.flash(mMockDevice, build);
+
+            assertEquals(Arrays.asList("userdata", "userdata"), flashedContents);
+        } finally {
+            FlashingImagePreparer.clearCache();
+            FileUtil.recursiveDelete(tmpDir);
+        }
+    }
+
     /**
      * Set EasyMock expectations to simulate the response to some fastboot command
      *
@@ -40,6 +40,7 @@ import com.android.tradefed.config.ConfigurationException;
 import com.android.tradefed.config.OptionSetter;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.device.PackageInfo;
 import com.android.tradefed.invoker.IInvocationContext;
 import com.android.tradefed.invoker.InvocationContext;
 import com.android.tradefed.invoker.TestInformation;
@@ -55,6 +56,7 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
@@ -843,7 +845,7 @@ public class TestAppInstallSetupTest {
 
         Map<File, String> result = mPrep.resolveApkFiles(mTestInfo, files);
 
-        verify(mMockTestDevice, times(2)).getApiLevel();
+        verify(mMockTestDevice).getApiLevel();
         Mockito.verify(mMockAaptParser, times(2)).getSdkVersion();
         assertEquals(expected, result);
     }
@@ -882,6 +884,156 @@ public class TestAppInstallSetupTest {
         assertEquals(result, expected);
     }
 
+    /** Test that with pipelined-install the single apk packages are installed together. */
+    @Test
+    public void testSetup_pipelined_multiPackage() throws Exception {
+        Path directoryPath = createSubDirectory(mTemporaryFolder.toPath(), "apk-dir");
+        File apk1 = Files.createFile(directoryPath.resolve("app1.apk")).toFile();
+        File apk2 = Files.createFile(directoryPath.resolve("app2.apk")).toFile();
+        TestAppInstallSetup preparer =
+                createPreparer(
+                        f -> f.getName(),
+                        ImmutableMap.of(
+                                TEST_FILE_NAME_OPTION,
+                                directoryPath.toString(),
+                                "pipelined-install",
+                                "true"));
+        when(mMockTestDevice.getApiLevel()).thenReturn(30);
+        when(mMockTestDevice.isRuntimePermissionSupported()).thenReturn(true);
+        when(mMockTestDevice.executeAdbCommand(Mockito.anyLong(), Mockito.any()))
+                .thenReturn("Success");
+
+        Set<Set<File>> installs = runSetUpAndCaptureInstalls(preparer);
+
+        assertThat(installs).isEmpty();
+        ArgumentCaptor<String> captor = ArgumentCaptor.forClass(String.class);
+        verify(mMockTestDevice).executeAdbCommand(Mockito.eq(4 * 60 * 1000L), captor.capture());
+        assertThat(captor.getAllValues())
+                .containsExactly(
+                        "install-multi-package",
+                        "-r",
+                        "-g",
+                        apk1.getAbsolutePath(),
+                        apk2.getAbsolutePath());
+    }
+
+    /** Test that a failed multi-package session falls back to installing one by one. */
+    @Test
+    public void testSetup_pipelined_multiPackageFailed() throws Exception {
+        Path directoryPath = createSubDirectory(mTemporaryFolder.toPath(), "apk-dir");
+        File apk1 = Files.createFile(directoryPath.resolve("app1.apk")).toFile();
+        File apk2 = Files.createFile(directoryPath.resolve("app2.apk")).toFile();
+        TestAppInstallSetup preparer =
+                createPreparer(
+                        f -> f.getName(),
+                        ImmutableMap.of(
+                                TEST_FILE_NAME_OPTION,
+                                directoryPath.toString(),
+                                "pipelined-install",
+                                "true"));
+        when(mMockTestDevice.getApiLevel()).thenReturn(30);
+        when(mMockTestDevice.executeAdbCommand(Mockito.anyLong(), Mockito.any()))
+                .thenReturn("Failure");
+
+        Set<Set<File>> installs = runSetUpAndCaptureInstalls(preparer);
+
+        assertThat(installs).containsExactly(ImmutableSet.of(apk1), ImmutableSet.of(apk2));
+    }
+
+    /** Test that with pipelined-install the queued packages are installed before a split one. */
+    @Test
+    public void testSetup_pipelined_keepsOrder() throws Exception {
+        Path directoryPath = createSubDirectory(mTemporaryFolder.toPath(), "apk-dir");
+        File apk = Files.createFile(directoryPath.resolve("app.apk")).toFile();
+        File split1 = Files.createFile(mTemporaryFolder.toPath().resolve("split1.apk")).toFile();
+        File split2 = Files.createFile(mTemporaryFolder.toPath().resolve("split2.apk")).toFile();
+        TestAppInstallSetup preparer =
+                createPreparer(
+                        f -> f.getName().startsWith("split") ? "split" : f.getName(),
+                        ImmutableMap.of(
+                                TEST_FILE_NAME_OPTION,
+                                directoryPath.toString(),
+                                "pipelined-install",
+                                "true"));
+        preparer.addSplitApkFileNames(
+                String.format("%s,%s", split1.getAbsolutePath(), split2.getAbsolutePath()));
+        when(mMockTestDevice.getApiLevel()).thenReturn(30);
+
+        Set<Set<File>> installs = runSetUpAndCaptureInstalls(preparer);
+
+        assertThat(installs)
+                .containsExactly(ImmutableSet.of(apk), ImmutableSet.of(split1, split2))
+                .inOrder();
+    }
+
+    /**
+     * Test that the installed version is checked once per package when a multi-package session
+     * falls back to installing one by one.
+     */
+    @Test
+    public void testSetup_pipelined_multiPackageFailed_checksVersionOnce() throws Exception {
+        Path directoryPath = createSubDirectory(mTemporaryFolder.toPath(), "apk-dir");
+        File apk1 = Files.createFile(directoryPath.resolve("app1.apk")).toFile();
+        File apk2 = Files.createFile(directoryPath.resolve("app2.apk")).toFile();
+        TestAppInstallSetup preparer =
+                new TestAppInstallSetup() {
+                    @Override
+                    protected String parsePackageName(
+                            File testAppFile, DeviceDescriptor deviceDescriptor) {
+                        return testAppFile.getName();
+                    }
+
+                    @Override
+                    protected String parseVersionCode(File apkFile) {
+                        return "2";
+                    }
+                };
+        OptionSetter setter = new OptionSetter(preparer);
+        setter.setOptionValue(TEST_FILE_NAME_OPTION, directoryPath.toString());
+        setter.setOptionValue("pipelined-install", "true");
+        setter.setOptionValue("skip-installed-same-version", "true");
+        PackageInfo installed = Mockito.mock(PackageInfo.class);
+        when(installed.getVersionCode()).thenReturn("1");
+        when(mMockTestDevice.getAppPackageInfo(Mockito.any())).thenReturn(installed);
+        when(mMockTestDevice.getApiLevel()).thenReturn(30);
+        when(mMockTestDevice.executeAdbCommand(Mockito.anyLong(), Mockito.any()))
+                .thenReturn("Failure");
+
+        Set<Set<File>> installs = runSetUpAndCaptureInstalls(preparer);
+
+        assertThat(installs).containsExactly(ImmutableSet.of(apk1), ImmutableSet.of(apk2));
+        verify(mMockTestDevice).getAppPackageInfo("app1.apk");
+        verify(mMockTestDevice).getAppPackageInfo("app2.apk");
+    }
+
+    /** Test that packages installed with the same version code are skipped. */
+    @Test
+    public void testSetup_skipInstalledSameVersion() throws Exception {
+        TestAppInstallSetup preparer =
+                new TestAppInstallSetup() {
+                    @Override
+                    protected String parsePackageName(
+                            File testAppFile, DeviceDescriptor deviceDescriptor) {
+                        return PACKAGE_NAME;
+                    }
+
+                    @Override
+                    protected String parseVersionCode(File apkFile) {
+                        return "2";
+                    }
+                };
+        OptionSetter setter = new OptionSetter(preparer);
+        setter.setOptionValue(TEST_FILE_NAME_OPTION, fakeApk.getAbsolutePath());
+        setter.setOptionValue("skip-installed-same-version", "true");
+        PackageInfo installed = Mockito.mock(PackageInfo.class);
+        when(installed.getVersionCode()).thenReturn("2");
+        when(mMockTestDevice.getAppPackageInfo(PACKAGE_NAME)).thenReturn(installed);
+
+        Set<Set<File>> installs = runSetUpAndCaptureInstalls(preparer);
+
+        assertThat(installs).isEmpty();
+    }
+
     private static Path createSubDirectory(Path parent, String name) throws IOException {
         return Files.createDirectory(parent.resolve(name)).toAbsolutePath();
     }
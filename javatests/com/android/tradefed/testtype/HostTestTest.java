@@ -2224,6 +2224,19 @@ public class HostTestTest {
                 SuccessTestCase.class.getName(), new TestDescription[] {tid3, tid4});
     }
 
+    /** Similar to {@link #testSplit_excludeTestCase_shardUnit_method()} but with a wildcard. */
+    @org.junit.Test
+    public void testSplit_excludeWildcard_shardUnit_method() throws Exception {
+        OptionSetter setter = new OptionSetter(mHostTest);
+        setter.setOptionValue("class", SuccessTestCase.class.getName());
+        setter.setOptionValue("class", AnotherTestCase.class.getName());
+
+        TestDescription tid3 = new TestDescription(AnotherTestCase.class.getName(), "testPass3");
+        TestDescription tid4 = new TestDescription(AnotherTestCase.class.getName(), "testPass4");
+        testSplit_excludeFilter_shardUnit_Method(
+                SuccessTestCase.class.getName() + "#testPass*", new TestDescription[] {tid3, tid4});
+    }
+
     private void testSplit_excludeFilter_shardUnit_Method(
             String excludeFilter, TestDescription[] expectedTids)
             throws DeviceNotAvailableException, ConfigurationException {
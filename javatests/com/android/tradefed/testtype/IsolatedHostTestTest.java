@@ -113,6 +113,7 @@ public class IsolatedHostTestTest {
 
     @After
     public void tearDown() throws Exception {
+        IsolationRunnerWorker.stopIdleWorkers();
         FileUtil.recursiveDelete(mMockTestDir);
     }
 
@@ -464,6 +465,92 @@ public class IsolatedHostTestTest {
         verify(mListener).testRunEnded(Mockito.anyLong(), Mockito.<HashMap<String, Metric>>any());
     }
 
+    /** Test that a reused isolation runner runs the tests of the following modules. */
+    @Test
+    public void testReuseIsolationRunner() throws Exception {
+        OptionSetter setter = setUpSimpleMockJarTest("SimplePassingTest.jar");
+        setter.setOptionValue("reuse-isolation-runner", "true");
+        TestInformation testInfo = TestInformation.newBuilder().build();
+        TestDescription passingTest =
+                new TestDescription(
+                        "com.android.tradefed.referencetests.SimplePassingTest", "test2Plus2");
+
+        mHostTest.run(testInfo, mListener);
+
+        verify(mListener).testStarted(Mockito.eq(passingTest), Mockito.anyLong());
+        verify(mListener)
+                .testEnded(
+                        Mockito.eq(passingTest),
+                        Mockito.anyLong(),
+                        Mockito.<HashMap<String, Metric>>any());
+        verify(mListener)
+                .testLog((String) Mockito.any(), Mockito.eq(LogDataType.TEXT), Mockito.any());
+        verify(mListener).testRunEnded(Mockito.anyLong(), Mockito.<HashMap<String, Metric>>any());
+        assertEquals(1, IsolationRunnerWorker.getIdleWorkerCount());
+
+        // The next module runs in the same runner
+        getJarResource("/SimpleFailingTest.jar", mMockTestDir, "SimpleFailingTest.jar");
+        IsolatedHostTest nextHostTest =
+                new IsolatedHostTest() {
+                    @Override
+                    String getEnvironment(String key) {
+                        return null;
+                    }
+                };
+        nextHostTest.setBuild(mMockBuildInfo);
+        OptionSetter nextSetter = new OptionSetter(nextHostTest);
+        nextSetter.setOptionValue("jar", "SimpleFailingTest.jar");
+        nextSetter.setOptionValue("exclude-paths", "org/junit");
+        nextSetter.setOptionValue("exclude-paths", "junit");
+        nextSetter.setOptionValue("reuse-isolation-runner", "true");
+        ITestInvocationListener nextListener = Mockito.mock(ITestInvocationListener.class);
+        TestDescription failingTest =
+                new TestDescription(
+                        "com.android.tradefed.referencetests.SimpleFailingTest", "test2Plus2");
+
+        nextHostTest.run(testInfo, nextListener);
+
+        verify(nextListener).testRunStarted((String) Mockito.any(), Mockito.eq(1));
+        verify(nextListener).testStarted(Mockito.eq(failingTest), Mockito.anyLong());
+        verify(nextListener).testFailed(Mockito.eq(failingTest), (String) Mockito.any());
+        verify(nextListener)
+                .testLog((String) Mockito.any(), Mockito.eq(LogDataType.TEXT), Mockito.any());
+        verify(nextListener)
+                .testRunEnded(Mockito.anyLong(), Mockito.<HashMap<String, Metric>>any());
+        assertEquals(1, IsolationRunnerWorker.getIdleWorkerCount());
+    }
+
+    /** Test that a reused isolation runner is stopped once it ran the maximum number of modules. */
+    @Test
+    public void testReuseIsolationRunner_maxRuns() throws Exception {
+        OptionSetter setter = setUpSimpleMockJarTest("SimplePassingTest.jar");
+        setter.setOptionValue("reuse-isolation-runner", "true");
+        setter.setOptionValue("isolation-runner-max-runs", "1");
+        TestInformation testInfo = TestInformation.newBuilder().build();
+
+        mHostTest.run(testInfo, mListener);
+
+        verify(mListener).testRunStarted((String) Mockito.any(), Mockito.eq(1));
+        verify(mListener).testRunEnded(Mockito.anyLong(), Mockito.<HashMap<String, Metric>>any());
+        assertEquals(0, IsolationRunnerWorker.getIdleWorkerCount());
+    }
+
+    /** Test that a module with native libraries does not use a reused isolation runner. */
+    @Test
+    public void testReuseIsolationRunner_nativeLibraries() throws Exception {
+        OptionSetter setter = setUpSimpleMockJarTest("SimplePassingTest.jar");
+        setter.setOptionValue("reuse-isolation-runner", "true");
+        new File(mMockTestDir, "lib64").mkdir();
+        TestInformation testInfo = TestInformation.newBuilder().build();
+
+        mHostTest.run(testInfo, mListener);
+
+        verify(mListener).testRunStarted((String) Mockito.any(), Mockito.eq(1));
+        verify(mListener).testRunEnded(Mockito.anyLong(), Mockito.<HashMap<String, Metric>>any());
+        // The runner was started for this module only.
+        assertEquals(0, IsolationRunnerWorker.getIdleWorkerCount());
+    }
+
     @Test
     public void testCompileLdLibraryPath() throws Exception {
         setUpSimpleMockJarTest("SimplePassingTest.jar");
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.testtype;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Unit tests for {@link IsolationRunnerWorker}. */
+@RunWith(JUnit4.class)
+public class IsolationRunnerWorkerTest {
+
+    private ServerSocket mServer;
+    private List<Socket> mRunnerSockets;
+    private File mWorkDir;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new ServerSocket(0, 10, InetAddress.getLoopbackAddress());
+        mRunnerSockets = new ArrayList<>();
+        mWorkDir = FileUtil.createTempDir("isolation-runner-worker-test");
+    }
+
+    @After
+    public void tearDown() {
+        IsolationRunnerWorker.stopIdleWorkers();
+        for (Socket socket : mRunnerSockets) {
+            StreamUtil.close(socket);
+        }
+        StreamUtil.close(mServer);
+        FileUtil.recursiveDelete(mWorkDir);
+    }
+
+    /** Test that an idle worker is reused by the next module with the same key. */
+    @Test
+    public void testPoll() throws Exception {
+        IsolationRunnerWorker worker = createWorker("key", 60000);
+        worker.release(10);
+        assertEquals(1, IsolationRunnerWorker.getIdleWorkerCount());
+
+        assertNull(IsolationRunnerWorker.poll("other"));
+        assertSame(worker, IsolationRunnerWorker.poll("key"));
+        assertEquals(2, worker.getRuns());
+        assertEquals(0, IsolationRunnerWorker.getIdleWorkerCount());
+    }
+
+    /** Test that the workers idle for too long are stopped and their files deleted. */
+    @Test
+    public void testReapIdleWorkers() throws Exception {
+        IsolationRunnerWorker expired = createWorker("expired", 0);
+        IsolationRunnerWorker reusable = createWorker("reusable", 60000);
+        expired.release(10);
+        reusable.release(10);
+        assertEquals(2, IsolationRunnerWorker.getIdleWorkerCount());
+
+        IsolationRunnerWorker.reapIdleWorkers();
+
+        assertEquals(1, IsolationRunnerWorker.getIdleWorkerCount());
+        assertTrue(expired.getSocket().isClosed());
+        assertFalse(expired.getLog().exists());
+        assertFalse(reusable.getSocket().isClosed());
+        assertTrue(reusable.getLog().exists());
+        assertSame(reusable, IsolationRunnerWorker.poll("reusable"));
+    }
+
+    private IsolationRunnerWorker createWorker(String key, int socketTimeout) throws Exception {
+        Socket runnerSocket = new Socket(InetAddress.getLoopbackAddress(), mServer.getLocalPort());
+        mRunnerSockets.add(runnerSocket);
+        File jar = FileUtil.createTempFile("isolation-runner", ".jar", mWorkDir);
+        File log = FileUtil.createTempFile("isolation-runner-logs", "", mWorkDir);
+        IsolationRunnerWorker worker =
+                new IsolationRunnerWorker(
+                        key, null, mServer.accept(), mWorkDir, jar, log, socketTimeout);
+        worker.start();
+        return worker;
+    }
+}
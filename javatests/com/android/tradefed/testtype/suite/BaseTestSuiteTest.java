@@ -335,9 +335,7 @@ public class BaseTestSuiteTest {
         } catch (HarnessRuntimeException ex) {
             assertEquals(
                     "Include filter '{arm64-v8a Doesntexist=[Doesntexist], "
-                            + "armeabi-v7a Doesntexist=[Doesntexist], arm64-v8a suite/stub1=[], "
-                            + "armeabi-v7a suite/stub1=[], arm64-v8a suite/stub2=[], "
-                            + "armeabi-v7a suite/stub2=[]}' was specified but "
+                            + "armeabi-v7a Doesntexist=[Doesntexist]}' was specified but "
                             + "resulted in an empty test set.",
                     ex.getMessage());
         }
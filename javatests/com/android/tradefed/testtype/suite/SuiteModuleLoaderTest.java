@@ -32,6 +32,7 @@ import com.android.tradefed.config.Option;
 import com.android.tradefed.config.OptionClass;
 import com.android.tradefed.device.DeviceFoldableState;
 import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.error.HarnessRuntimeException;
 import com.android.tradefed.invoker.IInvocationContext;
 import com.android.tradefed.invoker.InvocationContext;
 import com.android.tradefed.invoker.TestInformation;
@@ -1109,4 +1110,60 @@ public class SuiteModuleLoaderTest {
                 "com.android.permission.apex+com.android.ipsec.apex+com.android.cellbroadcast.apex")
         );
     }
+
+    /** Test that loading the modules in parallel gives the same modules, in the same order. */
+    @Test
+    public void testLoadConfigsFromDirectory_parallel() throws Exception {
+        for (int i = 0; i < 12; i++) {
+            createModuleConfig("module" + i);
+            createInstantModuleConfig("instant" + i);
+        }
+        mAbis.add(new Abi("arm64-v8a", "64"));
+        List<String> patterns = Arrays.asList(".*.config");
+        mRepo.setParameterizedModules(true);
+        LinkedHashMap<String, IConfiguration> sequential =
+                mRepo.loadConfigsFromDirectory(
+                        Arrays.asList(mTestsDir), mAbis, null, null, patterns);
+
+        SuiteModuleLoader parallelRepo =
+                new SuiteModuleLoader(
+                        new LinkedHashMap<String, LinkedHashSet<SuiteTestFilter>>(),
+                        new LinkedHashMap<String, LinkedHashSet<SuiteTestFilter>>(),
+                        new ArrayList<>(),
+                        new ArrayList<>());
+        parallelRepo.setParameterizedModules(true);
+        parallelRepo.setLoadingThreads(4);
+        LinkedHashMap<String, IConfiguration> parallel =
+                parallelRepo.loadConfigsFromDirectory(
+                        Arrays.asList(mTestsDir), mAbis, null, null, patterns);
+
+        // 12 modules for 2 abis, 12 modules for 2 abis and their instant version.
+        assertEquals(60, parallel.size());
+        assertEquals(new ArrayList<>(sequential.keySet()), new ArrayList<>(parallel.keySet()));
+        assertNotNull(parallel.get("armeabi-v7a instant3[instant]"));
+        assertEquals(
+                "arm64-v8a",
+                parallel.get("arm64-v8a module7").getConfigurationDescription().getAbi().getName());
+        Map<String, Long> loadingTimes = parallelRepo.getModuleLoadingTimes();
+        assertEquals(24, loadingTimes.size());
+        assertEquals("instant0", loadingTimes.keySet().iterator().next());
+    }
+
+    /** Test that the failure of the first broken module is reported when loading in parallel. */
+    @Test
+    public void testLoadConfigsFromDirectory_parallelFailure() throws Exception {
+        for (int i = 0; i < 6; i++) {
+            createModuleConfig("module" + i);
+        }
+        FileUtil.writeToFile("<configuration>", new File(mTestsDir, "module3_broken.config"));
+        FileUtil.writeToFile("<configuration>", new File(mTestsDir, "module5_broken.config"));
+        mRepo.setLoadingThreads(4);
+        try {
+            mRepo.loadConfigsFromDirectory(
+                    Arrays.asList(mTestsDir), mAbis, null, null, Arrays.asList(".*.config"));
+            fail("Should have thrown an exception.");
+        } catch (HarnessRuntimeException expected) {
+            assertTrue(expected.getMessage().contains("module3_broken.config"));
+        }
+    }
 }
@@ -18,6 +18,9 @@ package com.android.tradefed.util;
 
 import com.android.tradefed.build.BuildRetrievalError;
 
+import com.google.api.services.storage.model.StorageObject;
+import com.google.common.io.ByteStreams;
+
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
@@ -25,7 +28,15 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
 
 /** Unit test for {@link GCSFileDownloader}. */
 @RunWith(JUnit4.class)
@@ -77,6 +88,91 @@ public class GCSFileDownloaderTest {
         }
     }
 
+    /** Test downloading a file in chunks from a local stand-in of the bucket. */
+    @Test
+    public void testDownloadFile_parallel() throws Exception {
+        mLocalRoot = FileUtil.createTempDir("gcs-bucket");
+        File remoteFile = createRemoteFile(1000);
+        List<Long> ranges = new ArrayList<>();
+        GCSFileDownloader downloader =
+                createLocalDownloader(remoteFile, FileUtil.calculateBase64Md5(remoteFile), ranges);
+        File localFile = null;
+        try {
+            localFile = downloader.downloadFile("gs://bucket/file.bin");
+            Assert.assertTrue(FileUtil.compareFileContents(remoteFile, localFile));
+            // 10 chunks of 100 bytes, the chunk starting at 500 is resumed from 550 once.
+            Assert.assertEquals(11, ranges.size());
+            Assert.assertTrue(ranges.contains(550L));
+        } finally {
+            FileUtil.deleteFile(localFile);
+        }
+    }
+
+    /** Test that a file downloaded in chunks is rejected if its checksum does not match. */
+    @Test
+    public void testDownloadFile_parallelChecksumMismatch() throws Exception {
+        mLocalRoot = FileUtil.createTempDir("gcs-bucket");
+        File remoteFile = createRemoteFile(1000);
+        GCSFileDownloader downloader =
+                createLocalDownloader(remoteFile, "bad-checksum", new ArrayList<>());
+        try {
+            downloader.downloadFile("gs://bucket/file.bin");
+            Assert.fail("Expect to throw BuildRetrievalError");
+        } catch (BuildRetrievalError e) {
+            Assert.assertTrue(e.getMessage().contains("Checksum mismatch"));
+        }
+    }
+
+    private File createRemoteFile(int size) throws IOException {
+        byte[] content = new byte[size];
+        new Random(0).nextBytes(content);
+        File remoteFile = new File(mLocalRoot, "file.bin");
+        FileUtil.writeToFile(new ByteArrayInputStream(content), remoteFile);
+        return remoteFile;
+    }
+
+    /**
+     * Create a downloader reading from a local file instead of a bucket. The first read of the
+     * chunk starting at 500 stops after 50 bytes.
+     */
+    private GCSFileDownloader createLocalDownloader(
+            File remoteFile, String md5Hash, List<Long> ranges) {
+        GCSFileDownloader downloader =
+                new GCSFileDownloader() {
+                    @Override
+                    StorageObject getRemoteFileMetaData(String bucketName, String remoteFilename) {
+                        StorageObject meta = new StorageObject();
+                        meta.setSize(BigInteger.valueOf(remoteFile.length()));
+                        meta.setMd5Hash(md5Hash);
+                        return meta;
+                    }
+
+                    @Override
+                    boolean isRemoteFolder(String bucketName, String filename) {
+                        return false;
+                    }
+
+                    @Override
+                    InputStream openRange(
+                            String bucketName, String remoteFilename, long start, long end)
+                            throws IOException {
+                        synchronized (ranges) {
+                            ranges.add(start);
+                        }
+                        long length = end - start + 1;
+                        if (start == 500L) {
+                            length = 50L;
+                        }
+                        FileInputStream input = new FileInputStream(remoteFile);
+                        input.getChannel().position(start);
+                        return ByteStreams.limit(input, length);
+                    }
+                };
+        downloader.setParallelDownloadStreams(4);
+        downloader.setChunkSize(100L);
+        return downloader;
+    }
+
     @Test
     public void testSanitizeDirectoryName() {
         Assert.assertEquals(
@@ -26,6 +26,8 @@ import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 
 /**
  * Longer running tests for {@link RunUtilFuncTest}
@@ -211,6 +213,45 @@ public class RunUtilFuncTest extends TestCase {
         }
     }
 
+    /**
+     * Benchmark the per-command overhead of running short commands with new threads for each
+     * command and with the threads shared across commands.
+     */
+    public void testRunTimedCmd_sharedProcessPumpOverhead() {
+        final int commands = 200;
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        RunUtil runUtil = new RunUtil();
+        long[] elapsed = new long[2];
+        long[] startedThreads = new long[2];
+        for (int mode = 0; mode < 2; mode++) {
+            RunUtil.setUseSharedProcessPump(mode == 1);
+            try {
+                // Warm up
+                runUtil.runTimedCmd(LONG_TIMEOUT_MS, "true");
+                long threadsBefore = threads.getTotalStartedThreadCount();
+                long start = System.nanoTime();
+                for (int i = 0; i < commands; i++) {
+                    CommandResult result = runUtil.runTimedCmd(LONG_TIMEOUT_MS, "echo", "hello");
+                    assertEquals(CommandStatus.SUCCESS, result.getStatus());
+                    assertEquals("hello\n", result.getStdout());
+                }
+                elapsed[mode] = System.nanoTime() - start;
+                startedThreads[mode] = threads.getTotalStartedThreadCount() - threadsBefore;
+            } finally {
+                RunUtil.setUseSharedProcessPump(false);
+            }
+        }
+        CLog.i(
+                "Per command: new threads %sus and %s threads, shared threads %sus and %s threads",
+                elapsed[0] / commands / 1000,
+                (double) startedThreads[0] / commands,
+                elapsed[1] / commands / 1000,
+                (double) startedThreads[1] / commands);
+        // Each command starts 3 threads, shared threads are only started for the first ones.
+        assertTrue(startedThreads[0] >= 3 * commands);
+        assertTrue(startedThreads[1] < commands);
+    }
+
     /** Test running a command with redirecting input from a file. */
     public void testRunTimedCmd_WithInputRedirect() throws IOException {
         File inputRedirect = FileUtil.createTempFile("input_redirect", ".txt");
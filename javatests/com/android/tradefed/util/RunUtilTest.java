@@ -498,6 +498,70 @@ public class RunUtilTest {
         assertEquals("", result.getStderr());
     }
 
+    /** Test running commands with the output pumped by shared threads. */
+    @Test
+    public void testRunTimedCmd_sharedProcessPump() {
+        RunUtil.setUseSharedProcessPump(true);
+        try {
+            for (int i = 0; i < 3; i++) {
+                CommandResult result =
+                        mRunUtil.runTimedCmd(
+                                VERY_LONG_TIMEOUT_MS,
+                                "/bin/bash",
+                                "-c",
+                                "echo 'TEST STDOUT'; echo 'TEST STDERR' >&2; exit " + i);
+                assertEquals(
+                        i == 0 ? CommandStatus.SUCCESS : CommandStatus.FAILED, result.getStatus());
+                assertEquals(i, (int) result.getExitCode());
+                assertEquals("TEST STDOUT\n", result.getStdout());
+                assertEquals("TEST STDERR\n", result.getStderr());
+            }
+        } finally {
+            RunUtil.setUseSharedProcessPump(false);
+        }
+    }
+
+    /** Test that a command times out and is cancelled with the shared threads. */
+    @Test
+    public void testRunTimedCmd_sharedProcessPump_timeout() {
+        RunUtil.setUseSharedProcessPump(true);
+        try {
+            CommandResult result = mRunUtil.runTimedCmd(SHORT_TIMEOUT_MS, "sleep", "10");
+            assertEquals(CommandStatus.TIMED_OUT, result.getStatus());
+        } finally {
+            RunUtil.setUseSharedProcessPump(false);
+        }
+    }
+
+    /** Test that the captured output of a command is bounded by the capture limit. */
+    @Test
+    public void testRunTimedCmd_outputCaptureLimit() {
+        RunUtil testRunUtil = new RunUtil();
+        testRunUtil.setOutputCaptureLimit(4L);
+        CommandResult result =
+                testRunUtil.runTimedCmd(
+                        VERY_LONG_TIMEOUT_MS,
+                        "/bin/bash",
+                        "-c",
+                        "echo -n 0123456789; echo -n ab >&2");
+        assertEquals("0123\n[6 bytes of output dropped after the first 4]", result.getStdout());
+        assertEquals("ab", result.getStderr());
+    }
+
+    /**
+     * Verify that calling {@link RunUtil#setOutputCaptureLimit(long)} is not allowed on default
+     * instance.
+     */
+    @Test
+    public void testSetOutputCaptureLimit_default() {
+        try {
+            RunUtil.getDefault().setOutputCaptureLimit(1L);
+            fail("could set output capture limit on RunUtil.getDefault()");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
     /**
      * Implementation of {@link Process} to simulate a success of a command that echos to both
      * stdout and stderr without actually calling the underlying system.
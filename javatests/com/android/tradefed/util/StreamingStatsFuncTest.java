@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import static org.junit.Assert.assertEquals;
+
+import com.android.tradefed.log.LogUtil.CLog;
+
+import com.google.common.math.Quantiles;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Compares the cost of computing the stats of a metric after each iteration of a test with {@link
+ * SimpleStats}, with the boxed computation {@link MetricUtility#getStats(Collection, Set)} used
+ * before {@link StreamingStats}, and with {@link StreamingStats}.
+ */
+@RunWith(JUnit4.class)
+public class StreamingStatsFuncTest {
+
+    private static final int ITERATIONS = 5000;
+    private static final Set<Integer> PERCENTILES = new HashSet<>(Arrays.asList(90, 95, 99));
+
+    private final double[] mValues = new double[ITERATIONS];
+
+    public StreamingStatsFuncTest() {
+        Random random = new Random(42);
+        for (int i = 0; i < ITERATIONS; i++) {
+            mValues[i] = 100 + random.nextGaussian() * 10;
+        }
+    }
+
+    /** Measure {@link SimpleStats}, which sorts its list for the median. */
+    @Test
+    public void testSimpleStats() {
+        long start = System.nanoTime();
+        SimpleStats stats = new SimpleStats();
+        double median = 0;
+        for (double value : mValues) {
+            stats.add(value);
+            stats.mean();
+            stats.stdev();
+            stats.min();
+            stats.max();
+            median = stats.median();
+        }
+        report("SimpleStats", start);
+        assertEquals(median, median(), 0.000001);
+    }
+
+    /** Measure the stats computed from a boxed list rebuilt for each iteration. */
+    @Test
+    public void testBoxedGetStats() {
+        long start = System.nanoTime();
+        List<Double> values = new ArrayList<>();
+        double median = 0;
+        for (double value : mValues) {
+            values.add(value);
+            median = getBoxedStats(new ArrayList<>(values), PERCENTILES).get("median");
+        }
+        report("boxed getStats", start);
+        assertEquals(median, median(), 0.000001);
+    }
+
+    /** Measure {@link StreamingStats} updated with each iteration. */
+    @Test
+    public void testStreamingStats() {
+        long start = System.nanoTime();
+        StreamingStats stats = new StreamingStats();
+        double median = 0;
+        for (double value : mValues) {
+            stats.add(value);
+            median = MetricUtility.getStats(stats, PERCENTILES).get("median");
+        }
+        report("StreamingStats", start);
+        assertEquals(median, median(), 0.000001);
+    }
+
+    /**
+     * The stats computation of {@link MetricUtility#getStats(Collection, Set)} before it used
+     * {@link StreamingStats}: several passes over the boxed values and a Guava percentile
+     * selection.
+     */
+    private static Map<String, Double> getBoxedStats(
+            Collection<Double> values, Set<Integer> percentiles) {
+        Map<String, Double> stats = new LinkedHashMap<>();
+        double sum = values.stream().mapToDouble(Double::doubleValue).sum();
+        double count = values.size();
+        double mean =
+                values.stream()
+                        .mapToDouble(Double::doubleValue)
+                        .average()
+                        .orElseThrow(IllegalStateException::new);
+        double variance = values.stream().reduce(0.0, (a, b) -> a + Math.pow(b - mean, 2) / count);
+        Set<Integer> updatedPercentile = new HashSet<>(percentiles);
+        updatedPercentile.add(50);
+        Map<Integer, Double> percentileStat =
+                Quantiles.percentiles().indexes(updatedPercentile).compute(values);
+
+        stats.put("min", Collections.min(values));
+        stats.put("max", Collections.max(values));
+        stats.put("mean", mean);
+        stats.put("var", variance);
+        stats.put("stdev", Math.sqrt(variance));
+        stats.put("median", percentileStat.get(50));
+        stats.put("total", sum);
+        stats.put("metric-count", count);
+        for (Map.Entry<Integer, Double> percentile : percentileStat.entrySet()) {
+            if (percentile.getKey() != 50 || percentiles.contains(50)) {
+                stats.put("p" + percentile.getKey(), percentile.getValue());
+            }
+        }
+        return stats;
+    }
+
+    private double median() {
+        double[] sorted = Arrays.copyOf(mValues, ITERATIONS);
+        Arrays.sort(sorted);
+        return (sorted[ITERATIONS / 2 - 1] + sorted[ITERATIONS / 2]) / 2;
+    }
+
+    private void report(String stats, long startNanos) {
+        long elapsedUs = (System.nanoTime() - startNanos) / 1000L;
+        CLog.i(
+                "%s: %d iterations in %d ms (%d us per iteration)",
+                stats, ITERATIONS, elapsedUs / 1000L, elapsedUs / ITERATIONS);
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.common.math.Quantiles;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/** Unit tests for {@link StreamingStats}. */
+@RunWith(JUnit4.class)
+public class StreamingStatsTest {
+
+    private static final double DELTA = 0.000001;
+
+    /** Test the stats of an empty dataset. */
+    @Test
+    public void testStats_empty() {
+        StreamingStats stats = new StreamingStats();
+        assertTrue(stats.isEmpty());
+        assertEquals(0, stats.size());
+        assertEquals(0, stats.sum(), DELTA);
+        assertTrue(Double.isNaN(stats.mean()));
+        assertTrue(Double.isNaN(stats.median()));
+        assertTrue(Double.isNaN(stats.min()));
+        assertTrue(Double.isNaN(stats.max()));
+        assertTrue(Double.isNaN(stats.stdev()));
+    }
+
+    /** Test the stats of values added out of order. */
+    @Test
+    public void testStats() {
+        StreamingStats stats = new StreamingStats();
+        // [1, 10] in reverse order
+        for (int i = 10; i >= 1; --i) {
+            stats.add(i);
+        }
+        assertEquals(10, stats.size());
+        assertEquals(55, stats.sum(), DELTA);
+        assertEquals(1, stats.min(), DELTA);
+        assertEquals(10, stats.max(), DELTA);
+        assertEquals(5.5, stats.mean(), DELTA);
+        assertEquals(5.5, stats.median(), DELTA);
+        assertEquals(8.25, stats.variance(), DELTA);
+        assertEquals(2.872281, stats.stdev(), DELTA);
+        assertEquals(1, stats.percentile(0), DELTA);
+        assertEquals(9.91, stats.percentile(99), DELTA);
+        assertEquals(10, stats.percentile(100), DELTA);
+    }
+
+    /** Test that the percentiles are the same as the ones of Guava's {@link Quantiles}. */
+    @Test
+    public void testPercentile_sameAsQuantiles() {
+        Random random = new Random(42);
+        StreamingStats stats = new StreamingStats();
+        List<Double> values = new ArrayList<>();
+        for (int i = 0; i < 1001; i++) {
+            double value = random.nextGaussian() * 100;
+            stats.add(value);
+            values.add(value);
+            if (i % 100 == 0) {
+                // Percentiles requested while values are still added.
+                assertEquals(Quantiles.median().compute(values), stats.median(), 0.0);
+            }
+        }
+        for (int p = 0; p <= 100; p++) {
+            assertEquals(
+                    Quantiles.percentiles().index(p).compute(values), stats.percentile(p), 0.0);
+        }
+    }
+
+    /** Test merging datasets. */
+    @Test
+    public void testAddAll() {
+        StreamingStats all = new StreamingStats();
+        StreamingStats first = new StreamingStats();
+        StreamingStats second = new StreamingStats();
+        for (int i = 0; i < 50; i++) {
+            double value = (i * 37) % 23;
+            all.add(value);
+            (i < 20 ? first : second).add(value);
+        }
+        StreamingStats merged = new StreamingStats();
+        merged.addAll(first);
+        merged.addAll(second);
+        assertEquals(all.size(), merged.size());
+        assertEquals(all.sum(), merged.sum(), DELTA);
+        assertEquals(all.min(), merged.min(), DELTA);
+        assertEquals(all.max(), merged.max(), DELTA);
+        assertEquals(all.mean(), merged.mean(), DELTA);
+        assertEquals(all.variance(), merged.variance(), DELTA);
+        assertEquals(all.percentile(90), merged.percentile(90), DELTA);
+    }
+
+    /** Test that percentiles out of the 0 - 100 range are rejected. */
+    @Test
+    public void testPercentile_outOfRange() {
+        StreamingStats stats = new StreamingStats();
+        stats.add(1);
+        try {
+            stats.percentile(101);
+            fail("Should have thrown an exception.");
+        } catch (IllegalArgumentException expected) {
+            // Expected
+        }
+    }
+}
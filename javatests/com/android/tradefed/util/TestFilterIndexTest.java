@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** Unit tests for {@link TestFilterIndex}. */
+@RunWith(JUnit4.class)
+public class TestFilterIndexTest {
+
+    /** Test matching exact filters. */
+    @Test
+    public void testMatches_exact() {
+        TestFilterIndex index =
+                new TestFilterIndex(Arrays.asList("com.android.Foo#test1", "com.android.Bar"));
+        assertTrue(index.matches("com.android.Foo#test1"));
+        assertTrue(index.matches("com.android.Bar"));
+        assertFalse(index.matches("com.android.Foo#test2"));
+        assertFalse(index.matches("com.android.Foo"));
+        assertFalse(index.matches(null));
+        assertTrue(index.matchesAny("com.android", "com.android.Bar", "com.android.Bar#test"));
+    }
+
+    /** Test matching filters ending with a wildcard. */
+    @Test
+    public void testMatches_prefix() {
+        TestFilterIndex index =
+                new TestFilterIndex(Arrays.asList("com.android.foo.*", "com.android.Bar#test*"));
+        assertTrue(index.matches("com.android.foo.Class#test"));
+        assertTrue(index.matches("com.android.foo."));
+        assertFalse(index.matches("com.android.foo"));
+        assertTrue(index.matches("com.android.Bar#testOne"));
+        assertTrue(index.matches("com.android.Bar#test"));
+        assertFalse(index.matches("com.android.Bar#other"));
+    }
+
+    /** Test matching filters with wildcards in the middle. */
+    @Test
+    public void testMatches_wildcard() {
+        TestFilterIndex index =
+                new TestFilterIndex(Arrays.asList("*Foo#test*[0]", "com.*.Bar#*Large"));
+        assertTrue(index.matches("com.android.Foo#testOne[0]"));
+        assertTrue(index.matches("Foo#test[0]"));
+        assertFalse(index.matches("com.android.Foo#testOne[1]"));
+        assertTrue(index.matches("com.android.sub.Bar#testLarge"));
+        assertFalse(index.matches("com.android.sub.Bar#testLargeX"));
+        assertFalse(index.matches("org.android.Bar#testLarge"));
+    }
+
+    /** Test that a large number of filters is matched. */
+    @Test
+    public void testMatches_manyFilters() {
+        List<String> filters = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            filters.add(String.format("com.android.Class%d#test%d", i % 100, i));
+        }
+        filters.add("com.android.Wildcard#*");
+        TestFilterIndex index = new TestFilterIndex(filters);
+        assertEquals(10001, index.size());
+        assertTrue(index.matches("com.android.Class42#test9942"));
+        assertFalse(index.matches("com.android.Class42#test9943"));
+        assertTrue(index.matches("com.android.Wildcard#anything"));
+    }
+}
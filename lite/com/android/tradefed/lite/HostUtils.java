@@ -50,6 +50,9 @@ public final class HostUtils {
      *
      * @param classNames Classes that exist in the current class path to check for JUnit tests
      * @param jarAbsPaths Jars to search for classes with the test annotations.
+     * @param excludePaths Path prefixes of the jar entries that are not searched.
+     * @param pcl the {@link ClassLoader} the classes and the dependencies of the jars are loaded
+     *     from.
      * @return a list of class objects that are test classes to execute.
      * @throws IllegalArgumentException
      */
@@ -83,7 +86,8 @@ public final class HostUtils {
                 jarFile = new JarFile(file);
                 Stream<JarEntry> s = jarFile.stream();
                 URL[] urls = {new URL(String.format("jar:file:%s!/", file.getAbsolutePath()))};
-                URLClassLoader cl = URLClassLoader.newInstance(urls);
+                // Dependencies of the jar are resolved from the parent classloader.
+                URLClassLoader cl = URLClassLoader.newInstance(urls, pcl);
 
                 // This first stage of filtering makes sure that the jar entries are somewhat valid;
                 // this includes not being a directory, not being a java language class,
@@ -0,0 +1,776 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.build;
+
+import com.android.tradefed.invoker.logger.InvocationMetricLogger;
+import com.android.tradefed.invoker.logger.InvocationMetricLogger.InvocationMetricKey;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.error.InfraErrorIdentifier;
+import com.android.tradefed.util.FileUtil;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A {@link FileDownloadCache} that stores artifacts by the digest of their content.
+ *
+ * <p>The cache directory contains three areas:
+ *
+ * <ul>
+ *   <li><code>blobs/</code>: the content, one entry per SHA-256 digest. Identical artifacts
+ *       fetched from different remote paths are only stored once.
+ *   <li><code>refs/</code>: a mirror of the remote path hierarchy, where each file contains the
+ *       digest of the content last downloaded for that path.
+ *   <li><code>tmp/</code>: in-progress downloads, one sub-directory per process. Entries left
+ *       behind by processes that are gone are deleted once they are old enough.
+ * </ul>
+ *
+ * <p>The directory may be shared by several processes. Downloads run without any shared lock and
+ * fetches only contend with each other when they target the same remote path. Changes to the
+ * blob and ref areas, and hardlinks out of the blob area, are serialized across processes with a
+ * lock on the <code>index.lock</code> file. Least-recently-used content is evicted on a background
+ * thread once the cache grows over its maximum size.
+ */
+public class ContentAddressedFileDownloadCache extends FileDownloadCache {
+
+    static final String BLOBS_DIR = "blobs";
+    static final String REFS_DIR = "refs";
+    static final String TMP_DIR = "tmp";
+    static final String INDEX_LOCK_FILE = "index.lock";
+    /** Age after which the temporary files of another process are considered abandoned. */
+    static final long TMP_EXPIRY_MS = TimeUnit.HOURS.toMillis(24);
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File mBlobRoot;
+    private final File mRefRoot;
+    private final File mTmpRoot;
+
+    /** Map of normalized remote paths to the digest of their content. */
+    private final Map<String, String> mPathIndex = new ConcurrentHashMap<>();
+    /** Map of content digests to their entry in the cache. */
+    private final Map<String, BlobEntry> mBlobs = new ConcurrentHashMap<>();
+    /** Locks serializing fetches of the same remote path, only kept while in use. */
+    private final Map<String, PathLock> mPathLocks = new HashMap<>();
+
+    /** Serializes index changes within the process, the file lock covers other processes. */
+    private final ReentrantLock mIndexLock = new ReentrantLock();
+    private final FileChannel mIndexChannel;
+    private FileLock mIndexFileLock = null;
+
+    private final AtomicLong mCurrentCacheSize = new AtomicLong(0);
+    /** Logical clock used to order blob accesses for LRU eviction. */
+    private final AtomicLong mAccessClock = new AtomicLong(0);
+
+    private final AtomicBoolean mEvictionScheduled = new AtomicBoolean(false);
+    private final ExecutorService mEvictionExecutor;
+
+    /** The approximate maximum allowed size of the local file cache. Default to 20 gig */
+    private volatile long mMaxFileCacheSize = 20L * 1024L * 1024L * 1024L;
+
+    /** A piece of content stored in the cache. */
+    private static class BlobEntry {
+        final String mDigest;
+        final File mFile;
+        final long mSize;
+        final AtomicLong mLastAccess;
+        /** Number of fetches currently using the entry, or -1 once evicted. */
+        final AtomicInteger mUsers = new AtomicInteger(0);
+
+        BlobEntry(String digest, File file, long size, long lastAccess) {
+            mDigest = digest;
+            mFile = file;
+            mSize = size;
+            mLastAccess = new AtomicLong(lastAccess);
+        }
+
+        /** Marks the entry as in use. Returns false if the entry was already evicted. */
+        boolean pin() {
+            while (true) {
+                int users = mUsers.get();
+                if (users < 0) {
+                    return false;
+                }
+                if (mUsers.compareAndSet(users, users + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        void unpin() {
+            mUsers.decrementAndGet();
+        }
+
+        /** Marks the entry as evicted. Returns false if it is currently in use. */
+        boolean markEvicted() {
+            return mUsers.compareAndSet(0, -1);
+        }
+    }
+
+    /** A lock on one remote path, with the number of threads holding or waiting for it. */
+    private static class PathLock {
+        final ReentrantLock mLock = new ReentrantLock();
+        int mUsers = 0;
+    }
+
+    /**
+     * Create a {@link ContentAddressedFileDownloadCache}, rebuilding the index from any previous
+     * cache contents on disk.
+     */
+    ContentAddressedFileDownloadCache(File cacheRoot) {
+        super(cacheRoot, false);
+        mBlobRoot = new File(cacheRoot, BLOBS_DIR);
+        mRefRoot = new File(cacheRoot, REFS_DIR);
+        File tmpParent = new File(cacheRoot, TMP_DIR);
+        mTmpRoot = new File(tmpParent, UUID.randomUUID().toString());
+        mBlobRoot.mkdirs();
+        mRefRoot.mkdirs();
+        mTmpRoot.mkdirs();
+        mIndexChannel = openIndexChannel(new File(cacheRoot, INDEX_LOCK_FILE));
+        mEvictionExecutor =
+                Executors.newSingleThreadExecutor(
+                        r -> {
+                            Thread t = new Thread(r, "ContentAddressedFileDownloadCache-eviction");
+                            t.setDaemon(true);
+                            return t;
+                        });
+        lockIndex();
+        try {
+            cleanTmp(tmpParent);
+            loadBlobs();
+            loadRefs(mRefRoot, "");
+            if (mCurrentCacheSize.get() > getMaxFileCacheSize()) {
+                evict();
+            }
+        } finally {
+            unlockIndex();
+        }
+    }
+
+    private static FileChannel openIndexChannel(File lockFile) {
+        try {
+            return FileChannel.open(
+                    lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            CLog.e("Failed to open %s, the cache will not be locked across processes.", lockFile);
+            CLog.e(e);
+            return null;
+        }
+    }
+
+    /** Delete the temporary files left behind by processes that are gone. */
+    private void cleanTmp(File tmpParent) {
+        File[] children = tmpParent.listFiles();
+        if (children == null) {
+            return;
+        }
+        long expiry = System.currentTimeMillis() - TMP_EXPIRY_MS;
+        for (File child : children) {
+            if (!child.equals(mTmpRoot) && child.lastModified() < expiry) {
+                CLog.d("Deleting abandoned download %s", child.getAbsolutePath());
+                FileUtil.recursiveDelete(child);
+            }
+        }
+    }
+
+    /**
+     * Lock the index against other threads and processes. The lock is reentrant, the file lock is
+     * only taken by the outermost call.
+     */
+    private void lockIndex() {
+        mIndexLock.lock();
+        if (mIndexLock.getHoldCount() > 1 || mIndexChannel == null) {
+            return;
+        }
+        try {
+            mIndexFileLock = mIndexChannel.lock();
+        } catch (IOException | OverlappingFileLockException e) {
+            CLog.e("Failed to lock the cache index, only locking within the process.");
+            CLog.e(e);
+        }
+    }
+
+    private void unlockIndex() {
+        if (mIndexLock.getHoldCount() == 1 && mIndexFileLock != null) {
+            try {
+                mIndexFileLock.release();
+            } catch (IOException e) {
+                CLog.e(e);
+            }
+            mIndexFileLock = null;
+        }
+        mIndexLock.unlock();
+    }
+
+    /** Lock the given remote path, creating its lock if no other thread is using it. */
+    private PathLock lockPath(String key) {
+        PathLock pathLock;
+        synchronized (mPathLocks) {
+            pathLock = mPathLocks.computeIfAbsent(key, k -> new PathLock());
+            pathLock.mUsers++;
+        }
+        pathLock.mLock.lock();
+        return pathLock;
+    }
+
+    private void unlockPath(String key, PathLock pathLock) {
+        pathLock.mLock.unlock();
+        synchronized (mPathLocks) {
+            if (--pathLock.mUsers == 0) {
+                mPathLocks.remove(key);
+            }
+        }
+    }
+
+    /** Index the content already present under the blob directory, oldest first. */
+    private void loadBlobs() {
+        List<File> blobFiles = new ArrayList<>();
+        File[] buckets = mBlobRoot.listFiles();
+        if (buckets == null) {
+            CLog.e("Unable to list files in cache dir %s", mBlobRoot.getAbsolutePath());
+            return;
+        }
+        for (File bucket : buckets) {
+            File[] blobs = bucket.listFiles();
+            if (blobs != null) {
+                blobFiles.addAll(Arrays.asList(blobs));
+            }
+        }
+        blobFiles.sort(Comparator.comparingLong(File::lastModified));
+        for (File blob : blobFiles) {
+            long size = sizeOf(blob);
+            mBlobs.put(
+                    blob.getName(),
+                    new BlobEntry(blob.getName(), blob, size, mAccessClock.incrementAndGet()));
+            mCurrentCacheSize.addAndGet(size);
+        }
+    }
+
+    /** Recursively index the remote paths recorded under the ref directory. */
+    private void loadRefs(File dir, String relPath) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            CLog.e("Unable to list files in cache dir %s", dir.getAbsolutePath());
+            return;
+        }
+        for (File child : children) {
+            String childPath = relPath.isEmpty() ? child.getName() : relPath + "/" + child.getName();
+            if (child.isDirectory()) {
+                loadRefs(child, childPath);
+                continue;
+            }
+            try {
+                String digest = FileUtil.readStringFromFile(child).trim();
+                if (mBlobs.containsKey(digest)) {
+                    mPathIndex.put(normalize(childPath), digest);
+                    continue;
+                }
+            } catch (IOException e) {
+                CLog.e(e);
+            }
+            // Dangling or unreadable reference
+            FileUtil.deleteFile(child);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void setMaxCacheSize(long numBytes) {
+        mMaxFileCacheSize = numBytes;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    long getMaxFileCacheSize() {
+        return mMaxFileCacheSize;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void fetchRemoteFile(IFileDownloader downloader, String remoteFilePath, File destFile)
+            throws BuildRetrievalError {
+        internalFetchRemoteFile(downloader, remoteFilePath, destFile);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public File fetchRemoteFile(IFileDownloader downloader, String remoteFilePath)
+            throws BuildRetrievalError {
+        return internalFetchRemoteFile(downloader, remoteFilePath, null);
+    }
+
+    private File internalFetchRemoteFile(
+            IFileDownloader downloader, String remotePath, File destFile)
+            throws BuildRetrievalError {
+        if (remotePath == null) {
+            throw new BuildRetrievalError(
+                    "remote path was null.", InfraErrorIdentifier.ARTIFACT_REMOTE_PATH_NULL);
+        }
+        String key = normalize(remotePath);
+        PathLock pathLock = lockPath(key);
+        try {
+            BlobEntry entry = lookup(key);
+            if (entry != null) {
+                boolean fresh = false;
+                try {
+                    fresh =
+                            entry.mFile.exists()
+                                    && entry.mSize > 0L
+                                    && downloader.isFresh(entry.mFile, remotePath);
+                } finally {
+                    if (!fresh) {
+                        entry.unpin();
+                    }
+                }
+                if (fresh) {
+                    File copy = copyBlob(remotePath, entry, destFile);
+                    if (copy != null) {
+                        CLog.d(
+                                "Retrieved remote file %s from cached content %s",
+                                remotePath, entry.mDigest);
+                        return copy;
+                    }
+                    CLog.d(
+                            "Cached content %s for %s was removed, re-download.",
+                            entry.mDigest, remotePath);
+                } else {
+                    CLog.d(
+                            "Cached content %s for %s is out of date, re-download.",
+                            entry.mDigest, remotePath);
+                }
+                removeRef(key);
+            }
+            return download(downloader, remotePath, key, destFile);
+        } finally {
+            unlockPath(key, pathLock);
+            if (mCurrentCacheSize.get() > getMaxFileCacheSize()) {
+                scheduleEviction();
+            }
+        }
+    }
+
+    /** Returns the pinned entry for the given remote path, or null if not cached. */
+    private BlobEntry lookup(String key) {
+        String digest = mPathIndex.get(key);
+        if (digest == null) {
+            return null;
+        }
+        BlobEntry entry = mBlobs.get(digest);
+        if (entry == null || !entry.pin()) {
+            mPathIndex.remove(key, digest);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Download the remote file into the temporary area, move it into the blob store under its
+     * digest and record it for the given key. Returns a copy of the content.
+     */
+    private File download(IFileDownloader downloader, String remotePath, String key, File destFile)
+            throws BuildRetrievalError {
+        File tmpFile = null;
+        try {
+            mTmpRoot.mkdirs();
+            tmpFile = FileUtil.createTempFile("download", ".tmp", mTmpRoot);
+            // Let the downloader create the destination, it could be a directory.
+            tmpFile.delete();
+            CLog.d("Downloading %s to cache", remotePath);
+            downloader.downloadFile(remotePath, tmpFile);
+            long size = sizeOf(tmpFile);
+            InvocationMetricLogger.addInvocationMetrics(
+                    InvocationMetricKey.ARTIFACTS_DOWNLOAD_SIZE, size);
+            String digest = computeDigest(tmpFile);
+            lockIndex();
+            try {
+                BlobEntry entry = store(digest, tmpFile, size);
+                try {
+                    writeRef(key, digest);
+                } catch (BuildRetrievalError e) {
+                    entry.unpin();
+                    throw e;
+                }
+                File copy = copyBlob(remotePath, entry, destFile);
+                if (copy == null) {
+                    throw new IOException(String.format("Content %s disappeared", digest));
+                }
+                return copy;
+            } finally {
+                unlockIndex();
+            }
+        } catch (IOException e) {
+            throw new BuildRetrievalError(
+                    String.format("Failed to store %s in the download cache", remotePath),
+                    e,
+                    InfraErrorIdentifier.FAIL_TO_CREATE_FILE);
+        } finally {
+            FileUtil.recursiveDelete(tmpFile);
+        }
+    }
+
+    /**
+     * Move freshly downloaded content into the blob store, reusing identical content if any.
+     * Returns the pinned entry holding the content. Must be called with the index locked.
+     */
+    private BlobEntry store(String digest, File tmpFile, long size) throws IOException {
+        File blob = getBlobFile(digest);
+        if (blob.exists()) {
+            // Stored by another fetch, possibly from another process.
+            CLog.d("Content %s is already cached, reusing it.", digest);
+        } else {
+            blob.getParentFile().mkdirs();
+            Files.move(tmpFile.toPath(), blob.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        BlobEntry entry = mBlobs.get(digest);
+        if (entry != null && entry.pin()) {
+            return entry;
+        }
+        entry = new BlobEntry(digest, blob, size, mAccessClock.incrementAndGet());
+        entry.pin();
+        mBlobs.put(digest, entry);
+        mCurrentCacheSize.addAndGet(size);
+        return entry;
+    }
+
+    /** Remove the entry from the blob store and delete its content. */
+    private void dropBlob(BlobEntry entry) {
+        lockIndex();
+        try {
+            if (mBlobs.remove(entry.mDigest, entry)) {
+                mCurrentCacheSize.addAndGet(-entry.mSize);
+                FileUtil.recursiveDelete(entry.mFile);
+            }
+        } finally {
+            unlockIndex();
+        }
+    }
+
+    /**
+     * Hardlink the content of the entry to its destination, then release the entry. Returns null
+     * if the content was deleted by another process.
+     */
+    private File copyBlob(String remotePath, BlobEntry entry, File destFile)
+            throws BuildRetrievalError {
+        boolean drop = false;
+        lockIndex();
+        try {
+            if (!entry.mFile.exists()) {
+                drop = true;
+                return null;
+            }
+            touch(entry);
+            return linkCachedFile(remotePath, entry.mFile, destFile);
+        } catch (IOException e) {
+            // The content is likely corrupted, drop it from the index.
+            drop = true;
+            throw new BuildRetrievalError(
+                    String.format("Failed to copy cached file %s", entry.mFile),
+                    e,
+                    InfraErrorIdentifier.FAIL_TO_CREATE_FILE);
+        } finally {
+            entry.unpin();
+            // Only drop the content if it is not being used by another thread.
+            if (drop && entry.markEvicted()) {
+                dropBlob(entry);
+            }
+            unlockIndex();
+        }
+    }
+
+    private void touch(BlobEntry entry) {
+        entry.mLastAccess.set(mAccessClock.incrementAndGet());
+        // Persist the access order for the next process to pick up.
+        entry.mFile.setLastModified(System.currentTimeMillis());
+    }
+
+    private void writeRef(String key, String digest) throws BuildRetrievalError {
+        File ref = new File(mRefRoot, key);
+        lockIndex();
+        try {
+            if (ref.isDirectory()) {
+                FileUtil.recursiveDelete(ref);
+            }
+            ref.getParentFile().mkdirs();
+            mTmpRoot.mkdirs();
+            File tmpRef = FileUtil.createTempFile("ref", ".tmp", mTmpRoot);
+            FileUtil.writeToFile(digest, tmpRef);
+            Files.move(
+                    tmpRef.toPath(),
+                    ref.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new BuildRetrievalError(
+                    String.format("Failed to record cache entry for %s", key),
+                    e,
+                    InfraErrorIdentifier.FAIL_TO_CREATE_FILE);
+        } finally {
+            unlockIndex();
+        }
+        mPathIndex.put(key, digest);
+    }
+
+    private void removeRef(String key) {
+        lockIndex();
+        try {
+            mPathIndex.remove(key);
+            FileUtil.deleteFile(new File(mRefRoot, key));
+        } finally {
+            unlockIndex();
+        }
+    }
+
+    /** Request an eviction pass on the background thread, unless one is already pending. */
+    private void scheduleEviction() {
+        if (mEvictionScheduled.compareAndSet(false, true)) {
+            mEvictionExecutor.execute(
+                    () -> {
+                        mEvictionScheduled.set(false);
+                        evict();
+                    });
+        }
+    }
+
+    /** Delete least recently used content until the cache fits in its maximum size. */
+    private void evict() {
+        lockIndex();
+        try {
+            evictLocked();
+        } finally {
+            unlockIndex();
+        }
+    }
+
+    private void evictLocked() {
+        if (mCurrentCacheSize.get() <= getMaxFileCacheSize()) {
+            return;
+        }
+        List<BlobEntry> candidates = new ArrayList<>(mBlobs.values());
+        candidates.sort(Comparator.comparingLong(e -> e.mLastAccess.get()));
+        Set<String> evicted = new HashSet<>();
+        for (BlobEntry entry : candidates) {
+            if (mCurrentCacheSize.get() <= getMaxFileCacheSize()) {
+                break;
+            }
+            // Only delete the content if it is not being used by another thread.
+            if (!entry.markEvicted()) {
+                CLog.i("Content %s is being used by another invocation. Skipping.", entry.mDigest);
+                continue;
+            }
+            dropBlob(entry);
+            evicted.add(entry.mDigest);
+        }
+        if (!evicted.isEmpty()) {
+            Iterator<Map.Entry<String, String>> it = mPathIndex.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, String> ref = it.next();
+                if (evicted.contains(ref.getValue())) {
+                    it.remove();
+                    FileUtil.deleteFile(new File(mRefRoot, ref.getKey()));
+                }
+            }
+        }
+        if (mCurrentCacheSize.get() < 0) {
+            // should never happen
+            CLog.e("Cache size is less than 0!");
+        } else if (mCurrentCacheSize.get() > getMaxFileCacheSize()) {
+            CLog.w("File cache is over-capacity.");
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    File getCachedFile(String remoteFilePath) {
+        String digest = mPathIndex.get(normalize(remoteFilePath));
+        if (digest == null) {
+            return null;
+        }
+        BlobEntry entry = mBlobs.get(digest);
+        return entry == null ? null : entry.mFile;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    void empty() {
+        long currentMax = getMaxFileCacheSize();
+        setMaxCacheSize(0L);
+        evict();
+        setMaxCacheSize(currentMax);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    String getOldestEntry() {
+        String oldest = null;
+        long oldestAccess = Long.MAX_VALUE;
+        for (Map.Entry<String, String> ref : mPathIndex.entrySet()) {
+            BlobEntry entry = mBlobs.get(ref.getValue());
+            if (entry != null && entry.mLastAccess.get() < oldestAccess) {
+                oldestAccess = entry.mLastAccess.get();
+                oldest = ref.getKey();
+            }
+        }
+        return oldest;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The content is only deleted if no other remote path references it.
+     */
+    @Override
+    public void deleteCacheEntry(String remoteFilePath) {
+        String key = normalize(remoteFilePath);
+        PathLock pathLock = lockPath(key);
+        lockIndex();
+        try {
+            String digest = mPathIndex.get(key);
+            if (digest == null) {
+                CLog.i("No cache entry to delete for %s", remoteFilePath);
+                return;
+            }
+            removeRef(key);
+            if (mPathIndex.containsValue(digest)) {
+                return;
+            }
+            BlobEntry entry = mBlobs.get(digest);
+            if (entry != null && entry.markEvicted()) {
+                dropBlob(entry);
+            }
+        } finally {
+            unlockIndex();
+            unlockPath(key, pathLock);
+        }
+    }
+
+    /** Returns the number of distinct pieces of content stored in the cache. */
+    @VisibleForTesting
+    int getBlobCount() {
+        return mBlobs.size();
+    }
+
+    /** Returns the current size of the cache in bytes. */
+    @VisibleForTesting
+    long getCurrentCacheSize() {
+        return mCurrentCacheSize.get();
+    }
+
+    /** Wait for any pending background eviction to complete. */
+    @VisibleForTesting
+    void waitForEviction() throws Exception {
+        // The executor is single threaded, so this runs after any pending eviction.
+        mEvictionExecutor.submit(() -> {}).get();
+    }
+
+    private File getBlobFile(String digest) {
+        return new File(new File(mBlobRoot, digest.substring(0, 2)), digest);
+    }
+
+    /** Normalize the remote path so it can be used as a relative local path. */
+    private static String normalize(String remotePath) {
+        String path = new File(remotePath).getPath();
+        while (path.startsWith(File.separator)) {
+            path = path.substring(1);
+        }
+        return path;
+    }
+
+    private static long sizeOf(File file) {
+        if (file.isDirectory()) {
+            Long size = FileUtil.sizeOfDirectory(file);
+            return size == null ? 0L : size;
+        }
+        return file.length();
+    }
+
+    /**
+     * Compute the digest of a file, or of a directory tree by hashing each relative path and file
+     * content in sorted order.
+     */
+    @VisibleForTesting
+    static String computeDigest(File file) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        updateDigest(md, file, "");
+        StringBuilder hex = new StringBuilder();
+        for (byte b : md.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private static void updateDigest(MessageDigest md, File file, String relPath)
+            throws IOException {
+        if (file.isDirectory()) {
+            String[] names = file.list();
+            if (names == null) {
+                throw new IOException(String.format("Unable to list files in %s", file));
+            }
+            Arrays.sort(names);
+            for (String name : names) {
+                String childPath = relPath + "/" + name;
+                md.update(childPath.getBytes(StandardCharsets.UTF_8));
+                md.update((byte) 0);
+                updateDigest(md, new File(file, name), childPath);
+            }
+            return;
+        }
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                md.update(buffer, 0, read);
+            }
+        }
+    }
+}
@@ -110,6 +110,17 @@ public class FileDownloadCache {
      * Essentially, the LRU cache is a mirror of a given remote file path hierarchy.
      */
     FileDownloadCache(File cacheRoot) {
+        this(cacheRoot, true);
+    }
+
+    /**
+     * Create a {@link FileDownloadCache} rooted at <var>cacheRoot</var>.
+     *
+     * @param cacheRoot the local filesystem directory to use as a cache
+     * @param buildFromContents whether to index the existing contents of <var>cacheRoot</var>.
+     *     Subclasses that maintain their own on-disk layout should pass false.
+     */
+    FileDownloadCache(File cacheRoot, boolean buildFromContents) {
         mCacheRoot = cacheRoot;
         if (!mCacheRoot.exists()) {
             Log.d(LOG_TAG, String.format("Creating file cache at %s",
@@ -118,7 +129,7 @@ public class FileDownloadCache {
                 throw new FatalHostError(String.format("Could not create cache directory at %s",
                         mCacheRoot.getAbsolutePath()));
             }
-        } else {
+        } else if (buildFromContents) {
             mCacheMapLock.lock();
             try {
                 Log.d(
@@ -405,6 +416,23 @@ public class FileDownloadCache {
 
     @VisibleForTesting
     File copyFile(String remotePath, File cachedFile, File destFile) throws BuildRetrievalError {
+        try {
+            return linkCachedFile(remotePath, cachedFile, destFile);
+        } catch (IOException e) {
+            // cached file might be corrupt or incomplete, delete it
+            FileUtil.deleteFile(cachedFile);
+            throw new BuildRetrievalError(
+                    String.format("Failed to copy cached file %s", cachedFile),
+                    e,
+                    InfraErrorIdentifier.FAIL_TO_CREATE_FILE);
+        }
+    }
+
+    /**
+     * Create a hardlink of the cached file with a meaningful name. The cached file is left
+     * untouched on failure.
+     */
+    File linkCachedFile(String remotePath, File cachedFile, File destFile) throws IOException {
         // attempt to create a local copy of cached file with meaningful name
         File hardlinkFile = destFile;
         try {
@@ -425,12 +453,7 @@ public class FileDownloadCache {
             return hardlinkFile;
         } catch (IOException e) {
             FileUtil.deleteFile(hardlinkFile);
-            // cached file might be corrupt or incomplete, delete it
-            FileUtil.deleteFile(cachedFile);
-            throw new BuildRetrievalError(
-                    String.format("Failed to copy cached file %s", cachedFile),
-                    e,
-                    InfraErrorIdentifier.FAIL_TO_CREATE_FILE);
+            throw e;
         }
     }
 
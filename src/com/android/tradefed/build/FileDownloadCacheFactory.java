@@ -15,6 +15,9 @@
  */
 package com.android.tradefed.build;
 
+import com.android.tradefed.config.GlobalConfiguration;
+import com.android.tradefed.host.IHostOptions;
+
 import java.io.File;
 import java.util.Collections;
 import java.util.HashMap;
@@ -52,11 +55,39 @@ public class FileDownloadCacheFactory {
      * @return the {@link FileDownloadCache} for given cacheDir
      */
     public synchronized FileDownloadCache getCache(File cacheDir) {
+        return getCache(cacheDir, shouldUseContentAddressedCache());
+    }
+
+    /**
+     * Retrieve the {@link FileDownloadCache} with the given cache directory, creating if necessary.
+     *
+     * <p>The storage mode of a cache directory is decided when its cache is first created.
+     *
+     * @param cacheDir the local filesystem directory to use as a cache
+     * @param contentAddressed whether to store artifacts by content digest, see {@link
+     *     ContentAddressedFileDownloadCache}.
+     * @return the {@link FileDownloadCache} for given cacheDir
+     */
+    public synchronized FileDownloadCache getCache(File cacheDir, boolean contentAddressed) {
         FileDownloadCache cache = mCacheObjectMap.get(cacheDir.getAbsolutePath());
         if (cache == null) {
-            cache = new FileDownloadCache(cacheDir);
+            if (contentAddressed) {
+                cache = new ContentAddressedFileDownloadCache(cacheDir);
+            } else {
+                cache = new FileDownloadCache(cacheDir);
+            }
             mCacheObjectMap.put(cacheDir.getAbsolutePath(), cache);
         }
         return cache;
     }
+
+    private boolean shouldUseContentAddressedCache() {
+        try {
+            IHostOptions hostOptions = GlobalConfiguration.getInstance().getHostOptions();
+            return hostOptions != null && hostOptions.shouldUseContentAddressedDownloadCache();
+        } catch (IllegalStateException e) {
+            // GlobalConfiguration is not initialized, use the default cache.
+            return false;
+        }
+    }
 }
@@ -55,6 +55,12 @@ public class FileDownloadCacheWrapper implements IFileDownloader {
         return mDelegateDownloader.isFresh(localFile, remoteFilePath);
     }
 
+    /** {@inheritDoc} */
+    @Override
+    public void setParallelDownloadStreams(int streams) {
+        mDelegateDownloader.setParallelDownloadStreams(streams);
+    }
+
     /** {@inheritDoc} */
     @Override
     public void downloadZippedFiles(
@@ -101,6 +101,16 @@ public interface IFileDownloader {
         throw new UnsupportedOperationException();
     }
 
+    /**
+     * Sets how many streams download a single file in parallel, each fetching a range of its
+     * bytes. Downloaders which cannot fetch ranges ignore it.
+     *
+     * @param streams the number of parallel streams, 1 to download files with a single stream.
+     */
+    public default void setParallelDownloadStreams(int streams) {
+        // Do nothing by default
+    }
+
     /**
      * If concurrency limit is supported, take a download permit.
      */
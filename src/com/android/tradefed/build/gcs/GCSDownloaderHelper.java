@@ -28,6 +28,19 @@ import java.io.File;
 public class GCSDownloaderHelper {
 
     private IFileDownloader mFileDownloader = null;
+    private int mParallelStreams = 1;
+
+    /**
+     * Sets how many streams download a single file in parallel.
+     *
+     * @see IFileDownloader#setParallelDownloadStreams(int)
+     */
+    public void setParallelDownloadStreams(int streams) {
+        mParallelStreams = streams;
+        if (mFileDownloader != null) {
+            mFileDownloader.setParallelDownloadStreams(streams);
+        }
+    }
 
     /**
      * Fetch the resource from the GS path.
@@ -45,6 +58,7 @@ public class GCSDownloaderHelper {
             mFileDownloader =
                     new FileDownloadCacheWrapper(
                             getHostOptions().getDownloadCacheDir(), new GCSFileDownloader());
+            mFileDownloader.setParallelDownloadStreams(mParallelStreams);
         }
         return mFileDownloader;
     }
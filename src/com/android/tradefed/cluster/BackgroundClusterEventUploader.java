@@ -0,0 +1,481 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.cluster;
+
+import com.android.tradefed.invoker.logger.InvocationMetricLogger;
+import com.android.tradefed.invoker.logger.InvocationMetricLogger.InvocationMetricKey;
+import com.android.tradefed.log.LogUtil.CLog;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * A {@link IClusterEventUploader} uploading the events of a {@link ClusterEventUploader} from
+ * background threads.
+ *
+ * <p>Posting an event only queues it. A flush thread cuts batches when {@link #getMaxBatchSize()}
+ * events are queued or when the oldest event waited for {@link #getEventUploadInterval()}, and
+ * hands them to a pool uploading up to a fixed number of batches at once. Events with the same
+ * ordering key, like the events of a command, are uploaded in the order they were posted: a batch
+ * never takes the events of a key that already has a batch in flight. A failed batch is put back
+ * at the head of the queue and uploads are paused with an exponential backoff.
+ *
+ * <p>The queue is bounded: when it is full, the oldest events are dropped, including the events of
+ * a failed batch put back in the queue. The latest events of a command carry its current state, so
+ * they are kept over the ones that already failed. The dropped events and the failed uploads are
+ * logged and reported as invocation metrics by the threads posting and flushing events, along with
+ * the uploaded batches, the time spent uploading them and the depth of the queue.
+ *
+ * <p>{@link #flush()} still waits for the queued events to be uploaded, so callers relying on it
+ * keep the same guarantees.
+ */
+public class BackgroundClusterEventUploader<T extends IClusterEvent>
+        implements IClusterEventUploader<T> {
+
+    private static final long INITIAL_BACKOFF_MS = 1000L;
+    private static final long MAX_BACKOFF_MS = 60 * 1000L;
+    private static final long FLUSH_TIMEOUT_MS = 2 * 60 * 1000L;
+
+    /** An event waiting to be uploaded. */
+    private static class PendingEvent<T> {
+        final T mEvent;
+        final long mPostTime;
+
+        PendingEvent(T event, long postTime) {
+            mEvent = event;
+            mPostTime = postTime;
+        }
+    }
+
+    private final ClusterEventUploader<T> mDelegate;
+    private final Function<T, String> mOrderingKey;
+    private final int mMaxQueueSize;
+    private final LinkedBlockingDeque<PendingEvent<T>> mQueue = new LinkedBlockingDeque<>();
+    private final Semaphore mInFlightPermits;
+    private final ExecutorService mUploadPool;
+    private final Thread mFlushThread;
+    private final Object mLock = new Object();
+
+    private final AtomicInteger mInFlightBatches = new AtomicInteger();
+    private final AtomicLong mDroppedEvents = new AtomicLong();
+    private final AtomicLong mFailedUploads = new AtomicLong();
+    // Counts not reported yet as invocation metrics.
+    private final AtomicLong mUnreportedDroppedEvents = new AtomicLong();
+    private final AtomicLong mUnreportedFailedUploads = new AtomicLong();
+    private final AtomicLong mUnreportedUploadedBatches = new AtomicLong();
+    private final AtomicLong mUnreportedUploadLatencyMs = new AtomicLong();
+    private final AtomicLong mUploadedBatches = new AtomicLong();
+    private final AtomicLong mTotalUploadLatencyMs = new AtomicLong();
+    private volatile long mLastUploadLatencyMs = 0L;
+
+    // Guarded by mLock.
+    private int mConsecutiveFailures = 0;
+    private long mFailureCount = 0L;
+    private long mNextAttemptTime = 0L;
+    private boolean mFlushRequested = false;
+    private boolean mClosed = false;
+    private final Set<String> mInFlightKeys = new HashSet<>();
+    private long mCompletedBatches = 0L;
+
+    // Only used by the flush thread.
+    private long mLoggedDroppedEvents = 0L;
+
+    /**
+     * Ctor uploading all the events in order, one batch at a time.
+     *
+     * @param delegate the {@link ClusterEventUploader} used to upload the batches and holding the
+     *     batch size and time window.
+     * @param maxInFlightBatches the maximum number of batches uploaded at once.
+     * @param maxQueueSize the maximum number of events waiting to be uploaded.
+     */
+    public BackgroundClusterEventUploader(
+            ClusterEventUploader<T> delegate, int maxInFlightBatches, int maxQueueSize) {
+        this(delegate, maxInFlightBatches, maxQueueSize, event -> "");
+    }
+
+    /**
+     * Ctor.
+     *
+     * @param delegate the {@link ClusterEventUploader} used to upload the batches and holding the
+     *     batch size and time window.
+     * @param maxInFlightBatches the maximum number of batches uploaded at once.
+     * @param maxQueueSize the maximum number of events waiting to be uploaded.
+     * @param orderingKey returns the key of an event. Events with the same key are uploaded in
+     *     order, the others may be uploaded concurrently.
+     */
+    public BackgroundClusterEventUploader(
+            ClusterEventUploader<T> delegate,
+            int maxInFlightBatches,
+            int maxQueueSize,
+            Function<T, String> orderingKey) {
+        mDelegate = delegate;
+        mOrderingKey = orderingKey;
+        mMaxQueueSize = Math.max(1, maxQueueSize);
+        int inFlight = Math.max(1, maxInFlightBatches);
+        mInFlightPermits = new Semaphore(inFlight);
+        mUploadPool =
+                Executors.newFixedThreadPool(
+                        inFlight,
+                        r -> {
+                            Thread t = new Thread(r, "ClusterEventUploader-upload");
+                            t.setDaemon(true);
+                            return t;
+                        });
+        mFlushThread = new Thread(this::flushLoop, "ClusterEventUploader-flush");
+        mFlushThread.setDaemon(true);
+        mFlushThread.start();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void setMaxBatchSize(int batchSize) {
+        mDelegate.setMaxBatchSize(batchSize);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getMaxBatchSize() {
+        return mDelegate.getMaxBatchSize();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void setEventUploadInterval(long interval) {
+        mDelegate.setEventUploadInterval(interval);
+        wakeUp();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getEventUploadInterval() {
+        return mDelegate.getEventUploadInterval();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void postEvent(final T event) {
+        enqueue(new PendingEvent<>(event, System.currentTimeMillis()), false);
+        int depth = mQueue.size();
+        // The flush thread needs to start the time window of the first event, or cut a batch.
+        if (depth == 1 || depth >= getMaxBatchSize()) {
+            wakeUp();
+        }
+        reportMetrics();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>Waits until the queued events are uploaded, or an upload failed.
+     */
+    @Override
+    public void flush() {
+        try {
+            waitForUploads();
+        } finally {
+            reportMetrics();
+        }
+    }
+
+    private void waitForUploads() {
+        long deadline = System.currentTimeMillis() + FLUSH_TIMEOUT_MS;
+        synchronized (mLock) {
+            long failures = mFailureCount;
+            mFlushRequested = true;
+            // Like the synchronous uploader, an explicit flush retries right away.
+            mNextAttemptTime = 0L;
+            mLock.notifyAll();
+            while (!mClosed
+                    && failures == mFailureCount
+                    && (!mQueue.isEmpty() || mInFlightBatches.get() > 0)) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    CLog.w("Timed out flushing %d cluster events.", mQueue.size());
+                    return;
+                }
+                try {
+                    mLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /** Upload the queued events and stop the background threads. */
+    public void close() {
+        flush();
+        synchronized (mLock) {
+            mClosed = true;
+            mLock.notifyAll();
+        }
+        mUploadPool.shutdown();
+        if (mDroppedEvents.get() > 0 || mFailedUploads.get() > 0) {
+            CLog.w(
+                    "%d cluster events were dropped and %d uploads failed.",
+                    mDroppedEvents.get(), mFailedUploads.get());
+        }
+    }
+
+    /** Returns the number of events waiting to be uploaded. */
+    public int getQueueDepth() {
+        return mQueue.size();
+    }
+
+    /** Returns the number of batches being uploaded. */
+    public int getInFlightBatchCount() {
+        return mInFlightBatches.get();
+    }
+
+    /** Returns the number of events dropped because the queue was full. */
+    public long getDroppedEventCount() {
+        return mDroppedEvents.get();
+    }
+
+    /** Returns the number of batch uploads that failed. */
+    public long getFailedUploadCount() {
+        return mFailedUploads.get();
+    }
+
+    /** Returns the duration of the last successful batch upload in ms. */
+    public long getLastUploadLatencyMs() {
+        return mLastUploadLatencyMs;
+    }
+
+    /** Returns the average duration of the successful batch uploads in ms. */
+    public long getAverageUploadLatencyMs() {
+        long batches = mUploadedBatches.get();
+        return batches == 0 ? 0L : mTotalUploadLatencyMs.get() / batches;
+    }
+
+    /** Returns the delay before the next upload attempt after the given number of failures. */
+    @VisibleForTesting
+    static long getBackoffMs(int consecutiveFailures) {
+        if (consecutiveFailures <= 0) {
+            return 0L;
+        }
+        int shift = Math.min(consecutiveFailures - 1, 16);
+        return Math.min(INITIAL_BACKOFF_MS << shift, MAX_BACKOFF_MS);
+    }
+
+    private void enqueue(PendingEvent<T> event, boolean first) {
+        boolean added = first ? mQueue.offerFirst(event) : mQueue.offerLast(event);
+        while (added && mQueue.size() > mMaxQueueSize) {
+            // Keep the memory bounded: drop the oldest events, even if they were just put back
+            // after a failure, since the latest events carry the current state.
+            if (mQueue.pollFirst() != null) {
+                countDroppedEvents(1);
+            }
+        }
+    }
+
+    private void countDroppedEvents(int count) {
+        mDroppedEvents.addAndGet(count);
+        mUnreportedDroppedEvents.addAndGet(count);
+    }
+
+    /**
+     * Report the dropped events, failed uploads and uploaded batches not reported yet, and the
+     * current queue depth. Called from the threads posting and flushing events, which belong to the
+     * invocations.
+     */
+    private void reportMetrics() {
+        long dropped = mUnreportedDroppedEvents.getAndSet(0L);
+        if (dropped > 0) {
+            InvocationMetricLogger.addInvocationMetrics(
+                    InvocationMetricKey.CLUSTER_EVENT_DROPPED_COUNT, dropped);
+        }
+        long failed = mUnreportedFailedUploads.getAndSet(0L);
+        if (failed > 0) {
+            InvocationMetricLogger.addInvocationMetrics(
+                    InvocationMetricKey.CLUSTER_EVENT_UPLOAD_FAILURE_COUNT, failed);
+        }
+        long uploaded = mUnreportedUploadedBatches.getAndSet(0L);
+        if (uploaded > 0) {
+            InvocationMetricLogger.addInvocationMetrics(
+                    InvocationMetricKey.CLUSTER_EVENT_UPLOAD_COUNT, uploaded);
+            InvocationMetricLogger.addInvocationMetrics(
+                    InvocationMetricKey.CLUSTER_EVENT_UPLOAD_TIME,
+                    mUnreportedUploadLatencyMs.getAndSet(0L));
+        }
+        InvocationMetricLogger.addInvocationMetrics(
+                InvocationMetricKey.CLUSTER_EVENT_QUEUE_DEPTH, mQueue.size());
+    }
+
+    private void wakeUp() {
+        synchronized (mLock) {
+            mLock.notifyAll();
+        }
+    }
+
+    private void flushLoop() {
+        while (true) {
+            synchronized (mLock) {
+                if (mClosed) {
+                    return;
+                }
+                long waitMs = getWaitMs(System.currentTimeMillis());
+                if (waitMs > 0) {
+                    try {
+                        mLock.wait(waitMs);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    continue;
+                }
+            }
+            try {
+                mInFlightPermits.acquire();
+            } catch (InterruptedException e) {
+                return;
+            }
+            // Counted before polling, so flush() never sees the events neither queued nor in
+            // flight.
+            mInFlightBatches.incrementAndGet();
+            List<T> batch = new ArrayList<>();
+            Set<String> keys = new HashSet<>();
+            synchronized (mLock) {
+                cutBatch(batch, keys);
+                if (batch.isEmpty()) {
+                    mInFlightBatches.decrementAndGet();
+                    mInFlightPermits.release();
+                    // The queued events wait for the batches in flight with the same keys.
+                    if (!mInFlightKeys.isEmpty() && !mClosed) {
+                        long completed = mCompletedBatches;
+                        try {
+                            while (completed == mCompletedBatches && !mClosed) {
+                                mLock.wait();
+                            }
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    continue;
+                }
+                mInFlightKeys.addAll(keys);
+                if (mQueue.isEmpty()) {
+                    mFlushRequested = false;
+                }
+            }
+            logDroppedEvents();
+            mUploadPool.execute(() -> upload(batch, keys));
+        }
+    }
+
+    /**
+     * Take the oldest events into a batch, skipping the events whose key already has a batch in
+     * flight. Must be called with mLock held.
+     */
+    private void cutBatch(List<T> batch, Set<String> keys) {
+        int batchSize = getMaxBatchSize();
+        for (PendingEvent<T> event : mQueue) {
+            if (batch.size() >= batchSize) {
+                break;
+            }
+            String key = mOrderingKey.apply(event.mEvent);
+            if (mInFlightKeys.contains(key)) {
+                continue;
+            }
+            // The event may have been dropped since the iteration reached it.
+            if (mQueue.removeFirstOccurrence(event)) {
+                batch.add(event.mEvent);
+                keys.add(key);
+            }
+        }
+    }
+
+    private void logDroppedEvents() {
+        long dropped = mDroppedEvents.get();
+        if (dropped > mLoggedDroppedEvents) {
+            CLog.w(
+                    "Dropped %d cluster events since the queue was full, %d in total.",
+                    dropped - mLoggedDroppedEvents, dropped);
+            mLoggedDroppedEvents = dropped;
+        }
+    }
+
+    /** Returns how long to wait before cutting the next batch, 0 to cut it now. */
+    private long getWaitMs(long now) {
+        PendingEvent<T> oldest = mQueue.peekFirst();
+        if (oldest == null) {
+            return getEventUploadInterval() > 0 ? getEventUploadInterval() : 1000L;
+        }
+        if (now < mNextAttemptTime) {
+            return mNextAttemptTime - now;
+        }
+        if (mFlushRequested || mQueue.size() >= getMaxBatchSize()) {
+            return 0L;
+        }
+        return Math.max(0L, oldest.mPostTime + getEventUploadInterval() - now);
+    }
+
+    private void upload(List<T> batch, Set<String> keys) {
+        long start = System.currentTimeMillis();
+        try {
+            mDelegate.doUploadEvents(batch);
+            long latency = System.currentTimeMillis() - start;
+            mLastUploadLatencyMs = latency;
+            mTotalUploadLatencyMs.addAndGet(latency);
+            mUploadedBatches.incrementAndGet();
+            mUnreportedUploadLatencyMs.addAndGet(latency);
+            mUnreportedUploadedBatches.incrementAndGet();
+            synchronized (mLock) {
+                mConsecutiveFailures = 0;
+            }
+        } catch (IOException e) {
+            mFailedUploads.incrementAndGet();
+            mUnreportedFailedUploads.incrementAndGet();
+            CLog.w("failed to upload events: %s", e);
+            for (int i = batch.size() - 1; i >= 0; i--) {
+                enqueue(new PendingEvent<>(batch.get(i), start), true);
+            }
+            synchronized (mLock) {
+                mConsecutiveFailures++;
+                mFailureCount++;
+                mFlushRequested = false;
+                mNextAttemptTime = System.currentTimeMillis() + getBackoffMs(mConsecutiveFailures);
+                CLog.w(
+                        "events will be uploaded again in %d ms.",
+                        mNextAttemptTime - System.currentTimeMillis());
+            }
+        } catch (RuntimeException e) {
+            CLog.e("Dropping %d events that could not be uploaded.", batch.size());
+            CLog.e(e);
+            countDroppedEvents(batch.size());
+        } finally {
+            synchronized (mLock) {
+                mInFlightKeys.removeAll(keys);
+                mCompletedBatches++;
+                mInFlightBatches.decrementAndGet();
+                mInFlightPermits.release();
+                mLock.notifyAll();
+            }
+        }
+    }
+}
@@ -39,6 +39,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Function;
 
 /** A {@link IClusterClient} implementation for interacting with the TFC backend. */
 public class ClusterClient implements IClusterClient {
@@ -300,7 +301,10 @@ public class ClusterClient implements IClusterClient {
     @Override
     public IClusterEventUploader<ClusterCommandEvent> getCommandEventUploader() {
         if (mCommandEventUploader == null) {
-            mCommandEventUploader = new ClusterCommandEventUploader();
+            mCommandEventUploader =
+                    createEventUploader(
+                            new ClusterCommandEventUploader(),
+                            ClusterCommandEvent::getCommandTaskId);
         }
         return mCommandEventUploader;
     }
@@ -309,11 +313,43 @@ public class ClusterClient implements IClusterClient {
     @Override
     public IClusterEventUploader<ClusterHostEvent> getHostEventUploader() {
         if (mHostEventUploader == null) {
-            mHostEventUploader = new ClusterHostEventUploader();
+            mHostEventUploader = createEventUploader(new ClusterHostEventUploader(), event -> "");
         }
         return mHostEventUploader;
     }
 
+    /** {@inheritDoc} */
+    @Override
+    public void close() {
+        closeEventUploader(mCommandEventUploader);
+        mCommandEventUploader = null;
+        closeEventUploader(mHostEventUploader);
+        mHostEventUploader = null;
+    }
+
+    private static void closeEventUploader(IClusterEventUploader<?> uploader) {
+        if (uploader instanceof BackgroundClusterEventUploader) {
+            ((BackgroundClusterEventUploader<?>) uploader).close();
+        }
+    }
+
+    /**
+     * Wraps the uploader to upload from background threads if enabled. The events with the same
+     * ordering key are uploaded in order.
+     */
+    private <T extends IClusterEvent> IClusterEventUploader<T> createEventUploader(
+            ClusterEventUploader<T> uploader, Function<T, String> orderingKey) {
+        IClusterOptions options = getClusterOptions();
+        if (!options.shouldUploadEventsInBackground()) {
+            return uploader;
+        }
+        return new BackgroundClusterEventUploader<>(
+                uploader,
+                options.getEventUploadMaxInFlight(),
+                options.getEventUploadMaxQueueSize(),
+                orderingKey);
+    }
+
     /**
      * Get the shared {@link IRestApiHelper} instance.
      *
@@ -139,6 +139,14 @@ public class ClusterCommandScheduler extends CommandScheduler {
         super.shutdownHard();
     }
 
+    /** {@inheritDoc} */
+    @Override
+    protected void cleanUp() {
+        // All the invocations are done, upload their last events before stopping the uploaders.
+        getClusterClient().close();
+        super.cleanUp();
+    }
+
     /**
      * A {@link com.android.tradefed.command.ICommandScheduler.IScheduledInvocationListener} to
      * upload events to TFC.
@@ -140,6 +140,27 @@ public class ClusterOptions implements IClusterOptions {
             description = "Percentage allowed disk usage before we stop leasing tasks.")
     private long mMaximalDiskUsagePercentage = 100;
 
+    @Option(
+            name = "background-event-upload",
+            description =
+                    "Upload command and host events from background threads instead of the "
+                            + "thread posting them.")
+    private boolean mBackgroundEventUpload = false;
+
+    @Option(
+            name = "event-upload-max-in-flight",
+            description =
+                    "Maximum number of event batches uploaded at once in the background. The"
+                            + " events of a command are still uploaded one batch at a time.")
+    private int mEventUploadMaxInFlight = 4;
+
+    @Option(
+            name = "event-upload-max-queue-size",
+            description =
+                    "Maximum number of events waiting for a background upload. The oldest "
+                            + "events are dropped beyond it.")
+    private int mEventUploadMaxQueueSize = 10000;
+
     /** {@inheritDoc} */
     @Override
     public String getServiceUrl() {
@@ -344,4 +365,22 @@ public class ClusterOptions implements IClusterOptions {
         }
         return mMaximalDiskUsagePercentage;
     }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean shouldUploadEventsInBackground() {
+        return mBackgroundEventUpload;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getEventUploadMaxInFlight() {
+        return mEventUploadMaxInFlight;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getEventUploadMaxQueueSize() {
+        return mEventUploadMaxQueueSize;
+    }
 }
@@ -112,4 +112,12 @@ public interface IClusterClient {
      *     be determined
      */
     public ClusterCommand.State getCommandState(String requestId, String commandId);
+
+    /**
+     * Upload the pending events and stop the background threads of the client, if any. Called when
+     * the scheduler shuts down.
+     */
+    public default void close() {
+        // Default implementation does nothing.
+    }
 }
@@ -85,4 +85,13 @@ public interface IClusterOptions {
 
     /** Maximal disk usage percentage before we stop leasing additional new tasks. */
     public long maxDiskUsagePercentage();
+
+    /** Returns whether events should be uploaded from background threads. */
+    public boolean shouldUploadEventsInBackground();
+
+    /** Returns the maximum number of event batches uploaded at once in the background. */
+    public int getEventUploadMaxInFlight();
+
+    /** Returns the maximum number of events waiting for a background upload. */
+    public int getEventUploadMaxQueueSize();
 }
@@ -23,6 +23,7 @@ import com.android.tradefed.device.metric.AutoLogCollector;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.util.UniqueMultiMap;
 
+import java.io.File;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
@@ -118,6 +119,24 @@ public class CommandOptions implements ICommandOptions {
             "Whether or not to optimize the list of test modules for mainline.")
     private boolean mOptimizeMainlineTest;
 
+    @Option(
+            name = "shard-runtime-history",
+            description =
+                    "File recorded by the RuntimeHistoryReporter. When set, --shard-index "
+                            + "sharding balances the shards with the measured durations of the "
+                            + "modules. It is only used if its content matches "
+                            + "--shard-runtime-history-digest, so all shards compute the same "
+                            + "distribution.")
+    private File mShardRuntimeHistory = null;
+
+    @Option(
+            name = "shard-runtime-history-digest",
+            description =
+                    "MD5 of the --shard-runtime-history file content given to every shard. A "
+                            + "shard whose history does not match it uses the default "
+                            + "distribution.")
+    private String mShardRuntimeHistoryDigest = null;
+
     @Option(
         name = "enable-token-sharding",
         description = "Whether or not to allow sharding with the token support enabled."
@@ -132,6 +151,14 @@ public class CommandOptions implements ICommandOptions {
     )
     private boolean mDynamicSharding = true;
 
+    @Option(
+            name = "work-stealing-sharding",
+            description =
+                    "With dynamic sharding, give each shard its own queue of tests and let idle "
+                            + "shards steal the remaining tests of busy ones. Only for local "
+                            + "sharding.")
+    private boolean mWorkStealingSharding = false;
+
     public static final String INVOCATION_DATA = "invocation-data";
 
     @Option(
@@ -236,6 +263,14 @@ public class CommandOptions implements ICommandOptions {
                             + "in the queryArgs.")
     private Map<String, String> mDynamicDownloadArgs = new LinkedHashMap<>();
 
+    @Option(
+            name = "dynamic-download-parallelism",
+            description =
+                    "The maximum number of files of a same scheme downloaded at the same time "
+                            + "when resolving dynamic options. With more than one, a file "
+                            + "referenced by several options is only downloaded once.")
+    private int mDynamicDownloadParallelism = 1;
+
     @Option(
             name = "report-counted-test-cases",
             description = "Whether or not to report the number of test cases per test types.")
@@ -420,6 +455,18 @@ public class CommandOptions implements ICommandOptions {
         return mOptimizeMainlineTest;
     }
 
+    /** {@inheritDoc} */
+    @Override
+    public File getShardRuntimeHistory() {
+        return mShardRuntimeHistory;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String getShardRuntimeHistoryDigest() {
+        return mShardRuntimeHistoryDigest;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -488,6 +535,12 @@ public class CommandOptions implements ICommandOptions {
         return mDynamicSharding;
     }
 
+    /** {@inheritDoc} */
+    @Override
+    public boolean shouldUseWorkStealingSharding() {
+        return mWorkStealingSharding;
+    }
+
     /** {@inheritDoc} */
     @Override
     public UniqueMultiMap<String, String> getInvocationData() {
@@ -614,6 +667,12 @@ public class CommandOptions implements ICommandOptions {
         return mDynamicDownloadArgs;
     }
 
+    /** {@inheritDoc} */
+    @Override
+    public int getDynamicDownloadParallelism() {
+        return mDynamicDownloadParallelism;
+    }
+
     /** {@inheritDoc} */
     @Override
     public boolean reportTestCaseCount() {
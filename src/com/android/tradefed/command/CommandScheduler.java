@@ -109,7 +109,6 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -130,8 +129,8 @@ import java.util.regex.Pattern;
  */
 public class CommandScheduler extends Thread implements ICommandScheduler, ICommandFileListener {
 
-    /** the queue of commands ready to be executed. */
-    private List<ExecutableCommand> mReadyCommands;
+    /** the commands ready to be executed, indexed by their device requirements. */
+    private ReadyCommandIndex<ExecutableCommand> mReadyCommands;
     private Set<ExecutableCommand> mUnscheduledWarning;
 
     /** the queue of commands sleeping. */
@@ -517,6 +516,7 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
                     ((IManagedTestDevice)device).setFastbootPath(mDeviceManager.getFastbootPath());
                 }
             }
+            mReadyCommands.notifyDevicesChanged();
             mDeviceReleased = true;
         }
 
@@ -924,6 +924,7 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
                 DeviceAllocationState newState) {
             if (newState.equals(DeviceAllocationState.Available)) {
                 // new avail device was added, wake up scheduler
+                mReadyCommands.notifyDevicesChanged();
                 mCommandProcessWait.signalEventReceived();
             }
         }
@@ -936,7 +937,7 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
      */
     public CommandScheduler() {
         super("CommandScheduler");  // set the thread name
-        mReadyCommands = new LinkedList<>();
+        mReadyCommands = new ReadyCommandIndex<>();
         mUnscheduledWarning = new HashSet<>();
         mSleepingCommands = new HashSet<>();
         mExecutingCommands = new HashSet<>();
@@ -1075,7 +1076,11 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
 
             while (!isShutdown()) {
                 // wait until processing is required again
-                mCommandProcessWait.waitAndReset(mPollTime);
+                if (!mCommandProcessWait.waitAndReset(mPollTime)) {
+                    // Forced poll: re-evaluate all commands in case device state changed in a way
+                    // that was not notified (battery level, properties, etc.).
+                    mReadyCommands.notifyDevicesChanged();
+                }
                 checkInvocations();
                 try {
                     processReadyCommands(manager);
@@ -1135,39 +1140,43 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
         // minimize length of synchronized block by just matching commands with device first,
         // then scheduling invocations/adding looping commands back to queue
         synchronized (this) {
-            // sort ready commands by priority, so high priority commands are matched first
-            Collections.sort(mReadyCommands, new ExecutableCommandComparator());
-            Iterator<ExecutableCommand> cmdIter = mReadyCommands.iterator();
-            while (cmdIter.hasNext()) {
-                ExecutableCommand cmd = cmdIter.next();
-                IConfiguration config = cmd.getConfiguration();
-                IInvocationContext context = new InvocationContext();
-                context.setConfigurationDescriptor(config.getConfigurationDescription());
-                DeviceAllocationResult allocationResults = allocateDevices(config, manager);
-                if (allocationResults.wasAllocationSuccessful()) {
-                    Map<String, ITestDevice> devices = allocationResults.getAllocatedDevices();
-                    cmdIter.remove();
-                    mExecutingCommands.add(cmd);
-                    context.addAllocatedDevice(devices);
-
-                    // track command matched with device
-                    scheduledCommandMap.put(cmd, context);
-                    // clean warned list to avoid piling over time.
-                    mUnscheduledWarning.remove(cmd);
-                } else {
-                    if (!mUnscheduledWarning.contains(cmd)) {
-                        CLog.logAndDisplay(LogLevel.DEBUG, "No available device matching all the "
-                                + "config's requirements for cmd id %d.",
-                                cmd.getCommandTracker().getId());
-                        // make sure not to record since it may contains password
-                        System.out.println(
-                                String.format(
-                                        "Command will be rescheduled: %s",
-                                        Arrays.toString(cmd.getCommandTracker().getArgs())));
-                        mUnscheduledWarning.add(cmd);
-                    }
-                }
-            }
+            // match commands by priority, only attempting the device requirements that may have
+            // become satisfiable since the last pass.
+            mReadyCommands.dispatch(
+                    new ExecutableCommandComparator(),
+                    cmd -> {
+                        IConfiguration config = cmd.getConfiguration();
+                        IInvocationContext context = new InvocationContext();
+                        context.setConfigurationDescriptor(config.getConfigurationDescription());
+                        DeviceAllocationResult allocationResults = allocateDevices(config, manager);
+                        if (!allocationResults.wasAllocationSuccessful()) {
+                            return false;
+                        }
+                        Map<String, ITestDevice> devices = allocationResults.getAllocatedDevices();
+                        mExecutingCommands.add(cmd);
+                        context.addAllocatedDevice(devices);
+
+                        // track command matched with device
+                        scheduledCommandMap.put(cmd, context);
+                        // clean warned list to avoid piling over time.
+                        mUnscheduledWarning.remove(cmd);
+                        return true;
+                    },
+                    cmd -> {
+                        if (!mUnscheduledWarning.contains(cmd)) {
+                            CLog.logAndDisplay(
+                                    LogLevel.DEBUG,
+                                    "No available device matching all the "
+                                            + "config's requirements for cmd id %d.",
+                                    cmd.getCommandTracker().getId());
+                            // make sure not to record since it may contains password
+                            System.out.println(
+                                    String.format(
+                                            "Command will be rescheduled: %s",
+                                            Arrays.toString(cmd.getCommandTracker().getArgs())));
+                            mUnscheduledWarning.add(cmd);
+                        }
+                    });
         }
 
         // now actually execute the commands
@@ -1581,7 +1590,7 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
                 public void run() {
                     synchronized (CommandScheduler.this) {
                         if (mSleepingCommands.remove(cmd)) {
-                            mReadyCommands.add(cmd);
+                            addReadyCommand(cmd);
                             mCommandProcessWait.signalEventReceived();
                         }
                     }
@@ -1589,12 +1598,17 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
             };
             mCommandTimer.schedule(delayCommand, delayTime, TimeUnit.MILLISECONDS);
         } else {
-            mReadyCommands.add(cmd);
+            addReadyCommand(cmd);
             mCommandProcessWait.signalEventReceived();
         }
         return true;
     }
 
+    /** Index a command as ready to be allocated. */
+    private void addReadyCommand(ExecutableCommand cmd) {
+        mReadyCommands.add(cmd, ReadyCommandIndex.getRequirementsKey(cmd.getConfiguration()));
+    }
+
     /**
      * Helper method to return an array of {@link String} elements as a readable {@link String}
      *
@@ -1891,16 +1905,12 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
      * @param cmdFile
      */
     private synchronized void removeCommandsFromFile(File cmdFile) {
-        Iterator<ExecutableCommand> cmdIter = mReadyCommands.iterator();
-        while (cmdIter.hasNext()) {
-            ExecutableCommand cmd = cmdIter.next();
-            String path = cmd.getCommandFilePath();
-            if (path != null &&
-                    path.equals(cmdFile.getAbsolutePath())) {
-                cmdIter.remove();
-            }
-        }
-        cmdIter = mSleepingCommands.iterator();
+        mReadyCommands.removeIf(
+                cmd -> {
+                    String path = cmd.getCommandFilePath();
+                    return path != null && path.equals(cmdFile.getAbsolutePath());
+                });
+        Iterator<ExecutableCommand> cmdIter = mSleepingCommands.iterator();
         while (cmdIter.hasNext()) {
             ExecutableCommand cmd = cmdIter.next();
             String path = cmd.getCommandFilePath();
@@ -2345,10 +2355,12 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
         /**
          * Wait for given ms for event to be received, and reset state back to 'no event received'
          * upon completion.
+         * @return true if event received before time elapsed, false otherwise
          */
-        public synchronized void waitAndReset(long maxWaitTime) {
-            waitForEvent(maxWaitTime);
+        public synchronized boolean waitAndReset(long maxWaitTime) {
+            boolean received = waitForEvent(maxWaitTime);
             reset();
+            return received;
         }
 
         /**
@@ -2456,7 +2468,7 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
         for (ExecutableCommand cmd : mExecutingCommands) {
             cmds.add(new ExecutableCommandState(cmd, CommandState.EXECUTING));
         }
-        for (ExecutableCommand cmd : mReadyCommands) {
+        for (ExecutableCommand cmd : mReadyCommands.getCommands()) {
             cmds.add(new ExecutableCommandState(cmd, CommandState.WAITING_FOR_DEVICE));
         }
         for (ExecutableCommand cmd : mSleepingCommands) {
@@ -1360,6 +1360,8 @@ public class Console extends Thread {
         GlobalConfiguration.getInstance().getCommandScheduler().setClearcutClient(client);
         // Initialize the locks for the TF session
         GlobalConfiguration.getInstance().getHostOptions().initConcurrentLocks();
+        RunUtil.setUseSharedProcessPump(
+                GlobalConfiguration.getInstance().getHostOptions().shouldUseSharedProcessPump());
 
         console.start();
 
@@ -19,6 +19,7 @@ package com.android.tradefed.command;
 import com.android.tradefed.device.metric.AutoLogCollector;
 import com.android.tradefed.util.UniqueMultiMap;
 
+import java.io.File;
 import java.time.Duration;
 import java.util.List;
 import java.util.Map;
@@ -126,6 +127,12 @@ public interface ICommandOptions {
     /** Returns true if we should optimize the list of test modules for mainline test. */
     public boolean getOptimizeMainlineTest();
 
+    /** Returns the runtime history file used to balance the shards, or null if none. */
+    public File getShardRuntimeHistory();
+
+    /** Returns the expected digest of the runtime history content, or null if none. */
+    public String getShardRuntimeHistoryDigest();
+
     /**
      * Return the total shard count for the command.
      */
@@ -152,6 +159,9 @@ public interface ICommandOptions {
     /** Returns if we should use dynamic sharding or not */
     public boolean shouldUseDynamicSharding();
 
+    /** Returns if dynamic sharding should use a work-stealing pool of tests. */
+    public boolean shouldUseWorkStealingSharding();
+
     /** Returns the data passed to the invocation to describe it */
     public UniqueMultiMap<String, String> getInvocationData();
 
@@ -215,6 +225,9 @@ public interface ICommandOptions {
     /** Returns the map of args to pass to the dynamic download query. */
     public Map<String, String> getDynamicDownloadArgs();
 
+    /** Returns how many files of a same scheme can be downloaded at the same time. */
+    public int getDynamicDownloadParallelism();
+
     /** Whether or not to report the number of test cases per test types. */
     public boolean reportTestCaseCount();
 
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.command;
+
+import com.android.tradefed.config.IConfiguration;
+import com.android.tradefed.config.IDeviceConfiguration;
+import com.android.tradefed.config.OptionSetter;
+import com.android.tradefed.device.DeviceSelectionOptions;
+import com.android.tradefed.device.IDeviceSelection;
+
+import java.lang.reflect.Field;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Index of the commands ready to be scheduled, grouped by their device requirements.
+ *
+ * <p>All commands in a group request the exact same devices, so once one of them fails to be
+ * allocated, none of the others can succeed until the device pool changes. The group is then
+ * blocked and skipped by {@link #dispatch} until {@link #notifyDevicesChanged()} is called. This
+ * keeps the cost of a dispatch pass proportional to the number of groups that can actually make
+ * progress, instead of attempting an allocation for every queued command on each wake-up.
+ *
+ * <p>This class is not thread-safe, callers are expected to hold a lock while using it, with the
+ * exception of {@link #notifyDevicesChanged()} which can be called from any thread.
+ */
+class ReadyCommandIndex<T> {
+
+    /** A group of commands sharing the same device requirements. */
+    private static class Bucket<T> {
+        final Set<T> mCommands = new LinkedHashSet<>();
+        /** The device generation at which the bucket failed allocation, or -1 if not blocked. */
+        long mBlockedGeneration = -1;
+
+        boolean isBlocked(long currentGeneration) {
+            return mBlockedGeneration == currentGeneration;
+        }
+
+        /** Returns the command with the highest priority in the bucket. */
+        T getBest(Comparator<T> priority) {
+            T best = null;
+            for (T cmd : mCommands) {
+                if (best == null || priority.compare(cmd, best) < 0) {
+                    best = cmd;
+                }
+            }
+            return best;
+        }
+    }
+
+    private final Map<String, Bucket<T>> mBuckets = new LinkedHashMap<>();
+    private final Map<T, String> mKeys = new HashMap<>();
+    private final AtomicLong mDeviceGeneration = new AtomicLong();
+    private long mUngroupedCount = 0;
+
+    /**
+     * Add a command to the index.
+     *
+     * @param cmd the command to add
+     * @param requirementsKey the key describing the device requirements of the command, see
+     *     {@link #getRequirementsKey(IConfiguration)}. If <code>null</code> the command is not
+     *     grouped with any other.
+     */
+    void add(T cmd, String requirementsKey) {
+        remove(cmd);
+        if (requirementsKey == null) {
+            requirementsKey = String.format("#%d", mUngroupedCount++);
+        }
+        mBuckets.computeIfAbsent(requirementsKey, k -> new Bucket<>()).mCommands.add(cmd);
+        mKeys.put(cmd, requirementsKey);
+    }
+
+    /**
+     * Remove a command from the index.
+     *
+     * @return <code>true</code> if the command was part of the index.
+     */
+    boolean remove(T cmd) {
+        String key = mKeys.remove(cmd);
+        if (key == null) {
+            return false;
+        }
+        Bucket<T> bucket = mBuckets.get(key);
+        bucket.mCommands.remove(cmd);
+        if (bucket.mCommands.isEmpty()) {
+            mBuckets.remove(key);
+        }
+        return true;
+    }
+
+    /** Remove all the commands matching the given filter. */
+    void removeIf(Predicate<T> filter) {
+        for (T cmd : getCommands()) {
+            if (filter.test(cmd)) {
+                remove(cmd);
+            }
+        }
+    }
+
+    /** Remove all commands from the index. */
+    void clear() {
+        mBuckets.clear();
+        mKeys.clear();
+    }
+
+    /** Returns the number of commands in the index. */
+    int size() {
+        return mKeys.size();
+    }
+
+    /** Returns the number of distinct device requirements currently indexed. */
+    int getBucketCount() {
+        return mBuckets.size();
+    }
+
+    /** Returns a snapshot of all the commands in the index. */
+    List<T> getCommands() {
+        List<T> commands = new ArrayList<>(mKeys.size());
+        for (Bucket<T> bucket : mBuckets.values()) {
+            commands.addAll(bucket.mCommands);
+        }
+        return commands;
+    }
+
+    /**
+     * Notify the index that the device pool changed (a device became available, was released,
+     * or its state may have changed), so blocked groups should be attempted again.
+     */
+    void notifyDevicesChanged() {
+        mDeviceGeneration.incrementAndGet();
+    }
+
+    /**
+     * Attempt to dispatch the indexed commands, in priority order across all the groups that are
+     * not blocked.
+     *
+     * @param priority the {@link Comparator} ordering commands, lowest first.
+     * @param allocator attempts to allocate devices for a command. Returns <code>true</code> if the
+     *     command was scheduled, in which case it is removed from the index.
+     * @param unmatched called for each command of a group that could not be allocated.
+     */
+    void dispatch(Comparator<T> priority, Predicate<T> allocator, Consumer<T> unmatched) {
+        long generation = mDeviceGeneration.get();
+        Comparator<Map.Entry<T, Bucket<T>>> headComparator =
+                (e1, e2) -> priority.compare(e1.getKey(), e2.getKey());
+        PriorityQueue<Map.Entry<T, Bucket<T>>> heads = new PriorityQueue<>(headComparator);
+        for (Bucket<T> bucket : mBuckets.values()) {
+            if (!bucket.isBlocked(generation)) {
+                heads.add(getHead(bucket, priority));
+            }
+        }
+        while (!heads.isEmpty()) {
+            Map.Entry<T, Bucket<T>> head = heads.poll();
+            T cmd = head.getKey();
+            Bucket<T> bucket = head.getValue();
+            if (allocator.test(cmd)) {
+                remove(cmd);
+                if (!bucket.mCommands.isEmpty()) {
+                    heads.add(getHead(bucket, priority));
+                }
+            } else {
+                bucket.mBlockedGeneration = generation;
+                for (T blocked : bucket.mCommands) {
+                    unmatched.accept(blocked);
+                }
+            }
+        }
+    }
+
+    private static <T> Map.Entry<T, Bucket<T>> getHead(Bucket<T> bucket, Comparator<T> priority) {
+        return new AbstractMap.SimpleImmutableEntry<>(bucket.getBest(priority), bucket);
+    }
+
+    /**
+     * Returns a key describing the device requirements of a configuration. Configurations with
+     * the same key request the exact same devices.
+     *
+     * @return the key or <code>null</code> if the requirements cannot be described.
+     */
+    static String getRequirementsKey(IConfiguration config) {
+        StringBuilder key = new StringBuilder();
+        if (config.getCommandOptions().shouldUseReplicateSetup()) {
+            key.append("replicate:").append(config.getCommandOptions().getShardCount());
+            key.append(':').append(config.getCommandOptions().getShardIndex()).append(';');
+        }
+        for (IDeviceConfiguration deviceConfig : config.getDeviceConfig()) {
+            key.append('[');
+            key.append(deviceConfig.isFake() ? "fake" : "real");
+            if (!appendRequirements(key, deviceConfig.getDeviceRequirements())) {
+                // Unknown selection logic, never group it with anything else.
+                return null;
+            }
+            key.append(']');
+        }
+        return key.toString();
+    }
+
+    private static boolean appendRequirements(StringBuilder key, IDeviceSelection requirements) {
+        if (requirements == null || !DeviceSelectionOptions.class.equals(requirements.getClass())) {
+            return false;
+        }
+        for (Field field : OptionSetter.getOptionFieldsForClass(requirements.getClass())) {
+            key.append('|').append(field.getName()).append('=');
+            key.append(OptionSetter.getFieldValue(field, requirements));
+        }
+        return true;
+    }
+}
@@ -21,6 +21,7 @@ import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.result.error.InfraErrorIdentifier;
 
 import java.io.File;
+import java.io.Serializable;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -34,8 +35,13 @@ import java.util.stream.Collectors;
 
 /**
  * Holds a record of a configuration, its associated objects and their options.
+ *
+ * <p>It is {@link Serializable} so parsed definitions can be persisted by {@link
+ * ConfigurationDefCache}.
  */
-public class ConfigurationDef {
+public class ConfigurationDef implements Serializable {
+
+    private static final long serialVersionUID = 1L;
 
     /**
      * a map of object type names to config object class name(s). Use LinkedHashMap to keep objects
@@ -56,7 +62,9 @@ public class ConfigurationDef {
      * Object to hold info for a className and the appearance number it has (e.g. if a config has
      * the same object twice, the first one will have the first appearance number).
      */
-    public static class ConfigObjectDef {
+    public static class ConfigObjectDef implements Serializable {
+        private static final long serialVersionUID = 1L;
+
         final String mClassName;
         final Integer mAppearanceNum;
 
@@ -197,7 +205,7 @@ public class ConfigurationDef {
      * @return the created {@link IConfiguration}
      * @throws ConfigurationException if configuration could not be created
      */
-    public IConfiguration createConfiguration(Set<String> allowedObjects)
+    public synchronized IConfiguration createConfiguration(Set<String> allowedObjects)
             throws ConfigurationException {
         mFilteredObjects = false;
         IConfiguration config = new Configuration(getName(), getDescription());
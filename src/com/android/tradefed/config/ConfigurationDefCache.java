@@ -0,0 +1,381 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.config;
+
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.ClassPathScanner;
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A persistent cache of parsed {@link ConfigurationDef}, so that new processes of the host do not
+ * parse the same configurations again.
+ *
+ * <p>Entries are keyed by the configuration name and its template arguments. Each entry records
+ * the configuration files read to build the definition, the root configuration and its includes,
+ * with their modification time, size and content digest. An entry is only used if none of its
+ * sources changed: local files with the same modification time and size are trusted, other sources
+ * are compared by digest. The cache also stores the index of the configurations bundled in the
+ * jars of the classpath, valid as long as the jars are unchanged.
+ *
+ * <p>Entries are also invalidated when the jar holding the configuration classes changes, since a
+ * new version might parse the same files differently.
+ *
+ * <p>The cache directory can be shared by the processes of the host, so only the classes making up
+ * an entry are accepted when reading one back.
+ */
+class ConfigurationDefCache {
+
+    private static final String DEF_EXTENSION = ".def";
+    private static final String INDEX_EXTENSION = ".idx";
+
+    /** The only classes that can be read from an entry file. */
+    private static final ObjectInputFilter ENTRY_FILTER =
+            ObjectInputFilter.Config.createFilter(
+                    String.join(
+                            ";",
+                            "maxdepth=20",
+                            Entry.class.getName(),
+                            SourceStamp.class.getName(),
+                            ConfigurationDef.class.getName(),
+                            ConfigurationDef.ConfigObjectDef.class.getName(),
+                            OptionDef.class.getName(),
+                            String.class.getName(),
+                            Number.class.getName(),
+                            Integer.class.getName(),
+                            Long.class.getName(),
+                            Boolean.class.getName(),
+                            File.class.getName(),
+                            ArrayList.class.getName(),
+                            HashMap.class.getName(),
+                            LinkedHashMap.class.getName(),
+                            HashSet.class.getName(),
+                            LinkedHashSet.class.getName(),
+                            "!*"));
+
+    /** The modification time, size and digest of a source of an entry. */
+    private static class SourceStamp implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final String mName;
+        final long mLastModified;
+        final long mLength;
+        final String mDigest;
+
+        SourceStamp(String name, long lastModified, long length, String digest) {
+            mName = name;
+            mLastModified = lastModified;
+            mLength = length;
+            mDigest = digest;
+        }
+    }
+
+    /** An entry of the cache, as stored on disk. */
+    private static class Entry implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        String mKey;
+        String mParserStamp;
+        List<SourceStamp> mSources = new ArrayList<>();
+        ConfigurationDef mDef;
+        Set<String> mIndex;
+    }
+
+    private final File mCacheDir;
+    private final ConfigurationFactory mFactory;
+    private final String mParserStamp;
+    // Stamps of the sources checked by lookups that missed, reused when storing the new entry.
+    private final Map<String, SourceStamp> mCheckedStamps = new ConcurrentHashMap<>();
+
+    /**
+     * Ctor.
+     *
+     * @param cacheDir the directory where the entries are stored.
+     * @param factory the {@link ConfigurationFactory} used to read the configurations.
+     */
+    ConfigurationDefCache(File cacheDir, ConfigurationFactory factory) {
+        mCacheDir = cacheDir;
+        mFactory = factory;
+        mParserStamp = createParserStamp();
+        FileUtil.mkdirsRWX(mCacheDir);
+    }
+
+    /**
+     * Returns the cached {@link ConfigurationDef}, or null if there is none or one of its sources
+     * changed.
+     *
+     * @param name the resolved name of the configuration.
+     * @param templateMap the template arguments the configuration is loaded with. Can be null.
+     */
+    ConfigurationDef get(String name, Map<String, String> templateMap) {
+        String key = createKey(name, templateMap);
+        File entryFile = getEntryFile(key, DEF_EXTENSION);
+        Entry entry = readEntry(entryFile, key);
+        if (entry == null || entry.mDef == null) {
+            return null;
+        }
+        List<SourceStamp> checkedStamps = new ArrayList<>();
+        boolean changed = false;
+        for (SourceStamp source : entry.mSources) {
+            SourceStamp current = checkStamp(source);
+            if (current == null) {
+                changed = true;
+                break;
+            }
+            checkedStamps.add(current);
+            if (current != source) {
+                CLog.d(
+                        "Source %s of %s changed, ignoring the cached definition.",
+                        source.mName, name);
+                changed = true;
+            }
+        }
+        if (!changed) {
+            return entry.mDef;
+        }
+        FileUtil.deleteFile(entryFile);
+        for (SourceStamp stamp : checkedStamps) {
+            mCheckedStamps.put(stamp.mName, stamp);
+        }
+        return null;
+    }
+
+    /**
+     * Store a parsed {@link ConfigurationDef}.
+     *
+     * @param name the resolved name of the configuration.
+     * @param templateMap the template arguments the configuration was loaded with. Can be null.
+     * @param sources the names of all the configurations read to build the definition.
+     * @param def the parsed {@link ConfigurationDef}.
+     */
+    void put(
+            String name,
+            Map<String, String> templateMap,
+            Collection<String> sources,
+            ConfigurationDef def) {
+        Entry entry = new Entry();
+        entry.mKey = createKey(name, templateMap);
+        entry.mParserStamp = mParserStamp;
+        entry.mDef = def;
+        try {
+            for (String source : new LinkedHashSet<>(sources)) {
+                SourceStamp stamp = mCheckedStamps.remove(source);
+                entry.mSources.add(stamp != null ? stamp : createStamp(source));
+            }
+            writeEntry(getEntryFile(entry.mKey, DEF_EXTENSION), entry);
+        } catch (IOException | ConfigurationException e) {
+            CLog.w("Failed to cache the definition of %s: %s", name, e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the cached names of the configurations bundled in the classpath under the prefix,
+     * or null if there is none or the classpath changed.
+     */
+    Set<String> getClasspathIndex(String prefix) {
+        String key = createIndexKey(prefix);
+        if (key == null) {
+            return null;
+        }
+        File entryFile = getEntryFile(key, INDEX_EXTENSION);
+        Entry entry = readEntry(entryFile, key);
+        if (entry == null || entry.mIndex == null) {
+            return null;
+        }
+        for (SourceStamp jar : entry.mSources) {
+            File jarFile = new File(jar.mName);
+            if (jarFile.lastModified() != jar.mLastModified || jarFile.length() != jar.mLength) {
+                FileUtil.deleteFile(entryFile);
+                return null;
+            }
+        }
+        return new LinkedHashSet<>(entry.mIndex);
+    }
+
+    /** Store the names of the configurations bundled in the classpath under the prefix. */
+    void putClasspathIndex(String prefix, Set<String> configNames) {
+        String key = createIndexKey(prefix);
+        if (key == null) {
+            return;
+        }
+        Entry entry = new Entry();
+        entry.mKey = key;
+        entry.mParserStamp = mParserStamp;
+        entry.mIndex = new LinkedHashSet<>(configNames);
+        for (String element : ClassPathScanner.getClassPath()) {
+            File jarFile = new File(element);
+            entry.mSources.add(
+                    new SourceStamp(element, jarFile.lastModified(), jarFile.length(), null));
+        }
+        try {
+            writeEntry(getEntryFile(key, INDEX_EXTENSION), entry);
+        } catch (IOException e) {
+            CLog.w("Failed to cache the classpath configuration index: %s", e.getMessage());
+        }
+    }
+
+    /**
+     * Check whether the source still has the content recorded in the stamp.
+     *
+     * @return the stamp itself if the source is unchanged, a new stamp of the current content if
+     *     it changed, or null if the source cannot be read anymore.
+     */
+    private SourceStamp checkStamp(SourceStamp source) {
+        File file = new File(source.mName);
+        if (file.isFile()
+                && file.lastModified() == source.mLastModified
+                && file.length() == source.mLength) {
+            return source;
+        }
+        try {
+            SourceStamp current = createStamp(source.mName);
+            return source.mDigest.equals(current.mDigest) ? source : current;
+        } catch (IOException | ConfigurationException e) {
+            return null;
+        }
+    }
+
+    private SourceStamp createStamp(String source) throws IOException, ConfigurationException {
+        File file = new File(source);
+        if (file.isFile()) {
+            return new SourceStamp(source, file.lastModified(), file.length(), digest(source));
+        }
+        // Bundled configurations are always compared by digest.
+        return new SourceStamp(source, -1L, -1L, digest(source));
+    }
+
+    private String digest(String source) throws IOException, ConfigurationException {
+        try (InputStream stream = mFactory.getConfigStream(source)) {
+            return StreamUtil.calculateMd5(stream);
+        }
+    }
+
+    private Entry readEntry(File entryFile, String key) {
+        if (!entryFile.isFile()) {
+            return null;
+        }
+        try (ObjectInputStream in =
+                new ObjectInputStream(new BufferedInputStream(new FileInputStream(entryFile)))) {
+            in.setObjectInputFilter(ENTRY_FILTER);
+            Entry entry = (Entry) in.readObject();
+            if (key.equals(entry.mKey) && mParserStamp.equals(entry.mParserStamp)) {
+                return entry;
+            }
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            CLog.d("Ignoring unreadable cache entry %s: %s", entryFile, e.getMessage());
+        }
+        FileUtil.deleteFile(entryFile);
+        return null;
+    }
+
+    private void writeEntry(File entryFile, Entry entry) throws IOException {
+        File tmpFile = FileUtil.createTempFile(entryFile.getName(), ".tmp", mCacheDir);
+        try {
+            try (ObjectOutputStream out =
+                    new ObjectOutputStream(
+                            new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+                out.writeObject(entry);
+            }
+            // Other processes of the host might be reading the same entry.
+            Files.move(
+                    tmpFile.toPath(),
+                    entryFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            FileUtil.deleteFile(tmpFile);
+        }
+    }
+
+    private File getEntryFile(String key, String extension) {
+        return new File(mCacheDir, hash(key) + extension);
+    }
+
+    private static String createKey(String name, Map<String, String> templateMap) {
+        StringBuilder key = new StringBuilder(name);
+        if (templateMap != null) {
+            for (Map.Entry<String, String> template : new TreeMap<>(templateMap).entrySet()) {
+                key.append('\n').append(template.getKey()).append('=').append(template.getValue());
+            }
+        }
+        return key.toString();
+    }
+
+    /** Returns the key of the classpath index, or null if the classpath cannot be indexed. */
+    private static String createIndexKey(String prefix) {
+        StringBuilder key = new StringBuilder("classpath:").append(prefix);
+        for (String element : ClassPathScanner.getClassPath()) {
+            // The content of directories cannot be cheaply checked, do not cache them.
+            if (new File(element).isDirectory()) {
+                return null;
+            }
+            key.append('\n').append(element);
+        }
+        return key.toString();
+    }
+
+    private static String hash(String key) {
+        try {
+            return StreamUtil.calculateMd5(
+                    new ByteArrayInputStream(key.getBytes(StandardCharsets.UTF_8)));
+        } catch (IOException e) {
+            // Not expected from an in-memory stream.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Returns a stamp identifying the code parsing the configurations. */
+    private static String createParserStamp() {
+        CodeSource source = ConfigurationDef.class.getProtectionDomain().getCodeSource();
+        if (source == null || source.getLocation() == null) {
+            return "";
+        }
+        File location = new File(source.getLocation().getPath());
+        return location.getAbsolutePath()
+                + ":"
+                + location.lastModified()
+                + ":"
+                + location.length();
+    }
+}
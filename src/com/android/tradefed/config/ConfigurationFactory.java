@@ -46,12 +46,12 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 
 /**
@@ -70,6 +70,7 @@ public class ConfigurationFactory implements IConfigurationFactory {
     private static final String CONFIG_ERROR_PATTERN = "(Could not find option with name )(.*)";
 
     private Map<ConfigId, ConfigurationDef> mConfigDefMap;
+    private ConfigurationDefCache mConfigDefCache = null;
 
     /**
      * A simple struct-like class that stores a configuration's name alongside
@@ -255,6 +256,8 @@ public class ConfigurationFactory implements IConfigurationFactory {
 
         private final boolean mIsGlobalConfig;
         private DirectedGraph<String> mConfigGraph = new DirectedGraph<String>();
+        /** The names of the configurations loaded, including the included ones. */
+        private final List<String> mLoadedConfigs = new ArrayList<>();
 
         public ConfigLoader(boolean isGlobalConfig) {
             mIsGlobalConfig = isGlobalConfig;
@@ -272,8 +275,20 @@ public class ConfigurationFactory implements IConfigurationFactory {
             ConfigurationDef def = mConfigDefMap.get(configId);
 
             if (def == null || def.isStale()) {
-                def = new ConfigurationDef(configName);
-                loadConfiguration(configName, def, null, templateMap, null);
+                ConfigurationDefCache cache = mIsGlobalConfig ? null : getConfigurationDefCache();
+                def = cache == null ? null : cache.get(configName, configId.templateMap);
+                if (def == null) {
+                    def = new ConfigurationDef(configName);
+                    mLoadedConfigs.clear();
+                    loadConfiguration(configName, def, null, templateMap, null);
+                    // Definitions with unused templates are rejected, do not persist them.
+                    if (cache != null && (templateMap == null || templateMap.isEmpty())) {
+                        cache.put(configName, configId.templateMap, mLoadedConfigs, def);
+                    }
+                } else if (templateMap != null) {
+                    // Only definitions that used all their templates are persisted.
+                    templateMap.clear();
+                }
                 mConfigDefMap.put(configId, def);
             } else {
                 if (templateMap != null) {
@@ -437,6 +452,7 @@ public class ConfigurationFactory implements IConfigurationFactory {
                             String.format("The config format for %s is not supported.", name));
             }
             trackConfig(name, def);
+            mLoadedConfigs.add(name);
         }
 
         /**
@@ -473,7 +489,8 @@ public class ConfigurationFactory implements IConfigurationFactory {
     }
 
     protected ConfigurationFactory() {
-        mConfigDefMap = new Hashtable<ConfigId, ConfigurationDef>();
+        // Configurations can be created from several threads, like the parallel module loading.
+        mConfigDefMap = new ConcurrentHashMap<ConfigId, ConfigurationDef>();
     }
 
     /**
@@ -763,8 +780,46 @@ public class ConfigurationFactory implements IConfigurationFactory {
      * Private helper to get the full set of configurations.
      */
     private Set<String> getConfigSetFromClasspath(String subPath) {
+        ConfigurationDefCache cache = getConfigurationDefCache();
+        String prefix = subPath == null ? getConfigPrefix() : getConfigPrefix() + subPath;
+        if (cache != null) {
+            Set<String> configNames = cache.getClasspathIndex(prefix);
+            if (configNames != null) {
+                return configNames;
+            }
+        }
         ClassPathScanner cpScanner = new ClassPathScanner();
-        return cpScanner.getClassPathEntries(new ConfigClasspathFilter(subPath));
+        Set<String> configNames = cpScanner.getClassPathEntries(new ConfigClasspathFilter(subPath));
+        if (cache != null) {
+            cache.putClasspathIndex(prefix, configNames);
+        }
+        return configNames;
+    }
+
+    /**
+     * Returns the {@link ConfigurationDefCache} persisting the parsed configurations, or null if
+     * it is not enabled.
+     */
+    @VisibleForTesting
+    synchronized ConfigurationDefCache getConfigurationDefCache() {
+        if (mConfigDefCache == null) {
+            File cacheDir = getConfigCacheDir();
+            if (cacheDir != null) {
+                mConfigDefCache = new ConfigurationDefCache(cacheDir, this);
+            }
+        }
+        return mConfigDefCache;
+    }
+
+    /** Returns the directory of the persistent configuration cache, or null if disabled. */
+    @VisibleForTesting
+    File getConfigCacheDir() {
+        try {
+            return GlobalConfiguration.getInstance().getHostOptions().getConfigCacheDir();
+        } catch (IllegalStateException e) {
+            // Global configuration is not initialized yet, for example while loading it.
+            return null;
+        }
     }
 
     /**
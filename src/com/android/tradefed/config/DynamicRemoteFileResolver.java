@@ -44,6 +44,7 @@ import java.lang.reflect.Field;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -53,7 +54,14 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.ServiceLoader;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
@@ -97,10 +105,16 @@ public class DynamicRemoteFileResolver {
 
     private final FileResolverLoader mFileResolverLoader;
 
+    /** Resolves a file considered for download, or returns null to leave it untouched. */
+    private interface FileResolution {
+        ResolvedFile resolve(File consideredFile, Option option) throws BuildRetrievalError;
+    }
+
     private Map<String, OptionFieldsForName> mOptionMap;
     // Populated from {@link ICommandOptions#getDynamicDownloadArgs()}
     private Map<String, String> mExtraArgs = new LinkedHashMap<>();
     private ITestDevice mDevice;
+    private int mMaxConcurrentResolutionsPerScheme = 1;
 
     public DynamicRemoteFileResolver() {
         this(DEFAULT_FILE_RESOLVER_LOADER);
@@ -126,6 +140,16 @@ public class DynamicRemoteFileResolver {
         mExtraArgs.putAll(extraArgs);
     }
 
+    /**
+     * Sets how many files of a same scheme can be resolved at the same time. With more than one,
+     * all the remote files are gathered first, a file referenced by several options is resolved
+     * only once, and the files are resolved concurrently before being replaced in the options.
+     * Resolvers are then called from several threads.
+     */
+    public void setMaxConcurrentResolutionsPerScheme(int maxConcurrentResolutions) {
+        mMaxConcurrentResolutionsPerScheme = maxConcurrentResolutions;
+    }
+
     /**
      * Runs through all the {@link File} option type and check if their path should be resolved.
      *
@@ -133,6 +157,169 @@ public class DynamicRemoteFileResolver {
      * @throws BuildRetrievalError
      */
     public final Set<File> validateRemoteFilePath() throws BuildRetrievalError {
+        if (mMaxConcurrentResolutionsPerScheme > 1) {
+            return validateRemoteFilePathConcurrently();
+        }
+        return replaceRemoteFiles(this::resolveRemoteFiles);
+    }
+
+    /**
+     * Gather all the remote files first, then resolve them concurrently with at most {@link
+     * #mMaxConcurrentResolutionsPerScheme} files per scheme at a time, and finally replace them in
+     * the options.
+     */
+    private Set<File> validateRemoteFilePathConcurrently() throws BuildRetrievalError {
+        // Files to resolve by path, in the order of the options so errors are reported the same
+        // way as resolving them one by one.
+        Map<String, File> consideredFiles = new LinkedHashMap<>();
+        // A path used by several options is resolved once, then given to all of them.
+        Map<String, List<Option>> consideredOptions = new HashMap<>();
+        replaceRemoteFiles(
+                (consideredFile, option) -> {
+                    consideredFiles.putIfAbsent(consideredFile.getPath(), consideredFile);
+                    consideredOptions
+                            .computeIfAbsent(consideredFile.getPath(), k -> new ArrayList<>())
+                            .add(option);
+                    return null;
+                });
+        Map<String, String> schemes = new LinkedHashMap<>();
+        for (String path : consideredFiles.keySet()) {
+            try {
+                String scheme = new URI(path).getScheme();
+                if (scheme != null) {
+                    schemes.put(path, scheme);
+                }
+            } catch (URISyntaxException e) {
+                CLog.e(e);
+                throw new BuildRetrievalError(e.getMessage(), e);
+            }
+        }
+        if (schemes.isEmpty()) {
+            return new HashSet<>();
+        }
+
+        Map<String, ResolvedFile> resolvedFiles = new HashMap<>();
+        Map<String, ExecutorService> executors = new HashMap<>();
+        // Set after a failure, so the resolutions not started yet are skipped.
+        AtomicBoolean aborted = new AtomicBoolean(false);
+        try {
+            Map<String, Future<ResolvedFile>> futures = new LinkedHashMap<>();
+            for (Entry<String, String> pathScheme : schemes.entrySet()) {
+                String path = pathScheme.getKey();
+                ExecutorService executor =
+                        executors.computeIfAbsent(
+                                pathScheme.getValue(), scheme -> createSchemeExecutor(scheme));
+                futures.put(
+                        path,
+                        executor.submit(
+                                () -> {
+                                    if (aborted.get()) {
+                                        return null;
+                                    }
+                                    return resolveRemoteFiles(
+                                            consideredFiles.get(path),
+                                            consideredOptions.get(path));
+                                }));
+            }
+            collectResolvedFiles(futures, resolvedFiles, aborted, executors.values());
+        } finally {
+            for (ExecutorService executor : executors.values()) {
+                executor.shutdownNow();
+            }
+        }
+        return replaceRemoteFiles(
+                (consideredFile, option) -> resolvedFiles.get(consideredFile.getPath()));
+    }
+
+    private ExecutorService createSchemeExecutor(String scheme) {
+        // Threads are created from the invocation thread, so they share its logging.
+        return Executors.newFixedThreadPool(
+                mMaxConcurrentResolutionsPerScheme,
+                r -> {
+                    Thread thread = new Thread(r, "DynamicRemoteFileResolver-" + scheme);
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * Wait for all the resolutions. If one fails, the resolutions not started yet are skipped, the
+     * ones running are waited for, then all the files resolved are cleaned up and the first failure
+     * in the order of the options is thrown. If interrupted, the running resolutions are
+     * interrupted too.
+     */
+    private void collectResolvedFiles(
+            Map<String, Future<ResolvedFile>> futures,
+            Map<String, ResolvedFile> resolvedFiles,
+            AtomicBoolean aborted,
+            Collection<ExecutorService> executors)
+            throws BuildRetrievalError {
+        Throwable failure = null;
+        boolean interrupted = false;
+        for (Entry<String, Future<ResolvedFile>> future : futures.entrySet()) {
+            while (true) {
+                try {
+                    ResolvedFile resolvedFile = future.getValue().get();
+                    if (resolvedFile != null) {
+                        resolvedFiles.put(future.getKey(), resolvedFile);
+                    }
+                    break;
+                } catch (CancellationException e) {
+                    // Never started, dropped after an interruption.
+                    break;
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause();
+                        aborted.set(true);
+                    }
+                    break;
+                } catch (InterruptedException e) {
+                    if (!interrupted) {
+                        interrupted = true;
+                        if (failure == null) {
+                            failure = new RuntimeException(e);
+                        }
+                        aborted.set(true);
+                        for (ExecutorService executor : executors) {
+                            for (Runnable pending : executor.shutdownNow()) {
+                                ((Future<?>) pending).cancel(false);
+                            }
+                        }
+                    }
+                    // Keep waiting for the running resolutions to clean up their files.
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure == null) {
+            return;
+        }
+        for (ResolvedFile resolvedFile : resolvedFiles.values()) {
+            if (resolvedFile.shouldCleanUp()) {
+                FileUtil.recursiveDelete(resolvedFile.getResolvedFile());
+            }
+        }
+        if (failure instanceof BuildRetrievalError) {
+            throw (BuildRetrievalError) failure;
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        throw new RuntimeException(failure);
+    }
+
+    /**
+     * Runs through all the {@link File} option values and replace the ones resolved by the given
+     * {@link FileResolution}.
+     *
+     * @return The set of {@link File} that was resolved that way and should be cleaned up.
+     */
+    private Set<File> replaceRemoteFiles(FileResolution resolution) throws BuildRetrievalError {
         Set<File> downloadedFiles = new HashSet<>();
         try {
             Map<Field, Object> fieldSeen = new HashMap<>();
@@ -177,7 +364,7 @@ public class DynamicRemoteFileResolver {
 
                     if (value instanceof File) {
                         File consideredFile = (File) value;
-                        ResolvedFile resolvedFile = resolveRemoteFiles(consideredFile, option);
+                        ResolvedFile resolvedFile = resolution.resolve(consideredFile, option);
                         if (resolvedFile != null) {
                             File downloadedFile = resolvedFile.getResolvedFile();
                             if (resolvedFile.shouldCleanUp()) {
@@ -203,7 +390,7 @@ public class DynamicRemoteFileResolver {
                             if (o instanceof File) {
                                 File consideredFile = (File) o;
                                 ResolvedFile resolvedFile =
-                                        resolveRemoteFiles(consideredFile, option);
+                                        resolution.resolve(consideredFile, option);
                                 if (resolvedFile != null) {
                                     File downloadedFile = resolvedFile.getResolvedFile();
                                     if (resolvedFile.shouldCleanUp()) {
@@ -226,7 +413,7 @@ public class DynamicRemoteFileResolver {
                             Object finalKey = key;
                             Object finalVal = val;
                             if (key instanceof File) {
-                                ResolvedFile resolved = resolveRemoteFiles((File) key, option);
+                                ResolvedFile resolved = resolution.resolve((File) key, option);
                                 if (resolved != null) {
                                     File downloaded = resolved.getResolvedFile();
                                     if (resolved.shouldCleanUp()) {
@@ -236,7 +423,7 @@ public class DynamicRemoteFileResolver {
                                 }
                             }
                             if (val instanceof File) {
-                                ResolvedFile resolved = resolveRemoteFiles((File) val, option);
+                                ResolvedFile resolved = resolution.resolve((File) val, option);
                                 if (resolved != null) {
                                     File downloaded = resolved.getResolvedFile();
                                     if (resolved.shouldCleanUp()) {
@@ -260,7 +447,7 @@ public class DynamicRemoteFileResolver {
                                 m.remove(key);
                                 Object finalKey = key;
                                 if (key instanceof File) {
-                                    ResolvedFile resolved = resolveRemoteFiles((File) key, option);
+                                    ResolvedFile resolved = resolution.resolve((File) key, option);
                                     if (resolved != null) {
                                         File downloaded = resolved.getResolvedFile();
                                         if (resolved.shouldCleanUp()) {
@@ -272,7 +459,7 @@ public class DynamicRemoteFileResolver {
                                 for (Object mapValue : mapValues) {
                                     if (mapValue instanceof File) {
                                         ResolvedFile resolvedFile =
-                                                resolveRemoteFiles((File) mapValue, option);
+                                                resolution.resolve((File) mapValue, option);
                                         if (resolvedFile != null) {
                                             if (resolvedFile.shouldCleanUp()) {
                                                 downloadedFiles.add(resolvedFile.getResolvedFile());
@@ -398,6 +585,11 @@ public class DynamicRemoteFileResolver {
 
     private ResolvedFile resolveRemoteFiles(File consideredFile, Option option)
             throws BuildRetrievalError {
+        return resolveRemoteFiles(consideredFile, Arrays.asList(option));
+    }
+
+    private ResolvedFile resolveRemoteFiles(File consideredFile, List<Option> options)
+            throws BuildRetrievalError {
         File fileToResolve;
         String path = consideredFile.getPath();
         String protocol;
@@ -418,7 +610,10 @@ public class DynamicRemoteFileResolver {
                 return null;
             }
 
-            CLog.d("Considering option '%s' with path: '%s' for download.", option.name(), path);
+            CLog.d(
+                    "Considering option '%s' with path: '%s' for download.",
+                    options.stream().map(Option::name).distinct().collect(Collectors.joining(",")),
+                    path);
             resolver.setPrimaryDevice(mDevice);
             RemoteFileResolverArgs args = new RemoteFileResolverArgs();
             args.setConsideredFile(fileToResolve).addQueryArgs(query);
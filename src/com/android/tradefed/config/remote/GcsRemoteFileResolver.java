@@ -19,6 +19,7 @@ import com.android.annotations.VisibleForTesting;
 import com.android.tradefed.build.BuildRetrievalError;
 import com.android.tradefed.build.gcs.GCSDownloaderHelper;
 import com.android.tradefed.config.DynamicRemoteFileResolver;
+import com.android.tradefed.config.Option;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.result.error.InfraErrorIdentifier;
 import com.android.tradefed.util.RunUtil;
@@ -37,6 +38,13 @@ public class GcsRemoteFileResolver implements IRemoteFileResolver {
     private static final long SLEEP_INTERVAL_MS = 5 * 1000;
     private static final String RETRY_TIMEOUT_MS_ARG = "retry_timeout_ms";
 
+    @Option(
+            name = "gcs-parallel-download-streams",
+            description =
+                    "The number of streams downloading a single file in parallel, each fetching "
+                            + "a range of its bytes.")
+    private int mParallelDownloadStreams = 1;
+
     private GCSDownloaderHelper mHelper = null;
 
     @Override
@@ -68,6 +76,7 @@ public class GcsRemoteFileResolver implements IRemoteFileResolver {
     protected GCSDownloaderHelper getDownloader() {
         if (mHelper == null) {
             mHelper = new GCSDownloaderHelper();
+            mHelper.setParallelDownloadStreams(mParallelDownloadStreams);
         }
         return mHelper;
     }
@@ -0,0 +1,355 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.tradefed.invoker.logger.InvocationMetricLogger;
+import com.android.tradefed.invoker.logger.InvocationMetricLogger.InvocationMetricKey;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.CommandResult;
+import com.android.tradefed.util.CommandStatus;
+import com.android.tradefed.util.FileUtil;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pushes a set of files and directories to a device with as few round trips as possible.
+ *
+ * <p>Directories are created with batched shell commands. Small files are bundled in a single tar
+ * archive extracted on the device, and the other files are pushed concurrently over separate sync
+ * connections. Optionally, files already on the device with the same size and md5 are skipped.
+ */
+class FileTransferEngine {
+
+    /** Keep the shell commands well below the adb limit of older devices. */
+    static final int MAX_COMMAND_LENGTH = 4000;
+
+    private static final String ARCHIVE_DIR = "/data/local/tmp";
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    private final NativeDevice mDevice;
+    private final int mThreads;
+    private final long mArchiveMaxFileSize;
+    private final boolean mSkipIdenticalFiles;
+
+    private final List<String> mDirectories = new ArrayList<>();
+    // Remote path to local file, in the order they were added.
+    private final Map<String, File> mFiles = new LinkedHashMap<>();
+
+    /**
+     * Ctor.
+     *
+     * @param device the {@link NativeDevice} to push to.
+     * @param threads the number of files pushed concurrently.
+     * @param archiveMaxFileSize files up to this size are bundled in an archive, 0 to disable.
+     * @param skipIdenticalFiles whether to skip files already identical on the device.
+     */
+    FileTransferEngine(
+            NativeDevice device, int threads, long archiveMaxFileSize, boolean skipIdenticalFiles) {
+        mDevice = device;
+        mThreads = Math.max(1, threads);
+        mArchiveMaxFileSize = archiveMaxFileSize;
+        mSkipIdenticalFiles = skipIdenticalFiles;
+    }
+
+    /** Add a directory to create on the device. */
+    void addDirectory(String remotePath) {
+        mDirectories.add(remotePath);
+    }
+
+    /** Add a file to push to the device. */
+    void addFile(File localFile, String remotePath) {
+        mFiles.put(remotePath, localFile);
+    }
+
+    /**
+     * Add the content of a local directory, the directory itself is expected to exist on the
+     * device.
+     *
+     * @param localDir the local directory.
+     * @param remotePath the path of the directory on the device.
+     * @param excludedDirectories the names of the directories to skip.
+     * @return false if a directory could not be read.
+     */
+    boolean addDirectoryContent(File localDir, String remotePath, Set<String> excludedDirectories) {
+        File[] childFiles = localDir.listFiles();
+        if (childFiles == null) {
+            CLog.e("Could not read files in %s", localDir.getAbsolutePath());
+            return false;
+        }
+        for (File childFile : childFiles) {
+            String childPath = String.format("%s/%s", remotePath, childFile.getName());
+            if (childFile.isDirectory()) {
+                // If we encounter a filtered directory do not push it.
+                if (excludedDirectories.contains(childFile.getName())) {
+                    CLog.d(
+                            "%s directory was not pushed because it was filtered.",
+                            childFile.getAbsolutePath());
+                    continue;
+                }
+                addDirectory(childPath);
+                if (!addDirectoryContent(childFile, childPath, excludedDirectories)) {
+                    return false;
+                }
+            } else if (childFile.isFile()) {
+                addFile(childFile, childPath);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Create the directories then push the files.
+     *
+     * @return true if all the files were pushed.
+     */
+    boolean transfer() throws DeviceNotAvailableException {
+        createDirectories();
+        Map<String, File> files = new LinkedHashMap<>(mFiles);
+        if (mSkipIdenticalFiles && !files.isEmpty()) {
+            removeIdenticalFiles(files);
+        }
+        Map<String, File> smallFiles = new LinkedHashMap<>();
+        Map<String, File> largeFiles = new LinkedHashMap<>();
+        for (Map.Entry<String, File> entry : files.entrySet()) {
+            // Archive entries are extracted from the root, they need absolute paths.
+            if (mArchiveMaxFileSize > 0
+                    && entry.getKey().startsWith("/")
+                    && entry.getValue().length() <= mArchiveMaxFileSize) {
+                smallFiles.put(entry.getKey(), entry.getValue());
+            } else {
+                largeFiles.put(entry.getKey(), entry.getValue());
+            }
+        }
+        // A single small file is not worth an archive.
+        if (smallFiles.size() > 1 && pushArchive(smallFiles)) {
+            smallFiles.clear();
+        }
+        largeFiles.putAll(smallFiles);
+        return pushFiles(largeFiles);
+    }
+
+    private void createDirectories() throws DeviceNotAvailableException {
+        for (String command : batchCommands("mkdir -p", mDirectories)) {
+            mDevice.executeShellCommand(command);
+        }
+    }
+
+    /** Split the paths in as few commands as possible. */
+    static List<String> batchCommands(String command, List<String> paths) {
+        List<String> commands = new ArrayList<>();
+        StringBuilder builder = null;
+        for (String path : paths) {
+            String arg = String.format(" \"%s\"", path);
+            if (builder != null && builder.length() + arg.length() > MAX_COMMAND_LENGTH) {
+                commands.add(builder.toString());
+                builder = null;
+            }
+            if (builder == null) {
+                builder = new StringBuilder(command);
+            }
+            builder.append(arg);
+        }
+        if (builder != null) {
+            commands.add(builder.toString());
+        }
+        return commands;
+    }
+
+    /** Remove the files that are already on the device with the same size and md5. */
+    private void removeIdenticalFiles(Map<String, File> files) throws DeviceNotAvailableException {
+        // Compare the sizes first, to only hash the files that may be identical.
+        Map<String, String> remoteSizes = queryRemote("stat -c '%s %n'", files.keySet());
+        List<String> sameSize = new ArrayList<>();
+        for (Map.Entry<String, File> entry : files.entrySet()) {
+            if (Long.toString(entry.getValue().length()).equals(remoteSizes.get(entry.getKey()))) {
+                sameSize.add(entry.getKey());
+            }
+        }
+        if (sameSize.isEmpty()) {
+            return;
+        }
+        Map<String, String> remoteMd5s = queryRemote("md5sum", sameSize);
+        int skipped = 0;
+        for (String remotePath : sameSize) {
+            String remoteMd5 = remoteMd5s.get(remotePath);
+            if (remoteMd5 == null) {
+                continue;
+            }
+            try {
+                if (remoteMd5.equalsIgnoreCase(FileUtil.calculateMd5(files.get(remotePath)))) {
+                    files.remove(remotePath);
+                    skipped++;
+                }
+            } catch (IOException e) {
+                CLog.e(e);
+            }
+        }
+        CLog.d("Skipped %s files already on the device.", skipped);
+    }
+
+    /**
+     * Run a command printing "<value> <path>" for each path, and return the values by path. Paths
+     * the command failed on are missing.
+     */
+    private Map<String, String> queryRemote(String command, Iterable<String> paths)
+            throws DeviceNotAvailableException {
+        List<String> pathList = new ArrayList<>();
+        paths.forEach(pathList::add);
+        Map<String, String> values = new HashMap<>();
+        for (String batch : batchCommands(command, pathList)) {
+            String output = mDevice.executeShellCommand(batch + " 2>/dev/null");
+            if (output == null) {
+                continue;
+            }
+            for (String line : output.split("\n")) {
+                String[] parts = line.trim().split("\\s+", 2);
+                if (parts.length == 2) {
+                    values.put(parts[1], parts[0]);
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Bundle the files in a tar archive, push it and extract it on the device.
+     *
+     * @return false if the archive could not be used, the files then need to be pushed one by one.
+     */
+    private boolean pushArchive(Map<String, File> files) throws DeviceNotAvailableException {
+        File archive = null;
+        String remoteArchive =
+                String.format("%s/tf_push_%s.tar", ARCHIVE_DIR, UUID.randomUUID().toString());
+        try {
+            archive = FileUtil.createTempFile("push-dir", ".tar");
+            try (TarArchiveOutputStream tar =
+                    new TarArchiveOutputStream(
+                            new BufferedOutputStream(new FileOutputStream(archive)))) {
+                tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_GNU);
+                for (Map.Entry<String, File> entry : files.entrySet()) {
+                    TarArchiveEntry tarEntry =
+                            new TarArchiveEntry(entry.getValue(), entry.getKey().substring(1));
+                    tar.putArchiveEntry(tarEntry);
+                    Files.copy(entry.getValue().toPath(), tar);
+                    tar.closeArchiveEntry();
+                }
+            }
+            if (!mDevice.pushFileInternal(archive, remoteArchive, true)) {
+                CLog.w(
+                        "Failed to push archive of %s files, pushing them one by one.",
+                        files.size());
+                return false;
+            }
+            // The push of the archive is already counted in the push time.
+            long startTime = System.currentTimeMillis();
+            CommandResult result =
+                    mDevice.executeShellV2Command(
+                            String.format("tar -xf \"%s\" -C /", remoteArchive));
+            InvocationMetricLogger.addInvocationMetrics(
+                    InvocationMetricKey.PUSH_FILE_TIME, System.currentTimeMillis() - startTime);
+            if (!CommandStatus.SUCCESS.equals(result.getStatus())) {
+                CLog.w(
+                        "Failed to extract archive of %s files: %s. Pushing them one by one.",
+                        files.size(), result.getStderr());
+                return false;
+            }
+            // The push of the archive was counted as one file.
+            InvocationMetricLogger.addInvocationMetrics(
+                    InvocationMetricKey.PUSH_FILE_COUNT, files.size() - 1);
+            return true;
+        } catch (IOException e) {
+            CLog.e(e);
+            return false;
+        } finally {
+            FileUtil.deleteFile(archive);
+            mDevice.executeShellCommand(String.format("rm -f \"%s\"", remoteArchive));
+        }
+    }
+
+    /** Push the files over concurrent sync connections. */
+    private boolean pushFiles(Map<String, File> files) throws DeviceNotAvailableException {
+        if (mThreads == 1 || files.size() <= 1) {
+            for (Map.Entry<String, File> entry : files.entrySet()) {
+                if (!mDevice.pushFileInternal(entry.getValue(), entry.getKey(), true)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        // Threads are created from the invocation thread, so they share its logging and metrics.
+        ExecutorService executor =
+                Executors.newFixedThreadPool(
+                        Math.min(mThreads, files.size()), new TransferThreadFactory());
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (Map.Entry<String, File> entry : files.entrySet()) {
+                results.add(
+                        executor.submit(
+                                () ->
+                                        mDevice.pushFileInternal(
+                                                entry.getValue(), entry.getKey(), true)));
+            }
+            for (Future<Boolean> result : results) {
+                if (!result.get()) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof DeviceNotAvailableException) {
+                throw (DeviceNotAvailableException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static class TransferThreadFactory implements ThreadFactory {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "FileTransfer-" + THREAD_COUNT.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -43,5 +43,16 @@ public interface ILogcatReceiver {
     public default InputStreamSource getLogcatData(int maxBytes, int offset) {
         return getLogcatData(maxBytes);
     }
+
+    /**
+     * Returns the logcat buffer starting at the given device date.
+     *
+     * @param date in millisecond since epoch, in the device time.
+     * @return The logcat buffer since the date, or <code>null</code> if the receiver cannot look up
+     *     the buffer by date or does not hold all the logcat since the date.
+     */
+    public default InputStreamSource getLogcatDataSince(long date) {
+        return null;
+    }
 }
 
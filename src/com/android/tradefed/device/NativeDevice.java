@@ -206,7 +206,7 @@ public class NativeDevice implements IManagedTestDevice {
     protected final IDeviceStateMonitor mStateMonitor;
     private TestDeviceState mState = TestDeviceState.ONLINE;
     private final ReentrantLock mFastbootLock = new ReentrantLock();
-    private LogcatReceiver mLogcatReceiver;
+    private ILogcatReceiver mLogcatReceiver;
     private boolean mFastbootEnabled = true;
     private String mFastbootPath = "fastboot";
 
@@ -1715,32 +1715,22 @@ public class NativeDevice implements IManagedTestDevice {
             CLog.e("file %s is not a directory", localFileDir.getAbsolutePath());
             return false;
         }
-        File[] childFiles = localFileDir.listFiles();
-        if (childFiles == null) {
-            CLog.e("Could not read files in %s", localFileDir.getAbsolutePath());
+        FileTransferEngine engine =
+                createFileTransferEngine(getOptions().shouldPushDirSkipIdenticalFiles());
+        if (!engine.addDirectoryContent(localFileDir, deviceFilePath, excludedDirectories)) {
             return false;
         }
-        for (File childFile : childFiles) {
-            String remotePath = String.format("%s/%s", deviceFilePath, childFile.getName());
-            if (childFile.isDirectory()) {
-                // If we encounter a filtered directory do not push it.
-                if (excludedDirectories.contains(childFile.getName())) {
-                    CLog.d(
-                            "%s directory was not pushed because it was filtered.",
-                            childFile.getAbsolutePath());
-                    continue;
-                }
-                executeShellCommand(String.format("mkdir -p \"%s\"", remotePath));
-                if (!pushDirInternal(childFile, remotePath, excludedDirectories)) {
-                    return false;
-                }
-            } else if (childFile.isFile()) {
-                if (!pushFileInternal(childFile, remotePath, true)) {
-                    return false;
-                }
-            }
-        }
-        return true;
+        return engine.transfer();
+    }
+
+    /** Create the {@link FileTransferEngine} used to push directories. */
+    @VisibleForTesting
+    FileTransferEngine createFileTransferEngine(boolean skipIdenticalFiles) {
+        return new FileTransferEngine(
+                this,
+                getOptions().getPushDirTransferThreads(),
+                getOptions().getPushDirArchiveMaxFileSize(),
+                skipIdenticalFiles);
     }
 
     /**
@@ -1835,71 +1825,56 @@ public class NativeDevice implements IManagedTestDevice {
             return false;
         }
 
-        return syncFiles(localFileDir, remoteFileEntry);
+        // Newer files are already selected by their timestamp, no need to compare their content.
+        FileTransferEngine engine = createFileTransferEngine(false);
+        if (!syncFiles(localFileDir, remoteFileEntry, engine)) {
+            return false;
+        }
+        return engine.transfer();
     }
 
     /**
-     * Recursively sync newer files.
+     * Recursively find the newer files to sync.
      *
      * @param localFileDir the local {@link File} directory to sync
      * @param remoteFileEntry the remote destination {@link IFileEntry}
-     * @return <code>true</code> if files were synced successfully
+     * @param engine the {@link FileTransferEngine} where to add the files to sync
+     * @return <code>true</code> if files were found successfully
      * @throws DeviceNotAvailableException
      */
-    private boolean syncFiles(File localFileDir, final IFileEntry remoteFileEntry)
+    private boolean syncFiles(
+            File localFileDir, final IFileEntry remoteFileEntry, FileTransferEngine engine)
             throws DeviceNotAvailableException {
         CLog.d("Syncing %s to %s on %s", localFileDir.getAbsolutePath(),
                 remoteFileEntry.getFullPath(), getSerialNumber());
         // find newer files to sync
         File[] localFiles = localFileDir.listFiles(new NoHiddenFilesFilter());
-        ArrayList<String> filePathsToSync = new ArrayList<>();
         for (File localFile : localFiles) {
+            String remotePath =
+                    String.format("%s/%s", remoteFileEntry.getFullPath(), localFile.getName());
             IFileEntry entry = remoteFileEntry.findChild(localFile.getName());
             if (entry == null) {
                 CLog.d("Detected missing file path %s", localFile.getAbsolutePath());
-                filePathsToSync.add(localFile.getAbsolutePath());
+                if (localFile.isDirectory()) {
+                    engine.addDirectory(remotePath);
+                    if (!engine.addDirectoryContent(localFile, remotePath, new HashSet<>())) {
+                        return false;
+                    }
+                } else {
+                    engine.addFile(localFile, remotePath);
+                }
             } else if (localFile.isDirectory()) {
                 // This directory exists remotely. recursively sync it to sync only its newer files
                 // contents
-                if (!syncFiles(localFile, entry)) {
+                if (!syncFiles(localFile, entry, engine)) {
                     return false;
                 }
             } else if (isNewer(localFile, entry)) {
                 CLog.d("Detected newer file %s", localFile.getAbsolutePath());
-                filePathsToSync.add(localFile.getAbsolutePath());
+                engine.addFile(localFile, remotePath);
             }
         }
-
-        if (filePathsToSync.size() == 0) {
-            CLog.d("No files to sync");
-            return true;
-        }
-        final String files[] = filePathsToSync.toArray(new String[filePathsToSync.size()]);
-        DeviceAction syncAction = new DeviceAction() {
-            @Override
-            public boolean run() throws TimeoutException, IOException, AdbCommandRejectedException,
-                    SyncException {
-                SyncService syncService = null;
-                boolean status = false;
-                try {
-                    syncService = getIDevice().getSyncService();
-                    syncService.push(files, remoteFileEntry.getFileEntry(),
-                            SyncService.getNullProgressMonitor());
-                    status = true;
-                } catch (SyncException e) {
-                    CLog.w("Failed to sync files to %s on device %s. Message %s",
-                            remoteFileEntry.getFullPath(), getSerialNumber(), e.getMessage());
-                    throw e;
-                } finally {
-                    if (syncService != null) {
-                        syncService.close();
-                    }
-                }
-                return status;
-            }
-        };
-        return performDeviceAction(String.format("sync files %s", remoteFileEntry.getFullPath()),
-                syncAction, MAX_RETRY_ATTEMPTS);
+        return true;
     }
 
     /**
@@ -2441,6 +2416,16 @@ public class NativeDevice implements IManagedTestDevice {
      */
     @Override
     public InputStreamSource getLogcatSince(long date) {
+        if (mLogcatReceiver != null) {
+            InputStreamSource captured = mLogcatReceiver.getLogcatDataSince(date);
+            if (captured != null) {
+                return captured;
+            }
+            CLog.d(
+                    "Background logcat of %s does not cover the logcat since %s, querying the "
+                            + "device.",
+                    getSerialNumber(), date);
+        }
         try {
             if (getApiLevel() <= 22) {
                 CLog.i("Api level too low to use logcat -t 'time' reverting to dump");
@@ -2534,10 +2519,18 @@ public class NativeDevice implements IManagedTestDevice {
         }
     }
 
-    /** Factory method to create a {@link LogcatReceiver}. */
+    /** Factory method to create a {@link ILogcatReceiver}. */
     @VisibleForTesting
-    LogcatReceiver createLogcatReceiver() {
+    ILogcatReceiver createLogcatReceiver() {
         String logcatOptions = mOptions.getLogcatOptions();
+        if (mOptions.useLogcatRingBuffer()) {
+            String logcatCmd = LogcatReceiver.LOGCAT_CMD;
+            if (logcatOptions != null) {
+                logcatCmd = String.format("%s %s", LogcatReceiver.LOGCAT_CMD, logcatOptions);
+            }
+            return new RingBufferLogcatReceiver(
+                    this, logcatCmd, mOptions.getMaxLogcatDataSize(), mLogStartDelay);
+        }
         if (logcatOptions == null) {
             return new LogcatReceiver(this, mOptions.getMaxLogcatDataSize(), mLogStartDelay);
         } else {
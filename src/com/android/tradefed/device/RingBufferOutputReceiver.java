@@ -0,0 +1,392 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.ddmlib.IShellOutputReceiver;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.InputStreamSource;
+import com.android.tradefed.util.FileUtil;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link IShellOutputReceiver} that keeps the latest output of a long running command in a fixed
+ * size memory-mapped ring file.
+ *
+ * <p>Disk and memory usage are bounded by {@code maxDataSize} for the whole life of the receiver.
+ * Writers reserve their range with an atomic counter and copy into the mapping without holding a
+ * lock. Readers get views directly on top of the mapping instead of copies of the data: a view
+ * skips forward if the data it was reading gets overwritten by newer output.
+ *
+ * <p>For logcat output in the 'threadtime' format, a sparse index of the log timestamps is kept so
+ * the output since a given date can be returned without scanning the data, see {@link
+ * #getDataSince(long)}.
+ */
+public class RingBufferOutputReceiver implements IShellOutputReceiver {
+
+    /** Default minimum time between two entries of the timestamp index. */
+    private static final long INDEX_INTERVAL_MS = 100;
+    /** Maximum number of entries in the timestamp index. */
+    private static final int INDEX_SIZE = 8192;
+    /** Length of the logcat 'MM-dd HH:mm:ss.SSS' timestamp prefix. */
+    private static final int TIMESTAMP_LENGTH = 18;
+
+    private final String mDescriptor;
+    private final String mSerialNumber;
+    private final int mCapacity;
+    private final long mIndexIntervalMs;
+
+    private File mFile;
+    private volatile ByteBuffer mBuffer;
+    private volatile boolean mIsCancelled = false;
+
+    /** Logical position up to which writers reserved space. */
+    private final AtomicLong mReserved = new AtomicLong();
+    /** Logical position up to which the data is fully written. */
+    private final AtomicLong mCommitted = new AtomicLong();
+    /** Logical position of the first byte to report, moved forward by {@link #clear()}. */
+    private volatile long mStart = 0L;
+
+    // Timestamp index, only updated by the writer committing its data.
+    private final Object mIndexLock = new Object();
+    private final long[] mIndexTimestamps = new long[INDEX_SIZE];
+    private final long[] mIndexPositions = new long[INDEX_SIZE];
+    private long mIndexCount = 0L;
+    private long mLastIndexTime = 0L;
+    private boolean mAtLineStart = true;
+
+    /**
+     * Creates a {@link RingBufferOutputReceiver}.
+     *
+     * @param descriptor the descriptor of the command to run. For logging only.
+     * @param serialNumber the serial number of the device. For logging only.
+     * @param maxDataSize the max amount of data to keep.
+     */
+    public RingBufferOutputReceiver(String descriptor, String serialNumber, long maxDataSize) {
+        this(descriptor, serialNumber, maxDataSize, INDEX_INTERVAL_MS);
+    }
+
+    @VisibleForTesting
+    RingBufferOutputReceiver(
+            String descriptor, String serialNumber, long maxDataSize, long indexIntervalMs) {
+        mIndexIntervalMs = indexIntervalMs;
+        mDescriptor = descriptor;
+        mSerialNumber = serialNumber;
+        mCapacity = (int) Math.max(1L, Math.min(maxDataSize, Integer.MAX_VALUE - 8));
+        try {
+            mFile =
+                    FileUtil.createTempFile(
+                            String.format("%s_%s", descriptor, serialNumber), ".txt");
+            try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+                    FileChannel channel = raf.getChannel()) {
+                mBuffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, mCapacity);
+            }
+        } catch (IOException e) {
+            CLog.e("failed to create %s ring buffer for %s.", mDescriptor, mSerialNumber);
+            CLog.e(e);
+            FileUtil.deleteFile(mFile);
+            mFile = null;
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void addOutput(byte[] data, int offset, int length) {
+        ByteBuffer buffer = mBuffer;
+        if (mIsCancelled || buffer == null || length <= 0) {
+            return;
+        }
+        if (length > mCapacity) {
+            // Only the tail of the data can fit in the ring
+            offset += length - mCapacity;
+            length = mCapacity;
+        }
+        long start = mReserved.getAndAdd(length);
+        write(buffer.duplicate(), start, data, offset, length);
+        // Publish in reservation order, so readers never see a gap.
+        while (mCommitted.get() != start) {
+            Thread.yield();
+        }
+        indexTimestamp(start, data, offset, length);
+        mAtLineStart = data[offset + length - 1] == '\n';
+        mCommitted.set(start + length);
+    }
+
+    private void write(ByteBuffer view, long start, byte[] data, int offset, int length) {
+        int index = (int) (start % mCapacity);
+        int first = Math.min(length, mCapacity - index);
+        view.position(index);
+        view.put(data, offset, first);
+        if (first < length) {
+            view.position(0);
+            view.put(data, offset + first, length - first);
+        }
+    }
+
+    /**
+     * Record the timestamp of the first complete logcat line of the chunk, if enough time passed
+     * since the last index entry.
+     */
+    private void indexTimestamp(long start, byte[] data, int offset, int length) {
+        long now = System.currentTimeMillis();
+        if (now - mLastIndexTime < mIndexIntervalMs) {
+            return;
+        }
+        int lineStart = mAtLineStart ? offset : -1;
+        for (int i = offset; lineStart < 0 && i < offset + length; i++) {
+            if (data[i] == '\n') {
+                lineStart = i + 1;
+            }
+        }
+        if (lineStart < 0 || lineStart + TIMESTAMP_LENGTH > offset + length) {
+            return;
+        }
+        long timestamp =
+                parseTimestamp(
+                        new String(data, lineStart, TIMESTAMP_LENGTH, StandardCharsets.US_ASCII));
+        if (timestamp < 0) {
+            return;
+        }
+        synchronized (mIndexLock) {
+            int slot = (int) (mIndexCount % INDEX_SIZE);
+            mIndexTimestamps[slot] = timestamp;
+            mIndexPositions[slot] = start + (lineStart - offset);
+            mIndexCount++;
+            mLastIndexTime = now;
+        }
+    }
+
+    /**
+     * Parse a logcat 'MM-dd HH:mm:ss.SSS' timestamp into a number ordered like the timestamps.
+     *
+     * @return the ordered value or -1 if the timestamp cannot be parsed.
+     */
+    @VisibleForTesting
+    static long parseTimestamp(String timestamp) {
+        if (timestamp.length() < TIMESTAMP_LENGTH
+                || timestamp.charAt(2) != '-'
+                || timestamp.charAt(5) != ' '
+                || timestamp.charAt(8) != ':'
+                || timestamp.charAt(11) != ':'
+                || timestamp.charAt(14) != '.') {
+            return -1;
+        }
+        try {
+            long month = Long.parseLong(timestamp.substring(0, 2));
+            long day = Long.parseLong(timestamp.substring(3, 5));
+            long hour = Long.parseLong(timestamp.substring(6, 8));
+            long minute = Long.parseLong(timestamp.substring(9, 11));
+            long second = Long.parseLong(timestamp.substring(12, 14));
+            long millis = Long.parseLong(timestamp.substring(15, 18));
+            return ((((month * 32 + day) * 24 + hour) * 60 + minute) * 60 + second) * 1000
+                    + millis;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** Returns the logical position of the oldest byte that was not overwritten yet. */
+    private long getOldestPosition() {
+        return Math.max(0L, mReserved.get() - mCapacity);
+    }
+
+    /**
+     * Gets the collected output as a {@link InputStreamSource}.
+     *
+     * @return The collected output from the command.
+     */
+    public InputStreamSource getData() {
+        long end = mCommitted.get();
+        return createView(Math.max(mStart, getOldestPosition()), end);
+    }
+
+    /**
+     * Gets the last <var>maxBytes</var> of collected output as a {@link InputStreamSource}.
+     *
+     * @param maxBytes the maximum amount of data to return.
+     * @return The collected output from the command.
+     */
+    public InputStreamSource getData(final int maxBytes) {
+        return getData(maxBytes, 0);
+    }
+
+    /**
+     * Gets the last <var>maxBytes</var> of collected output as a {@link InputStreamSource}.
+     *
+     * @param maxBytes the maximum amount of data to return.
+     * @param offset The offset of when to start getting the data from the buffer.
+     * @return The collected output from the command.
+     */
+    public InputStreamSource getData(final int maxBytes, final int offset) {
+        long end = mCommitted.get();
+        long start = Math.max(mStart, getOldestPosition()) + offset;
+        start = Math.max(start, end - maxBytes);
+        return createView(Math.min(start, end), end);
+    }
+
+    /**
+     * Gets the collected logcat output starting at the given device date. The data might start
+     * slightly before the date since the timestamps are indexed sparsely.
+     *
+     * <p>The output is only returned if it is complete since the date: some output older than the
+     * date must still be in the ring, not overwritten or discarded by {@link #clear()}.
+     *
+     * @param date in millisecond since epoch, in the device time.
+     * @return The collected output since the date, or <code>null</code> if the output does not
+     *     contain logcat timestamps or does not reach back to the date.
+     */
+    public InputStreamSource getDataSince(long date) {
+        long end = mCommitted.get();
+        long oldest = Math.max(mStart, getOldestPosition());
+        long target =
+                parseTimestamp(new SimpleDateFormat("MM-dd HH:mm:ss.SSS").format(new Date(date)));
+        long start = -1L;
+        synchronized (mIndexLock) {
+            long first = Math.max(0L, mIndexCount - INDEX_SIZE);
+            for (long i = mIndexCount - 1; i >= first; i--) {
+                int slot = (int) (i % INDEX_SIZE);
+                if (mIndexPositions[slot] < oldest) {
+                    break;
+                }
+                if (mIndexTimestamps[slot] < target) {
+                    start = mIndexPositions[slot];
+                    break;
+                }
+            }
+        }
+        if (start < 0) {
+            // Everything still in the ring is after the date, older output might be missing.
+            return null;
+        }
+        return createView(Math.min(start, end), end);
+    }
+
+    private InputStreamSource createView(final long start, final long end) {
+        final ByteBuffer buffer = mBuffer;
+        return new InputStreamSource() {
+            @Override
+            public InputStream createInputStream() {
+                if (buffer == null) {
+                    return new RingInputStream(null, end, end);
+                }
+                return new RingInputStream(buffer.duplicate(), start, end);
+            }
+
+            @Override
+            public void close() {
+                // ignore, nothing to do
+            }
+
+            @Override
+            public long size() {
+                return end - start;
+            }
+        };
+    }
+
+    /** An {@link InputStream} reading a range of the ring directly from the mapping. */
+    private class RingInputStream extends InputStream {
+        private final ByteBuffer mView;
+        private final long mEnd;
+        private long mPosition;
+
+        RingInputStream(ByteBuffer view, long start, long end) {
+            mView = view;
+            mPosition = start;
+            mEnd = end;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (true) {
+                // Skip the data overwritten since the view was created.
+                mPosition = Math.max(mPosition, getOldestPosition());
+                if (mPosition >= mEnd) {
+                    return -1;
+                }
+                int index = (int) (mPosition % mCapacity);
+                int count = (int) Math.min(Math.min(len, mEnd - mPosition), mCapacity - index);
+                mView.position(index);
+                mView.get(b, off, count);
+                if (mPosition >= getOldestPosition()) {
+                    mPosition += count;
+                    return count;
+                }
+                // A writer overwrote the range while it was copied, read again.
+            }
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, Math.max(0L, mEnd - mPosition));
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void flush() {
+        // Nothing to do, data is visible to readers as soon as it is written.
+    }
+
+    /** Discard the currently accumulated data. */
+    public void clear() {
+        mStart = mCommitted.get();
+    }
+
+    /** Cancels the command. */
+    public void cancel() {
+        mIsCancelled = true;
+    }
+
+    /** Delete the backing file. Views already created remain readable. */
+    public void delete() {
+        mBuffer = null;
+        FileUtil.deleteFile(mFile);
+        mFile = null;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean isCancelled() {
+        return mIsCancelled;
+    }
+
+    /** Returns the size of the ring. Exposed for testing. */
+    @VisibleForTesting
+    int getCapacity() {
+        return mCapacity;
+    }
+}
@@ -781,6 +781,8 @@ public class TestInvocation implements ITestInvocation {
             DynamicRemoteFileResolver resolver = new DynamicRemoteFileResolver();
             resolver.setDevice(context.getDevices().get(0));
             resolver.addExtraArgs(config.getCommandOptions().getDynamicDownloadArgs());
+            resolver.setMaxConcurrentResolutionsPerScheme(
+                    config.getCommandOptions().getDynamicDownloadParallelism());
             config.resolveDynamicOptions(resolver);
             CurrentInvocation.setActionInProgress(ActionInProgress.UNSET);
             return true;
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.invoker.shard;
+
+import com.android.tradefed.config.IConfiguration;
+import com.android.tradefed.config.IConfigurationReceiver;
+import com.android.tradefed.config.Option;
+import com.android.tradefed.config.OptionClass;
+import com.android.tradefed.invoker.IInvocationContext;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
+import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.result.TestDescription;
+import com.android.tradefed.testtype.suite.ModuleDefinition;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link ITestInvocationListener} that records the duration of the modules and test cases into
+ * a {@link RuntimeHistoryStore}, to be used by {@link StrictShardHelper} to balance the shards of
+ * the next invocations.
+ */
+@OptionClass(alias = "runtime-history-reporter")
+public class RuntimeHistoryReporter implements ITestInvocationListener, IConfigurationReceiver {
+
+    @Option(
+            name = "runtime-history-file",
+            description = "The file where the measured durations are recorded.")
+    private File mHistoryFile =
+            new File(System.getProperty("java.io.tmpdir"), "tf-runtime-history.txt");
+
+    private final Map<String, Long> mModuleDurations = new LinkedHashMap<>();
+    private final Map<String, Long> mTestDurations = new LinkedHashMap<>();
+    private final Map<TestDescription, Long> mTestStarts = new HashMap<>();
+    private String mCurrentModule = null;
+    private long mModuleStart = 0L;
+    private int mShardCount = 1;
+
+    @Override
+    public void setConfiguration(IConfiguration configuration) {
+        if (configuration.getCommandOptions().getShardCount() != null) {
+            mShardCount = configuration.getCommandOptions().getShardCount();
+        }
+    }
+
+    @Override
+    public void invocationStarted(IInvocationContext context) {
+        mModuleDurations.clear();
+        mTestDurations.clear();
+        mTestStarts.clear();
+    }
+
+    @Override
+    public void testModuleStarted(IInvocationContext moduleContext) {
+        List<String> ids = moduleContext.getAttributes().get(ModuleDefinition.MODULE_ID);
+        mCurrentModule = (ids == null || ids.isEmpty()) ? null : ids.get(0);
+        mModuleStart = System.currentTimeMillis();
+    }
+
+    @Override
+    public void testModuleEnded() {
+        if (mCurrentModule != null) {
+            // Attempts of the same module add up, they all take time in the shard.
+            mModuleDurations.merge(
+                    mCurrentModule, System.currentTimeMillis() - mModuleStart, Long::sum);
+        }
+        mCurrentModule = null;
+    }
+
+    @Override
+    public void testStarted(TestDescription test) {
+        testStarted(test, System.currentTimeMillis());
+    }
+
+    @Override
+    public void testStarted(TestDescription test, long startTime) {
+        mTestStarts.put(test, startTime);
+    }
+
+    @Override
+    public void testEnded(TestDescription test, HashMap<String, Metric> testMetrics) {
+        testEnded(test, System.currentTimeMillis(), testMetrics);
+    }
+
+    @Override
+    public void testEnded(
+            TestDescription test, long endTime, HashMap<String, Metric> testMetrics) {
+        Long start = mTestStarts.remove(test);
+        if (start == null || mCurrentModule == null) {
+            return;
+        }
+        mTestDurations.put(
+                mCurrentModule + RuntimeHistoryStore.TEST_SEPARATOR + test.toString(),
+                endTime - start);
+    }
+
+    @Override
+    public void invocationEnded(long elapsedTime) {
+        if (mModuleDurations.isEmpty() && mTestDurations.isEmpty()) {
+            return;
+        }
+        try {
+            RuntimeHistoryStore store = new RuntimeHistoryStore(mHistoryFile);
+            store.record(mShardCount, mModuleDurations, mTestDurations);
+            CLog.d(
+                    "Recorded the duration of %s modules and %s tests in %s, digest %s",
+                    mModuleDurations.size(),
+                    mTestDurations.size(),
+                    mHistoryFile,
+                    store.getDigest());
+        } catch (IOException e) {
+            CLog.e("Failed to record runtime history in %s", mHistoryFile);
+            CLog.e(e);
+        }
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.invoker.shard;
+
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.FileUtil;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Stores the measured durations of modules and test cases from past invocations in a local file.
+ *
+ * <p>Each entry keeps an exponentially weighted average of the durations, so the estimates follow
+ * the recent runs without being thrown off by a single outlier. Module entries are keyed by the
+ * module id and the shard count of the invocation, since a module split between shards records
+ * the duration of one of its pieces. Test case entries are keyed by the module id and the test
+ * description separated by {@link #TEST_SEPARATOR}.
+ *
+ * <p>The file starts with a snapshot of the entries, followed by the samples of the recordings
+ * made since then. Each recording appends its samples under a file lock, so several invocations of
+ * the host can record their results concurrently without rewriting the file. Every {@link
+ * #RECORDS_PER_SNAPSHOT} recordings, the samples are folded into a new snapshot and the entries
+ * not updated by the last {@link #MAX_RECORDS_WITHOUT_UPDATE} recordings are dropped, so the
+ * modules and tests that no longer run do not stay in the file forever.
+ */
+public class RuntimeHistoryStore {
+
+    /** Separator between the module id and the test in the key of a test case entry. */
+    public static final String TEST_SEPARATOR = "#";
+
+    /** Separator between the module id and the shard count in the key of a module entry. */
+    private static final String SHARD_COUNT_SEPARATOR = "@";
+
+    /** Number of recordings after which an entry that was not updated is dropped. */
+    private static final long MAX_RECORDS_WITHOUT_UPDATE = 100;
+
+    /** Number of recordings appended to the file before it is rewritten as a snapshot. */
+    private static final int RECORDS_PER_SNAPSHOT = 20;
+
+    /** Key of the line holding the number of recordings made in the file. */
+    private static final String RECORD_COUNT_KEY = "records";
+
+    /** Prefix of the lines appended by a recording, alone on the line starting a recording. */
+    private static final String RECORD_PREFIX = "+";
+
+    /** Weight of the newest sample in the average. */
+    private static final double NEW_SAMPLE_WEIGHT = 0.3;
+
+    private static final String FIELD_SEPARATOR = "\t";
+
+    /** An entry of the store. */
+    private static class Entry {
+        long mSamples;
+        double mAverageMs;
+        // The recording that last updated the entry.
+        long mLastRecord;
+
+        Entry(long samples, double averageMs, long lastRecord) {
+            mSamples = samples;
+            mAverageMs = averageMs;
+            mLastRecord = lastRecord;
+        }
+
+        void add(long durationMs, long record) {
+            if (mSamples == 0) {
+                mAverageMs = durationMs;
+            } else {
+                mAverageMs += (durationMs - mAverageMs) * NEW_SAMPLE_WEIGHT;
+            }
+            mSamples++;
+            mLastRecord = record;
+        }
+    }
+
+    private final File mHistoryFile;
+    private final TreeMap<String, Entry> mEntries = new TreeMap<>();
+    private long mRecordCount = 0L;
+    // Number of recordings appended after the snapshot of the file.
+    private int mAppendedRecords = 0;
+    private String mDigest = null;
+
+    /**
+     * Load the store from the history file. A missing or unreadable file results in an empty
+     * store.
+     */
+    public RuntimeHistoryStore(File historyFile) {
+        mHistoryFile = historyFile;
+        if (mHistoryFile.exists()) {
+            try (FileChannel lock = lockHistory(false)) {
+                load();
+                mDigest = FileUtil.calculateMd5(mHistoryFile);
+            } catch (IOException e) {
+                CLog.e("Failed to load runtime history from %s", mHistoryFile);
+                CLog.e(e);
+            }
+        }
+    }
+
+    /** Returns true if the store does not contain any measurement. */
+    public synchronized boolean isEmpty() {
+        return mEntries.isEmpty();
+    }
+
+    /**
+     * Returns the MD5 of the history file content this store was loaded from, or null if there was
+     * no such file. Stores loaded from the same content give the same estimates.
+     */
+    public synchronized String getDigest() {
+        return mDigest;
+    }
+
+    /**
+     * Returns the estimated duration of the module in an invocation with the given shard count, or
+     * null if it was never measured with that shard count.
+     */
+    public synchronized Long getModuleDuration(String moduleId, int shardCount) {
+        Entry entry = mEntries.get(getModuleKey(moduleId, shardCount));
+        if (entry == null) {
+            return null;
+        }
+        return Math.round(entry.mAverageMs);
+    }
+
+    /**
+     * Returns the sum of the estimated durations of the test cases of the module, or null if none
+     * was measured.
+     */
+    public synchronized Long getTestsDuration(String moduleId) {
+        String prefix = moduleId + TEST_SEPARATOR;
+        double total = 0d;
+        boolean found = false;
+        for (Map.Entry<String, Entry> entry : mEntries.tailMap(prefix).entrySet()) {
+            if (!entry.getKey().startsWith(prefix)) {
+                break;
+            }
+            total += entry.getValue().mAverageMs;
+            found = true;
+        }
+        return found ? Math.round(total) : null;
+    }
+
+    /**
+     * Merge new measurements into the history file, and into this store.
+     *
+     * @param shardCount the shard count of the invocation that measured the durations, 1 if it
+     *     was not sharded.
+     * @param moduleDurations the measured durations of modules, keyed by module id.
+     * @param testDurations the measured durations of test cases, keyed by module id and test.
+     */
+    public synchronized void record(
+            int shardCount, Map<String, Long> moduleDurations, Map<String, Long> testDurations)
+            throws IOException {
+        try (FileChannel lock = lockHistory(true)) {
+            // Another invocation might have updated the file since it was loaded.
+            mEntries.clear();
+            mRecordCount = 0L;
+            mAppendedRecords = 0;
+            if (mHistoryFile.exists()) {
+                load();
+            }
+            StringBuilder samples = new StringBuilder();
+            samples.append(RECORD_PREFIX).append('\n');
+            mRecordCount++;
+            mAppendedRecords++;
+            for (Map.Entry<String, Long> duration : moduleDurations.entrySet()) {
+                String key = getModuleKey(duration.getKey(), shardCount);
+                if (add(key, duration.getValue())) {
+                    appendSample(samples, key, duration.getValue());
+                }
+            }
+            for (Map.Entry<String, Long> duration : testDurations.entrySet()) {
+                if (add(duration.getKey(), duration.getValue())) {
+                    appendSample(samples, duration.getKey(), duration.getValue());
+                }
+            }
+            prune();
+            if (!mHistoryFile.exists() || mAppendedRecords >= RECORDS_PER_SNAPSHOT) {
+                writeSnapshot();
+            } else {
+                try (Writer writer =
+                        new OutputStreamWriter(
+                                new FileOutputStream(mHistoryFile, true),
+                                StandardCharsets.UTF_8)) {
+                    writer.write(samples.toString());
+                }
+            }
+            mDigest = FileUtil.calculateMd5(mHistoryFile);
+        }
+    }
+
+    /**
+     * Lock the history file against the other invocations of the host. Only a recording has to
+     * get the lock, loading without it is allowed if the lock file cannot be created.
+     *
+     * @return the locked {@link FileChannel}, released once closed, or null if the lock could not
+     *     be taken for loading.
+     */
+    private FileChannel lockHistory(boolean required) throws IOException {
+        File parent = mHistoryFile.getAbsoluteFile().getParentFile();
+        File lockFile = new File(mHistoryFile.getAbsolutePath() + ".lock");
+        try {
+            if (required && parent != null) {
+                FileUtil.mkdirsRWX(parent);
+            }
+            FileChannel channel =
+                    FileChannel.open(
+                            lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            try {
+                channel.lock();
+                return channel;
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        } catch (IOException e) {
+            if (required) {
+                throw e;
+            }
+            CLog.w("Failed to lock %s, loading the runtime history without it: %s", lockFile, e);
+            return null;
+        }
+    }
+
+    private static String getModuleKey(String moduleId, int shardCount) {
+        return moduleId + SHARD_COUNT_SEPARATOR + shardCount;
+    }
+
+    /** Add a sample to the entry of the key. Returns false if the key cannot be stored. */
+    private boolean add(String key, long durationMs) {
+        if (key.contains(FIELD_SEPARATOR) || key.contains("\n")) {
+            return false;
+        }
+        mEntries.computeIfAbsent(key, k -> new Entry(0, 0d, mRecordCount))
+                .add(durationMs, mRecordCount);
+        return true;
+    }
+
+    private static void appendSample(StringBuilder samples, String key, long durationMs) {
+        samples.append(RECORD_PREFIX)
+                .append(FIELD_SEPARATOR)
+                .append(key)
+                .append(FIELD_SEPARATOR)
+                .append(durationMs)
+                .append('\n');
+    }
+
+    /** Drop the entries that were not updated by the last recordings. */
+    private void prune() {
+        Iterator<Entry> entries = mEntries.values().iterator();
+        while (entries.hasNext()) {
+            if (mRecordCount - entries.next().mLastRecord >= MAX_RECORDS_WITHOUT_UPDATE) {
+                entries.remove();
+            }
+        }
+    }
+
+    /** Replace the file with a snapshot of the entries. Must hold the history lock. */
+    private void writeSnapshot() throws IOException {
+        File parent = mHistoryFile.getAbsoluteFile().getParentFile();
+        File tmpFile = FileUtil.createTempFile("runtime-history", ".tmp", parent);
+        try {
+            StringBuilder content = new StringBuilder();
+            content.append(RECORD_COUNT_KEY)
+                    .append(FIELD_SEPARATOR)
+                    .append(mRecordCount)
+                    .append('\n');
+            for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+                content.append(entry.getKey())
+                        .append(FIELD_SEPARATOR)
+                        .append(entry.getValue().mSamples)
+                        .append(FIELD_SEPARATOR)
+                        .append(entry.getValue().mAverageMs)
+                        .append(FIELD_SEPARATOR)
+                        .append(entry.getValue().mLastRecord)
+                        .append('\n');
+            }
+            FileUtil.writeToFile(content.toString(), tmpFile);
+            Files.move(
+                    tmpFile.toPath(),
+                    mHistoryFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            mAppendedRecords = 0;
+        } finally {
+            FileUtil.deleteFile(tmpFile);
+        }
+    }
+
+    private void load() throws IOException {
+        try (BufferedReader reader = new BufferedReader(new FileReader(mHistoryFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(FIELD_SEPARATOR);
+                try {
+                    if (fields.length == 1 && RECORD_PREFIX.equals(fields[0])) {
+                        // Drop what the previous recording dropped before replaying the next one.
+                        prune();
+                        mRecordCount++;
+                        mAppendedRecords++;
+                    } else if (fields.length == 3 && RECORD_PREFIX.equals(fields[0])) {
+                        add(fields[1], Long.parseLong(fields[2]));
+                    } else if (fields.length == 2 && RECORD_COUNT_KEY.equals(fields[0])) {
+                        mRecordCount = Long.parseLong(fields[1]);
+                    } else if (fields.length == 4) {
+                        mEntries.put(
+                                fields[0],
+                                new Entry(
+                                        Long.parseLong(fields[1]),
+                                        Double.parseDouble(fields[2]),
+                                        Long.parseLong(fields[3])));
+                    }
+                } catch (NumberFormatException e) {
+                    CLog.w("Ignoring malformed runtime history entry: %s", line);
+                }
+            }
+        }
+        prune();
+    }
+}
@@ -147,6 +147,10 @@ public class ShardHelper implements IShardHelper {
                 if (config.getCommandOptions().shouldUseTokenSharding()) {
                     tokenPool = extractTokenTests(shardableTests);
                 }
+                WorkStealingTestsPool workStealingPool = null;
+                if (config.getCommandOptions().shouldUseWorkStealingSharding()) {
+                    workStealingPool = new WorkStealingTestsPool(shardableTests, maxShard);
+                }
                 for (int i = 0; i < maxShard; i++) {
                     IConfiguration shardConfig = cloneConfigObject(config);
                     try {
@@ -154,8 +158,12 @@ public class ShardHelper implements IShardHelper {
                     } catch (ConfigurationException e) {
                         throw new RuntimeException(e);
                     }
-                    TestsPoolPoller poller =
-                            new TestsPoolPoller(shardableTests, tokenPool, tracker);
+                    TestsPoolPoller poller;
+                    if (workStealingPool != null) {
+                        poller = new TestsPoolPoller(workStealingPool, i, tokenPool, tracker);
+                    } else {
+                        poller = new TestsPoolPoller(shardableTests, tokenPool, tracker);
+                    }
                     shardConfig.setTest(poller);
                     rescheduleConfig(
                             shardConfig, config, testInfo, rescheduler, resultCollector, i);
@@ -166,6 +174,13 @@ public class ShardHelper implements IShardHelper {
                 if (config.getCommandOptions().shouldUseTokenSharding()) {
                     tokenPool = extractTokenTests(shardableTests);
                 }
+                WorkStealingTestsPool workStealingPool = null;
+                if (config.getCommandOptions().shouldUseDynamicSharding()
+                        && config.getCommandOptions().shouldUseWorkStealingSharding()) {
+                    workStealingPool =
+                            new WorkStealingTestsPool(
+                                    shardableTests, Math.max(1, shardableTests.size()));
+                }
                 int i = 0;
                 for (IRemoteTest testShard : shardableTests) {
                     CLog.d("Rescheduling sharded config...");
@@ -175,7 +190,10 @@ public class ShardHelper implements IShardHelper {
                     } catch (ConfigurationException e) {
                         throw new RuntimeException(e);
                     }
-                    if (config.getCommandOptions().shouldUseDynamicSharding()) {
+                    if (workStealingPool != null) {
+                        shardConfig.setTest(
+                                new TestsPoolPoller(workStealingPool, i, tokenPool, tracker));
+                    } else if (config.getCommandOptions().shouldUseDynamicSharding()) {
                         TestsPoolPoller poller =
                                 new TestsPoolPoller(shardableTests, tokenPool, tracker);
                         shardConfig.setTest(poller);
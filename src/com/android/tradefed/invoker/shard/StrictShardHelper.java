@@ -29,20 +29,27 @@ import com.android.tradefed.testtype.IRemoteTest;
 import com.android.tradefed.testtype.IRuntimeHintProvider;
 import com.android.tradefed.testtype.IShardableTest;
 import com.android.tradefed.testtype.suite.ITestSuite;
+import com.android.tradefed.testtype.suite.ModuleDefinition;
 import com.android.tradefed.testtype.suite.ModuleMerger;
 import com.android.tradefed.util.TimeUtil;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /** Sharding strategy to create strict shards that do not report together, */
 public class StrictShardHelper extends ShardHelper {
 
+    private RuntimeHistoryStore mRuntimeHistory = null;
+
     /** {@inheritDoc} */
     @Override
     public boolean shardConfig(
@@ -61,6 +68,13 @@ public class StrictShardHelper extends ShardHelper {
             throw new RuntimeException("shard-count is null while shard-index is " + shardIndex);
         }
 
+        File history = config.getCommandOptions().getShardRuntimeHistory();
+        if (history != null) {
+            mRuntimeHistory =
+                    loadRuntimeHistory(
+                            history, config.getCommandOptions().getShardRuntimeHistoryDigest());
+        }
+
         // Split tests in place, without actually sharding.
         List<IRemoteTest> listAllTests = getAllTests(config, shardCount, testInfo, logger);
         // We cannot shuffle to get better average results
@@ -81,6 +95,36 @@ public class StrictShardHelper extends ShardHelper {
         return false;
     }
 
+    /**
+     * Load the runtime history, only if its content is the one given to every shard. Otherwise
+     * shards could compute different distributions, running some tests twice and others never.
+     *
+     * @param history the runtime history file.
+     * @param expectedDigest the digest of the history content given to every shard.
+     * @return the {@link RuntimeHistoryStore}, or null if it should not be used.
+     */
+    @VisibleForTesting
+    RuntimeHistoryStore loadRuntimeHistory(File history, String expectedDigest) {
+        if (!history.exists()) {
+            CLog.w("Runtime history %s does not exist, ignoring it.", history);
+            return null;
+        }
+        if (expectedDigest == null) {
+            CLog.w(
+                    "No --shard-runtime-history-digest to check that all shards use the same "
+                            + "runtime history, ignoring it.");
+            return null;
+        }
+        RuntimeHistoryStore store = new RuntimeHistoryStore(history);
+        if (!expectedDigest.equalsIgnoreCase(store.getDigest())) {
+            CLog.w(
+                    "Runtime history %s has digest %s instead of %s, ignoring it.",
+                    history, store.getDigest(), expectedDigest);
+            return null;
+        }
+        return store;
+    }
+
     /**
      * Helper to re order the list full list of {@link IRemoteTest} for mainline.
      *
@@ -184,6 +228,12 @@ public class StrictShardHelper extends ShardHelper {
      */
     @VisibleForTesting
     protected List<List<IRemoteTest>> splitTests(List<IRemoteTest> fullList, int shardCount) {
+        if (mRuntimeHistory != null && !mRuntimeHistory.isEmpty()) {
+            List<List<IRemoteTest>> shards = historyDistrib(fullList, shardCount);
+            if (shards != null) {
+                return shards;
+            }
+        }
         List<List<IRemoteTest>> shards = new ArrayList<>();
         // We are using Match.ceil to avoid the last shard having too much extra.
         int numPerShard = (int) Math.ceil(fullList.size() / (float) shardCount);
@@ -205,6 +255,117 @@ public class StrictShardHelper extends ShardHelper {
         return shards;
     }
 
+    /** Sets the {@link RuntimeHistoryStore} used to balance the shards. */
+    @VisibleForTesting
+    void setRuntimeHistory(RuntimeHistoryStore runtimeHistory) {
+        mRuntimeHistory = runtimeHistory;
+    }
+
+    /**
+     * Distribute the tests using the durations measured in past invocations: the longest tests are
+     * assigned first, each one to the shard with the lowest estimated time so far (Longest
+     * Processing Time first). Tests without history are estimated with the median of the known
+     * ones. The distribution only depends on the list of tests and the history, whose content is
+     * checked to be the same in each shard, so each shard computes the same plan.
+     *
+     * @return the shards, or null if none of the tests has a history.
+     */
+    private List<List<IRemoteTest>> historyDistrib(List<IRemoteTest> fullList, int shardCount) {
+        // Modules split with intra-module sharding share the duration of their test cases.
+        Map<String, Integer> pieces = new HashMap<>();
+        for (IRemoteTest test : fullList) {
+            String moduleId = getModuleId(test);
+            if (moduleId != null) {
+                pieces.merge(moduleId, 1, Integer::sum);
+            }
+        }
+        Long[] estimates = new Long[fullList.size()];
+        List<Long> known = new ArrayList<>();
+        for (int i = 0; i < fullList.size(); i++) {
+            String moduleId = getModuleId(fullList.get(i));
+            if (moduleId == null) {
+                continue;
+            }
+            // Each piece of a split module records its own duration, so the module duration
+            // recorded with the same shard count is already the one of a piece.
+            Long duration = mRuntimeHistory.getModuleDuration(moduleId, shardCount);
+            if (duration == null) {
+                Long testsDuration = mRuntimeHistory.getTestsDuration(moduleId);
+                if (testsDuration != null) {
+                    duration = testsDuration / pieces.get(moduleId);
+                }
+            }
+            if (duration != null) {
+                estimates[i] = duration;
+                known.add(duration);
+            }
+        }
+        if (known.isEmpty()) {
+            CLog.d("No runtime history for the tests, using the default distribution.");
+            return null;
+        }
+        long defaultEstimate = median(known);
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < fullList.size(); i++) {
+            if (estimates[i] == null) {
+                estimates[i] = defaultEstimate;
+            }
+            order.add(i);
+        }
+        // Longest first, ties keep the original order.
+        order.sort((a, b) -> Long.compare(estimates[b], estimates[a]));
+
+        long[] loads = new long[shardCount];
+        List<List<Integer>> assigned = new ArrayList<>();
+        for (int i = 0; i < shardCount; i++) {
+            assigned.add(new ArrayList<>());
+        }
+        PriorityQueue<Integer> leastLoaded =
+                new PriorityQueue<>(
+                        shardCount,
+                        (a, b) -> loads[a] != loads[b] ? Long.compare(loads[a], loads[b]) : a - b);
+        for (int i = 0; i < shardCount; i++) {
+            leastLoaded.add(i);
+        }
+        for (int testIndex : order) {
+            int shard = leastLoaded.poll();
+            assigned.get(shard).add(testIndex);
+            loads[shard] += estimates[testIndex];
+            leastLoaded.add(shard);
+        }
+
+        List<List<IRemoteTest>> shards = new ArrayList<>();
+        for (int i = 0; i < shardCount; i++) {
+            List<Integer> indexes = assigned.get(i);
+            Collections.sort(indexes);
+            List<IRemoteTest> shard = new ArrayList<>();
+            for (int testIndex : indexes) {
+                shard.add(fullList.get(testIndex));
+            }
+            CLog.d(
+                    "Shard %s estimated time from history: %s",
+                    i, TimeUtil.formatElapsedTime(loads[i]));
+            shards.add(shard);
+        }
+        return shards;
+    }
+
+    /** Returns the median of the durations. */
+    private static long median(List<Long> durations) {
+        List<Long> sorted = new ArrayList<>(durations);
+        Collections.sort(sorted);
+        return sorted.get(sorted.size() / 2);
+    }
+
+    /** Returns the module id of a suite module, or null for other tests. */
+    private String getModuleId(IRemoteTest test) {
+        if (!(test instanceof ITestSuite)) {
+            return null;
+        }
+        ModuleDefinition module = ((ITestSuite) test).getDirectModule();
+        return module == null ? null : module.getId();
+    }
+
     private List<List<IRemoteTest>> balancedDistrib(
             List<IRemoteTest> fullList, int shardCount, int numPerShard, boolean needsCorrection) {
         List<List<IRemoteTest>> shards = new ArrayList<>();
@@ -81,6 +81,8 @@ public final class TestsPoolPoller
     private static final long WAIT_RECOVERY_TIME = 15 * 60 * 1000;
 
     private Collection<IRemoteTest> mGenericPool;
+    private WorkStealingTestsPool mWorkStealingPool;
+    private int mPollerIndex;
     private Collection<ITokenRequest> mTokenPool;
     private CountDownLatch mTracker;
     private Set<ITokenRequest> mRejectedToken;
@@ -112,6 +114,24 @@ public final class TestsPoolPoller
         mRejectedToken = Sets.newConcurrentHashSet();
     }
 
+    /**
+     * Ctor where the tests are shared through a {@link WorkStealingTestsPool}.
+     *
+     * @param pool the {@link WorkStealingTestsPool} shared by all the pollers.
+     * @param pollerIndex the index of this poller in the pool.
+     * @param tokenTests the pool of tests requiring tokens, can be null.
+     * @param tracker a {@link CountDownLatch} shared to get the number of running poller.
+     */
+    public TestsPoolPoller(
+            WorkStealingTestsPool pool,
+            int pollerIndex,
+            Collection<ITokenRequest> tokenTests,
+            CountDownLatch tracker) {
+        this(null, tokenTests, tracker);
+        mWorkStealingPool = pool;
+        mPollerIndex = pollerIndex;
+    }
+
     /** Returns the first {@link IRemoteTest} from the pool or null if none remaining. */
     IRemoteTest poll() {
         return poll(false);
@@ -150,6 +170,12 @@ public final class TestsPoolPoller
                 }
             }
         }
+        if (mWorkStealingPool != null) {
+            if (reportNotExecuted) {
+                return mWorkStealingPool.pollAny();
+            }
+            return mWorkStealingPool.poll(mPollerIndex);
+        }
         synchronized (mGenericPool) {
             if (mGenericPool.isEmpty()) {
                 return null;
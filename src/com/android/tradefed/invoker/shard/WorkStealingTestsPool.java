@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.invoker.shard;
+
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.testtype.IRemoteTest;
+import com.android.tradefed.testtype.IRuntimeHintProvider;
+import com.android.tradefed.testtype.suite.ITestSuite;
+import com.android.tradefed.testtype.suite.ModuleDefinition;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+/**
+ * A pool of {@link IRemoteTest} shared by several {@link TestsPoolPoller} where each poller owns a
+ * queue of work and steals from the other pollers when its own queue is empty.
+ *
+ * <p>Tests are dealt to the pollers longest first, based on their {@link IRuntimeHintProvider}
+ * hint, so long modules do not start at the end of the invocation. Modules split with
+ * intra-module sharding are made of several {@link ITestSuite} sharing the pool of test case
+ * batches of the module: any poller holding one of them helps draining the batches of the module.
+ * Those are only handed out while batches of the module remain, otherwise a poller would run the
+ * module setup for nothing. Modules without any test case from the start are still handed out, so
+ * they report their empty run.
+ */
+public final class WorkStealingTestsPool {
+
+    private final List<Deque<IRemoteTest>> mQueues = new ArrayList<>();
+    // Modules without test cases when the pool was created, so never drained by other pollers.
+    private final Set<IRemoteTest> mEmptyModules =
+            Collections.newSetFromMap(new IdentityHashMap<>());
+
+    /**
+     * Ctor.
+     *
+     * @param tests the {@link IRemoteTest}s of the pool.
+     * @param pollerCount the number of pollers sharing the pool.
+     */
+    public WorkStealingTestsPool(Collection<IRemoteTest> tests, int pollerCount) {
+        if (pollerCount < 1) {
+            throw new IllegalArgumentException("pollerCount must be at least 1.");
+        }
+        for (int i = 0; i < pollerCount; i++) {
+            mQueues.add(new ConcurrentLinkedDeque<>());
+        }
+        Map<IRemoteTest, Long> hints = new IdentityHashMap<>();
+        for (IRemoteTest test : tests) {
+            hints.put(test, getRuntimeHint(test));
+            ModuleDefinition module = getModule(test);
+            if (module != null && module.numTests() == 0) {
+                mEmptyModules.add(test);
+            }
+        }
+        List<IRemoteTest> sorted = new ArrayList<>(tests);
+        // Stable sort: tests without hint keep their relative order.
+        sorted.sort((a, b) -> Long.compare(hints.get(b), hints.get(a)));
+        for (int i = 0; i < sorted.size(); i++) {
+            mQueues.get(i % pollerCount).addLast(sorted.get(i));
+        }
+    }
+
+    /**
+     * Returns the next {@link IRemoteTest} for the poller, stolen from another poller if needed,
+     * or null if no work remains in the pool.
+     *
+     * @param pollerIndex the index of the poller in [0, pollerCount).
+     */
+    public IRemoteTest poll(int pollerIndex) {
+        Deque<IRemoteTest> own = mQueues.get(pollerIndex);
+        IRemoteTest test;
+        while ((test = own.pollFirst()) != null) {
+            if (hasWork(test)) {
+                return test;
+            }
+        }
+        while (true) {
+            Deque<IRemoteTest> victim = findVictim(pollerIndex);
+            if (victim == null) {
+                return null;
+            }
+            // Steal from the tail to limit the contention with the owner.
+            test = victim.pollLast();
+            if (test != null && hasWork(test)) {
+                CLog.d("Poller %s stole %s", pollerIndex, test);
+                return test;
+            }
+        }
+    }
+
+    /**
+     * Returns any {@link IRemoteTest} remaining in the pool, regardless of whether it still has
+     * work, or null if the pool is empty. Used to report the tests that did not execute.
+     */
+    public IRemoteTest pollAny() {
+        for (Deque<IRemoteTest> queue : mQueues) {
+            IRemoteTest test = queue.pollFirst();
+            if (test != null) {
+                return test;
+            }
+        }
+        return null;
+    }
+
+    /** Returns the number of {@link IRemoteTest} remaining in the pool. */
+    public int size() {
+        int size = 0;
+        for (Deque<IRemoteTest> queue : mQueues) {
+            size += queue.size();
+        }
+        return size;
+    }
+
+    /** Returns the non-empty queue of another poller with the most tests, or null if none. */
+    private Deque<IRemoteTest> findVictim(int pollerIndex) {
+        Deque<IRemoteTest> victim = null;
+        int victimSize = 0;
+        for (int i = 0; i < mQueues.size(); i++) {
+            if (i == pollerIndex) {
+                continue;
+            }
+            int size = mQueues.get(i).size();
+            if (size > victimSize) {
+                victim = mQueues.get(i);
+                victimSize = size;
+            }
+        }
+        return victim;
+    }
+
+    /** Returns false if the test is a module whose batches were all taken by other pollers. */
+    private boolean hasWork(IRemoteTest test) {
+        if (mEmptyModules.contains(test)) {
+            return true;
+        }
+        ModuleDefinition module = getModule(test);
+        if (module != null && module.numTests() == 0) {
+            CLog.d("All batches of %s are already running, skipping it.", module.getId());
+            return false;
+        }
+        return true;
+    }
+
+    private static ModuleDefinition getModule(IRemoteTest test) {
+        if (test instanceof ITestSuite) {
+            return ((ITestSuite) test).getDirectModule();
+        }
+        return null;
+    }
+
+    private static long getRuntimeHint(IRemoteTest test) {
+        if (test instanceof IRuntimeHintProvider) {
+            return ((IRuntimeHintProvider) test).getRuntimeHint();
+        }
+        return 0L;
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.log;
+
+import com.android.ddmlib.Log.LogLevel;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes pre-formatted log records to a sink from a dedicated writer thread.
+ *
+ * <p>Callers enqueue records in a bounded lock-free ring buffer and return immediately. The writer
+ * thread drains the buffer and hands the records to the sink in batches, so the cost of the file
+ * writes is no longer paid by the thread logging. When the buffer is full, the {@link
+ * OverflowPolicy} decides whether the caller waits for space or the record is dropped.
+ */
+public final class AsyncLogWriter {
+
+    /** What to do with a record when the buffer is full. */
+    public enum OverflowPolicy {
+        /** Wait for the writer to make room, no record is lost. */
+        BLOCK,
+        /** Drop the record, and report the number of dropped records in the log. */
+        DROP,
+    }
+
+    /** The destination of the records. */
+    public interface ILogSink {
+        /** Write a batch of records. */
+        void write(String batch) throws IOException;
+    }
+
+    private static final int MAX_BATCH_CHARS = 64 * 1024;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private final ILogSink mSink;
+    private final OverflowPolicy mPolicy;
+    private final AtomicReferenceArray<String> mSlots;
+    private final int mMask;
+    /** Next sequence to be claimed by a producer. */
+    private final AtomicLong mTail = new AtomicLong();
+    /** Next sequence to be consumed, only written by the writer thread. */
+    private final AtomicLong mHead = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    private final Thread mWriterThread;
+    private volatile boolean mWriterIdle = false;
+    private volatile boolean mClosed = false;
+
+    /**
+     * Ctor.
+     *
+     * @param name the name of the writer thread.
+     * @param sink the {@link ILogSink} receiving the records.
+     * @param capacity the number of records the buffer can hold, rounded up to a power of two.
+     * @param policy the {@link OverflowPolicy} when the buffer is full.
+     */
+    public AsyncLogWriter(String name, ILogSink sink, int capacity, OverflowPolicy policy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1.");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        mSlots = new AtomicReferenceArray<>(size);
+        mMask = size - 1;
+        mSink = sink;
+        mPolicy = policy;
+        mWriterThread = new Thread(this::writeLoop, name);
+        mWriterThread.setDaemon(true);
+        mWriterThread.start();
+    }
+
+    /**
+     * Enqueue a record.
+     *
+     * @return false if the record was dropped or the writer is closed.
+     */
+    public boolean offer(String record) {
+        if (mClosed) {
+            return false;
+        }
+        while (true) {
+            long tail = mTail.get();
+            if (tail - mHead.get() >= mSlots.length()) {
+                if (mPolicy == OverflowPolicy.DROP || mClosed) {
+                    mDropped.incrementAndGet();
+                    return false;
+                }
+                wakeUpWriter();
+                Thread.yield();
+                continue;
+            }
+            if (mTail.compareAndSet(tail, tail + 1)) {
+                mSlots.set((int) (tail & mMask), record);
+                wakeUpWriter();
+                return true;
+            }
+        }
+    }
+
+    /** Wait until all the records enqueued before the call are handed to the sink. */
+    public void flush() {
+        long target = mTail.get();
+        while (mHead.get() < target && mWriterThread.isAlive()) {
+            wakeUpWriter();
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+        }
+    }
+
+    /** Flush the pending records and stop the writer thread. */
+    public void close() {
+        flush();
+        mClosed = true;
+        LockSupport.unpark(mWriterThread);
+        try {
+            mWriterThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Returns the number of records dropped because the buffer was full. */
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    private void wakeUpWriter() {
+        if (mWriterIdle) {
+            LockSupport.unpark(mWriterThread);
+        }
+    }
+
+    private void writeLoop() {
+        StringBuilder batch = new StringBuilder();
+        long reportedDrops = 0L;
+        while (true) {
+            long head = mHead.get();
+            while (head < mTail.get() && batch.length() < MAX_BATCH_CHARS) {
+                int index = (int) (head & mMask);
+                String record = mSlots.get(index);
+                if (record == null) {
+                    // The producer claimed the slot but did not publish the record yet.
+                    break;
+                }
+                mSlots.lazySet(index, null);
+                batch.append(record);
+                head++;
+            }
+            long dropped = mDropped.get();
+            if (dropped > reportedDrops) {
+                batch.append(
+                        LogUtil.getLogFormatString(
+                                LogLevel.WARN,
+                                "AsyncLogWriter",
+                                String.format(
+                                        "%d log records dropped, log buffer was full.",
+                                        dropped - reportedDrops)));
+                reportedDrops = dropped;
+            }
+            if (batch.length() > 0) {
+                write(batch.toString());
+                batch.setLength(0);
+                // Publish the progress after the write, so flush() waits for the sink.
+                mHead.set(head);
+                continue;
+            }
+            if (mClosed && head == mTail.get()) {
+                return;
+            }
+            mWriterIdle = true;
+            if (head == mTail.get() || mSlots.get((int) (head & mMask)) == null) {
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+            }
+            mWriterIdle = false;
+        }
+    }
+
+    private void write(String batch) {
+        try {
+            mSink.write(batch);
+        } catch (IOException | RuntimeException e) {
+            // Like the synchronous loggers, a failed write is reported but does not stop logging.
+            e.printStackTrace();
+        }
+    }
+}
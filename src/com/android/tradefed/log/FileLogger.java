@@ -18,6 +18,7 @@ package com.android.tradefed.log;
 import com.android.tradefed.config.Option;
 import com.android.tradefed.config.OptionClass;
 import com.android.tradefed.config.OptionCopier;
+import com.android.tradefed.log.AsyncLogWriter.OverflowPolicy;
 import com.android.tradefed.result.ByteArrayInputStreamSource;
 import com.android.tradefed.result.InputStreamSource;
 import com.android.tradefed.result.SnapshotInputStreamSource;
@@ -38,6 +39,25 @@ public class FileLogger extends BaseStreamLogger<SizeLimitedOutputStream> {
     @Option(name = "max-log-size", description = "maximum allowable size of tmp log data in mB.")
     private long mMaxLogSizeMbytes = 20;
 
+    @Option(
+            name = "async-log",
+            description =
+                    "Write the log file from a background thread, so logging does not wait for "
+                            + "the file writes.")
+    private boolean mAsyncLog = false;
+
+    @Option(
+            name = "async-log-buffer-size",
+            description = "Number of log records buffered for the background writer.")
+    private int mAsyncLogBufferSize = 8192;
+
+    @Option(
+            name = "async-log-overflow-policy",
+            description = "What to do with new log records when the buffer is full.")
+    private OverflowPolicy mAsyncLogOverflowPolicy = OverflowPolicy.BLOCK;
+
+    private volatile AsyncLogWriter mAsyncWriter = null;
+
     @Override
     public void init() throws IOException {
         init(TEMP_FILE_PREFIX, TEMP_FILE_SUFFIX);
@@ -52,6 +72,14 @@ public class FileLogger extends BaseStreamLogger<SizeLimitedOutputStream> {
     protected void init(String logPrefix, String fileSuffix) {
         mOutputStream =
                 new SizeLimitedOutputStream(mMaxLogSizeMbytes * 1024 * 1024, logPrefix, fileSuffix);
+        if (mAsyncLog) {
+            mAsyncWriter =
+                    new AsyncLogWriter(
+                            getClass().getSimpleName() + "-writer",
+                            super::writeToLog,
+                            mAsyncLogBufferSize,
+                            mAsyncLogOverflowPolicy);
+        }
     }
 
     /**
@@ -72,8 +100,19 @@ public class FileLogger extends BaseStreamLogger<SizeLimitedOutputStream> {
         return mMaxLogSizeMbytes;
     }
 
+    @Override
+    protected void writeToLog(String message) throws IOException {
+        AsyncLogWriter writer = mAsyncWriter;
+        if (writer != null) {
+            writer.offer(message);
+        } else {
+            super.writeToLog(message);
+        }
+    }
+
     @Override
     public InputStreamSource getLog() {
+        flushAsyncWriter();
         if (mOutputStream != null) {
             try {
                 // create a InputStream from log file
@@ -95,6 +134,12 @@ public class FileLogger extends BaseStreamLogger<SizeLimitedOutputStream> {
     /** Flushes stream and closes log file. */
     @VisibleForTesting
     void doCloseLog() {
+        // Records still buffered are written before the file is closed.
+        AsyncLogWriter writer = mAsyncWriter;
+        mAsyncWriter = null;
+        if (writer != null) {
+            writer.close();
+        }
         SizeLimitedOutputStream stream = mOutputStream;
         mOutputStream = null;
         StreamUtil.flushAndCloseStream(stream);
@@ -110,8 +155,17 @@ public class FileLogger extends BaseStreamLogger<SizeLimitedOutputStream> {
      * @throws IOException if an I/O error occurs
      */
     void dumpToLog(InputStream inputStream) throws IOException {
+        flushAsyncWriter();
         if (mOutputStream != null) {
             StreamUtil.copyStreams(inputStream, mOutputStream);
         }
     }
+
+    /** Wait for the records buffered by the background writer to reach the log file. */
+    private void flushAsyncWriter() {
+        AsyncLogWriter writer = mAsyncWriter;
+        if (writer != null) {
+            writer.flush();
+        }
+    }
 }
@@ -26,9 +26,9 @@ import java.io.InputStream;
 import java.text.SimpleDateFormat;
 import java.util.Collection;
 import java.util.Date;
-import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A {@link ILogRegistry} implementation that multiplexes and manages different loggers,
@@ -44,7 +44,8 @@ public class LogRegistry implements ILogRegistry {
     private static final String GLOBAL_LOG_PREFIX = "tradefed_global_log_";
     private static final String HISTORY_LOG_PREFIX = "tradefed_history_log_";
     private static LogRegistry mLogRegistry = null;
-    private Map<ThreadGroup, ILeveledLogOutput> mLogTable = new Hashtable<>();
+    // Looked up on every log call: reads do not lock, updates still synchronize on the table.
+    private Map<ThreadGroup, ILeveledLogOutput> mLogTable = new ConcurrentHashMap<>();
     private FileLogger mGlobalLogger;
     private HistoryLogger mHistoryLogger;
 
@@ -185,14 +186,14 @@ public class LogRegistry implements ILogRegistry {
      *     for the thread group.
      */
     public ILeveledLogOutput getLogger() {
-        synchronized (mLogTable) {
-            ILeveledLogOutput log = mLogTable.get(getCurrentThreadGroup());
-            if (log == null) {
-                // If there's no logger set for this thread, use global logger
-                log = mGlobalLogger;
-            }
-            return log;
+        ThreadGroup currentThreadGroup = getCurrentThreadGroup();
+        ILeveledLogOutput log =
+                currentThreadGroup == null ? null : mLogTable.get(currentThreadGroup);
+        if (log == null) {
+            // If there's no logger set for this thread, use global logger
+            log = mGlobalLogger;
         }
+        return log;
     }
 
     /**
@@ -17,23 +17,17 @@ package com.android.tradefed.postprocessor;
 
 import com.android.tradefed.config.Option;
 import com.android.tradefed.config.OptionClass;
-import com.android.tradefed.metrics.proto.MetricMeasurement.Measurements;
 import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
 import com.android.tradefed.result.LogFile;
 import com.android.tradefed.result.TestDescription;
 import com.android.tradefed.util.MetricUtility;
+import com.android.tradefed.util.StreamingStats;
 
-import com.google.common.collect.ArrayListMultimap;
-
-import java.util.Arrays;
-import java.util.Collection;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.List;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
-import java.util.stream.Collectors;
 
 /**
  * A metric aggregator that gives the min, max, mean, variance, standard deviation, total, count and
@@ -58,10 +52,10 @@ public class AggregatePostProcessor extends BasePostProcessor {
     // Separator for final upload
     private static final String STATS_KEY_SEPARATOR = "-";
 
-    // Stores the test metrics for aggregation by test description.
+    // Stores the stats of the test metrics for aggregation by test description. The stats of a
+    // metric with any non-numeric value are null.
     // TODO(b/118708851): Remove this workaround once AnTS is ready.
-    private HashMap<String, ArrayListMultimap<String, Metric>> mStoredTestMetrics =
-            new HashMap<String, ArrayListMultimap<String, Metric>>();
+    private Map<String, Map<String, StreamingStats>> mStoredTestStats = new HashMap<>();
 
     @Override
     public Map<String, Metric.Builder> processTestMetricsAndLogs(
@@ -71,44 +65,27 @@ public class AggregatePostProcessor extends BasePostProcessor {
         // TODO(b/118708851): Move this processing elsewhere once AnTS is ready.
         // Use the string representation of the test description to key the tests.
         String fullTestName = testDescription.toString();
-        // Store result from the current test.
-        if (!mStoredTestMetrics.containsKey(fullTestName)) {
-            mStoredTestMetrics.put(fullTestName, ArrayListMultimap.create());
-        }
-        ArrayListMultimap<String, Metric> storedMetricsForThisTest =
-                mStoredTestMetrics.get(fullTestName);
+        // Add the values of the current test to the stats of its previous iterations.
+        Map<String, StreamingStats> storedStatsForThisTest =
+                mStoredTestStats.computeIfAbsent(fullTestName, k -> new LinkedHashMap<>());
         for (Map.Entry<String, Metric> entry : testMetrics.entrySet()) {
-            storedMetricsForThisTest.put(entry.getKey(), entry.getValue());
+            if (storedStatsForThisTest.containsKey(entry.getKey())
+                    && storedStatsForThisTest.get(entry.getKey()) == null) {
+                continue;
+            }
+            StreamingStats stats =
+                    storedStatsForThisTest.computeIfAbsent(
+                            entry.getKey(), k -> new StreamingStats());
+            if (!MetricUtility.addDoubleValues(stats, entry.getValue())) {
+                storedStatsForThisTest.put(entry.getKey(), null);
+            }
         }
         // Aggregate all data in iterations of this test.
         Map<String, Metric.Builder> aggregateMetrics = new HashMap<String, Metric.Builder>();
-        for (String metricKey : storedMetricsForThisTest.keySet()) {
-            List<Metric> metrics = storedMetricsForThisTest.get(metricKey);
-            List<Measurements> measures =
-                    metrics.stream().map(Metric::getMeasurements).collect(Collectors.toList());
-            // Parse metrics into a list of SingleString values, concating lists in the process
-            List<String> rawValues =
-                    measures.stream()
-                            .map(Measurements::getSingleString)
-                            .map(
-                                    m -> {
-                                        // Split results; also deals with the case of empty results
-                                        // in a certain run
-                                        List<String> splitVals = Arrays.asList(m.split(",", 0));
-                                        if (splitVals.size() == 1 && splitVals.get(0).isEmpty()) {
-                                            return Collections.<String>emptyList();
-                                        }
-                                        return splitVals;
-                                    })
-                            .flatMap(Collection::stream)
-                            .map(String::trim)
-                            .collect(Collectors.toList());
-            // Do not report empty metrics
-            if (rawValues.isEmpty()) {
-                continue;
-            }
-            if (MetricUtility.isAllDoubleValues(rawValues)) {
-                buildStats(metricKey, rawValues, aggregateMetrics);
+        for (Map.Entry<String, StreamingStats> entry : storedStatsForThisTest.entrySet()) {
+            // Do not report empty or non-numeric metrics
+            if (entry.getValue() != null && !entry.getValue().isEmpty()) {
+                buildStats(entry.getKey(), entry.getValue(), aggregateMetrics);
             }
         }
         return aggregateMetrics;
@@ -121,11 +98,10 @@ public class AggregatePostProcessor extends BasePostProcessor {
         // parsed to double values.
         Map<String, Metric.Builder> aggregateMetrics = new HashMap<String, Metric.Builder>();
         for (Map.Entry<String, Metric> entry : rawMetrics.entrySet()) {
-            String values = entry.getValue().getMeasurements().getSingleString();
-            List<String> splitVals = Arrays.asList(values.split(",", 0));
+            StreamingStats stats = new StreamingStats();
             // Build stats for keys with any values, even only one.
-            if (MetricUtility.isAllDoubleValues(splitVals)) {
-                buildStats(entry.getKey(), splitVals, aggregateMetrics);
+            if (MetricUtility.addDoubleValues(stats, entry.getValue()) && !stats.isEmpty()) {
+                buildStats(entry.getKey(), stats, aggregateMetrics);
             }
         }
         return aggregateMetrics;
@@ -136,14 +112,12 @@ public class AggregatePostProcessor extends BasePostProcessor {
      * and stats name and update the results in aggregated metrics.
      *
      * @param metricKey key to which the values correspond to.
-     * @param values list of raw values.
+     * @param values {@link StreamingStats} of the raw values.
      * @param aggregateMetrics where final metrics will be stored.
      */
-    private void buildStats(String metricKey, List<String> values,
+    private void buildStats(String metricKey, StreamingStats values,
             Map<String, Metric.Builder> aggregateMetrics) {
-        List<Double> doubleValues = values.stream().map(Double::parseDouble)
-                .collect(Collectors.toList());
-        Map<String, Double> stats = MetricUtility.getStats(doubleValues, mPercentiles);
+        Map<String, Double> stats = MetricUtility.getStats(values, mPercentiles);
         for (String statKey : stats.keySet()) {
             Metric.Builder metricBuilder = Metric.newBuilder();
             metricBuilder
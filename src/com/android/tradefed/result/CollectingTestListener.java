@@ -30,11 +30,13 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -50,6 +52,14 @@ public class CollectingTestListener implements ITestInvocationListener, ILogSave
             description = "attempt to add test metrics values for test runs with the same name.")
     private boolean mIsAggregateMetrics = false;
 
+    @Option(
+            name = "columnar-test-results",
+            description =
+                    "Store the test results in a compact columnar form, spilling failures and "
+                            + "metrics to disk. Lowers memory usage of runs with a very large "
+                            + "number of test cases.")
+    private boolean mColumnarTestResults = false;
+
     /** Toggle the 'aggregate metrics' option */
     protected void setIsAggregrateMetrics(boolean aggregate) {
         mIsAggregateMetrics = aggregate;
@@ -84,12 +94,20 @@ public class CollectingTestListener implements ITestInvocationListener, ILogSave
     // Represents the number of tests in each TestStatus state of the merged test results. Indexed
     // by TestStatus.ordinal()
     private int[] mStatusCounts = new int[TestStatus.values().length];
+    // Merged results of each test run, and the mergers holding their previous attempts. Only the
+    // runs that changed since the last merge are merged again.
+    private final Map<String, TestRunResult> mMergedRunResults = new HashMap<>();
+    private final Map<String, TestRunResultMerger> mRunMergers = new HashMap<>();
+    private final Set<String> mDirtyRunNames = Collections.synchronizedSet(new HashSet<>());
 
     private MergeStrategy mStrategy = MergeStrategy.ONE_TESTCASE_PASS_IS_PASS;
 
     /** Sets the {@link MergeStrategy} to use when merging results. */
-    public void setMergeStrategy(MergeStrategy strategy) {
+    public synchronized void setMergeStrategy(MergeStrategy strategy) {
         mStrategy = strategy;
+        mMergedRunResults.clear();
+        mRunMergers.clear();
+        setCountDirty();
     }
 
     /**
@@ -177,6 +195,7 @@ public class CollectingTestListener implements ITestInvocationListener, ILogSave
             mDefaultRun = false;
         }
         result.setAggregateMetrics(mIsAggregateMetrics);
+        result.setColumnarStorage(mColumnarTestResults);
         return result;
     }
 
@@ -210,6 +229,8 @@ public class CollectingTestListener implements ITestInvocationListener, ILogSave
                 throw new RuntimeException(
                         "Test run results should never be null in internal structure.");
             }
+            // A previous attempt is updated, it cannot be considered as done.
+            resetRunMerger(name);
         } else if (attemptNumber == results.size()) {
             // new run
             TestRunResult result = getNewRunResult();
@@ -236,6 +257,7 @@ public class CollectingTestListener implements ITestInvocationListener, ILogSave
 
         mCurrentTestRunResult.testRunStarted(name, numTests, startTime);
         mRunInProgress = true;
+        setCountDirty();
     }
 
     /** {@inheritDoc} */
@@ -328,6 +350,7 @@ public class CollectingTestListener implements ITestInvocationListener, ILogSave
     @Override
     public void logAssociation(String dataName, LogFile logFile) {
         if (mRunInProgress) {
+            setCountDirty();
             mCurrentTestRunResult.testLogSaved(dataName, logFile);
         } else if (mCurrentModuleContext != null) {
             mModuleLogFiles.put(dataName, logFile);
@@ -421,6 +444,30 @@ public class CollectingTestListener implements ITestInvocationListener, ILogSave
         return new ArrayList<>(mMergedTestRunResults);
     }
 
+    /**
+     * Returns the merged results of a single test run, see {@link #getMergedTestRunResults()}.
+     * Only the attempts of that run are merged.
+     *
+     * @param testRunName The name given by {{@link #testRunStarted(String, int)}.
+     * @return The merged {@link TestRunResult}, or {@code null} if there are no results for that
+     *     name.
+     */
+    public synchronized TestRunResult getMergedTestRunResult(String testRunName) {
+        List<TestRunResult> results = mTestRunResultMap.get(testRunName);
+        if (results == null) {
+            return null;
+        }
+        TestRunResult res = mMergedRunResults.get(testRunName);
+        if (mDirtyRunNames.remove(testRunName) || res == null) {
+            res =
+                    mRunMergers
+                            .computeIfAbsent(testRunName, k -> new TestRunResultMerger(mStrategy))
+                            .merge(results);
+            mMergedRunResults.put(testRunName, res);
+        }
+        return res;
+    }
+
     /**
      * Returns the results for all test runs.
      *
@@ -452,8 +499,22 @@ public class CollectingTestListener implements ITestInvocationListener, ILogSave
                     mCurrentTestRunResult.getRunFailureMessage());
             mMergedTestRunResults.add(mCurrentTestRunResult);
         } else {
+            Set<String> dirtyRunNames;
+            synchronized (mDirtyRunNames) {
+                dirtyRunNames = new HashSet<>(mDirtyRunNames);
+                mDirtyRunNames.clear();
+            }
             for (Entry<String, List<TestRunResult>> results : mTestRunResultMap.entrySet()) {
-                TestRunResult res = TestRunResult.merge(results.getValue(), mStrategy);
+                String name = results.getKey();
+                TestRunResult res = mMergedRunResults.get(name);
+                if (res == null || dirtyRunNames.contains(name)) {
+                    // Only the attempts that are new or in progress go through the merge again.
+                    res =
+                            mRunMergers
+                                    .computeIfAbsent(name, k -> new TestRunResultMerger(mStrategy))
+                                    .merge(results.getValue());
+                    mMergedRunResults.put(name, res);
+                }
                 if (res == null) {
                     // Merge can return null in case of results being empty.
                     CLog.w("No results for %s", results.getKey());
@@ -480,9 +541,16 @@ public class CollectingTestListener implements ITestInvocationListener, ILogSave
      * consistent.
      */
     private void setCountDirty() {
+        // Track the run to merge again before flagging it, so the flag is never consumed first.
+        mDirtyRunNames.add(mCurrentTestRunResult.getName());
         mIsCountDirty.set(true);
     }
 
+    /** Ensures the attempts of a run are all merged again. */
+    private synchronized void resetRunMerger(String testRunName) {
+        mRunMergers.remove(testRunName);
+    }
+
     /**
      * Return all the names for all the test runs.
      *
@@ -589,6 +657,8 @@ public class CollectingTestListener implements ITestInvocationListener, ILogSave
     protected final synchronized void clearResultsForName(String testRunName) {
         setCountDirty();
         mTestRunResultMap.remove(testRunName);
+        mMergedRunResults.remove(testRunName);
+        mRunMergers.remove(testRunName);
     }
 
     /** Allows cleaning the module file so we avoid carrying them for too long. */
@@ -0,0 +1,420 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result.proto;
+
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.proto.TestRecordProto.TestRecord;
+import com.android.tradefed.util.StreamUtil;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * A service receiving the {@link TestRecord} streams of all the subprocesses of the host on a
+ * single selector thread.
+ *
+ * <p>Each registered stream gets its own port, so senders are unchanged: they connect and write
+ * length-prefixed (delimited) {@link TestRecord} frames. Frames are decoded on the selector thread
+ * and handed to a dispatch pool, which delivers them to the stream handler in order. Each thread
+ * group registering streams has its own small pool of dispatch threads, so the logs and metrics of
+ * the handlers still go to the invocation that registered the stream. Streams take turns on those
+ * threads, dispatching a bounded batch of frames at a time. When a stream's handler falls behind
+ * by more than the high watermark of pending bytes, reading from its socket is paused until the
+ * backlog drains below the low watermark. TCP flow control then slows down the sender instead of
+ * the receiver buffering without bound.
+ */
+public final class ProtoEventReceiverService {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int DEFAULT_HIGH_WATERMARK = 8 * 1024 * 1024;
+    private static final int DISPATCH_THREADS = 4;
+    private static final int DISPATCH_BATCH_SIZE = 64;
+    private static final long DISPATCH_KEEP_ALIVE_SEC = 30;
+
+    private static ProtoEventReceiverService sInstance = null;
+
+    private final Selector mSelector;
+    private final Thread mSelectorThread;
+    // Thread group to its dispatch threads. Guarded by itself.
+    private final Map<ThreadGroup, ExecutorService> mDispatchPools = new WeakHashMap<>();
+    private final Queue<Runnable> mSelectorTasks = new ConcurrentLinkedQueue<>();
+    private final long mHighWatermark;
+    private final long mLowWatermark;
+
+    /** Returns the instance of the service shared by the whole process. */
+    public static synchronized ProtoEventReceiverService getInstance() throws IOException {
+        if (sInstance == null) {
+            sInstance = new ProtoEventReceiverService(DEFAULT_HIGH_WATERMARK);
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    ProtoEventReceiverService(long highWatermark) throws IOException {
+        mHighWatermark = highWatermark;
+        mLowWatermark = highWatermark / 2;
+        mSelector = Selector.open();
+        mSelectorThread = new Thread(this::selectLoop, "ProtoEventReceiverService");
+        mSelectorThread.setDaemon(true);
+        mSelectorThread.start();
+    }
+
+    /**
+     * Register a new stream of events.
+     *
+     * @param handler receives the {@link TestRecord}s of the stream, in order. If it throws, the
+     *     stream is closed.
+     * @return the {@link Registration} of the stream, giving the port the sender should connect
+     *     to.
+     */
+    public Registration register(Consumer<TestRecord> handler) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        try {
+            server.bind(null);
+            server.configureBlocking(false);
+        } catch (IOException e) {
+            StreamUtil.close(server);
+            throw e;
+        }
+        Registration registration =
+                new Registration(
+                        server, handler, getDispatchPool(Thread.currentThread().getThreadGroup()));
+        runOnSelector(
+                () -> {
+                    try {
+                        server.register(mSelector, SelectionKey.OP_ACCEPT, registration);
+                    } catch (IOException e) {
+                        CLog.e(e);
+                        registration.close();
+                    }
+                });
+        return registration;
+    }
+
+    /** Shut down the service, used for testing. */
+    @VisibleForTesting
+    void shutdown() {
+        mSelectorThread.interrupt();
+        mSelector.wakeup();
+        List<ExecutorService> pools;
+        synchronized (mDispatchPools) {
+            pools = new ArrayList<>(mDispatchPools.values());
+        }
+        for (ExecutorService pool : pools) {
+            pool.shutdown();
+        }
+    }
+
+    private ExecutorService getDispatchPool(ThreadGroup group) {
+        synchronized (mDispatchPools) {
+            return mDispatchPools.computeIfAbsent(group, this::createDispatchPool);
+        }
+    }
+
+    private ExecutorService createDispatchPool(ThreadGroup group) {
+        // Only a weak reference to the group is kept, so it is released with the invocation.
+        WeakReference<ThreadGroup> groupRef = new WeakReference<>(group);
+        // A stream has at most one dispatch task queued or running, so the queue is bounded by the
+        // number of streams.
+        ThreadPoolExecutor pool =
+                new ThreadPoolExecutor(
+                        DISPATCH_THREADS,
+                        DISPATCH_THREADS,
+                        DISPATCH_KEEP_ALIVE_SEC,
+                        TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<>(),
+                        r -> {
+                            Thread thread;
+                            try {
+                                thread = new Thread(groupRef.get(), r, "ProtoEventDispatcher");
+                            } catch (IllegalThreadStateException e) {
+                                // The group was destroyed, fallback to the group of the caller.
+                                thread = new Thread(r, "ProtoEventDispatcher");
+                            }
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    private void runOnSelector(Runnable task) {
+        mSelectorTasks.add(task);
+        mSelector.wakeup();
+    }
+
+    private void selectLoop() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                mSelector.select();
+            } catch (IOException e) {
+                CLog.e(e);
+                continue;
+            }
+            Runnable task;
+            while ((task = mSelectorTasks.poll()) != null) {
+                task.run();
+            }
+            Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                Registration registration = (Registration) key.attachment();
+                if (!key.isValid()) {
+                    continue;
+                }
+                try {
+                    if (key.isAcceptable()) {
+                        registration.accept(key);
+                    } else if (key.isReadable()) {
+                        registration.read(key);
+                    }
+                } catch (IOException e) {
+                    CLog.e(e);
+                    registration.endOfStream();
+                }
+            }
+        }
+        StreamUtil.close(mSelector);
+    }
+
+    /** A decoded frame waiting to be dispatched. */
+    private static final class Frame {
+        final TestRecord mRecord;
+        final int mSize;
+
+        Frame(TestRecord record, int size) {
+            mRecord = record;
+            mSize = size;
+        }
+    }
+
+    /** A registered stream of events from one sender. */
+    public final class Registration {
+        private final ServerSocketChannel mServer;
+        private final Consumer<TestRecord> mHandler;
+        private final ExecutorService mDispatchPool;
+        private final Queue<Frame> mPending = new ConcurrentLinkedQueue<>();
+        private final AtomicLong mPendingBytes = new AtomicLong();
+        private final AtomicBoolean mDispatching = new AtomicBoolean(false);
+        private final AtomicBoolean mPaused = new AtomicBoolean(false);
+        private final CountDownLatch mCompleted = new CountDownLatch(1);
+        private volatile boolean mEndOfStream = false;
+
+        // Only accessed from the selector thread.
+        private SocketChannel mClient;
+        private SelectionKey mClientKey;
+        private ByteBuffer mReadBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+        private Registration(
+                ServerSocketChannel server,
+                Consumer<TestRecord> handler,
+                ExecutorService dispatchPool) {
+            mServer = server;
+            mHandler = handler;
+            mDispatchPool = dispatchPool;
+        }
+
+        /** Returns the port where the sender should connect. */
+        public int getPort() {
+            return mServer.socket().getLocalPort();
+        }
+
+        /**
+         * Wait for the stream to be fully received and dispatched.
+         *
+         * @return True if the stream completed in time, false otherwise.
+         */
+        public boolean awaitCompletion(long millis) throws InterruptedException {
+            return mCompleted.await(millis, TimeUnit.MILLISECONDS);
+        }
+
+        /** Returns whether reading from the sender is paused because of the backlog. */
+        @VisibleForTesting
+        boolean isPaused() {
+            return mPaused.get();
+        }
+
+        /** Close the stream. Events already received are still dispatched. */
+        public void close() {
+            runOnSelector(this::endOfStream);
+        }
+
+        private void accept(SelectionKey key) throws IOException {
+            SocketChannel client = mServer.accept();
+            if (client == null) {
+                return;
+            }
+            // Like the blocking receivers, only one sender per stream.
+            key.cancel();
+            StreamUtil.close(mServer);
+            client.configureBlocking(false);
+            mClient = client;
+            mClientKey = client.register(mSelector, SelectionKey.OP_READ, this);
+        }
+
+        private void read(SelectionKey key) throws IOException {
+            int read = mClient.read(mReadBuffer);
+            if (read < 0) {
+                endOfStream();
+                return;
+            }
+            mReadBuffer.flip();
+            boolean decoded = true;
+            while (decoded) {
+                decoded = decodeFrame();
+            }
+            mReadBuffer.compact();
+            if (mPendingBytes.get() > mHighWatermark && mPaused.compareAndSet(false, true)) {
+                key.interestOps(0);
+                // The dispatcher might have drained everything before the pause was visible.
+                if (mPendingBytes.get() <= mLowWatermark) {
+                    resume();
+                }
+            }
+            scheduleDispatch();
+        }
+
+        /** Decode one frame from the read buffer, returns false if it is not fully received. */
+        private boolean decodeFrame() throws InvalidProtocolBufferException {
+            int start = mReadBuffer.position();
+            int size = 0;
+            int shift = 0;
+            while (true) {
+                if (!mReadBuffer.hasRemaining()) {
+                    mReadBuffer.position(start);
+                    return false;
+                }
+                byte b = mReadBuffer.get();
+                size |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+                shift += 7;
+                if (shift > 28) {
+                    throw new InvalidProtocolBufferException("Malformed frame length.");
+                }
+            }
+            if (size < 0) {
+                throw new InvalidProtocolBufferException("Negative frame length.");
+            }
+            if (mReadBuffer.remaining() < size) {
+                int headerSize = mReadBuffer.position() - start;
+                mReadBuffer.position(start);
+                if (headerSize + size > mReadBuffer.capacity()) {
+                    // Grow the buffer so the whole frame can be received.
+                    ByteBuffer larger = ByteBuffer.allocate(headerSize + size);
+                    larger.put(mReadBuffer);
+                    larger.flip();
+                    mReadBuffer = larger;
+                }
+                return false;
+            }
+            TestRecord record =
+                    TestRecord.parseFrom(
+                            ByteBuffer.wrap(
+                                    mReadBuffer.array(),
+                                    mReadBuffer.arrayOffset() + mReadBuffer.position(),
+                                    size));
+            mReadBuffer.position(mReadBuffer.position() + size);
+            mPending.add(new Frame(record, size));
+            mPendingBytes.addAndGet(size);
+            return true;
+        }
+
+        private void endOfStream() {
+            if (mClientKey != null) {
+                mClientKey.cancel();
+            }
+            StreamUtil.close(mClient);
+            StreamUtil.close(mServer);
+            mEndOfStream = true;
+            scheduleDispatch();
+        }
+
+        private void resume() {
+            runOnSelector(
+                    () -> {
+                        if (mPaused.compareAndSet(true, false)
+                                && mClientKey != null
+                                && mClientKey.isValid()) {
+                            mClientKey.interestOps(SelectionKey.OP_READ);
+                        }
+                    });
+        }
+
+        private void scheduleDispatch() {
+            if (mDispatching.compareAndSet(false, true)) {
+                mDispatchPool.execute(this::dispatch);
+            }
+        }
+
+        private void dispatch() {
+            try {
+                Frame frame;
+                int dispatched = 0;
+                // Give the thread back after a batch so the other streams get their turn.
+                while (dispatched++ < DISPATCH_BATCH_SIZE && (frame = mPending.poll()) != null) {
+                    try {
+                        mHandler.accept(frame.mRecord);
+                    } catch (RuntimeException | Error e) {
+                        CLog.e("Error while handling event, closing the stream.");
+                        CLog.e(e);
+                        mPending.clear();
+                        mPendingBytes.set(0L);
+                        close();
+                        // The stream might already be closed, so check for completion below.
+                        break;
+                    }
+                    long pending = mPendingBytes.addAndGet(-frame.mSize);
+                    if (pending <= mLowWatermark && mPaused.get()) {
+                        resume();
+                    }
+                }
+            } finally {
+                mDispatching.set(false);
+            }
+            if (!mPending.isEmpty()) {
+                scheduleDispatch();
+            } else if (mEndOfStream) {
+                mCompleted.countDown();
+            }
+        }
+    }
+}
@@ -15,6 +15,7 @@
  */
 package com.android.tradefed.result.proto;
 
+import com.android.tradefed.config.GlobalConfiguration;
 import com.android.tradefed.invoker.IInvocationContext;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.result.ITestInvocationListener;
@@ -39,6 +40,7 @@ public class StreamProtoReceiver implements Closeable {
     private static final long PER_MODULE_EXTRA_WAIT_TIME_MS = 5000L;
 
     private EventReceiverThread mEventReceiver;
+    private ProtoEventReceiverService.Registration mSharedReceiver;
     private ITestInvocationListener mListener;
     private ProtoResultParser mParser;
     private Throwable mError;
@@ -127,8 +129,12 @@ public class StreamProtoReceiver implements Closeable {
         mParser = new ProtoResultParser(mListener, mainContext, reportInvocation, logNamePrefix);
         mParser.setReportLogs(reportLogs);
         mParser.setQuiet(quietParsing);
-        mEventReceiver = new EventReceiverThread();
-        mEventReceiver.start();
+        if (shouldUseSharedReceiver()) {
+            mSharedReceiver = ProtoEventReceiverService.getInstance().register(this::parse);
+        } else {
+            mEventReceiver = new EventReceiverThread();
+            mEventReceiver.start();
+        }
     }
 
     /** Internal receiver thread class with a socket. */
@@ -179,6 +185,9 @@ public class StreamProtoReceiver implements Closeable {
 
     /** Returns the socket receiver that was open. -1 if none. */
     public int getSocketServerPort() {
+        if (mSharedReceiver != null) {
+            return mSharedReceiver.getPort();
+        }
         if (mEventReceiver != null) {
             return mEventReceiver.getLocalPort();
         }
@@ -192,12 +201,33 @@ public class StreamProtoReceiver implements Closeable {
 
     @Override
     public void close() throws IOException {
+        if (mSharedReceiver != null) {
+            mSharedReceiver.close();
+        }
         if (mEventReceiver != null) {
             mEventReceiver.cancel();
         }
     }
 
     public boolean joinReceiver(long millis) {
+        if (mSharedReceiver != null) {
+            try {
+                long waitTime = millis + mExtraWaitTimeForEvents;
+                CLog.i(
+                        "Waiting for events to finish being processed for %s",
+                        TimeUtil.formatElapsedTime(waitTime));
+                if (!mSharedReceiver.awaitCompletion(waitTime)) {
+                    CLog.e("Event receiver did not complete. Some events may be missing.");
+                    mSharedReceiver.close();
+                    return false;
+                }
+            } catch (InterruptedException e) {
+                CLog.e(e);
+                throw new RuntimeException(e);
+            } finally {
+                mStopParsing = true;
+            }
+        }
         if (mEventReceiver != null) {
             try {
                 long waitTime = millis + mExtraWaitTimeForEvents;
@@ -229,6 +259,17 @@ public class StreamProtoReceiver implements Closeable {
         return mParser.hasInvocationFailed();
     }
 
+    private static boolean shouldUseSharedReceiver() {
+        try {
+            return GlobalConfiguration.getInstance()
+                    .getHostOptions()
+                    .shouldUseSharedProtoReceiver();
+        } catch (IllegalStateException e) {
+            // Global configuration is not initialized, use the dedicated thread.
+            return false;
+        }
+    }
+
     private void parse(TestRecord receivedRecord) {
         if (mStopParsing) {
             CLog.i(
@@ -43,6 +43,14 @@ public abstract class FormattedGeneratorReporter extends SuiteResultReporter
     /** {@inheritDoc} */
     @Override
     public final void invocationEnded(long elapsedTime) {
+        try {
+            generateFormattedResults(elapsedTime);
+        } finally {
+            formattingEnded();
+        }
+    }
+
+    private void generateFormattedResults(long elapsedTime) {
         // Let the parent create the results structures
         super.invocationEnded(elapsedTime);
 
@@ -102,6 +110,14 @@ public abstract class FormattedGeneratorReporter extends SuiteResultReporter
     public abstract void finalizeResults(
             IFormatterGenerator generator, SuiteResultHolder resultHolder);
 
+    /**
+     * Called once the invocation results are formatted, or skipped, to release what was kept to
+     * format them.
+     */
+    protected void formattingEnded() {
+        // Default implementation does nothing.
+    }
+
     /** Returns a new instance of the {@link IFormatterGenerator} to use. */
     public abstract IFormatterGenerator createFormatter();
 
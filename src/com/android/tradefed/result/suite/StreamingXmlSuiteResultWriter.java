@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result.suite;
+
+import com.android.tradefed.result.TestRunResult;
+import com.android.tradefed.testtype.IAbi;
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
+
+import com.google.common.io.ByteStreams;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the xml results of {@link XmlSuiteResultFormatter} one module at a time.
+ *
+ * <p>Each module is serialized when it is given to {@link #writeModule(TestRunResult, IAbi)},
+ * usually as soon as it ends, into a temporary file. {@link #finish(XmlSuiteResultFormatter,
+ * SuiteResultHolder, File)} writes the top level information, only known at the end of the
+ * invocation, then copies the modules in the same order as {@link
+ * XmlSuiteResultFormatter#sortModules}. A module written can be read back with {@link
+ * #readModule(XmlSuiteResultFormatter, String)}, so its results do not need to be kept in memory.
+ */
+public class StreamingXmlSuiteResultWriter implements Closeable {
+
+    /** The position of a serialized module in the temporary file. */
+    private static class ModuleChunk {
+        final String mName;
+        final IAbi mAbi;
+        final long mOffset;
+        final long mLength;
+        // The run failure of the module, which the xml does not give back when parsed.
+        final String mRunFailureMessage;
+
+        ModuleChunk(String name, IAbi abi, long offset, long length, String runFailureMessage) {
+            mName = name;
+            mAbi = abi;
+            mOffset = offset;
+            mLength = length;
+            mRunFailureMessage = runFailureMessage;
+        }
+    }
+
+    private final File mModulesFile;
+    private final FileOutputStream mModulesStream;
+    private final XmlSerializer mModulesSerializer;
+    // Module name to its latest serialized results.
+    private final Map<String, ModuleChunk> mChunks = new LinkedHashMap<>();
+
+    /** Ctor. The modules are kept in a temporary file until {@link #close()}. */
+    public StreamingXmlSuiteResultWriter() throws IOException {
+        mModulesFile = FileUtil.createTempFile("test_result_modules", ".xml");
+        mModulesStream = new FileOutputStream(mModulesFile);
+        // Serialize the modules as children of a result tag so they are indented and escaped the
+        // same way as in the result file. Only the modules are copied from the temporary file.
+        mModulesSerializer = XmlSuiteResultFormatter.createSerializer(mModulesStream);
+        mModulesSerializer.startDocument(XmlSuiteResultFormatter.ENCODING, false);
+        mModulesSerializer.setFeature(
+                "http://xmlpull.org/v1/doc/features.html#indent-output", true);
+        mModulesSerializer.startTag(XmlSuiteResultFormatter.NS, XmlSuiteResultFormatter.RESULT_TAG);
+        mModulesSerializer.flush();
+    }
+
+    /**
+     * Write the results of a module. If the module was already written, for example when it runs
+     * again in another shard, the new results replace the previous ones.
+     *
+     * @param module the results of the module.
+     * @param moduleAbi the {@link IAbi} of the module, or null if it has none.
+     */
+    public void writeModule(TestRunResult module, IAbi moduleAbi) throws IOException {
+        long offset = mModulesStream.getChannel().position();
+        XmlSuiteResultFormatter.serializeModule(mModulesSerializer, module, moduleAbi);
+        mModulesSerializer.flush();
+        long length = mModulesStream.getChannel().position() - offset;
+        String runFailureMessage = null;
+        if (module.isRunFailure()) {
+            runFailureMessage = module.getRunFailureMessage();
+        }
+        mChunks.put(
+                module.getName(),
+                new ModuleChunk(module.getName(), moduleAbi, offset, length, runFailureMessage));
+    }
+
+    /** Returns whether the results of a module were written. */
+    public boolean hasModule(String moduleId) {
+        return mChunks.containsKey(moduleId);
+    }
+
+    /**
+     * Read back the results of a module written, for example to merge them with the results of the
+     * same module running again.
+     *
+     * @param formatter the {@link XmlSuiteResultFormatter} parsing the module.
+     * @param moduleId the id of the module, its name prefixed by its abi if it has one.
+     * @return the {@link TestRunResult} of the module, or null if it was not written.
+     */
+    public TestRunResult readModule(XmlSuiteResultFormatter formatter, String moduleId)
+            throws IOException {
+        ModuleChunk chunk = mChunks.get(moduleId);
+        if (chunk == null) {
+            return null;
+        }
+        try (FileInputStream stream = new FileInputStream(mModulesFile)) {
+            stream.getChannel().position(chunk.mOffset);
+            XmlPullParser parser = XmlPullParserFactory.newInstance().newPullParser();
+            parser.setInput(
+                    new BufferedInputStream(ByteStreams.limit(stream, chunk.mLength)),
+                    StandardCharsets.UTF_8.name());
+            parser.nextTag();
+            TestRunResult module = formatter.parseModule(parser, new HashMap<>());
+            if (chunk.mRunFailureMessage != null) {
+                module.testRunFailed(chunk.mRunFailureMessage);
+            }
+            return module;
+        } catch (XmlPullParserException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /** Returns the number of modules written so far. */
+    public int getModuleCount() {
+        return mChunks.size();
+    }
+
+    /**
+     * Write the result file.
+     *
+     * <p>The modules of the holder that were not written yet are written first. The modules
+     * written but no longer in the holder, because their results were released, are kept.
+     *
+     * @param formatter the {@link XmlSuiteResultFormatter} writing the top level information.
+     * @param holder a {@link SuiteResultHolder} holding the info required for the xml.
+     * @param resultDir the result directory {@link File} where to put the results.
+     * @return a {@link File} pointing to the xml output file.
+     */
+    public File finish(XmlSuiteResultFormatter formatter, SuiteResultHolder holder, File resultDir)
+            throws IOException {
+        for (TestRunResult module : holder.runResults) {
+            if (!mChunks.containsKey(module.getName())) {
+                writeModule(module, holder.modulesAbi.get(module.getName()));
+            }
+        }
+        List<ModuleChunk> sortedChunks = new ArrayList<>(mChunks.values());
+        Collections.sort(
+                sortedChunks,
+                (c1, c2) ->
+                        XmlSuiteResultFormatter.compareModules(
+                                c1.mName, c1.mAbi, c2.mName, c2.mAbi));
+
+        File resultFile = new File(resultDir, XmlSuiteResultFormatter.TEST_RESULT_FILE_NAME);
+        try (FileOutputStream stream = new FileOutputStream(resultFile);
+                FileInputStream modulesInput = new FileInputStream(mModulesFile)) {
+            XmlSerializer serializer = formatter.writeResultsHeader(holder, stream);
+            // Flush what the serializer buffered before appending the modules after it.
+            serializer.flush();
+            FileChannel output = stream.getChannel();
+            FileChannel modules = modulesInput.getChannel();
+            for (ModuleChunk chunk : sortedChunks) {
+                long copied = 0L;
+                while (copied < chunk.mLength) {
+                    copied +=
+                            modules.transferTo(
+                                    chunk.mOffset + copied, chunk.mLength - copied, output);
+                }
+            }
+            serializer.endDocument();
+        }
+        return resultFile;
+    }
+
+    /** Delete the temporary file holding the modules. */
+    @Override
+    public void close() {
+        StreamUtil.close(mModulesStream);
+        FileUtil.deleteFile(mModulesFile);
+    }
+}
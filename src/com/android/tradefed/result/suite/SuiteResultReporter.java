@@ -72,6 +72,8 @@ public class SuiteResultReporter extends CollectingTestListener {
     private Map<String, ModulePrepTimes> mPreparationMap = new HashMap<>();
 
     private Map<String, IAbi> mModuleAbi = new LinkedHashMap<>();
+    // Summaries of the modules whose results were released once reported.
+    private Map<String, ModuleSummary> mReleasedModules = new LinkedHashMap<>();
 
     private StringBuilder mSummary;
 
@@ -100,10 +102,28 @@ public class SuiteResultReporter extends CollectingTestListener {
         }
     }
 
+    /**
+     * Release the results of a module once they are reported, only what the summary needs is kept.
+     * The module is no longer part of {@link #getMergedTestRunResults()}.
+     *
+     * @param module the merged results of the module.
+     */
+    protected final void releaseModuleResults(TestRunResult module) {
+        mReleasedModules.put(module.getName(), new ModuleSummary(module));
+        List<TestRunResult> attempts = getTestRunAttempts(module.getName());
+        clearResultsForName(module.getName());
+        if (attempts != null) {
+            for (TestRunResult attempt : attempts) {
+                attempt.close();
+            }
+        }
+        module.close();
+    }
+
     /** Helper to remove the module checker results from the final list of real module results. */
-    private List<TestRunResult> extractModuleCheckers(Collection<TestRunResult> results) {
-        List<TestRunResult> moduleCheckers = new ArrayList<TestRunResult>();
-        for (TestRunResult t : results) {
+    private List<ModuleSummary> extractModuleCheckers(Collection<ModuleSummary> results) {
+        List<ModuleSummary> moduleCheckers = new ArrayList<ModuleSummary>();
+        for (ModuleSummary t : results) {
             if (t.getName().startsWith(ITestSuite.MODULE_CHECKER_POST)
                     || t.getName().startsWith(ITestSuite.MODULE_CHECKER_PRE)) {
                 moduleCheckers.add(t);
@@ -119,22 +139,25 @@ public class SuiteResultReporter extends CollectingTestListener {
         super.invocationEnded(elapsedTime);
 
         // finalize and print results - general
-        Collection<TestRunResult> results = getMergedTestRunResults();
-        List<TestRunResult> moduleCheckers = extractModuleCheckers(results);
+        Collection<ModuleSummary> results = new ArrayList<>(mReleasedModules.values());
+        for (TestRunResult moduleResult : getMergedTestRunResults()) {
+            results.add(new ModuleSummary(moduleResult));
+        }
+        List<ModuleSummary> moduleCheckers = extractModuleCheckers(results);
 
         mTotalModules = results.size();
 
-        for (TestRunResult moduleResult : results) {
-            if (!moduleResult.isRunFailure()) {
+        for (ModuleSummary moduleResult : results) {
+            if (!moduleResult.mRunFailure) {
                 mCompleteModules++;
             } else {
-                mFailedModule.put(moduleResult.getName(), moduleResult.getRunFailureMessage());
+                mFailedModule.put(moduleResult.getName(), moduleResult.mRunFailureMessage);
             }
-            mTotalTests += moduleResult.getExpectedTestCount();
-            mPassedTests += moduleResult.getNumTestsInState(TestStatus.PASSED);
-            mFailedTests += moduleResult.getNumAllFailedTests();
-            mSkippedTests += moduleResult.getNumTestsInState(TestStatus.IGNORED);
-            mAssumeFailureTests += moduleResult.getNumTestsInState(TestStatus.ASSUMPTION_FAILURE);
+            mTotalTests += moduleResult.mExpectedTests;
+            mPassedTests += moduleResult.mPassedTests;
+            mFailedTests += moduleResult.mFailedTests;
+            mSkippedTests += moduleResult.mIgnoredTests;
+            mAssumeFailureTests += moduleResult.mAssumeFailureTests;
 
             // Get the module metrics for target preparation
             String prepTime = moduleResult.getRunMetrics().get(ModuleDefinition.PREPARATION_TIME);
@@ -212,14 +235,14 @@ public class SuiteResultReporter extends CollectingTestListener {
     }
 
     /** Displays the time consumed by each module to run. */
-    private void printModuleTestTime(Collection<TestRunResult> results) {
-        List<TestRunResult> moduleTime = new ArrayList<>();
+    private void printModuleTestTime(Collection<ModuleSummary> results) {
+        List<ModuleSummary> moduleTime = new ArrayList<>();
         moduleTime.addAll(results);
         Collections.sort(
                 moduleTime,
-                new Comparator<TestRunResult>() {
+                new Comparator<ModuleSummary>() {
                     @Override
-                    public int compare(TestRunResult o1, TestRunResult o2) {
+                    public int compare(ModuleSummary o1, ModuleSummary o2) {
                         return (int) (o2.getElapsedTime() - o1.getElapsedTime());
                     }
                 });
@@ -244,20 +267,20 @@ public class SuiteResultReporter extends CollectingTestListener {
      * modules have way more test cases than others so only looking at elapsed time is not a good
      * metric for slow modules).
      */
-    private void printTopSlowModules(Collection<TestRunResult> results) {
-        List<TestRunResult> moduleTime = new ArrayList<>();
+    private void printTopSlowModules(Collection<ModuleSummary> results) {
+        List<ModuleSummary> moduleTime = new ArrayList<>();
         moduleTime.addAll(results);
         // We don't consider module which runs in less than 5 sec.
-        for (TestRunResult t : results) {
+        for (ModuleSummary t : results) {
             if (t.getElapsedTime() < 5000) {
                 moduleTime.remove(t);
             }
         }
         Collections.sort(
                 moduleTime,
-                new Comparator<TestRunResult>() {
+                new Comparator<ModuleSummary>() {
                     @Override
-                    public int compare(TestRunResult o1, TestRunResult o2) {
+                    public int compare(ModuleSummary o1, ModuleSummary o2) {
                         Float rate1 = ((float) o1.getNumTests() / o1.getElapsedTime());
                         Float rate2 = ((float) o2.getNumTests() / o2.getElapsedTime());
                         return rate1.compareTo(rate2);
@@ -306,13 +329,13 @@ public class SuiteResultReporter extends CollectingTestListener {
         mSummary.append("=======================================================\n");
     }
 
-    private void printModuleCheckersMetric(List<TestRunResult> moduleCheckerResults) {
+    private void printModuleCheckersMetric(List<ModuleSummary> moduleCheckerResults) {
         if (moduleCheckerResults.isEmpty()) {
             return;
         }
         mSummary.append("============== Modules Checkers Times ==============\n");
         long totalTime = 0L;
-        for (TestRunResult t : moduleCheckerResults) {
+        for (ModuleSummary t : moduleCheckerResults) {
             mSummary.append(
                     String.format(
                             "    %s: %s\n",
@@ -382,6 +405,51 @@ public class SuiteResultReporter extends CollectingTestListener {
         return mFailedTests;
     }
 
+    /** What the summary needs from the results of a module, without its test cases. */
+    private static class ModuleSummary {
+        private final String mName;
+        private final boolean mRunFailure;
+        private final String mRunFailureMessage;
+        private final long mExpectedTests;
+        private final int mNumTests;
+        private final int mPassedTests;
+        private final int mFailedTests;
+        private final int mIgnoredTests;
+        private final int mAssumeFailureTests;
+        private final long mElapsedTime;
+        private final Map<String, String> mRunMetrics;
+
+        ModuleSummary(TestRunResult moduleResult) {
+            mName = moduleResult.getName();
+            mRunFailure = moduleResult.isRunFailure();
+            mRunFailureMessage = moduleResult.getRunFailureMessage();
+            mExpectedTests = moduleResult.getExpectedTestCount();
+            mNumTests = moduleResult.getNumTests();
+            mPassedTests = moduleResult.getNumTestsInState(TestStatus.PASSED);
+            mFailedTests = moduleResult.getNumAllFailedTests();
+            mIgnoredTests = moduleResult.getNumTestsInState(TestStatus.IGNORED);
+            mAssumeFailureTests = moduleResult.getNumTestsInState(TestStatus.ASSUMPTION_FAILURE);
+            mElapsedTime = moduleResult.getElapsedTime();
+            mRunMetrics = new HashMap<>(moduleResult.getRunMetrics());
+        }
+
+        String getName() {
+            return mName;
+        }
+
+        int getNumTests() {
+            return mNumTests;
+        }
+
+        long getElapsedTime() {
+            return mElapsedTime;
+        }
+
+        Map<String, String> getRunMetrics() {
+            return mRunMetrics;
+        }
+    }
+
     /** Object holder for the preparation and tear down time of one module. */
     public static class ModulePrepTimes {
 
@@ -15,18 +15,77 @@
  */
 package com.android.tradefed.result.suite;
 
+import com.android.tradefed.invoker.IInvocationContext;
 import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.TestRunResult;
+import com.android.tradefed.testtype.suite.ModuleDefinition;
 import com.android.tradefed.util.FileUtil;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 
 /**
  * Implementation of the {@link FormattedGeneratorReporter} which format the suite results in an xml
  * format.
+ *
+ * <p>When the format is the one of {@link XmlSuiteResultFormatter}, each module is serialized as
+ * soon as it ends, so only the top level information is left to write at the end of the
+ * invocation. The results of a module are then released, only its summary is kept.
  */
 public class XmlFormattedGeneratorReporter extends FormattedGeneratorReporter {
 
+    private StreamingXmlSuiteResultWriter mStreamingWriter = null;
+    private boolean mStreamingDisabled = false;
+    private String mCurrentModuleId = null;
+
+    @Override
+    public void testModuleStarted(IInvocationContext moduleContext) {
+        super.testModuleStarted(moduleContext);
+        mCurrentModuleId =
+                moduleContext.getAttributes().getUniqueMap().get(ModuleDefinition.MODULE_ID);
+    }
+
+    @Override
+    public void testModuleEnded() {
+        super.testModuleEnded();
+        String moduleId = mCurrentModuleId;
+        mCurrentModuleId = null;
+        if (moduleId == null || mStreamingDisabled) {
+            return;
+        }
+        TestRunResult module = getMergedTestRunResult(moduleId);
+        if (module == null) {
+            return;
+        }
+        IFormatterGenerator formatter = createFormatter();
+        if (!(formatter instanceof XmlSuiteResultFormatter)) {
+            mStreamingDisabled = true;
+            return;
+        }
+        try {
+            if (mStreamingWriter == null) {
+                mStreamingWriter = new StreamingXmlSuiteResultWriter();
+            }
+            if (mStreamingWriter.hasModule(moduleId)) {
+                // The module ran again, for example in another shard, after its results were
+                // released.
+                TestRunResult previous =
+                        mStreamingWriter.readModule((XmlSuiteResultFormatter) formatter, moduleId);
+                module = TestRunResult.merge(Arrays.asList(previous, module));
+            }
+            mStreamingWriter.writeModule(module, getModulesAbi().get(moduleId));
+        } catch (IOException e) {
+            // The writer keeps the modules already released, the next modules are written at the
+            // end instead.
+            CLog.e("Failed to write the results of module %s, stop streaming them:", moduleId);
+            CLog.e(e);
+            mStreamingDisabled = true;
+            return;
+        }
+        releaseModuleResults(module);
+    }
+
     @Override
     public final void finalizeResults(
             IFormatterGenerator generator, SuiteResultHolder resultHolder) {
@@ -43,7 +102,13 @@ public class XmlFormattedGeneratorReporter extends FormattedGeneratorReporter {
 
         File resultReportFile = null;
         try {
-            resultReportFile = generator.writeResults(resultHolder, resultDir);
+            if (mStreamingWriter != null && generator instanceof XmlSuiteResultFormatter) {
+                resultReportFile =
+                        ((XmlSuiteResultFormatter) generator)
+                                .writeResults(resultHolder, resultDir, mStreamingWriter);
+            } else {
+                resultReportFile = generator.writeResults(resultHolder, resultDir);
+            }
         } catch (IOException e) {
             CLog.e("Failed to generate the formatted report file:");
             CLog.e(e);
@@ -82,4 +147,16 @@ public class XmlFormattedGeneratorReporter extends FormattedGeneratorReporter {
     public IFormatterGenerator createFormatter() {
         return new XmlSuiteResultFormatter();
     }
+
+    @Override
+    protected void formattingEnded() {
+        closeStreamingWriter();
+    }
+
+    private void closeStreamingWriter() {
+        if (mStreamingWriter != null) {
+            mStreamingWriter.close();
+            mStreamingWriter = null;
+        }
+    }
 }
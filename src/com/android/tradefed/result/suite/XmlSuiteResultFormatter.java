@@ -30,7 +30,6 @@ import com.android.tradefed.testtype.Abi;
 import com.android.tradefed.testtype.IAbi;
 import com.android.tradefed.testtype.suite.TestFailureListener;
 import com.android.tradefed.util.AbiUtils;
-import com.android.tradefed.util.StreamUtil;
 import com.android.tradefed.util.proto.TfMetricProtoUtil;
 
 import com.google.common.base.Strings;
@@ -68,14 +67,14 @@ import java.util.Map.Entry;
  */
 public class XmlSuiteResultFormatter implements IFormatterGenerator {
 
-    private static final String ENCODING = "UTF-8";
+    static final String ENCODING = "UTF-8";
     private static final String TYPE = "org.kxml2.io.KXmlParser,org.kxml2.io.KXmlSerializer";
     public static final String NS = null;
 
     public static final String TEST_RESULT_FILE_NAME = "test_result.xml";
 
     // XML constants
-    private static final String ABI_ATTR = "abi";
+    static final String ABI_ATTR = "abi";
     private static final String BUGREPORT_TAG = "BugReport";
     private static final String BUILD_TAG = "Build";
     private static final String CASE_TAG = "TestCase";
@@ -95,18 +94,18 @@ public class XmlSuiteResultFormatter implements IFormatterGenerator {
     private static final String METRIC_KEY = "key";
 
     private static final String MESSAGE_ATTR = "message";
-    private static final String MODULE_TAG = "Module";
+    static final String MODULE_TAG = "Module";
     private static final String MODULES_DONE_ATTR = "modules_done";
     private static final String MODULES_TOTAL_ATTR = "modules_total";
     private static final String MODULES_NOT_DONE_REASON = "Reason";
-    private static final String NAME_ATTR = "name";
+    static final String NAME_ATTR = "name";
     private static final String OS_ARCH_ATTR = "os_arch";
     private static final String OS_NAME_ATTR = "os_name";
     private static final String OS_VERSION_ATTR = "os_version";
     private static final String PASS_ATTR = "pass";
 
     private static final String RESULT_ATTR = "result";
-    private static final String RESULT_TAG = "Result";
+    static final String RESULT_TAG = "Result";
     private static final String RUN_HISTORY = "run_history";
     private static final String RUN_HISTORY_TAG = "RunHistory";
     private static final String RUN_TAG = "Run";
@@ -188,15 +187,56 @@ public class XmlSuiteResultFormatter implements IFormatterGenerator {
     @Override
     public File writeResults(SuiteResultHolder holder, File resultDir) throws IOException {
         File resultFile = new File(resultDir, TEST_RESULT_FILE_NAME);
-        OutputStream stream = new FileOutputStream(resultFile);
+        try (OutputStream stream = new FileOutputStream(resultFile)) {
+            XmlSerializer serializer = writeResultsHeader(holder, stream);
+            List<TestRunResult> sortedModuleList =
+                    sortModules(holder.runResults, holder.modulesAbi);
+            // Results
+            for (TestRunResult module : sortedModuleList) {
+                serializeModule(serializer, module, holder.modulesAbi.get(module.getName()));
+            }
+            serializer.endDocument();
+        }
+        return resultFile;
+    }
+
+    /**
+     * Write the invocation results in an xml format, reusing the modules already serialized by a
+     * {@link StreamingXmlSuiteResultWriter} as they ended.
+     *
+     * @param holder a {@link SuiteResultHolder} holding all the info required for the xml
+     * @param resultDir the result directory {@link File} where to put the results.
+     * @param writer the {@link StreamingXmlSuiteResultWriter} holding the modules written so far.
+     * @return a {@link File} pointing to the xml output file.
+     */
+    public File writeResults(
+            SuiteResultHolder holder, File resultDir, StreamingXmlSuiteResultWriter writer)
+            throws IOException {
+        return writer.finish(this, holder, resultDir);
+    }
+
+    /** Returns a new serializer writing to the stream. */
+    static XmlSerializer createSerializer(OutputStream stream) throws IOException {
         XmlSerializer serializer = null;
         try {
             serializer = XmlPullParserFactory.newInstance(TYPE, null).newSerializer();
         } catch (XmlPullParserException e) {
-            StreamUtil.close(stream);
             throw new IOException(e);
         }
         serializer.setOutput(stream, ENCODING);
+        return serializer;
+    }
+
+    /**
+     * Write the top level information of the results, everything before the modules.
+     *
+     * @param holder a {@link SuiteResultHolder} holding the top level info of the xml.
+     * @param stream the {@link OutputStream} of the result file.
+     * @return the {@link XmlSerializer} used, with the result tag still opened.
+     */
+    XmlSerializer writeResultsHeader(SuiteResultHolder holder, OutputStream stream)
+            throws IOException {
+        XmlSerializer serializer = createSerializer(stream);
         serializer.startDocument(ENCODING, false);
         serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
         serializer.processingInstruction(
@@ -278,42 +318,47 @@ public class XmlSuiteResultFormatter implements IFormatterGenerator {
         serializer.attribute(NS, MODULES_DONE_ATTR, Integer.toString(holder.completeModules));
         serializer.attribute(NS, MODULES_TOTAL_ATTR, Integer.toString(holder.totalModules));
         serializer.endTag(NS, SUMMARY_TAG);
+        return serializer;
+    }
 
-        List<TestRunResult> sortedModuleList = sortModules(holder.runResults, holder.modulesAbi);
-        // Results
-        for (TestRunResult module : sortedModuleList) {
-            serializer.startTag(NS, MODULE_TAG);
-            // To be compatible of CTS strip the abi from the module name when available.
-            if (holder.modulesAbi.get(module.getName()) != null) {
-                String moduleAbi = holder.modulesAbi.get(module.getName()).getName();
-                String moduleNameStripped = module.getName().replace(moduleAbi + " ", "");
-                serializer.attribute(NS, NAME_ATTR, moduleNameStripped);
-                serializer.attribute(NS, ABI_ATTR, moduleAbi);
-            } else {
-                serializer.attribute(NS, NAME_ATTR, module.getName());
-            }
-            serializer.attribute(NS, RUNTIME_ATTR, String.valueOf(module.getElapsedTime()));
-            boolean isDone = module.isRunComplete() && !module.isRunFailure();
+    /**
+     * Write the results of a module.
+     *
+     * @param serializer the {@link XmlSerializer} to write to.
+     * @param module the results of the module.
+     * @param moduleAbi the {@link IAbi} of the module, or null if it has none.
+     */
+    static void serializeModule(XmlSerializer serializer, TestRunResult module, IAbi moduleAbi)
+            throws IllegalArgumentException, IllegalStateException, IOException {
+        serializer.startTag(NS, MODULE_TAG);
+        // To be compatible of CTS strip the abi from the module name when available.
+        if (moduleAbi != null) {
+            String abiName = moduleAbi.getName();
+            String moduleNameStripped = module.getName().replace(abiName + " ", "");
+            serializer.attribute(NS, NAME_ATTR, moduleNameStripped);
+            serializer.attribute(NS, ABI_ATTR, abiName);
+        } else {
+            serializer.attribute(NS, NAME_ATTR, module.getName());
+        }
+        serializer.attribute(NS, RUNTIME_ATTR, String.valueOf(module.getElapsedTime()));
+        boolean isDone = module.isRunComplete() && !module.isRunFailure();
 
-            serializer.attribute(NS, DONE_ATTR, Boolean.toString(isDone));
-            serializer.attribute(
-                    NS, PASS_ATTR, Integer.toString(module.getNumTestsInState(TestStatus.PASSED)));
-            serializer.attribute(NS, TOTAL_TESTS_ATTR, Integer.toString(module.getNumTests()));
+        serializer.attribute(NS, DONE_ATTR, Boolean.toString(isDone));
+        serializer.attribute(
+                NS, PASS_ATTR, Integer.toString(module.getNumTestsInState(TestStatus.PASSED)));
+        serializer.attribute(NS, TOTAL_TESTS_ATTR, Integer.toString(module.getNumTests()));
 
-            if (!isDone) {
-                String message = module.getRunFailureMessage();
-                if (message == null) {
-                    message = "Run was incomplete. Some tests might not have finished.";
-                }
-                serializer.startTag(NS, MODULES_NOT_DONE_REASON);
-                serializer.attribute(NS, MESSAGE_ATTR, sanitizeXmlContent(message));
-                serializer.endTag(NS, MODULES_NOT_DONE_REASON);
+        if (!isDone) {
+            String message = module.getRunFailureMessage();
+            if (message == null) {
+                message = "Run was incomplete. Some tests might not have finished.";
             }
-            serializeTestCases(serializer, module.getTestResults());
-            serializer.endTag(NS, MODULE_TAG);
+            serializer.startTag(NS, MODULES_NOT_DONE_REASON);
+            serializer.attribute(NS, MESSAGE_ATTR, sanitizeXmlContent(message));
+            serializer.endTag(NS, MODULES_NOT_DONE_REASON);
         }
-        serializer.endDocument();
-        return resultFile;
+        serializeTestCases(serializer, module.getTestResults());
+        serializer.endTag(NS, MODULE_TAG);
     }
 
     private static void serializeTestCases(
@@ -555,30 +600,46 @@ public class XmlSuiteResultFormatter implements IFormatterGenerator {
                 new Comparator<TestRunResult>() {
                     @Override
                     public int compare(TestRunResult o1, TestRunResult o2) {
-                        String module1NameStripped = o1.getName();
-                        String module1Abi = "";
-                        if (moduleAbis.get(module1NameStripped) != null) {
-                            module1Abi = moduleAbis.get(module1NameStripped).getName();
-                            module1NameStripped = module1NameStripped.replace(module1Abi + " ", "");
-                        }
-
-                        String module2NameStripped = o2.getName();
-                        String module2Abi = "";
-                        if (moduleAbis.get(module2NameStripped) != null) {
-                            module2Abi = moduleAbis.get(module2NameStripped).getName();
-                            module2NameStripped = module2NameStripped.replace(module2Abi + " ", "");
-                        }
-                        int res = module1NameStripped.compareTo(module2NameStripped);
-                        if (res != 0) {
-                            return res;
-                        }
-                        // Use the Abi as discriminant to always sort abi in the same order.
-                        return module1Abi.compareTo(module2Abi);
+                        return compareModules(
+                                o1.getName(),
+                                moduleAbis.get(o1.getName()),
+                                o2.getName(),
+                                moduleAbis.get(o2.getName()));
                     }
                 });
         return sortedList;
     }
 
+    /**
+     * Compare two modules based on their name without abi primarily then secondly on abi.
+     *
+     * @param module1 the name of the first module.
+     * @param abi1 the {@link IAbi} of the first module, or null if it has none.
+     * @param module2 the name of the second module.
+     * @param abi2 the {@link IAbi} of the second module, or null if it has none.
+     */
+    static int compareModules(String module1, IAbi abi1, String module2, IAbi abi2) {
+        String module1NameStripped = module1;
+        String module1Abi = "";
+        if (abi1 != null) {
+            module1Abi = abi1.getName();
+            module1NameStripped = module1NameStripped.replace(module1Abi + " ", "");
+        }
+
+        String module2NameStripped = module2;
+        String module2Abi = "";
+        if (abi2 != null) {
+            module2Abi = abi2.getName();
+            module2NameStripped = module2NameStripped.replace(module2Abi + " ", "");
+        }
+        int res = module1NameStripped.compareTo(module2NameStripped);
+        if (res != 0) {
+            return res;
+        }
+        // Use the Abi as discriminant to always sort abi in the same order.
+        return module1Abi.compareTo(module2Abi);
+    }
+
     /** Handle the parsing and replay of all run history information. */
     private void handleRunHistoryLevel(XmlPullParser parser)
             throws IOException, XmlPullParserException {
@@ -599,39 +660,51 @@ public class XmlSuiteResultFormatter implements IFormatterGenerator {
             XmlPullParser parser, Collection<TestRunResult> results, Map<String, IAbi> moduleAbis)
             throws IOException, XmlPullParserException {
         while (parser.nextTag() == XmlPullParser.START_TAG) {
-            parser.require(XmlPullParser.START_TAG, NS, MODULE_TAG);
-            TestRunResult module = new TestRunResult();
-            results.add(module);
-            String name = parser.getAttributeValue(NS, NAME_ATTR);
-            String abi = parser.getAttributeValue(NS, ABI_ATTR);
-            String moduleId = name;
-            if (abi != null) {
-                moduleId = AbiUtils.createId(abi, name);
-                moduleAbis.put(moduleId, new Abi(abi, AbiUtils.getBitness(abi)));
-            }
-            long moduleElapsedTime = Long.parseLong(parser.getAttributeValue(NS, RUNTIME_ATTR));
-            boolean moduleDone = Boolean.parseBoolean(parser.getAttributeValue(NS, DONE_ATTR));
-            int totalTests = Integer.parseInt(parser.getAttributeValue(NS, TOTAL_TESTS_ATTR));
-            module.testRunStarted(moduleId, totalTests);
-            // TestCase level information parsing
-            while (parser.nextTag() == XmlPullParser.START_TAG) {
-                // If a reason for not done exists, handle it.
-                if (parser.getName().equals(MODULES_NOT_DONE_REASON)) {
-                    parser.require(XmlPullParser.START_TAG, NS, MODULES_NOT_DONE_REASON);
-                    parser.nextTag();
-                    parser.require(XmlPullParser.END_TAG, NS, MODULES_NOT_DONE_REASON);
-                    continue;
-                }
-                parser.require(XmlPullParser.START_TAG, NS, CASE_TAG);
-                String className = parser.getAttributeValue(NS, NAME_ATTR);
-                // Test level information parsing
-                handleTestCaseLevel(parser, module, className);
-                parser.require(XmlPullParser.END_TAG, NS, CASE_TAG);
+            results.add(parseModule(parser, moduleAbis));
+        }
+    }
+
+    /**
+     * Parse all the information inside a module (class, method, failures).
+     *
+     * @param parser the parser, on the start tag of the module.
+     * @param moduleAbis the map where to put the {@link IAbi} of the module if it has one.
+     * @return the {@link TestRunResult} of the module.
+     */
+    TestRunResult parseModule(XmlPullParser parser, Map<String, IAbi> moduleAbis)
+            throws IOException, XmlPullParserException {
+        parser.require(XmlPullParser.START_TAG, NS, MODULE_TAG);
+        TestRunResult module = new TestRunResult();
+        String name = parser.getAttributeValue(NS, NAME_ATTR);
+        String abi = parser.getAttributeValue(NS, ABI_ATTR);
+        String moduleId = name;
+        if (abi != null) {
+            moduleId = AbiUtils.createId(abi, name);
+            moduleAbis.put(moduleId, new Abi(abi, AbiUtils.getBitness(abi)));
+        }
+        long moduleElapsedTime = Long.parseLong(parser.getAttributeValue(NS, RUNTIME_ATTR));
+        boolean moduleDone = Boolean.parseBoolean(parser.getAttributeValue(NS, DONE_ATTR));
+        int totalTests = Integer.parseInt(parser.getAttributeValue(NS, TOTAL_TESTS_ATTR));
+        module.testRunStarted(moduleId, totalTests);
+        // TestCase level information parsing
+        while (parser.nextTag() == XmlPullParser.START_TAG) {
+            // If a reason for not done exists, handle it.
+            if (parser.getName().equals(MODULES_NOT_DONE_REASON)) {
+                parser.require(XmlPullParser.START_TAG, NS, MODULES_NOT_DONE_REASON);
+                parser.nextTag();
+                parser.require(XmlPullParser.END_TAG, NS, MODULES_NOT_DONE_REASON);
+                continue;
             }
-            module.testRunEnded(moduleElapsedTime, new HashMap<String, Metric>());
-            module.setRunComplete(moduleDone);
-            parser.require(XmlPullParser.END_TAG, NS, MODULE_TAG);
+            parser.require(XmlPullParser.START_TAG, NS, CASE_TAG);
+            String className = parser.getAttributeValue(NS, NAME_ATTR);
+            // Test level information parsing
+            handleTestCaseLevel(parser, module, className);
+            parser.require(XmlPullParser.END_TAG, NS, CASE_TAG);
         }
+        module.testRunEnded(moduleElapsedTime, new HashMap<String, Metric>());
+        module.setRunComplete(moduleDone);
+        parser.require(XmlPullParser.END_TAG, NS, MODULE_TAG);
+        return module;
     }
 
     /** Parse and replay all the individual test cases level (method) informations. */
@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result.suite;
+
+import com.android.tradefed.invoker.IInvocationContext;
+import com.android.tradefed.invoker.InvocationContext;
+import com.android.tradefed.result.ILogSaverListener;
+import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.result.LogFile;
+import com.android.tradefed.result.TestDescription;
+import com.android.tradefed.result.TestResult;
+import com.android.tradefed.result.TestRunResult;
+import com.android.tradefed.testtype.Abi;
+import com.android.tradefed.testtype.IAbi;
+import com.android.tradefed.testtype.suite.ModuleDefinition;
+import com.android.tradefed.util.AbiUtils;
+
+import com.google.common.io.ByteStreams;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads the xml results of {@link XmlSuiteResultFormatter} one module at a time.
+ *
+ * <p>Opening the reader only parses the top level information and goes once through the file to
+ * index where each module starts and ends. The results of a module are parsed when requested, by
+ * id with {@link #getModuleResults(String)} or while iterating.
+ */
+public class XmlSuiteResultReader implements Iterable<TestRunResult> {
+
+    private static final byte[] MODULE_START =
+            ("<" + XmlSuiteResultFormatter.MODULE_TAG + " ").getBytes(StandardCharsets.UTF_8);
+    private static final byte[] MODULE_END =
+            ("</" + XmlSuiteResultFormatter.MODULE_TAG + ">").getBytes(StandardCharsets.UTF_8);
+
+    private final XmlSuiteResultFormatter mFormatter;
+    private final File mResultFile;
+    private final SuiteResultHolder mHolder;
+    // Module id to the start and end offsets of the module in the result file.
+    private final Map<String, long[]> mIndex = new LinkedHashMap<>();
+    private final Map<String, IAbi> mModulesAbi = new HashMap<>();
+
+    private XmlSuiteResultReader(
+            XmlSuiteResultFormatter formatter, File resultFile, SuiteResultHolder holder) {
+        mFormatter = formatter;
+        mResultFile = resultFile;
+        mHolder = holder;
+    }
+
+    /**
+     * Open the results of a result directory.
+     *
+     * @param formatter the {@link XmlSuiteResultFormatter} used to write the results.
+     * @param resultDir the directory where to find the results.
+     * @return the {@link XmlSuiteResultReader} or null if the results could not be loaded.
+     */
+    public static XmlSuiteResultReader open(XmlSuiteResultFormatter formatter, File resultDir)
+            throws IOException {
+        SuiteResultHolder holder = formatter.parseResults(resultDir, true);
+        if (holder == null) {
+            return null;
+        }
+        File resultFile = new File(resultDir, XmlSuiteResultFormatter.TEST_RESULT_FILE_NAME);
+        XmlSuiteResultReader reader = new XmlSuiteResultReader(formatter, resultFile, holder);
+        try {
+            reader.buildIndex();
+        } catch (XmlPullParserException e) {
+            throw new IOException(e);
+        }
+        return reader;
+    }
+
+    /**
+     * Returns the top level information of the results. Its module results are not loaded, see
+     * {@link #iterator()}.
+     */
+    public SuiteResultHolder getResultHolder() {
+        return mHolder;
+    }
+
+    /** Returns the ids of the modules in the results, in the order of the file. */
+    public List<String> getModuleIds() {
+        return new ArrayList<>(mIndex.keySet());
+    }
+
+    /** Returns the {@link IAbi} of the modules that have one, by module id. */
+    public Map<String, IAbi> getModulesAbi() {
+        return Collections.unmodifiableMap(mModulesAbi);
+    }
+
+    /**
+     * Parse the results of a single module.
+     *
+     * @param moduleId the id of the module, its name prefixed by its abi if it has one.
+     * @return the {@link TestRunResult} of the module, or null if it is not in the results.
+     */
+    public TestRunResult getModuleResults(String moduleId) throws IOException {
+        long[] range = mIndex.get(moduleId);
+        if (range == null) {
+            return null;
+        }
+        try (InputStream stream = openRange(range[0], range[1])) {
+            XmlPullParser parser = XmlPullParserFactory.newInstance().newPullParser();
+            parser.setInput(stream, StandardCharsets.UTF_8.name());
+            parser.nextTag();
+            return mFormatter.parseModule(parser, new HashMap<>());
+        } catch (XmlPullParserException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Iterate over the results of the modules, in the order of the file. Each module is parsed when
+     * reached.
+     */
+    @Override
+    public Iterator<TestRunResult> iterator() {
+        Iterator<String> ids = getModuleIds().iterator();
+        return new Iterator<TestRunResult>() {
+            @Override
+            public boolean hasNext() {
+                return ids.hasNext();
+            }
+
+            @Override
+            public TestRunResult next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                try {
+                    return getModuleResults(ids.next());
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Replay the results module by module, as they would be reported by a suite, for example to
+     * load them in a {@link com.android.tradefed.result.CollectingTestListener}.
+     *
+     * @param listener the {@link ITestInvocationListener} receiving the results.
+     */
+    public void replay(ITestInvocationListener listener) throws IOException {
+        for (String moduleId : mIndex.keySet()) {
+            TestRunResult module = getModuleResults(moduleId);
+            listener.testModuleStarted(getModuleContext(moduleId));
+            forwardModule(module, listener);
+            listener.testModuleEnded();
+        }
+    }
+
+    /**
+     * Returns the module context of a module, as a suite would report it, with its id, name and
+     * abi.
+     *
+     * @param moduleId the id of the module, its name prefixed by its abi if it has one.
+     */
+    public IInvocationContext getModuleContext(String moduleId) {
+        IInvocationContext moduleContext = new InvocationContext();
+        moduleContext.addInvocationAttribute(ModuleDefinition.MODULE_ID, moduleId);
+        IAbi abi = mModulesAbi.get(moduleId);
+        if (abi != null) {
+            moduleContext.addInvocationAttribute(ModuleDefinition.MODULE_ABI, abi.getName());
+            moduleContext.addInvocationAttribute(
+                    ModuleDefinition.MODULE_NAME, AbiUtils.parseTestName(moduleId));
+        } else {
+            moduleContext.addInvocationAttribute(ModuleDefinition.MODULE_NAME, moduleId);
+        }
+        return moduleContext;
+    }
+
+    private static void forwardModule(TestRunResult module, ITestInvocationListener listener) {
+        listener.testRunStarted(module.getName(), module.getExpectedTestCount());
+        for (Entry<TestDescription, TestResult> testEntry : module.getTestResults().entrySet()) {
+            TestResult result = testEntry.getValue();
+            listener.testStarted(testEntry.getKey(), result.getStartTime());
+            switch (result.getStatus()) {
+                case FAILURE:
+                    listener.testFailed(testEntry.getKey(), result.getFailure());
+                    break;
+                case ASSUMPTION_FAILURE:
+                    listener.testAssumptionFailure(testEntry.getKey(), result.getFailure());
+                    break;
+                case IGNORED:
+                    listener.testIgnored(testEntry.getKey());
+                    break;
+                default:
+                    break;
+            }
+            if (listener instanceof ILogSaverListener) {
+                for (Entry<String, LogFile> logFile : result.getLoggedFiles().entrySet()) {
+                    ((ILogSaverListener) listener)
+                            .logAssociation(logFile.getKey(), logFile.getValue());
+                }
+            }
+            listener.testEnded(testEntry.getKey(), result.getEndTime(), result.getProtoMetrics());
+        }
+        if (!module.isRunComplete()) {
+            listener.testRunFailed("Run was incomplete. Some tests might not have finished.");
+        }
+        listener.testRunEnded(module.getElapsedTime(), module.getRunProtoMetrics());
+    }
+
+    /**
+     * Go once through the file to find where each module starts and ends. Tags cannot appear in
+     * text or attributes since '<' and '>' are always escaped there. A module without test cases
+     * is a single empty element tag.
+     */
+    private void buildIndex() throws IOException, XmlPullParserException {
+        try (InputStream stream = new BufferedInputStream(new FileInputStream(mResultFile))) {
+            long position = 0L;
+            long moduleStart = -1L;
+            boolean inStartTag = false;
+            int previous = -1;
+            int startMatched = 0;
+            int endMatched = 0;
+            int b;
+            while ((b = stream.read()) != -1) {
+                startMatched = match(MODULE_START, startMatched, (byte) b);
+                endMatched = match(MODULE_END, endMatched, (byte) b);
+                if (startMatched == MODULE_START.length) {
+                    moduleStart = position - MODULE_START.length + 1;
+                    inStartTag = true;
+                    startMatched = 0;
+                } else if (inStartTag && b == '>') {
+                    inStartTag = false;
+                    if (previous == '/') {
+                        indexModule(moduleStart, position + 1);
+                        moduleStart = -1L;
+                    }
+                } else if (endMatched == MODULE_END.length && moduleStart >= 0) {
+                    indexModule(moduleStart, position + 1);
+                    moduleStart = -1L;
+                    endMatched = 0;
+                }
+                previous = b;
+                position++;
+            }
+        }
+    }
+
+    /** Returns how many bytes of the pattern are matched after reading one more byte. */
+    private static int match(byte[] pattern, int matched, byte b) {
+        if (pattern[matched] == b) {
+            return matched + 1;
+        }
+        // The first byte of the patterns appears only once in them.
+        return pattern[0] == b ? 1 : 0;
+    }
+
+    private void indexModule(long start, long end) throws IOException, XmlPullParserException {
+        // Only read the start tag of the module to get its id.
+        try (InputStream stream = openRange(start, end)) {
+            XmlPullParser parser = XmlPullParserFactory.newInstance().newPullParser();
+            parser.setInput(stream, StandardCharsets.UTF_8.name());
+            parser.nextTag();
+            parser.require(
+                    XmlPullParser.START_TAG,
+                    XmlSuiteResultFormatter.NS,
+                    XmlSuiteResultFormatter.MODULE_TAG);
+            String moduleId =
+                    parser.getAttributeValue(
+                            XmlSuiteResultFormatter.NS, XmlSuiteResultFormatter.NAME_ATTR);
+            String abi =
+                    parser.getAttributeValue(
+                            XmlSuiteResultFormatter.NS, XmlSuiteResultFormatter.ABI_ATTR);
+            if (abi != null) {
+                moduleId = AbiUtils.createId(abi, moduleId);
+                mModulesAbi.put(moduleId, new Abi(abi, AbiUtils.getBitness(abi)));
+            }
+            mIndex.put(moduleId, new long[] {start, end});
+        }
+    }
+
+    private InputStream openRange(long start, long end) throws IOException {
+        FileInputStream stream = new FileInputStream(mResultFile);
+        stream.getChannel().position(start);
+        return new BufferedInputStream(ByteStreams.limit(stream, end - start));
+    }
+}
@@ -516,6 +516,10 @@ public class ResultAggregator extends CollectingTestListener {
         listener.testRunEnded(result.getElapsedTime(), result.getRunProtoMetrics());
         // Ensure we don't keep track of the results we just forwarded
         clearResultsForName(result.getName());
+        if (!results.contains(result)) {
+            // Only the merged result is released, the attempts might still be used.
+            result.close();
+        }
     }
 
     private void forwardDetailedFailure() {
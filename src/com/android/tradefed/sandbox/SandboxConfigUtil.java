@@ -36,6 +36,7 @@ import com.google.common.base.Strings;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
 
@@ -46,7 +47,8 @@ public class SandboxConfigUtil {
 
     /**
      * Create a subprocess based on the Tf jars from any version, and dump the xml {@link
-     * IConfiguration} based on the command line args.
+     * IConfiguration} based on the command line args. When the {@link SandboxWorkerPool} is
+     * enabled, a warm worker with the same environment variables dumps it instead.
      *
      * @param classpath the classpath to use to run the sandbox.
      * @param runUtil the {@link IRunUtil} to use to run the command.
@@ -80,8 +82,27 @@ public class SandboxConfigUtil {
             FileUtil.deleteFile(destination);
             throw e;
         }
-        File tmpDir = FileUtil.createTempDir("config-dump-temp-dir");
         CommandResult result = null;
+        SandboxWorkerPool pool = SandboxWorkerPool.getInstance();
+        if (pool != null) {
+            List<String> dumpArgs = new ArrayList<>();
+            dumpArgs.add(dump.toString());
+            dumpArgs.add(destination.getAbsolutePath());
+            dumpArgs.addAll(Arrays.asList(args));
+            try {
+                result =
+                        pool.dumpConfig(classpath, globalConfig, runUtil, dumpArgs, DUMP_TIMEOUT);
+            } catch (IOException e) {
+                CLog.w("Sandbox worker could not dump the config, using a new JVM: %s", e);
+            }
+        }
+        if (result != null) {
+            if (CommandStatus.SUCCESS.equals(result.getStatus())) {
+                return destination;
+            }
+            throw createDumpException(result, destination);
+        }
+        File tmpDir = FileUtil.createTempDir("config-dump-temp-dir");
         try {
             List<String> mCmdArgs = new ArrayList<>();
             mCmdArgs.add(SystemUtil.getRunningJavaBinaryPath().getAbsolutePath());
@@ -101,7 +122,12 @@ public class SandboxConfigUtil {
         } finally {
             FileUtil.recursiveDelete(tmpDir);
         }
+        throw createDumpException(result, destination);
+    }
 
+    /** Clean up after a failed dump and create the exception describing it. */
+    private static SandboxConfigurationException createDumpException(
+            CommandResult result, File destination) {
         if (result.getStderr() != null && !result.getStderr().isEmpty()) {
             CLog.d("stderr: %s\nstdout: %s", result.getStderr(), result.getStdout());
         }
@@ -118,7 +144,7 @@ public class SandboxConfigUtil {
         if (result.getStderr().contains(InfraErrorIdentifier.KEYSTORE_CONFIG_ERROR.name())) {
             error = InfraErrorIdentifier.KEYSTORE_CONFIG_ERROR;
         }
-        throw new SandboxConfigurationException(errorMessage, error);
+        return new SandboxConfigurationException(errorMessage, error);
     }
 
     /**
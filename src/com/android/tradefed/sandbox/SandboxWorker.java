@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.sandbox;
+
+import com.android.annotations.VisibleForTesting;
+import com.android.tradefed.config.ConfigurationException;
+import com.android.tradefed.config.GlobalConfiguration;
+import com.android.tradefed.config.SandboxConfigurationFactory;
+import com.android.tradefed.invoker.logger.InvocationMetricLogger;
+import com.android.tradefed.invoker.logger.InvocationMetricLogger.InvocationMetricKey;
+import com.android.tradefed.service.TradefedFeatureServer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Runner of a warm JVM started by {@link SandboxWorkerPool}. It connects back to the parent, then
+ * runs the {@link SandboxConfigDump} requests it receives until the connection is closed. args:
+ * <parent port>
+ *
+ * <p>A request is the names and values of the variables that change with each dump, followed by
+ * the arguments of {@link SandboxConfigDump}. Its response is the exit code followed by the
+ * stderr of the dump. Each message is sent as a count followed by length prefixed UTF-8 strings.
+ */
+public class SandboxWorker {
+
+    /**
+     * Serve the requests read from the input until it is closed.
+     *
+     * @param input the {@link InputStream} the requests are read from.
+     * @param output the {@link OutputStream} the responses are written to.
+     * @throws IOException if the connection with the parent is broken.
+     */
+    @VisibleForTesting
+    void serve(InputStream input, OutputStream output) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(input));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output));
+        String[] variables;
+        while ((variables = readStrings(in)) != null) {
+            Map<String, String> dumpEnv = new HashMap<>();
+            for (int i = 0; i + 1 < variables.length; i += 2) {
+                dumpEnv.put(variables[i], variables[i + 1]);
+            }
+            String[] request = readStrings(in);
+            if (request == null) {
+                throw new EOFException("Connection closed before the dump arguments.");
+            }
+            ByteArrayOutputStream errors = new ByteArrayOutputStream();
+            PrintStream stderr = System.err;
+            int code;
+            try (PrintStream capture = new PrintStream(errors, true)) {
+                System.setErr(capture);
+                try {
+                    code = dumpConfig(dumpEnv, request);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                    code = 1;
+                }
+            } finally {
+                System.setErr(stderr);
+            }
+            writeStrings(out, Integer.toString(code), errors.toString());
+            out.flush();
+        }
+    }
+
+    /**
+     * Run a single {@link SandboxConfigDump} request and return its exit code.
+     *
+     * @param dumpEnv the variables of {@link SandboxWorkerPool#PER_DUMP_VARIABLES} for this dump.
+     * @param args the args of {@link SandboxConfigDump}.
+     */
+    @VisibleForTesting
+    int dumpConfig(Map<String, String> dumpEnv, String[] args) {
+        // The worker environment is shared by all dumps, so the feature server reference of the
+        // invocation is provided the same way as for a process without the variable.
+        String reference = dumpEnv.get(TradefedFeatureServer.SERVER_REFERENCE);
+        if (reference != null) {
+            InvocationMetricLogger.addInvocationMetrics(
+                    InvocationMetricKey.SERVER_REFERENCE, reference);
+        }
+        try {
+            return new SandboxConfigDump().parse(args);
+        } finally {
+            InvocationMetricLogger.clearInvocationMetrics();
+        }
+    }
+
+    /** Write strings as a count followed by length prefixed UTF-8 strings. */
+    static void writeStrings(DataOutputStream out, String... strings) throws IOException {
+        out.writeInt(strings.length);
+        for (String string : strings) {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Read strings written by {@link #writeStrings(DataOutputStream, String...)}.
+     *
+     * @return the strings, or null if the stream was closed before a new message.
+     */
+    static String[] readStrings(DataInputStream in) throws IOException {
+        int count;
+        try {
+            count = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        String[] strings = new String[count];
+        for (int i = 0; i < count; i++) {
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            strings[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return strings;
+    }
+
+    public static void main(final String[] mainArgs) {
+        try {
+            GlobalConfiguration.createGlobalConfiguration(new String[] {});
+        } catch (ConfigurationException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+        // Load the configuration classes before reporting the worker as ready.
+        SandboxConfigurationFactory.getInstance();
+        int port = Integer.parseInt(mainArgs[0]);
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            new SandboxWorker().serve(socket.getInputStream(), socket.getOutputStream());
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,541 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.sandbox;
+
+import com.android.annotations.VisibleForTesting;
+import com.android.tradefed.config.GlobalConfiguration;
+import com.android.tradefed.config.proxy.AutomatedReporters;
+import com.android.tradefed.host.IHostOptions;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.service.TradefedFeatureServer;
+import com.android.tradefed.util.CommandResult;
+import com.android.tradefed.util.CommandStatus;
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.IRunUtil;
+import com.android.tradefed.util.IRunUtil.EnvPriority;
+import com.android.tradefed.util.RunUtil;
+import com.android.tradefed.util.StreamUtil;
+import com.android.tradefed.util.SystemUtil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.ProcessBuilder.Redirect;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pool of warm JVMs running {@link SandboxWorker}, used to dump the sandbox configurations instead
+ * of starting a new JVM for each dump.
+ *
+ * <p>Workers are grouped by classpath, global configuration and environment variables, so they run
+ * in the same environment as the JVM they replace. Variables that change with each invocation,
+ * like {@link TradefedFeatureServer#SERVER_REFERENCE}, are sent with each dump instead so workers
+ * can be reused across invocations. Up to the pool size, workers are kept idle once done and new
+ * ones are started ahead of the next dumps, without going over {@code sandbox-worker-max-count}
+ * workers in total. A worker is recycled after {@code sandbox-worker-max-runs} dumps, after a
+ * failed dump, or if its connection breaks, and the workers of a group unused for {@code
+ * sandbox-worker-idle-timeout} are stopped. Workers exit when the connection with this process is
+ * closed.
+ */
+public class SandboxWorkerPool {
+
+    /** Variables sent with each dump instead of being part of the worker environment. */
+    static final Set<String> PER_DUMP_VARIABLES =
+            Collections.singleton(TradefedFeatureServer.SERVER_REFERENCE);
+
+    private static final long START_TIMEOUT_MS = 2 * 60 * 1000;
+    private static final int ACCEPT_POLL_MS = 1000;
+    private static final String WORKER_LOG = "sandbox-worker.log";
+
+    private static SandboxWorkerPool sInstance = null;
+
+    private final int mPoolSize;
+    private final int mMaxRuns;
+    private final int mMaxCount;
+    private final long mIdleTimeout;
+    // Groups of workers by classpath, global configuration and environment, least recently used
+    // first. Guarded by itself, which also guards the state of the groups.
+    private final Map<String, WorkerGroup> mGroups = new LinkedHashMap<>(16, 0.75f, true);
+    // Number of idle, starting and busy workers across all groups. Guarded by mGroups.
+    private int mWorkerCount = 0;
+    private final ExecutorService mStarter;
+    private final ScheduledExecutorService mReaper;
+
+    @VisibleForTesting
+    SandboxWorkerPool(int poolSize, int maxRuns, int maxCount, long idleTimeout) {
+        mPoolSize = poolSize;
+        mMaxRuns = maxRuns;
+        mMaxCount = Math.max(poolSize, maxCount);
+        mIdleTimeout = idleTimeout;
+        mStarter =
+                Executors.newCachedThreadPool(
+                        r -> {
+                            Thread thread = new Thread(r, "SandboxWorkerPool-starter");
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+        mReaper =
+                Executors.newSingleThreadScheduledExecutor(
+                        r -> {
+                            Thread thread = new Thread(r, "SandboxWorkerPool-reaper");
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+        if (idleTimeout > 0) {
+            mReaper.scheduleWithFixedDelay(
+                    this::stopIdleGroups, idleTimeout, idleTimeout, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Returns the pool configured by the host options, or null if it is disabled. */
+    public static synchronized SandboxWorkerPool getInstance() {
+        if (sInstance == null) {
+            IHostOptions options;
+            try {
+                options = GlobalConfiguration.getInstance().getHostOptions();
+            } catch (IllegalStateException e) {
+                // Global configuration is not initialized, dump in new JVMs.
+                return null;
+            }
+            if (options.getSandboxWorkerPoolSize() <= 0) {
+                return null;
+            }
+            sInstance =
+                    new SandboxWorkerPool(
+                            options.getSandboxWorkerPoolSize(),
+                            options.getSandboxWorkerMaxRuns(),
+                            options.getSandboxWorkerMaxCount(),
+                            options.getSandboxWorkerIdleTimeout());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Dump a configuration with a warm worker.
+     *
+     * @param classpath the classpath of the worker.
+     * @param globalConfig the file describing the global configuration of the worker, or null.
+     * @param runUtil the {@link IRunUtil} whose environment variables the worker should have.
+     * @param dumpArgs the args of {@link SandboxConfigDump}.
+     * @param timeout the timeout of the dump in milliseconds.
+     * @return the {@link CommandResult} of the dump.
+     * @throws IOException if no worker could run the dump.
+     */
+    public CommandResult dumpConfig(
+            String classpath,
+            File globalConfig,
+            IRunUtil runUtil,
+            List<String> dumpArgs,
+            long timeout)
+            throws IOException {
+        // The global configuration variable is managed by the pool.
+        SortedMap<String, String> env = new TreeMap<>(runUtil.getEnvVariables());
+        env.remove(GlobalConfiguration.GLOBAL_CONFIG_VARIABLE);
+        SortedSet<String> unsetEnv = new TreeSet<>(runUtil.getUnsetEnvVariables());
+        unsetEnv.remove(GlobalConfiguration.GLOBAL_CONFIG_VARIABLE);
+        Map<String, String> dumpEnv = new TreeMap<>();
+        for (String variable : PER_DUMP_VARIABLES) {
+            String value = env.remove(variable);
+            if (value != null) {
+                dumpEnv.put(variable, value);
+            }
+            unsetEnv.remove(variable);
+        }
+        WorkerGroup group = getGroup(classpath, globalConfig, env, unsetEnv);
+        Worker worker = acquire(group);
+        CommandResult result;
+        try {
+            result = worker.run(dumpEnv, dumpArgs, timeout);
+        } catch (IOException e) {
+            release(group, worker, false);
+            throw e;
+        }
+        release(group, worker, CommandStatus.SUCCESS.equals(result.getStatus()));
+        return result;
+    }
+
+    private WorkerGroup getGroup(
+            String classpath,
+            File globalConfig,
+            SortedMap<String, String> env,
+            SortedSet<String> unsetEnv)
+            throws IOException {
+        String key = classpath;
+        if (globalConfig != null) {
+            key += "\n" + FileUtil.calculateMd5(globalConfig);
+        }
+        key += "\n" + env + "\n" + unsetEnv;
+        synchronized (mGroups) {
+            WorkerGroup group = mGroups.get(key);
+            if (group == null) {
+                File config = null;
+                if (globalConfig != null) {
+                    // The caller deletes its global configuration, keep a copy for new workers.
+                    config = FileUtil.createTempFile("sandbox-worker-global-config", ".xml");
+                    config.deleteOnExit();
+                    FileUtil.copyFile(globalConfig, config);
+                }
+                group = new WorkerGroup(classpath, config, env, unsetEnv);
+                mGroups.put(key, group);
+            }
+            group.mLastUsed = System.currentTimeMillis();
+            return group;
+        }
+    }
+
+    /** Take an idle worker of the group, or start one if none is available. */
+    private Worker acquire(WorkerGroup group) throws IOException {
+        CompletableFuture<Worker> next;
+        List<CompletableFuture<Worker>> stopped = new ArrayList<>();
+        synchronized (mGroups) {
+            next = group.mIdle.pollFirst();
+            if (next == null) {
+                // Make room for the new worker with the idle workers of other groups.
+                stopIdleWorkers(group, mMaxCount - 1, stopped);
+                mWorkerCount++;
+            }
+            group.mInUse++;
+            // Start the workers of the next dumps while this one runs.
+            prewarm(group);
+        }
+        closeAll(stopped);
+        try {
+            if (next != null) {
+                try {
+                    return next.get();
+                } catch (ExecutionException e) {
+                    CLog.w("Sandbox worker failed to start: %s", e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for sandbox worker");
+                }
+            }
+            return group.start();
+        } catch (IOException | RuntimeException e) {
+            synchronized (mGroups) {
+                group.mInUse--;
+                mWorkerCount--;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Return a worker once its dump is done. It is kept idle if the dump succeeded and it can
+     * still run more, otherwise it is stopped and replaced.
+     */
+    private void release(WorkerGroup group, Worker worker, boolean success) {
+        synchronized (mGroups) {
+            group.mInUse--;
+            group.mLastUsed = System.currentTimeMillis();
+            if (success
+                    && worker.getRuns() < mMaxRuns
+                    && group.mIdle.size() < mPoolSize
+                    && mWorkerCount <= mMaxCount) {
+                group.mIdle.addFirst(CompletableFuture.completedFuture(worker));
+                return;
+            }
+            mWorkerCount--;
+            prewarm(group);
+        }
+        worker.close();
+    }
+
+    /** Start workers until the pool size is reached. Must hold the groups lock. */
+    private void prewarm(WorkerGroup group) {
+        while (group.mIdle.size() + group.mInUse < mPoolSize && mWorkerCount < mMaxCount) {
+            mWorkerCount++;
+            group.mIdle.addLast(
+                    CompletableFuture.supplyAsync(
+                            () -> {
+                                try {
+                                    return group.start();
+                                } catch (IOException e) {
+                                    throw new CompletionException(e);
+                                }
+                            },
+                            mStarter));
+        }
+    }
+
+    /**
+     * Stop idle workers of other groups, least recently used first, until at most the given
+     * number of workers remain. Must hold the groups lock.
+     */
+    private void stopIdleWorkers(
+            WorkerGroup keep, int maxCount, List<CompletableFuture<Worker>> stopped) {
+        for (WorkerGroup group : mGroups.values()) {
+            if (mWorkerCount <= maxCount) {
+                return;
+            }
+            while (group != keep && !group.mIdle.isEmpty() && mWorkerCount > maxCount) {
+                stopped.add(group.mIdle.pollLast());
+                mWorkerCount--;
+            }
+        }
+    }
+
+    /** Stop the workers of the groups that were not used for longer than the idle timeout. */
+    @VisibleForTesting
+    void stopIdleGroups() {
+        List<CompletableFuture<Worker>> stopped = new ArrayList<>();
+        long deadline = System.currentTimeMillis() - mIdleTimeout;
+        synchronized (mGroups) {
+            Iterator<WorkerGroup> it = mGroups.values().iterator();
+            while (it.hasNext()) {
+                WorkerGroup group = it.next();
+                if (group.mInUse > 0 || group.mLastUsed > deadline) {
+                    continue;
+                }
+                CLog.d(
+                        "Stopping %d sandbox workers unused for %dms.",
+                        group.mIdle.size(), mIdleTimeout);
+                mWorkerCount -= group.mIdle.size();
+                stopped.addAll(group.mIdle);
+                group.mIdle.clear();
+                FileUtil.deleteFile(group.mGlobalConfig);
+                it.remove();
+            }
+        }
+        closeAll(stopped);
+    }
+
+    /** Returns the number of idle, starting and busy workers across all groups. */
+    @VisibleForTesting
+    int getWorkerCount() {
+        synchronized (mGroups) {
+            return mWorkerCount;
+        }
+    }
+
+    /** Close the given workers, once started for the ones still starting. */
+    private static void closeAll(List<CompletableFuture<Worker>> workers) {
+        for (CompletableFuture<Worker> worker : workers) {
+            worker.thenAccept(Worker::close);
+        }
+    }
+
+    /**
+     * Start a worker and wait for it to connect.
+     *
+     * @param classpath the classpath of the worker.
+     * @param globalConfig the file describing the global configuration of the worker, or null.
+     * @param env the environment variables to set for the worker.
+     * @param unsetEnv the environment variables to unset for the worker.
+     * @return the connected {@link Worker}.
+     * @throws IOException if the worker failed to start.
+     */
+    @VisibleForTesting
+    Worker startWorker(
+            String classpath, File globalConfig, Map<String, String> env, Set<String> unsetEnv)
+            throws IOException {
+        File tmpDir = FileUtil.createTempDir("sandbox-worker");
+        Process process = null;
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            server.setSoTimeout(ACCEPT_POLL_MS);
+            IRunUtil runUtil = new RunUtil();
+            runUtil.unsetEnvVariable(GlobalConfiguration.GLOBAL_CONFIG_SERVER_CONFIG_VARIABLE);
+            runUtil.unsetEnvVariable(AutomatedReporters.PROTO_REPORTING_PORT);
+            for (String variable : PER_DUMP_VARIABLES) {
+                runUtil.unsetEnvVariable(variable);
+            }
+            for (String variable : unsetEnv) {
+                runUtil.unsetEnvVariable(variable);
+            }
+            for (Map.Entry<String, String> variable : env.entrySet()) {
+                runUtil.setEnvVariable(variable.getKey(), variable.getValue());
+            }
+            if (globalConfig != null) {
+                runUtil.setEnvVariable(
+                        GlobalConfiguration.GLOBAL_CONFIG_VARIABLE, globalConfig.getAbsolutePath());
+                runUtil.setEnvVariablePriority(EnvPriority.SET);
+            } else {
+                runUtil.unsetEnvVariable(GlobalConfiguration.GLOBAL_CONFIG_VARIABLE);
+            }
+            List<String> cmdArgs = new ArrayList<>();
+            cmdArgs.add(SystemUtil.getRunningJavaBinaryPath().getAbsolutePath());
+            cmdArgs.add(String.format("-Djava.io.tmpdir=%s", tmpDir.getAbsolutePath()));
+            cmdArgs.add("-cp");
+            cmdArgs.add(classpath);
+            cmdArgs.add(SandboxWorker.class.getCanonicalName());
+            cmdArgs.add(Integer.toString(server.getLocalPort()));
+            process =
+                    runUtil.runCmdInBackground(
+                            Redirect.appendTo(new File(tmpDir, WORKER_LOG)), cmdArgs);
+            long deadline = System.currentTimeMillis() + START_TIMEOUT_MS;
+            while (true) {
+                try {
+                    Socket socket = server.accept();
+                    CLog.d("Started sandbox worker in %s", tmpDir);
+                    return new Worker(socket, process, tmpDir);
+                } catch (SocketTimeoutException e) {
+                    if (!process.isAlive()) {
+                        throw new IOException(
+                                String.format(
+                                        "Sandbox worker exited with code %s before connecting.",
+                                        process.exitValue()));
+                    }
+                    if (System.currentTimeMillis() > deadline) {
+                        throw new IOException("Sandbox worker did not connect in time.");
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            if (process != null) {
+                process.destroy();
+            }
+            FileUtil.recursiveDelete(tmpDir);
+            throw e;
+        }
+    }
+
+    /** Workers of a classpath, global configuration and environment. */
+    private class WorkerGroup {
+        private final String mClasspath;
+        private final File mGlobalConfig;
+        private final Map<String, String> mEnv;
+        private final Set<String> mUnsetEnv;
+        // Idle workers and workers being started.
+        private final Deque<CompletableFuture<Worker>> mIdle = new ArrayDeque<>();
+        private int mInUse = 0;
+        private long mLastUsed = 0L;
+
+        WorkerGroup(
+                String classpath,
+                File globalConfig,
+                Map<String, String> env,
+                Set<String> unsetEnv) {
+            mClasspath = classpath;
+            mGlobalConfig = globalConfig;
+            mEnv = env;
+            mUnsetEnv = unsetEnv;
+        }
+
+        Worker start() throws IOException {
+            return startWorker(mClasspath, mGlobalConfig, mEnv, mUnsetEnv);
+        }
+    }
+
+    /** A worker connected to this process. */
+    @VisibleForTesting
+    static class Worker implements Closeable {
+        private final Socket mSocket;
+        private final Process mProcess;
+        private final File mTmpDir;
+        private final DataInputStream mIn;
+        private final DataOutputStream mOut;
+        private int mRuns = 0;
+
+        /**
+         * @param socket the {@link Socket} connected to the worker.
+         * @param process the {@link Process} of the worker, or null if it is not a subprocess.
+         * @param tmpDir the temporary directory of the worker, deleted once closed.
+         */
+        Worker(Socket socket, Process process, File tmpDir) throws IOException {
+            mSocket = socket;
+            mProcess = process;
+            mTmpDir = tmpDir;
+            mIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            mOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        /** Returns how many dumps were requested from this worker. */
+        int getRuns() {
+            return mRuns;
+        }
+
+        /**
+         * Run a dump.
+         *
+         * @param dumpEnv the variables of {@link #PER_DUMP_VARIABLES} to use for this dump.
+         * @param dumpArgs the args of {@link SandboxConfigDump}.
+         * @param timeout the timeout of the dump in milliseconds.
+         * @return the {@link CommandResult} of the dump.
+         * @throws IOException if the connection with the worker is broken.
+         */
+        CommandResult run(Map<String, String> dumpEnv, List<String> dumpArgs, long timeout)
+                throws IOException {
+            mRuns++;
+            mSocket.setSoTimeout((int) Math.min(timeout, Integer.MAX_VALUE));
+            List<String> variables = new ArrayList<>();
+            for (Map.Entry<String, String> variable : dumpEnv.entrySet()) {
+                variables.add(variable.getKey());
+                variables.add(variable.getValue());
+            }
+            SandboxWorker.writeStrings(mOut, variables.toArray(new String[0]));
+            SandboxWorker.writeStrings(mOut, dumpArgs.toArray(new String[0]));
+            mOut.flush();
+            String[] response;
+            try {
+                response = SandboxWorker.readStrings(mIn);
+            } catch (SocketTimeoutException e) {
+                CommandResult result = new CommandResult(CommandStatus.TIMED_OUT);
+                result.setStdout("");
+                result.setStderr("");
+                return result;
+            }
+            if (response == null || response.length != 2) {
+                throw new IOException("Sandbox worker closed the connection.");
+            }
+            int exitCode = Integer.parseInt(response[0]);
+            CommandResult result =
+                    new CommandResult(
+                            exitCode == 0 ? CommandStatus.SUCCESS : CommandStatus.FAILED);
+            result.setExitCode(exitCode);
+            result.setStdout("");
+            result.setStderr(response[1]);
+            return result;
+        }
+
+        /** Stop the worker. */
+        @Override
+        public void close() {
+            StreamUtil.close(mSocket);
+            if (mProcess != null) {
+                mProcess.destroy();
+            }
+            FileUtil.recursiveDelete(mTmpDir);
+        }
+    }
+}
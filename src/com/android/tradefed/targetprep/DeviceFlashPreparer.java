@@ -128,6 +128,14 @@ public abstract class DeviceFlashPreparer extends BaseTargetPreparer {
                             + "should be flashed to")
     private String mRamdiskPartition = "boot";
 
+    @Option(
+            name = "prepare-images-ahead",
+            description =
+                    "prepare the images on background threads while the device reboots into the "
+                            + "bootloader and is flashed, and cache them by build id for the "
+                            + "next flashing of the same build.")
+    private boolean mPrepareImagesAhead = false;
+
     /**
      * Sets the device boot time
      * <p/>
@@ -229,6 +237,7 @@ public abstract class DeviceFlashPreparer extends BaseTargetPreparer {
                 }
                 if (flasher instanceof FastbootDeviceFlasher) {
                     ((FastbootDeviceFlasher) flasher).setFlashOptions(mFastbootFlashOptions);
+                    ((FastbootDeviceFlasher) flasher).setPrepareImagesAhead(mPrepareImagesAhead);
                 }
                 preEncryptDevice(device, flasher);
                 start = System.currentTimeMillis();
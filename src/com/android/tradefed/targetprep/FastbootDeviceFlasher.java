@@ -23,6 +23,7 @@ import com.android.tradefed.device.IManagedTestDevice;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.device.TestDeviceState;
 import com.android.tradefed.invoker.logger.InvocationMetricLogger;
+import com.android.tradefed.invoker.logger.InvocationMetricLogger.InvocationGroupMetricKey;
 import com.android.tradefed.invoker.logger.InvocationMetricLogger.InvocationMetricKey;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.result.error.DeviceErrorIdentifier;
@@ -33,6 +34,8 @@ import com.android.tradefed.util.CommandStatus;
 import com.android.tradefed.util.FileUtil;
 import com.android.tradefed.util.IRunUtil;
 import com.android.tradefed.util.RunUtil;
+import com.android.tradefed.util.SparseImageUtil;
+import com.android.tradefed.util.ZipUtil;
 import com.android.tradefed.util.ZipUtil2;
 
 import com.google.common.annotations.VisibleForTesting;
@@ -44,7 +47,10 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -61,6 +67,8 @@ public class FastbootDeviceFlasher implements IDeviceFlasher {
     private static final String SLOT_PROP = "ro.boot.slot_suffix";
     private static final String SLOT_VAR = "current-slot";
     private static final String SKIP_REBOOT_PARAM = "--skip-reboot";
+    private static final String USERDATA_IMAGE_NAME = "userdata.img";
+    private static final int IMAGE_PREPARATION_THREADS = 2;
 
     private long mWipeTimeout = 4 * 60 * 1000;
 
@@ -84,6 +92,12 @@ public class FastbootDeviceFlasher implements IDeviceFlasher {
 
     private String mRamdiskPartition = "root";
 
+    private boolean mPrepareImagesAhead = false;
+
+    private FlashingImagePreparer mImagePreparer = null;
+
+    private Map<String, Long> mPartitionFlashingTimes = new LinkedHashMap<>();
+
     /**
      * {@inheritDoc}
      */
@@ -143,12 +157,46 @@ public class FastbootDeviceFlasher implements IDeviceFlasher {
         mFlashOptions = flashOptions.stream().map(String::trim).collect(Collectors.toList());
     }
 
+    /**
+     * Sets whether the images are prepared on background threads ahead of flashing them, while the
+     * device reboots into the bootloader and its other partitions are flashed.
+     *
+     * @param prepareImagesAhead
+     */
+    public void setPrepareImagesAhead(boolean prepareImagesAhead) {
+        mPrepareImagesAhead = prepareImagesAhead;
+    }
+
+    /**
+     * Returns the time it took to flash each partition during the last flashing, in milliseconds.
+     * The 'fastboot update' of the device image is reported as the "update" partition.
+     */
+    public Map<String, Long> getPartitionFlashingTimes() {
+        return Collections.unmodifiableMap(mPartitionFlashingTimes);
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     public void flash(ITestDevice device, IDeviceBuildInfo deviceBuild) throws TargetSetupError,
             DeviceNotAvailableException {
+        mPartitionFlashingTimes.clear();
+        if (mPrepareImagesAhead) {
+            startPreparingImages(device, deviceBuild);
+        }
+        try {
+            flashBuild(device, deviceBuild);
+        } finally {
+            if (mImagePreparer != null) {
+                mImagePreparer.close();
+                mImagePreparer = null;
+            }
+        }
+    }
+
+    private void flashBuild(ITestDevice device, IDeviceBuildInfo deviceBuild)
+            throws TargetSetupError, DeviceNotAvailableException {
         boolean initialStateFastbootD =
                 supportsFlashingInFastbootD() &&
                 TestDeviceState.FASTBOOTD.equals(device.getDeviceState());
@@ -184,6 +232,103 @@ public class FastbootDeviceFlasher implements IDeviceFlasher {
         checkAndFlashSystem(device, systemBuildId, systemBuildFlavor, deviceBuild);
     }
 
+    /**
+     * Start preparing the images of the build in the background: the userdata image is extracted
+     * from the device image if needed, and the images are verified so a corrupted one fails the
+     * flashing before the device is modified.
+     *
+     * @param device the {@link ITestDevice} to flash
+     * @param deviceBuild the {@link IDeviceBuildInfo} containing the build files
+     * @throws TargetSetupError if the preparation could not be started
+     */
+    private void startPreparingImages(ITestDevice device, IDeviceBuildInfo deviceBuild)
+            throws TargetSetupError {
+        try {
+            mImagePreparer = createImagePreparer(deviceBuild);
+        } catch (IOException e) {
+            throw new TargetSetupError(
+                    "Failed to start preparing the images", e, device.getDeviceDescriptor());
+        }
+        File deviceImage = deviceBuild.getDeviceImageFile();
+        if (deviceImage != null) {
+            mImagePreparer.prepare(
+                    getVerifiedImageName(deviceImage),
+                    workDir -> {
+                        if (!ZipUtil.isZipFileValid(deviceImage, false)) {
+                            throw new IOException(
+                                    String.format("%s is not a valid zip file", deviceImage));
+                        }
+                        return deviceImage;
+                    });
+        }
+        if (UserDataFlashOption.FLASH.equals(mUserDataFlashOption)
+                && deviceBuild.getUserDataImageFile() != null) {
+            File userdataImg = deviceBuild.getUserDataImageFile();
+            mImagePreparer.prepare(
+                    getVerifiedImageName(userdataImg),
+                    workDir -> {
+                        // fastboot sends sparse images as they are, and resparses raw ones itself,
+                        // so the image only needs to be readable.
+                        if (!userdataImg.isFile() || userdataImg.length() == 0) {
+                            throw new IOException(
+                                    String.format("%s is missing or empty", userdataImg));
+                        }
+                        boolean sparse = SparseImageUtil.isSparse(userdataImg);
+                        CLog.d("%s is a %s image", userdataImg, sparse ? "sparse" : "raw");
+                        return userdataImg;
+                    });
+        } else if (UserDataFlashOption.FLASH_IMG_ZIP.equals(mUserDataFlashOption)
+                && deviceImage != null) {
+            mImagePreparer.prepare(
+                    USERDATA_IMAGE_NAME,
+                    workDir -> {
+                        File userdataImg = new File(workDir, USERDATA_IMAGE_NAME);
+                        try (ZipFile zip = new ZipFile(deviceImage)) {
+                            if (!ZipUtil2.extractFileFromZip(
+                                    zip, USERDATA_IMAGE_NAME, userdataImg)) {
+                                throw new IOException(
+                                        String.format(
+                                                "%s not found in %s",
+                                                USERDATA_IMAGE_NAME, deviceImage));
+                            }
+                        }
+                        return userdataImg;
+                    });
+        }
+    }
+
+    /** Create the {@link FlashingImagePreparer} of a build. Exposed for testing. */
+    @VisibleForTesting
+    FlashingImagePreparer createImagePreparer(IDeviceBuildInfo deviceBuild) throws IOException {
+        return new FlashingImagePreparer(deviceBuild, IMAGE_PREPARATION_THREADS);
+    }
+
+    private static String getVerifiedImageName(File image) {
+        // The path is part of the name since the same build may be fetched in another place.
+        return "verified:" + image.getAbsolutePath();
+    }
+
+    /**
+     * Wait for an image to be verified in the background, if it is being prepared.
+     *
+     * @param device the {@link ITestDevice} to flash
+     * @param image the {@link File} of the image
+     * @throws TargetSetupError if the image is not valid
+     */
+    private void waitForVerifiedImage(ITestDevice device, File image) throws TargetSetupError {
+        if (mImagePreparer != null && image != null) {
+            mImagePreparer.getImage(getVerifiedImageName(image), device.getDeviceDescriptor());
+        }
+    }
+
+    /** Record the time it took to flash a partition. */
+    private void recordPartitionFlashingTime(String partition, long elapsed) {
+        CLog.i("Flashed %s in %sms", partition, elapsed);
+        mPartitionFlashingTimes.merge(partition, elapsed, Long::sum);
+        InvocationMetricLogger.addInvocationMetrics(
+                InvocationGroupMetricKey.FLASHING_PARTITION_TIME, partition, elapsed);
+    }
+
     private String[] buildFastbootCommand(String action, boolean skipReboot, String... args) {
         List<String> cmdArgs = new ArrayList<>();
         if ("flash".equals(action) || "update".equals(action)) {
@@ -240,10 +385,13 @@ public class FastbootDeviceFlasher implements IDeviceFlasher {
     protected void flashPartition(ITestDevice device, File imgFile, String partition)
             throws DeviceNotAvailableException, TargetSetupError {
         CLog.d("fastboot flash %s %s", partition, imgFile.getAbsolutePath());
+        waitForVerifiedImage(device, imgFile);
+        long start = System.currentTimeMillis();
         executeLongFastbootCmd(
                 device,
                 buildFastbootCommand(
                         "flash", mShouldFlashRamdisk, partition, imgFile.getAbsolutePath()));
+        recordPartitionFlashingTime(partition, System.currentTimeMillis() - start);
     }
 
     /**
@@ -592,10 +740,20 @@ public class FastbootDeviceFlasher implements IDeviceFlasher {
     protected void flashUserDataFromDeviceImageFile(
             ITestDevice device, IDeviceBuildInfo deviceBuild)
             throws DeviceNotAvailableException, TargetSetupError {
+        if (mImagePreparer != null) {
+            File userdataImg =
+                    mImagePreparer.getImage(USERDATA_IMAGE_NAME, device.getDeviceDescriptor());
+            if (userdataImg != null) {
+                // The image is deleted with the prepared images of the build.
+                CLog.i("Flashing %s with userdata %s", device.getSerialNumber(), userdataImg);
+                flashPartition(device, userdataImg, "userdata");
+                return;
+            }
+        }
         File userdataImg = null;
         try {
             try (ZipFile zip = new ZipFile(deviceBuild.getDeviceImageFile())) {
-                userdataImg = ZipUtil2.extractFileFromZip(zip, "userdata.img");
+                userdataImg = ZipUtil2.extractFileFromZip(zip, USERDATA_IMAGE_NAME);
             } catch (IOException ioe) {
                 throw new TargetSetupError("failed to extract userdata.img from image file", ioe,
                         device.getDeviceDescriptor());
@@ -700,13 +858,16 @@ public class FastbootDeviceFlasher implements IDeviceFlasher {
                 deviceBuild.getDeviceImageFile().getAbsolutePath());
         // give extra time to the update cmd
         try {
+            waitForVerifiedImage(device, deviceBuild.getDeviceImageFile());
             try {
+                long start = System.currentTimeMillis();
                 executeLongFastbootCmd(
                         device,
                         buildFastbootCommand(
                                 "update",
                                 mShouldFlashRamdisk,
                                 deviceBuild.getDeviceImageFile().getAbsolutePath()));
+                recordPartitionFlashingTime("update", System.currentTimeMillis() - start);
             } catch (DeviceNotAvailableException e) {
                 // We wrap the exception from recovery if it fails to provide a clear message
                 throw new DeviceNotAvailableException(
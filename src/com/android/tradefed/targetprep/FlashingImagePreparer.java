@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.targetprep;
+
+import com.android.tradefed.build.IBuildInfo;
+import com.android.tradefed.command.remote.DeviceDescriptor;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.FileUtil;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Prepares the images of a build on background threads, so the host side work like extracting or
+ * verifying them overlaps with the device rebooting into the bootloader and being flashed.
+ *
+ * <p>Prepared images are cached by build id and flavor for the life of the process, so flashing
+ * the same build again, on the same or another device, does not prepare them again. The images of
+ * the least recently used builds are deleted once {@link #MAX_CACHED_BUILDS} builds are cached.
+ */
+class FlashingImagePreparer implements Closeable {
+
+    /** Prepares one image. */
+    interface ImagePreparation {
+        /**
+         * Prepare the image.
+         *
+         * @param workDir the directory where to put the files created for the image.
+         * @return the {@link File} of the image ready to be flashed.
+         */
+        File prepare(File workDir) throws IOException;
+    }
+
+    /** The prepared images of a build. */
+    private static class PreparedBuild {
+        final File mDir;
+        final Map<String, Future<File>> mImages = new HashMap<>();
+        int mUsers = 0;
+
+        PreparedBuild(File dir) {
+            mDir = dir;
+        }
+    }
+
+    @VisibleForTesting static final int MAX_CACHED_BUILDS = 2;
+
+    // Build key to prepared images, in access order. Guarded by itself.
+    private static final Map<String, PreparedBuild> sCache = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final String mBuildKey;
+    private final PreparedBuild mBuild;
+    private final ExecutorService mExecutor;
+
+    /**
+     * Ctor.
+     *
+     * @param build the {@link IBuildInfo} whose images are prepared.
+     * @param threads the number of threads preparing images.
+     */
+    FlashingImagePreparer(IBuildInfo build, int threads) throws IOException {
+        mBuildKey = getBuildKey(build);
+        mBuild = acquire(mBuildKey);
+        // Threads are created from the invocation thread, so they share its logging.
+        mExecutor =
+                Executors.newFixedThreadPool(
+                        Math.max(1, threads),
+                        r -> {
+                            Thread thread = new Thread(r, "FlashingImagePreparer");
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+    }
+
+    /**
+     * Start preparing an image in the background, unless it was already prepared for this build.
+     *
+     * @param imageName the name of the image, unique within the build.
+     * @param preparation the {@link ImagePreparation} of the image.
+     */
+    void prepare(String imageName, ImagePreparation preparation) {
+        synchronized (sCache) {
+            Future<File> image = mBuild.mImages.get(imageName);
+            if (image != null && (!image.isDone() || isUsable(image))) {
+                CLog.d("Reusing %s prepared for build %s", imageName, mBuildKey);
+                return;
+            }
+            mBuild.mImages.put(
+                    imageName,
+                    mExecutor.submit(
+                            () -> {
+                                long start = System.currentTimeMillis();
+                                File prepared = preparation.prepare(mBuild.mDir);
+                                CLog.d(
+                                        "Prepared %s in %sms",
+                                        imageName, System.currentTimeMillis() - start);
+                                return prepared;
+                            }));
+        }
+    }
+
+    /**
+     * Wait for an image to be prepared.
+     *
+     * @param imageName the name of the image given to {@link #prepare(String, ImagePreparation)}.
+     * @param descriptor the {@link DeviceDescriptor} of the device being flashed.
+     * @return the {@link File} of the prepared image, or null if it is not being prepared.
+     * @throws TargetSetupError if the image could not be prepared.
+     */
+    File getImage(String imageName, DeviceDescriptor descriptor) throws TargetSetupError {
+        Future<File> image;
+        synchronized (sCache) {
+            image = mBuild.mImages.get(imageName);
+        }
+        if (image == null) {
+            return null;
+        }
+        try {
+            return image.get();
+        } catch (ExecutionException | CancellationException e) {
+            Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+            throw new TargetSetupError(
+                    String.format("Failed to prepare %s: %s", imageName, cause.getMessage()),
+                    cause,
+                    descriptor);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TargetSetupError(
+                    String.format("Interrupted while preparing %s", imageName), e, descriptor);
+        }
+    }
+
+    /** Returns whether the prepared images are kept after {@link #close()}. */
+    boolean isCached() {
+        return mBuildKey != null;
+    }
+
+    /**
+     * Stop preparing images. Preparations of cached images already started are allowed to finish
+     * since another flashing of the same build may be waiting for them. Images which are not
+     * cached are deleted.
+     */
+    @Override
+    public void close() {
+        if (mBuildKey == null) {
+            mExecutor.shutdownNow();
+            FileUtil.recursiveDelete(mBuild.mDir);
+            return;
+        }
+        mExecutor.shutdown();
+        synchronized (sCache) {
+            mBuild.mUsers--;
+        }
+    }
+
+    /** Delete all the cached images. */
+    @VisibleForTesting
+    static void clearCache() {
+        synchronized (sCache) {
+            for (PreparedBuild build : sCache.values()) {
+                FileUtil.recursiveDelete(build.mDir);
+            }
+            sCache.clear();
+        }
+    }
+
+    /** Returns the key to cache the images of a build under, or null if they cannot be cached. */
+    private static String getBuildKey(IBuildInfo build) {
+        String buildId = build.getBuildId();
+        if (buildId == null || IBuildInfo.UNKNOWN_BUILD_ID.equals(buildId)) {
+            return null;
+        }
+        return String.format("%s-%s", buildId, build.getBuildFlavor());
+    }
+
+    private static PreparedBuild acquire(String buildKey) throws IOException {
+        synchronized (sCache) {
+            PreparedBuild build = buildKey == null ? null : sCache.get(buildKey);
+            if (build == null) {
+                build = new PreparedBuild(FileUtil.createTempDir("flashing_images"));
+                if (buildKey != null) {
+                    sCache.put(buildKey, build);
+                }
+            }
+            build.mUsers++;
+            evict();
+            return build;
+        }
+    }
+
+    /** Delete the images of the least recently used builds which are not being flashed. */
+    private static void evict() {
+        int extra = sCache.size() - MAX_CACHED_BUILDS;
+        Iterator<Map.Entry<String, PreparedBuild>> it = sCache.entrySet().iterator();
+        while (extra > 0 && it.hasNext()) {
+            Map.Entry<String, PreparedBuild> entry = it.next();
+            if (entry.getValue().mUsers == 0) {
+                CLog.d("Deleting the images prepared for build %s", entry.getKey());
+                FileUtil.recursiveDelete(entry.getValue().mDir);
+                it.remove();
+                extra--;
+            }
+        }
+    }
+
+    private static boolean isUsable(Future<File> image) {
+        try {
+            File file = image.get();
+            return file != null && file.exists();
+        } catch (ExecutionException | CancellationException | InterruptedException e) {
+            return false;
+        }
+    }
+}
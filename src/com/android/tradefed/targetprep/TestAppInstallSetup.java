@@ -29,6 +29,7 @@ import com.android.tradefed.config.Option.Importance;
 import com.android.tradefed.config.OptionClass;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.device.PackageInfo;
 import com.android.tradefed.invoker.IInvocationContext;
 import com.android.tradefed.invoker.InvocationContext;
 import com.android.tradefed.invoker.TestInformation;
@@ -65,7 +66,11 @@ import java.util.Random;
 import java.util.Set;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -93,6 +98,12 @@ public class TestAppInstallSetup extends BaseTargetPreparer implements IAbiRecei
     private static final String INSTALL_FAILED_UPDATE_INCOMPATIBLE =
             "INSTALL_FAILED_UPDATE_INCOMPATIBLE";
 
+    private static final String INSTALL_MULTI_PACKAGE = "install-multi-package";
+    // install-multi-package is supported from Android Q.
+    private static final int MULTI_PACKAGE_MIN_API_LEVEL = 29;
+    // Same as the timeout of the installations done by TestDevice.
+    private static final long MULTI_PACKAGE_INSTALL_TIMEOUT_MS = 4 * 60 * 1000;
+
     @VisibleForTesting static final String TEST_FILE_NAME_OPTION = "test-file-name";
 
     @Option(
@@ -209,11 +220,43 @@ public class TestAppInstallSetup extends BaseTargetPreparer implements IAbiRecei
                     "Specifies the maximum permitted duration of" + " an incremental installation.")
     protected int mIncrementalInstallTimeout = 1800;
 
+    @Option(
+            name = "pipelined-install",
+            description =
+                    "Parse the apks on host threads while the previous ones are being"
+                            + " installed, and install the single apk packages together in"
+                            + " multi-package sessions.")
+    private boolean mPipelinedInstall = false;
+
+    @Option(
+            name = "apk-resolution-threads",
+            description = "The number of host threads resolving the apks with pipelined-install.")
+    private int mApkResolutionThreads = 4;
+
+    @Option(
+            name = "install-batch-size",
+            description =
+                    "The maximum number of packages installed in one multi-package session with"
+                            + " pipelined-install. Use 1 to install them one by one.")
+    private int mInstallBatchSize = 20;
+
+    @Option(
+            name = "skip-installed-same-version",
+            description =
+                    "Do not install the packages already installed on the device with the same"
+                            + " version code. Such packages are not uninstalled by cleanup-apks.")
+    private boolean mSkipInstalledSameVersion = false;
+
     private IAbi mAbi = null;
     private Integer mUserId = null;
     private Boolean mGrantPermission = null;
 
     private Set<String> mPackagesInstalled = new HashSet<>();
+    // Single apk packages waiting to be installed together, with pipelined-install.
+    private Map<String, File> mPendingInstalls = new LinkedHashMap<>();
+    // Version codes parsed ahead of the installation.
+    private Map<File, String> mVersionCodes = new ConcurrentHashMap<>();
+    private boolean mInstallingPipelined = false;
     private TestInformation mTestInfo;
     @VisibleForTesting protected IncrementalInstallSession incrementalInstallSession;
 
@@ -382,6 +425,11 @@ public class TestAppInstallSetup extends BaseTargetPreparer implements IAbiRecei
             mInstallArgs.add("--force-queryable");
         }
 
+        if (mPipelinedInstall && !mIncrementalInstallation) {
+            installPipelined(testInfo);
+            return;
+        }
+
         for (File testAppName : mTestFiles) {
             Map<File, String> appFilesAndPackages =
                     resolveApkFiles(
@@ -391,14 +439,105 @@ public class TestAppInstallSetup extends BaseTargetPreparer implements IAbiRecei
         }
 
         for (String testAppNames : mSplitApkFileNames) {
-            List<String> apkNames = Arrays.asList(testAppNames.split(","));
-            List<File> apkFileNames =
-                    apkNames.stream().map(a -> new File(a)).collect(Collectors.toList());
-            Map<File, String> appFilesAndPackages = resolveApkFiles(testInfo, apkFileNames);
+            Map<File, String> appFilesAndPackages =
+                    resolveApkFiles(testInfo, getSplitApkFiles(testAppNames));
             installer(testInfo, appFilesAndPackages);
         }
     }
 
+    private List<File> getSplitApkFiles(String testAppNames) {
+        List<String> apkNames = Arrays.asList(testAppNames.split(","));
+        return apkNames.stream().map(a -> new File(a)).collect(Collectors.toList());
+    }
+
+    /**
+     * Parse the apks on host threads while the apks already parsed are installed, in order. The
+     * apks are found on the calling thread since {@link #getLocalPathForFilename(TestInformation,
+     * String)} may stage them from the build. The single apk packages are queued by {@link
+     * #installer(TestInformation, Map)} and installed in batches.
+     */
+    private void installPipelined(TestInformation testInfo)
+            throws TargetSetupError, DeviceNotAvailableException {
+        ITestDevice device = testInfo.getDevice();
+        // The device is only queried here, the apks are parsed on host threads.
+        DeviceDescriptor descriptor = device.getDeviceDescriptor();
+        String serial = device.getSerialNumber();
+        int apiLevel = mCheckMinSdk ? device.getApiLevel() : 0;
+        int resolutions = mTestFiles.size() + mSplitApkFileNames.size();
+        // Threads are created from the invocation thread, so they share its logging.
+        ExecutorService executor =
+                Executors.newFixedThreadPool(
+                        Math.max(1, Math.min(mApkResolutionThreads, resolutions)),
+                        r -> {
+                            Thread thread = new Thread(r, "TestAppInstallSetup-resolver");
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+        mInstallingPipelined = true;
+        try {
+            List<Future<Map<File, String>>> resolved = new ArrayList<>();
+            for (File testAppName : mTestFiles) {
+                List<File> apkFiles =
+                        findLocalApkFiles(testInfo, findApkFiles(testAppName, descriptor));
+                resolved.add(
+                        executor.submit(() -> parseAhead(descriptor, serial, apiLevel, apkFiles)));
+            }
+            for (String testAppNames : mSplitApkFileNames) {
+                List<File> apkFiles = findLocalApkFiles(testInfo, getSplitApkFiles(testAppNames));
+                resolved.add(
+                        executor.submit(() -> parseAhead(descriptor, serial, apiLevel, apkFiles)));
+            }
+            for (Future<Map<File, String>> appFilesAndPackages : resolved) {
+                installer(testInfo, getResolved(appFilesAndPackages));
+            }
+            installPendingPackages(testInfo.getDevice());
+        } finally {
+            executor.shutdownNow();
+            mInstallingPipelined = false;
+            mPendingInstalls.clear();
+            mVersionCodes.clear();
+        }
+    }
+
+    /** Parse the apks, and their version code if they may be skipped. */
+    private Map<File, String> parseAhead(
+            DeviceDescriptor descriptor, String serial, int apiLevel, List<File> apkFiles)
+            throws TargetSetupError {
+        Map<File, String> appFilesAndPackages =
+                parseApkFiles(descriptor, serial, apiLevel, apkFiles);
+        if (mSkipInstalledSameVersion) {
+            for (File apkFile : appFilesAndPackages.keySet()) {
+                String versionCode = parseVersionCode(apkFile);
+                if (versionCode != null) {
+                    mVersionCodes.put(apkFile, versionCode);
+                }
+            }
+        }
+        return appFilesAndPackages;
+    }
+
+    private Map<File, String> getResolved(Future<Map<File, String>> future)
+            throws TargetSetupError, DeviceNotAvailableException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof TargetSetupError) {
+                throw (TargetSetupError) cause;
+            }
+            if (cause instanceof DeviceNotAvailableException) {
+                throw (DeviceNotAvailableException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
     /**
      * Returns the device that the preparer should apply to.
      *
@@ -498,8 +637,17 @@ public class TestAppInstallSetup extends BaseTargetPreparer implements IAbiRecei
                 if (mCleanup) {
                     mPackagesInstalled.add(e.getKey());
                 }
+            } else if (mInstallingPipelined && mUserId == null && e.getValue().size() == 1) {
+                if (!isInstalledWithSameVersion(device, e.getKey(), e.getValue())) {
+                    mPendingInstalls.put(e.getKey(), e.getValue().get(0));
+                }
+                if (mPendingInstalls.size() >= mInstallBatchSize) {
+                    installPendingPackages(device);
+                }
             } else {
-                installSinglePackage(device, e.getKey(), e.getValue());
+                // Install the queued packages first to keep the order of the installations.
+                installPendingPackages(device);
+                installSinglePackage(device, e.getKey(), e.getValue(), true);
             }
         }
 
@@ -509,12 +657,19 @@ public class TestAppInstallSetup extends BaseTargetPreparer implements IAbiRecei
     }
 
     private void installSinglePackage(
-            ITestDevice testDevice, String packageName, List<File> apkFiles)
+            ITestDevice testDevice,
+            String packageName,
+            List<File> apkFiles,
+            boolean checkInstalledVersion)
             throws TargetSetupError, DeviceNotAvailableException {
 
         if (apkFiles.isEmpty()) {
             return;
         }
+        if (checkInstalledVersion
+                && isInstalledWithSameVersion(testDevice, packageName, apkFiles)) {
+            return;
+        }
 
         CLog.d("Installing apk %s with %s ...", packageName, apkFiles);
         String result = installPackage(testDevice, apkFiles);
@@ -541,11 +696,111 @@ public class TestAppInstallSetup extends BaseTargetPreparer implements IAbiRecei
         }
     }
 
+    /**
+     * Install the queued single apk packages in one multi-package session. If the session fails,
+     * the packages are installed one by one to handle and report their own failure.
+     */
+    private void installPendingPackages(ITestDevice device)
+            throws TargetSetupError, DeviceNotAvailableException {
+        if (mPendingInstalls.isEmpty()) {
+            return;
+        }
+        Map<String, File> packages = new LinkedHashMap<>(mPendingInstalls);
+        mPendingInstalls.clear();
+        // install-multi-package passes each argument as is, so an argument with a value like
+        // "--abi arm64-v8a" can only be given to installPackage.
+        boolean multiPackageArgs = mInstallArgs.stream().noneMatch(arg -> arg.contains(" "));
+        if (packages.size() > 1
+                && multiPackageArgs
+                && device.getApiLevel() >= MULTI_PACKAGE_MIN_API_LEVEL) {
+            List<String> installCmd = new ArrayList<>();
+            installCmd.add(INSTALL_MULTI_PACKAGE);
+            installCmd.add("-r");
+            // Grant all permissions like TestDevice#installPackage does.
+            if (device.isRuntimePermissionSupported()) {
+                installCmd.add("-g");
+            }
+            installCmd.addAll(mInstallArgs);
+            for (File apkFile : packages.values()) {
+                installCmd.add(apkFile.getAbsolutePath());
+            }
+            CLog.d("Installing %s packages together: %s", packages.size(), packages.keySet());
+            String output =
+                    device.executeAdbCommand(
+                            MULTI_PACKAGE_INSTALL_TIMEOUT_MS, installCmd.toArray(new String[0]));
+            if (output != null && output.contains("Success")) {
+                if (mCleanup) {
+                    mPackagesInstalled.addAll(packages.keySet());
+                }
+                return;
+            }
+            CLog.w(
+                    "Failed to install %s together: '%s'. Installing them one by one.",
+                    packages.keySet(), output);
+        }
+        for (Map.Entry<String, File> entry : packages.entrySet()) {
+            // The installed version was already checked when the package was queued.
+            installSinglePackage(
+                    device, entry.getKey(), Arrays.asList(entry.getValue()), false);
+        }
+    }
+
+    /** Returns whether the package can be skipped since it is installed with the same version. */
+    private boolean isInstalledWithSameVersion(
+            ITestDevice device, String packageName, List<File> apkFiles)
+            throws DeviceNotAvailableException {
+        if (!mSkipInstalledSameVersion) {
+            return false;
+        }
+        String versionCode = null;
+        for (File apkFile : apkFiles) {
+            String apkVersionCode = mVersionCodes.get(apkFile);
+            if (apkVersionCode == null) {
+                apkVersionCode = parseVersionCode(apkFile);
+            }
+            if (apkVersionCode == null
+                    || (versionCode != null && !versionCode.equals(apkVersionCode))) {
+                return false;
+            }
+            versionCode = apkVersionCode;
+        }
+        PackageInfo installed = device.getAppPackageInfo(packageName);
+        if (installed == null || !versionCode.equals(installed.getVersionCode())) {
+            return false;
+        }
+        CLog.d("Skipping %s, version %s is already installed.", packageName, versionCode);
+        return true;
+    }
+
+    /**
+     * Get the version code of an apk, or null if it could not be parsed. With pipelined-install,
+     * this is called from several host threads at once.
+     */
+    @VisibleForTesting
+    protected String parseVersionCode(File apkFile) {
+        AaptParser parser = AaptParser.parse(apkFile, mAaptVersion);
+        if (parser == null) {
+            return null;
+        }
+        return parser.getVersionCode();
+    }
+
     /** Helper to resolve some apk to their File and Package. */
     @VisibleForTesting
     protected Map<File, String> resolveApkFiles(TestInformation testInfo, List<File> apkFiles)
             throws TargetSetupError, DeviceNotAvailableException {
-        Map<File, String> appFiles = new LinkedHashMap<>();
+        ITestDevice device = testInfo.getDevice();
+        return parseApkFiles(
+                device.getDeviceDescriptor(),
+                device.getSerialNumber(),
+                mCheckMinSdk ? device.getApiLevel() : 0,
+                findLocalApkFiles(testInfo, apkFiles));
+    }
+
+    /** Find the local and readable files of some apks, skipping or failing on the others. */
+    private List<File> findLocalApkFiles(TestInformation testInfo, List<File> apkFiles)
+            throws TargetSetupError {
+        List<File> testAppFiles = new ArrayList<>();
         ITestDevice device = testInfo.getDevice();
         for (File apkFile : apkFiles) {
             File testAppFile = null;
@@ -576,7 +831,21 @@ public class TestAppInstallSetup extends BaseTargetPreparer implements IAbiRecei
                     continue;
                 }
             }
+            testAppFiles.add(testAppFile);
+        }
+        return testAppFiles;
+    }
 
+    /**
+     * Get the package of some local apks with aapt, skipping the ones not supported by the device.
+     * With pipelined-install, this runs on host threads so the device info is read by the caller:
+     * the api level is only used with check-min-sdk.
+     */
+    private Map<File, String> parseApkFiles(
+            DeviceDescriptor descriptor, String serial, int apiLevel, List<File> testAppFiles)
+            throws TargetSetupError {
+        Map<File, String> appFiles = new LinkedHashMap<>();
+        for (File testAppFile : testAppFiles) {
             if (mCheckMinSdk) {
                 AaptParser aaptParser = doAaptParse(testAppFile);
                 if (aaptParser == null) {
@@ -584,24 +853,21 @@ public class TestAppInstallSetup extends BaseTargetPreparer implements IAbiRecei
                             String.format(
                                     "Failed to extract info from `%s` using aapt",
                                     testAppFile.getAbsoluteFile().getName()),
-                            device.getDeviceDescriptor());
+                            descriptor);
                 }
-                if (device.getApiLevel() < aaptParser.getSdkVersion()) {
+                if (apiLevel < aaptParser.getSdkVersion()) {
                     CLog.w(
                             "Skipping installing apk %s on device %s because "
                                     + "SDK level require is %d, but device SDK level is %d",
-                            apkFile.toString(),
-                            device.getSerialNumber(),
+                            testAppFile.toString(),
+                            serial,
                             aaptParser.getSdkVersion(),
-                            device.getApiLevel());
+                            apiLevel);
                 } else {
-                    appFiles.put(
-                            testAppFile,
-                            parsePackageName(testAppFile, device.getDeviceDescriptor()));
+                    appFiles.put(testAppFile, parsePackageName(testAppFile, descriptor));
                 }
             } else {
-                appFiles.put(
-                        testAppFile, parsePackageName(testAppFile, device.getDeviceDescriptor()));
+                appFiles.put(testAppFile, parsePackageName(testAppFile, descriptor));
             }
         }
         return appFiles;
@@ -709,7 +975,10 @@ public class TestAppInstallSetup extends BaseTargetPreparer implements IAbiRecei
         }
     }
 
-    /** Get the package name from the test app. */
+    /**
+     * Get the package name from the test app. With pipelined-install, this is called from several
+     * host threads at once.
+     */
     protected String parsePackageName(File testAppFile, DeviceDescriptor deviceDescriptor)
             throws TargetSetupError {
         AaptParser parser = AaptParser.parse(testAppFile, mAaptVersion);
@@ -222,6 +222,14 @@ public class BaseTestSuite extends ITestSuite {
                             + "preloaded on device. Otherwise an exception will be thrown.")
     private boolean mIgnoreNonPreloadedMainlineModule = false;
 
+    @Option(
+            name = "module-loading-threads",
+            description =
+                    "The number of threads parsing the module configurations. Modules are "
+                            + "loaded in sequence when lower than 2, the order of the modules "
+                            + "does not depend on it.")
+    private int mModuleLoadingThreads = 1;
+
     private SuiteModuleLoader mModuleRepo;
     private Map<String, LinkedHashSet<SuiteTestFilter>> mIncludeFiltersParsed = new LinkedHashMap<>();
     private Map<String, LinkedHashSet<SuiteTestFilter>> mExcludeFiltersParsed = new LinkedHashMap<>();
@@ -336,6 +344,7 @@ public class BaseTestSuite extends ITestSuite {
             mModuleRepo.setModuleParameter(mForceParameter);
             mModuleRepo.setExcludedModuleParameters(mExcludedModuleParameters);
             mModuleRepo.setFoldableStates(mFoldableStates);
+            mModuleRepo.setLoadingThreads(mModuleLoadingThreads);
 
             List<File> testsDirectories = new ArrayList<>();
 
@@ -667,31 +676,36 @@ public class BaseTestSuite extends ITestSuite {
         if (excludeFilters == null || excludeFilters.isEmpty()) {
             return true;
         }
+        List<String> testExcludes = new ArrayList<>();
         for (SuiteTestFilter filter : excludeFilters) {
             if (filter.getTest() == null) {
                 CLog.d("Skipping %s, it previously passed.", moduleId);
                 return false;
             }
-            for (IRemoteTest test : module.getTests()) {
-                if (test instanceof ITestFileFilterReceiver) {
-                    File excludeFilterFile = ((ITestFileFilterReceiver) test).getExcludeTestFile();
-                    if (excludeFilterFile == null) {
-                        try {
-                            excludeFilterFile = FileUtil.createTempFile("exclude-filter", ".txt");
-                        } catch (IOException e) {
-                            throw new HarnessRuntimeException(
-                                    e.getMessage(), e, InfraErrorIdentifier.FAIL_TO_CREATE_FILE);
-                        }
-                        ((ITestFileFilterReceiver) test).setExcludeTestFile(excludeFilterFile);
-                    }
+            testExcludes.add(filter.getTest());
+        }
+        // Retries can carry thousands of test filters: write them to the file in one go.
+        String excludeContent = String.join("\n", testExcludes) + "\n";
+        for (IRemoteTest test : module.getTests()) {
+            if (test instanceof ITestFileFilterReceiver) {
+                File excludeFilterFile = ((ITestFileFilterReceiver) test).getExcludeTestFile();
+                if (excludeFilterFile == null) {
                     try {
-                        FileUtil.writeToFile(filter.getTest() + "\n", excludeFilterFile, true);
+                        excludeFilterFile = FileUtil.createTempFile("exclude-filter", ".txt");
                     } catch (IOException e) {
-                        CLog.e(e);
-                        continue;
+                        throw new HarnessRuntimeException(
+                                e.getMessage(), e, InfraErrorIdentifier.FAIL_TO_CREATE_FILE);
                     }
-                } else if (test instanceof ITestFilterReceiver) {
-                    ((ITestFilterReceiver) test).addExcludeFilter(filter.getTest());
+                    ((ITestFileFilterReceiver) test).setExcludeTestFile(excludeFilterFile);
+                }
+                try {
+                    FileUtil.writeToFile(excludeContent, excludeFilterFile, true);
+                } catch (IOException e) {
+                    CLog.e(e);
+                }
+            } else if (test instanceof ITestFilterReceiver) {
+                for (String testExclude : testExcludes) {
+                    ((ITestFilterReceiver) test).addExcludeFilter(testExclude);
                 }
             }
         }
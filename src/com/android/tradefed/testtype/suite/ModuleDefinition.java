@@ -1261,6 +1261,8 @@ public class ModuleDefinition implements Comparable<ModuleDefinition>, ITestColl
             DynamicRemoteFileResolver resolver = new DynamicRemoteFileResolver();
             resolver.setDevice(device);
             resolver.addExtraArgs(moduleConfiguration.getCommandOptions().getDynamicDownloadArgs());
+            resolver.setMaxConcurrentResolutionsPerScheme(
+                    moduleConfiguration.getCommandOptions().getDynamicDownloadParallelism());
             moduleConfiguration.resolveDynamicOptions(resolver);
             return null;
         } catch (RuntimeException | ConfigurationException | BuildRetrievalError e) {
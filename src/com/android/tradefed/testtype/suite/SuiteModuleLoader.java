@@ -44,6 +44,7 @@ import com.android.tradefed.testtype.suite.params.NotMultiAbiHandler;
 import com.android.tradefed.util.AbiUtils;
 import com.android.tradefed.util.FileUtil;
 import com.android.tradefed.util.StreamUtil;
+import com.android.tradefed.util.TimeUtil;
 
 import com.google.common.base.Strings;
 import com.google.common.net.UrlEscapers;
@@ -64,6 +65,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinPool.ForkJoinWorkerThreadFactory;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -93,6 +99,32 @@ public class SuiteModuleLoader {
     // Check the mainline parameter configured in a test config must end with .apk, .apks, or .apex.
     private static final Set<String> MAINLINE_PARAMETERS_TO_VALIDATE =
             new HashSet<>(Arrays.asList(".apk", ".apks", ".apex"));
+    // Number of the slowest modules reported after loading.
+    private static final int SLOWEST_MODULES_REPORTED = 5;
+    // Workers are created from the loading thread or from another worker, so they keep the thread
+    // group of the invocation and log to its logger.
+    private static final ForkJoinWorkerThreadFactory LOADER_THREAD_FACTORY =
+            pool -> {
+                ForkJoinWorkerThread thread = new ForkJoinWorkerThread(pool) {};
+                thread.setName("SuiteModuleLoader-" + thread.getPoolIndex());
+                return thread;
+            };
+
+    private int mLoadingThreads = 1;
+    private Map<String, Long> mModuleLoadingTimes = new LinkedHashMap<>();
+
+    /** The configurations created from one config location, and the time it took. */
+    private static class LoadedModule {
+        final String mName;
+        final LinkedHashMap<String, IConfiguration> mConfigs;
+        final long mLoadingTimeMs;
+
+        LoadedModule(String name, LinkedHashMap<String, IConfiguration> configs, long timeMs) {
+            mName = name;
+            mConfigs = configs;
+            mLoadingTimeMs = timeMs;
+        }
+    }
 
     /**
      * Ctor for the SuiteModuleLoader.
@@ -159,18 +191,29 @@ public class SuiteModuleLoader {
         mFoldableStates = foldableStates;
     }
 
+    /**
+     * Sets the number of threads parsing the module configurations. Lower than 2 loads the modules
+     * in sequence on the calling thread. In both cases the modules are returned in the same order.
+     */
+    public final void setLoadingThreads(int threads) {
+        mLoadingThreads = threads;
+    }
+
+    /** Returns the time in ms spent loading each module, in loading order. */
+    public Map<String, Long> getModuleLoadingTimes() {
+        return mModuleLoadingTimes;
+    }
+
     /** Main loading of configurations, looking into the specified files */
     public LinkedHashMap<String, IConfiguration> loadConfigsFromSpecifiedPaths(
             List<File> listConfigFiles,
             Set<IAbi> abis,
             String suiteTag) {
-        LinkedHashMap<String, IConfiguration> toRun = new LinkedHashMap<>();
+        List<String[]> configs = new ArrayList<>();
         for (File configFile : listConfigFiles) {
-            toRun.putAll(
-                    loadOneConfig(
-                            configFile.getName(), configFile.getAbsolutePath(), abis, suiteTag));
+            configs.add(new String[] {configFile.getName(), configFile.getAbsolutePath()});
         }
-        return toRun;
+        return loadConfigs(configs, abis, suiteTag);
     }
 
     /** Main loading of configurations, looking into a folder */
@@ -211,11 +254,11 @@ public class SuiteModuleLoader {
         List<String> configs,
         Set<IAbi> abis,
         String suiteTag) {
-        LinkedHashMap<String, IConfiguration> toRun = new LinkedHashMap<>();
+        List<String[]> configLocations = new ArrayList<>();
         for (String configName : configs) {
-            toRun.putAll(loadOneConfig(configName, configName, abis, suiteTag));
+            configLocations.add(new String[] {configName, configName});
         }
-        return toRun;
+        return loadConfigs(configLocations, abis, suiteTag);
     }
 
     /**
@@ -239,8 +282,8 @@ public class SuiteModuleLoader {
             CLog.e("Test in module %s does not implement ITestFilterReceiver.", moduleId);
             return;
         }
-        LinkedHashSet<SuiteTestFilter> mdIncludes = getFilterList(includeFilters, moduleId);
-        LinkedHashSet<SuiteTestFilter> mdExcludes = getFilterList(excludeFilters, moduleId);
+        LinkedHashSet<SuiteTestFilter> mdIncludes = lookupFilterList(includeFilters, moduleId);
+        LinkedHashSet<SuiteTestFilter> mdExcludes = lookupFilterList(excludeFilters, moduleId);
         if (!mdIncludes.isEmpty()) {
             addTestIncludes((ITestFilterReceiver) test, mdIncludes, moduleId);
         }
@@ -249,6 +292,96 @@ public class SuiteModuleLoader {
         }
     }
 
+    /**
+     * Load the given config locations, in sequence or on a {@link ForkJoinPool} depending on
+     * {@link #setLoadingThreads(int)}.
+     *
+     * @param configs pairs of config name and fully qualified config name.
+     * @param abis The set of all abis that needs to run.
+     * @param suiteTag the Tag of the suite aimed to be run.
+     * @return A map of loaded configuration, in the order of the config locations.
+     */
+    private LinkedHashMap<String, IConfiguration> loadConfigs(
+            List<String[]> configs, Set<IAbi> abis, String suiteTag) {
+        long start = System.currentTimeMillis();
+        int threads = Math.min(mLoadingThreads, configs.size());
+        List<LoadedModule> loadedModules = new ArrayList<>();
+        if (threads > 1) {
+            loadedModules.addAll(loadConfigsInParallel(configs, abis, suiteTag, threads));
+        } else {
+            for (String[] config : configs) {
+                loadedModules.add(loadTimedConfig(config[0], config[1], abis, suiteTag));
+            }
+        }
+        LinkedHashMap<String, IConfiguration> toRun = new LinkedHashMap<>();
+        for (LoadedModule module : loadedModules) {
+            toRun.putAll(module.mConfigs);
+            mModuleLoadingTimes.put(module.mName, module.mLoadingTimeMs);
+        }
+        reportLoadingTimes(loadedModules, System.currentTimeMillis() - start, threads);
+        return toRun;
+    }
+
+    private List<LoadedModule> loadConfigsInParallel(
+            List<String[]> configs, Set<IAbi> abis, String suiteTag, int threads) {
+        ForkJoinPool pool = new ForkJoinPool(threads, LOADER_THREAD_FACTORY, null, false);
+        try {
+            List<ForkJoinTask<LoadedModule>> tasks = new ArrayList<>();
+            for (String[] config : configs) {
+                tasks.add(pool.submit(() -> loadTimedConfig(config[0], config[1], abis, suiteTag)));
+            }
+            // Collect in submission order: the modules, and the first failure thrown, are the
+            // same as when loading in sequence.
+            List<LoadedModule> loadedModules = new ArrayList<>();
+            for (ForkJoinTask<LoadedModule> task : tasks) {
+                try {
+                    loadedModules.add(task.get());
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException) e.getCause();
+                    }
+                    if (e.getCause() instanceof Error) {
+                        throw (Error) e.getCause();
+                    }
+                    throw new RuntimeException(e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted while loading the modules.", e);
+                }
+            }
+            return loadedModules;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private LoadedModule loadTimedConfig(
+            String configName, String configFullName, Set<IAbi> abis, String suiteTag) {
+        long start = System.currentTimeMillis();
+        LinkedHashMap<String, IConfiguration> configs =
+                loadOneConfig(configName, configFullName, abis, suiteTag);
+        return new LoadedModule(
+                configName.replace(CONFIG_EXT, ""), configs, System.currentTimeMillis() - start);
+    }
+
+    private void reportLoadingTimes(List<LoadedModule> loadedModules, long totalMs, int threads) {
+        if (loadedModules.isEmpty()) {
+            return;
+        }
+        CLog.i(
+                "Loaded %s module configurations in %s using %s thread(s).",
+                loadedModules.size(), TimeUtil.formatElapsedTime(totalMs), Math.max(1, threads));
+        // Only print the slowest ones, a suite can have several thousands modules.
+        List<LoadedModule> slowest = new ArrayList<>(loadedModules);
+        slowest.sort((m1, m2) -> Long.compare(m2.mLoadingTimeMs, m1.mLoadingTimeMs));
+        for (LoadedModule module :
+                slowest.subList(0, Math.min(SLOWEST_MODULES_REPORTED, slowest.size()))) {
+            CLog.d(
+                    "Module %s took %s to load.",
+                    module.mName, TimeUtil.formatElapsedTime(module.mLoadingTimeMs));
+        }
+    }
+
     /**
      * Load a single config location (file or on TF classpath). It can results in several {@link
      * IConfiguration}. If a single configuration get expanded in different ways.
@@ -534,9 +667,19 @@ public class SuiteModuleLoader {
         return fs;
     }
 
+    /**
+     * Returns the filters of the given id without adding an entry to the map, so modules can be
+     * looked up from several loading threads.
+     */
+    private static LinkedHashSet<SuiteTestFilter> lookupFilterList(
+            Map<String, LinkedHashSet<SuiteTestFilter>> filters, String id) {
+        LinkedHashSet<SuiteTestFilter> fs = filters.get(id);
+        return fs == null ? new LinkedHashSet<>() : fs;
+    }
+
     private boolean shouldRunModule(String moduleId) {
-        LinkedHashSet<SuiteTestFilter> mdIncludes = getFilterList(mIncludeFilters, moduleId);
-        LinkedHashSet<SuiteTestFilter> mdExcludes = getFilterList(mExcludeFilters, moduleId);
+        LinkedHashSet<SuiteTestFilter> mdIncludes = lookupFilterList(mIncludeFilters, moduleId);
+        LinkedHashSet<SuiteTestFilter> mdExcludes = lookupFilterList(mExcludeFilters, moduleId);
         // if including all modules or includes exist for this module, and there are not excludes
         // for the entire module, this module should be run.
         return (mIncludeAll || !mdIncludes.isEmpty()) && !containsModuleExclude(mdExcludes);
@@ -552,22 +695,27 @@ public class SuiteModuleLoader {
             String nameWithParam,
             Set<IModuleParameterHandler> forcedModuleParameters) {
         // Explicitly excluded
-        LinkedHashSet<SuiteTestFilter> excluded = getFilterList(mExcludeFilters, parameterModuleId);
-        LinkedHashSet<SuiteTestFilter> excludedParam = getFilterList(mExcludeFilters, nameWithParam);
+        LinkedHashSet<SuiteTestFilter> excluded =
+                lookupFilterList(mExcludeFilters, parameterModuleId);
+        LinkedHashSet<SuiteTestFilter> excludedParam =
+                lookupFilterList(mExcludeFilters, nameWithParam);
         if (containsModuleExclude(excluded) || containsModuleExclude(excludedParam)) {
             return false;
         }
 
         // Implicitly included due to forced parameter
         if (forcedModuleParameters != null) {
-            LinkedHashSet<SuiteTestFilter> baseInclude = getFilterList(mIncludeFilters, baseModuleId);
+            LinkedHashSet<SuiteTestFilter> baseInclude =
+                    lookupFilterList(mIncludeFilters, baseModuleId);
             if (!baseInclude.isEmpty()) {
                 return true;
             }
         }
         // Explicitly included
-        LinkedHashSet<SuiteTestFilter> included = getFilterList(mIncludeFilters, parameterModuleId);
-        LinkedHashSet<SuiteTestFilter> includedParam = getFilterList(mIncludeFilters, nameWithParam);
+        LinkedHashSet<SuiteTestFilter> included =
+                lookupFilterList(mIncludeFilters, parameterModuleId);
+        LinkedHashSet<SuiteTestFilter> includedParam =
+                lookupFilterList(mIncludeFilters, nameWithParam);
         if (mIncludeAll || !included.isEmpty() || !includedParam.isEmpty()) {
             return true;
         }
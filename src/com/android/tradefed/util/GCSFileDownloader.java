@@ -27,25 +27,37 @@ import com.google.api.services.storage.model.Objects;
 import com.google.api.services.storage.model.StorageObject;
 import com.google.common.annotations.VisibleForTesting;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.math.BigInteger;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.CRC32C;
 
 /** File downloader to download file from google cloud storage (GCS). */
 public class GCSFileDownloader extends GCSCommon implements IFileDownloader {
@@ -57,6 +69,13 @@ public class GCSFileDownloader extends GCSCommon implements IFileDownloader {
     private static final Collection<String> SCOPES =
             Collections.singleton("https://www.googleapis.com/auth/devstorage.read_only");
     private static final long LIST_BATCH_SIZE = 100;
+    private static final long DEFAULT_CHUNK_SIZE = 32 * 1024 * 1024;
+    private static final int MAX_CHUNK_ATTEMPTS = 3;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private int mParallelStreams = 1;
+    // Files smaller than two chunks are downloaded with a single stream.
+    private long mChunkSize = DEFAULT_CHUNK_SIZE;
 
     public GCSFileDownloader(File jsonKeyFile) {
         super(jsonKeyFile);
@@ -91,6 +110,40 @@ public class GCSFileDownloader extends GCSCommon implements IFileDownloader {
         return getStorage(SCOPES);
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * <p>With more than one stream, files are downloaded in chunks written in place into the
+     * destination file, and their checksum is verified once complete.
+     */
+    @Override
+    public void setParallelDownloadStreams(int streams) {
+        mParallelStreams = streams;
+    }
+
+    /** Sets the size of the chunks downloaded in parallel. */
+    @VisibleForTesting
+    void setChunkSize(long chunkSize) {
+        mChunkSize = chunkSize;
+    }
+
+    /**
+     * Open a stream reading a range of a file from a GCS bucket.
+     *
+     * @param bucketName GCS bucket name
+     * @param remoteFilename the filename
+     * @param start the offset of the first byte to read.
+     * @param end the offset of the last byte to read, inclusive.
+     * @return {@link InputStream} with the content of the range.
+     */
+    @VisibleForTesting
+    InputStream openRange(String bucketName, String remoteFilename, long start, long end)
+            throws IOException {
+        Storage.Objects.Get get = getStorage().objects().get(bucketName, remoteFilename);
+        get.getRequestHeaders().setRange(String.format("bytes=%d-%d", start, end));
+        return get.executeMediaAsInputStream();
+    }
+
     @VisibleForTesting
     StorageObject getRemoteFileMetaData(String bucketName, String remoteFilename)
             throws IOException {
@@ -351,6 +404,10 @@ public class GCSFileDownloader extends GCSCommon implements IFileDownloader {
                             bucketName, remoteFilename),
                     InfraErrorIdentifier.GCS_ERROR);
         }
+        if (mParallelStreams > 1 && meta.getSize().longValue() >= 2 * mChunkSize) {
+            fetchRemoteFileInChunks(bucketName, remoteFilename, meta, localFile);
+            return;
+        }
         try (OutputStream writeStream = new FileOutputStream(localFile)) {
             getStorage()
                     .objects()
@@ -359,6 +416,143 @@ public class GCSFileDownloader extends GCSCommon implements IFileDownloader {
         }
     }
 
+    /**
+     * Download a file with several streams, each fetching chunks of the file and writing them at
+     * their position in the preallocated local file.
+     */
+    private void fetchRemoteFileInChunks(
+            String bucketName, String remoteFilename, StorageObject meta, File localFile)
+            throws IOException {
+        long size = meta.getSize().longValue();
+        int chunkCount = (int) ((size + mChunkSize - 1) / mChunkSize);
+        CLog.d(
+                "Fetching gs://%s/%s in %s chunks with %s streams.",
+                bucketName, remoteFilename, chunkCount, mParallelStreams);
+        // Threads are created from the invocation thread, so they share its logging.
+        ExecutorService executor =
+                Executors.newFixedThreadPool(
+                        Math.min(mParallelStreams, chunkCount),
+                        r -> {
+                            Thread thread = new Thread(r, "GCSFileDownloader-chunk");
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+        try (RandomAccessFile file = new RandomAccessFile(localFile, "rw")) {
+            file.setLength(size);
+            FileChannel channel = file.getChannel();
+            List<Future<Void>> chunks = new ArrayList<>();
+            for (long start = 0; start < size; start += mChunkSize) {
+                long chunkStart = start;
+                long chunkEnd = Math.min(start + mChunkSize, size) - 1;
+                chunks.add(
+                        executor.submit(
+                                () -> {
+                                    fetchChunk(
+                                            bucketName,
+                                            remoteFilename,
+                                            channel,
+                                            chunkStart,
+                                            chunkEnd);
+                                    return null;
+                                }));
+            }
+            for (Future<Void> chunk : chunks) {
+                try {
+                    chunk.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw new IOException(e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException(
+                            String.format(
+                                    "Interrupted while fetching gs://%s/%s",
+                                    bucketName, remoteFilename));
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        verifyChecksum(bucketName, remoteFilename, meta, localFile);
+    }
+
+    /**
+     * Fetch the bytes from start to end, inclusive, of a file into the channel. A failed attempt
+     * is resumed from the last byte written.
+     */
+    private void fetchChunk(
+            String bucketName, String remoteFilename, FileChannel channel, long start, long end)
+            throws IOException {
+        long position = start;
+        byte[] buffer = new byte[BUFFER_SIZE];
+        for (int attempt = 1; ; attempt++) {
+            try (InputStream input = openRange(bucketName, remoteFilename, position, end)) {
+                int read;
+                while (position <= end && (read = input.read(buffer)) != -1) {
+                    ByteBuffer bytes =
+                            ByteBuffer.wrap(buffer, 0, (int) Math.min(read, end - position + 1));
+                    while (bytes.hasRemaining()) {
+                        position += channel.write(bytes, position);
+                    }
+                }
+                if (position > end) {
+                    return;
+                }
+                throw new IOException(
+                        String.format(
+                                "Received %s bytes out of %s", position - start, end - start + 1));
+            } catch (IOException e) {
+                if (attempt >= MAX_CHUNK_ATTEMPTS || Thread.currentThread().isInterrupted()) {
+                    throw e;
+                }
+                CLog.w(
+                        "Error '%s' while fetching bytes %s-%s of gs://%s/%s. retrying.",
+                        e.getMessage(), position, end, bucketName, remoteFilename);
+            }
+        }
+    }
+
+    /** Verify the checksum of a downloaded file against the one of the remote file. */
+    private void verifyChecksum(
+            String bucketName, String remoteFilename, StorageObject meta, File localFile)
+            throws IOException {
+        String expected;
+        String actual;
+        if (meta.getMd5Hash() != null) {
+            expected = meta.getMd5Hash();
+            actual = FileUtil.calculateBase64Md5(localFile);
+        } else if (meta.getCrc32c() != null) {
+            // Composite objects only have a crc32c.
+            expected = meta.getCrc32c();
+            actual = calculateBase64Crc32c(localFile);
+        } else {
+            CLog.w("gs://%s/%s has no checksum to verify.", bucketName, remoteFilename);
+            return;
+        }
+        if (!expected.equals(actual)) {
+            throw new IOException(
+                    String.format(
+                            "Checksum mismatch for gs://%s/%s: expected %s but got %s",
+                            bucketName, remoteFilename, expected, actual));
+        }
+    }
+
+    /** Returns the base64 encoded big-endian crc32c of a file, as reported by GCS. */
+    private static String calculateBase64Crc32c(File file) throws IOException {
+        CRC32C crc = new CRC32C();
+        try (InputStream input = new BufferedInputStream(new FileInputStream(file))) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+            }
+        }
+        return Base64.getEncoder()
+                .encodeToString(ByteBuffer.allocate(4).putInt((int) crc.getValue()).array());
+    }
+
     /**
      * Recursively download remote folder to local folder.
      *
@@ -17,28 +17,23 @@ package com.android.tradefed.util;
 
 import com.android.annotations.VisibleForTesting;
 import com.android.tradefed.log.LogUtil.CLog;
-import com.android.tradefed.metrics.proto.MetricMeasurement.Measurements;
 import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
 import com.android.tradefed.result.TestDescription;
 import com.android.tradefed.util.proto.TfMetricProtoUtil;
 
 import com.google.common.base.Joiner;
 import com.google.common.collect.ArrayListMultimap;
-import com.google.common.math.Quantiles;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.stream.Collectors;
 
 /**
  * Contains common utility methods for storing the test metrics, aggregating the metrics in similar
@@ -153,11 +148,10 @@ public class MetricUtility {
     public Map<String, Metric> aggregateMetrics(Map<String, Metric> rawMetrics) {
         Map<String, Metric> aggregateMetrics = new LinkedHashMap<String, Metric>();
         for (Map.Entry<String, Metric> entry : rawMetrics.entrySet()) {
-            String values = entry.getValue().getMeasurements().getSingleString();
-            List<String> splitVals = Arrays.asList(values.split(",", 0));
+            StreamingStats stats = new StreamingStats();
             // Build stats for keys with any values, even only one.
-            if (isAllDoubleValues(splitVals)) {
-                buildStats(entry.getKey(), splitVals, aggregateMetrics);
+            if (addDoubleValues(stats, entry.getValue()) && !stats.isEmpty()) {
+                buildStats(entry.getKey(), stats, aggregateMetrics);
             }
         }
         return aggregateMetrics;
@@ -176,31 +170,17 @@ public class MetricUtility {
 
             Map<String, Metric> aggregateMetrics = new LinkedHashMap<String, Metric>();
             for (String metricKey : currentTest.keySet()) {
-                List<Metric> metrics = currentTest.get(metricKey);
-                List<Measurements> measures = metrics.stream().map(Metric::getMeasurements)
-                        .collect(Collectors.toList());
-                // Parse metrics into a list of SingleString values, concating lists in the process
-                List<String> rawValues = measures.stream()
-                        .map(Measurements::getSingleString)
-                        .map(
-                                m -> {
-                                    // Split results; also deals with the case of empty results
-                                    // in a certain run
-                                    List<String> splitVals = Arrays.asList(m.split(",", 0));
-                                    if (splitVals.size() == 1 && splitVals.get(0).isEmpty()) {
-                                        return Collections.<String> emptyList();
-                                    }
-                                    return splitVals;
-                                })
-                        .flatMap(Collection::stream)
-                        .map(String::trim)
-                        .collect(Collectors.toList());
-                // Do not report empty metrics
-                if (rawValues.isEmpty()) {
-                    continue;
+                StreamingStats stats = new StreamingStats();
+                boolean allDoubleValues = true;
+                for (Metric metric : currentTest.get(metricKey)) {
+                    if (!addDoubleValues(stats, metric)) {
+                        allDoubleValues = false;
+                        break;
+                    }
                 }
-                if (isAllDoubleValues(rawValues)) {
-                    buildStats(metricKey, rawValues, aggregateMetrics);
+                // Do not report empty metrics
+                if (allDoubleValues && !stats.isEmpty()) {
+                    buildStats(metricKey, stats, aggregateMetrics);
                 }
             }
             Map<String, String> compatibleTestMetrics = TfMetricProtoUtil
@@ -245,6 +225,30 @@ public class MetricUtility {
                         });
     }
 
+    /**
+     * Parse the comma separated values of a metric and add them to the stats. A metric with an
+     * empty string has no values.
+     *
+     * @param stats where the values are added.
+     * @param metric the {@link Metric} whose single string is parsed.
+     * @return false if any of the values cannot be parsed to double value, in which case the stats
+     *     only have part of the values.
+     */
+    public static boolean addDoubleValues(StreamingStats stats, Metric metric) {
+        String values = metric.getMeasurements().getSingleString();
+        if (values.isEmpty()) {
+            return true;
+        }
+        for (String value : values.split(",", 0)) {
+            try {
+                stats.add(Double.parseDouble(value));
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Compute the stats from the give list of values.
      *
@@ -254,43 +258,43 @@ public class MetricUtility {
      */
     public static Map<String, Double> getStats(Collection<Double> values,
             Set<Integer> percentiles) {
+        StreamingStats stats = new StreamingStats();
+        for (Double value : values) {
+            stats.add(value);
+        }
+        return getStats(stats, percentiles);
+    }
+
+    /**
+     * Compute the stats from the given dataset.
+     *
+     * @param values {@link StreamingStats} of the raw values, must not be empty.
+     * @param percentiles stats to include in the final metrics.
+     * @return aggregated values.
+     */
+    public static Map<String, Double> getStats(StreamingStats values, Set<Integer> percentiles) {
+        if (values.isEmpty()) {
+            throw new IllegalStateException("No values to compute the stats of.");
+        }
         Map<String, Double> stats = new LinkedHashMap<>();
-        double sum = values.stream().mapToDouble(Double::doubleValue).sum();
-        double count = values.size();
-        // The orElse situation should never happen.
-        double mean = values.stream()
-                .mapToDouble(Double::doubleValue)
-                .average()
-                .orElseThrow(IllegalStateException::new);
-        double variance = values.stream().reduce(0.0, (a, b) -> a + Math.pow(b - mean, 2) / count);
-        // Calculate percentiles. 50 th percentile will be used as medain.
+        stats.put(STATS_KEY_MIN, values.min());
+        stats.put(STATS_KEY_MAX, values.max());
+        stats.put(STATS_KEY_MEAN, values.mean());
+        stats.put(STATS_KEY_VAR, values.variance());
+        stats.put(STATS_KEY_STDEV, values.stdev());
+        // 50 th percentile is used as median.
+        stats.put(STATS_KEY_MEDIAN, values.median());
+        stats.put(STATS_KEY_TOTAL, values.sum());
+        stats.put(STATS_KEY_COUNT, (double) values.size());
+        // Iterate the percentiles with the median, which is only reported when requested.
         Set<Integer> updatedPercentile = new HashSet<>(percentiles);
         updatedPercentile.add(50);
-        Map<Integer, Double> percentileStat = Quantiles.percentiles().indexes(updatedPercentile)
-                .compute(values);
-        double median = percentileStat.get(50);
-
-        stats.put(STATS_KEY_MIN, Collections.min(values));
-        stats.put(STATS_KEY_MAX, Collections.max(values));
-        stats.put(STATS_KEY_MEAN, mean);
-        stats.put(STATS_KEY_VAR, variance);
-        stats.put(STATS_KEY_STDEV, Math.sqrt(variance));
-        stats.put(STATS_KEY_MEDIAN, median);
-        stats.put(STATS_KEY_TOTAL, sum);
-        stats.put(STATS_KEY_COUNT, count);
-        percentileStat
-                .entrySet()
-                .stream()
-                .forEach(
-                        e -> {
-                            // If the percentile is 50, only include it if the user asks for it
-                            // explicitly.
-                            if (e.getKey() != 50 || percentiles.contains(50)) {
-                                stats.put(
-                                        STATS_KEY_PERCENTILE_PREFIX + e.getKey().toString(),
-                                        e.getValue());
-                            }
-                        });
+        for (int percentile : updatedPercentile) {
+            // If the percentile is 50, only include it if the user asks for it explicitly.
+            if (percentile != 50 || percentiles.contains(50)) {
+                stats.put(STATS_KEY_PERCENTILE_PREFIX + percentile, values.percentile(percentile));
+            }
+        }
         return stats;
     }
 
@@ -299,14 +303,12 @@ public class MetricUtility {
      * and stats name and update the results in aggregated metrics.
      *
      * @param metricKey key to which the values correspond to.
-     * @param values list of raw values.
+     * @param values {@link StreamingStats} of the raw values.
      * @param aggregateMetrics where final metrics will be stored.
      */
-    private void buildStats(String metricKey, List<String> values,
+    private void buildStats(String metricKey, StreamingStats values,
             Map<String, Metric> aggregateMetrics) {
-        List<Double> doubleValues = values.stream().map(Double::parseDouble)
-                .collect(Collectors.toList());
-        Map<String, Double> stats = getStats(doubleValues, mActualPercentiles);
+        Map<String, Double> stats = getStats(values, mActualPercentiles);
         for (String statKey : stats.keySet()) {
             Metric.Builder metricBuilder = Metric.newBuilder();
             metricBuilder
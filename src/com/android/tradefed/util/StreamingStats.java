@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import java.util.Arrays;
+
+/**
+ * Statistics of a numerical dataset updated as values are added. Values are stored in a primitive
+ * array, the count, sum, mean, variance, min and max are maintained with each value and returned
+ * in constant time. Percentiles are exact, and computed the same way as Guava's {@code
+ * Quantiles.percentiles()}: the values are only sorted when a percentile is requested after new
+ * values were added.
+ *
+ * <p>Stats of an empty dataset are {@link Double#NaN}.
+ */
+public class StreamingStats {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private double[] mValues = new double[INITIAL_CAPACITY];
+    private int mCount = 0;
+    private boolean mSorted = true;
+    private boolean mHasNaN = false;
+
+    private double mSum = 0;
+    private double mMean = 0;
+    // Sum of squared differences from the mean.
+    private double mSquaredDiffs = 0;
+    private double mMin = Double.POSITIVE_INFINITY;
+    private double mMax = Double.NEGATIVE_INFINITY;
+
+    /** Add a value to the dataset. */
+    public void add(double value) {
+        if (mCount == mValues.length) {
+            mValues = Arrays.copyOf(mValues, mCount * 2);
+        }
+        if (mSorted && mCount > 0 && value < mValues[mCount - 1]) {
+            mSorted = false;
+        }
+        mValues[mCount++] = value;
+        mHasNaN |= Double.isNaN(value);
+        mSum += value;
+        // Welford's update of the mean and the sum of squared differences.
+        double delta = value - mMean;
+        mMean += delta / mCount;
+        mSquaredDiffs += delta * (value - mMean);
+        mMin = Math.min(mMin, value);
+        mMax = Math.max(mMax, value);
+    }
+
+    /** Add all the values of another dataset to this one. */
+    public void addAll(StreamingStats other) {
+        if (other.mCount == 0) {
+            return;
+        }
+        if (mCount == 0) {
+            mMean = other.mMean;
+            mSquaredDiffs = other.mSquaredDiffs;
+        } else {
+            // Combine the sums of squared differences of both datasets (Chan et al.).
+            int count = mCount + other.mCount;
+            double delta = other.mMean - mMean;
+            mSquaredDiffs +=
+                    other.mSquaredDiffs + delta * delta * ((double) mCount * other.mCount / count);
+            mMean += delta * other.mCount / count;
+        }
+        if (mCount + other.mCount > mValues.length) {
+            mValues = Arrays.copyOf(mValues, Math.max(mCount + other.mCount, mValues.length * 2));
+        }
+        System.arraycopy(other.mValues, 0, mValues, mCount, other.mCount);
+        mCount += other.mCount;
+        mSorted = false;
+        mHasNaN |= other.mHasNaN;
+        mSum += other.mSum;
+        mMin = Math.min(mMin, other.mMin);
+        mMax = Math.max(mMax, other.mMax);
+    }
+
+    /** Check if the dataset is empty. */
+    public boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    /** Check how many values are in the dataset. */
+    public int size() {
+        return mCount;
+    }
+
+    /** Return the sum of the dataset. */
+    public double sum() {
+        return mSum;
+    }
+
+    /** Return the minimum value in the dataset. */
+    public double min() {
+        return isEmpty() || mHasNaN ? Double.NaN : mMin;
+    }
+
+    /** Return the maximum value in the dataset. */
+    public double max() {
+        return isEmpty() || mHasNaN ? Double.NaN : mMax;
+    }
+
+    /** Return the mean of the dataset. */
+    public double mean() {
+        return isEmpty() ? Double.NaN : mMean;
+    }
+
+    /** Return the population variance of the dataset. */
+    public double variance() {
+        return isEmpty() ? Double.NaN : Math.max(0, mSquaredDiffs / mCount);
+    }
+
+    /** Return the population standard deviation of the dataset. */
+    public double stdev() {
+        return Math.sqrt(variance());
+    }
+
+    /** Return the median of the dataset. */
+    public double median() {
+        return percentile(50);
+    }
+
+    /**
+     * Return a percentile of the dataset, interpolated linearly between the two closest values.
+     *
+     * @param percentile the percentile, in the 0 - 100 range.
+     * @throws IllegalArgumentException if the percentile is out of range.
+     */
+    public double percentile(int percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException(
+                    String.format("Percentile %s is not in the 0 - 100 range", percentile));
+        }
+        if (isEmpty() || mHasNaN) {
+            return Double.NaN;
+        }
+        if (!mSorted) {
+            Arrays.sort(mValues, 0, mCount);
+            mSorted = true;
+        }
+        long numerator = (long) percentile * (mCount - 1);
+        int index = (int) (numerator / 100);
+        int remainder = (int) (numerator - (long) index * 100);
+        if (remainder == 0) {
+            return mValues[index];
+        }
+        return interpolate(mValues[index], mValues[index + 1], remainder, 100);
+    }
+
+    private static double interpolate(double lower, double upper, double remainder, double scale) {
+        if (lower == Double.NEGATIVE_INFINITY) {
+            if (upper == Double.POSITIVE_INFINITY) {
+                return Double.NaN;
+            }
+            return Double.NEGATIVE_INFINITY;
+        }
+        if (upper == Double.POSITIVE_INFINITY) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return lower + (upper - lower) * remainder / scale;
+    }
+}
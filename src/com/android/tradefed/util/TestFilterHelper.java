@@ -27,23 +27,28 @@ import java.lang.reflect.Method;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.util.AbstractSet;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 
 /**
  * Helper class for filtering tests
+ *
+ * <p>Include and exclude filters are matched through a {@link TestFilterIndex}, so they can contain
+ * {@link TestFilterIndex#WILDCARD}s.
  */
 public class TestFilterHelper {
 
     /** The include filters of the test name to run */
-    private Set<String> mIncludeFilters = new HashSet<>();
+    private FilterSet mIncludeFilters = new FilterSet();
 
     /** The exclude filters of the test name to run */
-    private Set<String> mExcludeFilters = new HashSet<>();
+    private FilterSet mExcludeFilters = new FilterSet();
 
     /** The include annotations of the test to run */
     private Set<String> mIncludeAnnotations = new HashSet<>();
@@ -241,9 +246,7 @@ public class TestFilterHelper {
             }
         }
         return mIncludeFilters.isEmpty()
-                || mIncludeFilters.contains(methodName)
-                || mIncludeFilters.contains(className)
-                || mIncludeFilters.contains(packageName);
+                || mIncludeFilters.getIndex().matchesAny(methodName, className, packageName);
     }
 
     /**
@@ -286,9 +289,7 @@ public class TestFilterHelper {
                 return false;
             }
             return mIncludeFilters.isEmpty()
-                    || mIncludeFilters.contains(methodName)
-                    || mIncludeFilters.contains(className)
-                    || mIncludeFilters.contains(packageName);
+                    || mIncludeFilters.getIndex().matchesAny(methodName, className, packageName);
         } finally {
             StreamUtil.close(cl);
         }
@@ -299,18 +300,83 @@ public class TestFilterHelper {
      * names.
      */
     private boolean shouldRunFilter(String packageName, String className, String methodName) {
-        if (mExcludeFilters.contains(packageName)) {
-            // Skip package because it was excluded
-            return false;
+        if (mExcludeFilters.isEmpty()) {
+            return true;
         }
-        if (mExcludeFilters.contains(className)) {
-            // Skip class because it was excluded
-            return false;
+        // Skip the test if its package, class or method was excluded
+        return !mExcludeFilters.getIndex().matchesAny(packageName, className, methodName);
+    }
+
+    /**
+     * A {@link Set} of filters keeping a {@link TestFilterIndex} of its content. The set is
+     * returned to callers who can modify it, so any change drops the index and it is compiled
+     * again on the next match.
+     */
+    private static class FilterSet extends AbstractSet<String> {
+        private final Set<String> mFilters = new HashSet<>();
+        private TestFilterIndex mIndex = null;
+
+        TestFilterIndex getIndex() {
+            if (mIndex == null) {
+                mIndex = new TestFilterIndex(mFilters);
+            }
+            return mIndex;
         }
-        if (mExcludeFilters.contains(methodName)) {
-            // Skip method because it was excluded
-            return false;
+
+        @Override
+        public boolean add(String filter) {
+            boolean added = mFilters.add(filter);
+            if (added) {
+                mIndex = null;
+            }
+            return added;
+        }
+
+        @Override
+        public boolean remove(Object filter) {
+            boolean removed = mFilters.remove(filter);
+            if (removed) {
+                mIndex = null;
+            }
+            return removed;
+        }
+
+        @Override
+        public void clear() {
+            mFilters.clear();
+            mIndex = null;
+        }
+
+        @Override
+        public boolean contains(Object filter) {
+            return mFilters.contains(filter);
+        }
+
+        @Override
+        public int size() {
+            return mFilters.size();
+        }
+
+        @Override
+        public Iterator<String> iterator() {
+            Iterator<String> it = mFilters.iterator();
+            return new Iterator<String>() {
+                @Override
+                public boolean hasNext() {
+                    return it.hasNext();
+                }
+
+                @Override
+                public String next() {
+                    return it.next();
+                }
+
+                @Override
+                public void remove() {
+                    it.remove();
+                    mIndex = null;
+                }
+            };
         }
-        return true;
     }
 }
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A compiled index of test filters, matching a test name against all of them at once.
+ *
+ * <p>Exact filters, like a package, a class or a {@code class#method}, are kept in a hash set.
+ * Filters containing the {@link #WILDCARD} are stored in a trie keyed by their literal prefix, so
+ * matching a name only walks the trie along the name: the cost depends on the length of the name,
+ * not on the number of filters. A filter like {@code com.android.foo.*} matches everything under
+ * {@code com.android.foo.}.
+ *
+ * <p>The index is immutable.
+ */
+public final class TestFilterIndex {
+
+    /** The wildcard matching any sequence of characters, including an empty one. */
+    public static final char WILDCARD = '*';
+
+    private final Set<String> mFilters = new LinkedHashSet<>();
+    private final Set<String> mExactFilters = new HashSet<>();
+    private TrieNode mWildcardRoot = null;
+
+    /** A node of the trie, reached by the literal prefix of some wildcard filters. */
+    private static final class TrieNode {
+        Map<Character, TrieNode> mChildren = null;
+        // The rest of the filters after their literal prefix, starting with a wildcard.
+        List<String> mSuffixPatterns = null;
+        // Whether one of the filters is the literal prefix followed by a single wildcard.
+        boolean mMatchesAnySuffix = false;
+
+        TrieNode getOrCreateChild(char c) {
+            if (mChildren == null) {
+                mChildren = new HashMap<>();
+            }
+            return mChildren.computeIfAbsent(c, k -> new TrieNode());
+        }
+
+        TrieNode getChild(char c) {
+            return mChildren == null ? null : mChildren.get(c);
+        }
+
+        boolean matchesSuffix(String name, int start) {
+            if (mMatchesAnySuffix) {
+                return true;
+            }
+            if (mSuffixPatterns != null) {
+                for (String pattern : mSuffixPatterns) {
+                    if (wildcardMatches(pattern, name, start)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Ctor.
+     *
+     * @param filters the filters to index.
+     */
+    public TestFilterIndex(Collection<String> filters) {
+        for (String filter : filters) {
+            add(filter);
+        }
+    }
+
+    /** Returns true if the index has no filters. */
+    public boolean isEmpty() {
+        return mFilters.isEmpty();
+    }
+
+    /** Returns the number of filters in the index. */
+    public int size() {
+        return mFilters.size();
+    }
+
+    /** Returns the filters of the index. */
+    public Set<String> getFilters() {
+        return Collections.unmodifiableSet(mFilters);
+    }
+
+    /** Returns true if the name matches one of the filters. */
+    public boolean matches(String name) {
+        if (name == null) {
+            return false;
+        }
+        if (mExactFilters.contains(name)) {
+            return true;
+        }
+        TrieNode node = mWildcardRoot;
+        for (int i = 0; node != null; i++) {
+            if (node.matchesSuffix(name, i)) {
+                return true;
+            }
+            if (i == name.length()) {
+                break;
+            }
+            node = node.getChild(name.charAt(i));
+        }
+        return false;
+    }
+
+    /** Returns true if any of the names matches one of the filters. */
+    public boolean matchesAny(String... names) {
+        for (String name : names) {
+            if (matches(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void add(String filter) {
+        if (!mFilters.add(filter)) {
+            return;
+        }
+        int wildcard = filter.indexOf(WILDCARD);
+        if (wildcard < 0) {
+            mExactFilters.add(filter);
+            return;
+        }
+        if (mWildcardRoot == null) {
+            mWildcardRoot = new TrieNode();
+        }
+        TrieNode node = mWildcardRoot;
+        for (int i = 0; i < wildcard; i++) {
+            node = node.getOrCreateChild(filter.charAt(i));
+        }
+        String suffix = filter.substring(wildcard);
+        if (suffix.chars().allMatch(c -> c == WILDCARD)) {
+            node.mMatchesAnySuffix = true;
+        } else {
+            if (node.mSuffixPatterns == null) {
+                node.mSuffixPatterns = new ArrayList<>();
+            }
+            node.mSuffixPatterns.add(suffix);
+        }
+    }
+
+    /** Returns true if the name, from the start index, matches the wildcard pattern. */
+    static boolean wildcardMatches(String pattern, String name, int start) {
+        int p = 0;
+        int n = start;
+        int lastWildcard = -1;
+        int lastWildcardMatch = -1;
+        while (n < name.length()) {
+            if (p < pattern.length() && pattern.charAt(p) == WILDCARD) {
+                lastWildcard = p++;
+                lastWildcardMatch = n;
+            } else if (p < pattern.length() && pattern.charAt(p) == name.charAt(n)) {
+                p++;
+                n++;
+            } else if (lastWildcard >= 0) {
+                // Let the last wildcard absorb one more character and try again.
+                p = lastWildcard + 1;
+                n = ++lastWildcardMatch;
+            } else {
+                return false;
+            }
+        }
+        while (p < pattern.length() && pattern.charAt(p) == WILDCARD) {
+            p++;
+        }
+        return p == pattern.length();
+    }
+}
@@ -46,7 +46,15 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -180,6 +188,66 @@ public class PerfettoPullerMetricCollector extends FilePullerDeviceMetricCollect
             isTimeVal = true)
     private long mTraceConversionTimeout = TimeUnit.MINUTES.toMillis(20);
 
+    @Option(
+            name = "trace-processing-threads",
+            description =
+                    "Number of traces processed at the same time on host threads, while the next"
+                            + " traces are pulled. The metrics of each trace are reported as soon"
+                            + " as it and the traces pulled before it are processed.")
+    private int mTraceProcessingThreads = 1;
+
+    /** The metrics and the files to log of a processed trace. */
+    private static class ProcessedTrace {
+        final Map<String, Metric.Builder> mMetrics = new LinkedHashMap<>();
+        final Map<File, LogDataType> mLogs = new LinkedHashMap<>();
+        // All the host files of the trace. Guarded by this.
+        private final List<File> mFiles = new ArrayList<>();
+        private boolean mDiscarded = false;
+
+        /** Keep track of a host file of the trace. It is deleted if the trace was discarded. */
+        synchronized File addFile(File file) {
+            if (file != null) {
+                mFiles.add(file);
+                if (mDiscarded) {
+                    FileUtil.deleteFile(file);
+                }
+            }
+            return file;
+        }
+
+        /** Delete the host files of the trace, including the ones added after. */
+        synchronized void discard() {
+            mDiscarded = true;
+            for (File file : mFiles) {
+                FileUtil.deleteFile(file);
+            }
+        }
+    }
+
+    private ExecutorService mTraceExecutor = null;
+    // Traces being processed with the data to report them to, in the order they were pulled.
+    private List<Pair<Future<ProcessedTrace>, DeviceMetricData>> mPendingTraces =
+            new ArrayList<>();
+    // The trace of each pending processing, to delete its files if it is not reported.
+    private Map<Future<ProcessedTrace>, ProcessedTrace> mPendingTraceFiles = new HashMap<>();
+
+    @Override
+    public void onTestEnd(DeviceMetricData testData, Map<String, Metric> currentTestCaseMetrics) {
+        try {
+            super.onTestEnd(testData, currentTestCaseMetrics);
+        } finally {
+            finishProcessingTraces();
+        }
+    }
+
+    @Override
+    public void onTestRunEnd(DeviceMetricData runData, Map<String, Metric> currentRunMetrics) {
+        try {
+            super.onTestRunEnd(runData, currentRunMetrics);
+        } finally {
+            finishProcessingTraces();
+        }
+    }
 
     /**
      * Process the perfetto trace file for the additional metrics and add it to final metrics.
@@ -192,9 +260,56 @@ public class PerfettoPullerMetricCollector extends FilePullerDeviceMetricCollect
     @Override
     public void processMetricFile(String key, File metricFile,
             DeviceMetricData data) {
+        if (mConvertToMetricFile) {
+            // Resolve the trace processor from the invocation thread, once for all the traces.
+            getTraceProcessorBinary();
+        }
+        if (mTraceProcessingThreads <= 1) {
+            reportProcessedTrace(processTrace(metricFile, new ProcessedTrace()), data);
+            return;
+        }
+        if (mTraceExecutor == null) {
+            // Threads are created from the invocation thread, so they share its logging.
+            mTraceExecutor =
+                    Executors.newFixedThreadPool(
+                            mTraceProcessingThreads,
+                            r -> {
+                                Thread thread = new Thread(r, "PerfettoTraceProcessing");
+                                thread.setDaemon(true);
+                                return thread;
+                            });
+        }
+        ProcessedTrace trace = new ProcessedTrace();
+        Future<ProcessedTrace> future =
+                mTraceExecutor.submit(() -> processTrace(metricFile, trace));
+        mPendingTraces.add(new Pair<>(future, data));
+        mPendingTraceFiles.put(future, trace);
+        reportProcessedTraces(false);
+    }
+
+    /**
+     * Process a trace file on the host: decompress it, convert it to a metric file and run the
+     * scripts extracting metrics from it. Can be called from any thread, the results are reported
+     * from the invocation thread.
+     *
+     * @param metricFile the perfetto trace {@link File} pulled from the device.
+     * @param trace the {@link ProcessedTrace} to fill. Its files are deleted if processing fails.
+     * @return the {@link ProcessedTrace} with the metrics and the files to log.
+     */
+    private ProcessedTrace processTrace(File metricFile, ProcessedTrace trace) {
+        trace.addFile(metricFile);
+        try {
+            return processTraceFiles(metricFile, trace);
+        } catch (RuntimeException | Error e) {
+            trace.discard();
+            throw e;
+        }
+    }
+
+    private ProcessedTrace processTraceFiles(File metricFile, ProcessedTrace trace) {
         File processSrcFile = metricFile;
         if (mCompressPerfetto) {
-            processSrcFile = decompressFile(metricFile);
+            processSrcFile = trace.addFile(decompressFile(metricFile));
         }
 
         // Update the file size metrics.
@@ -203,17 +318,14 @@ public class PerfettoPullerMetricCollector extends FilePullerDeviceMetricCollect
             Metric.Builder metricDurationBuilder = Metric.newBuilder();
             metricDurationBuilder.getMeasurementsBuilder().setSingleDouble(
                     perfettoFileSizeInBytes);
-            data.addMetric(RAW_TRACE_FILE_SIZE, metricDurationBuilder.setType(DataType.RAW));
+            trace.mMetrics.put(RAW_TRACE_FILE_SIZE, metricDurationBuilder.setType(DataType.RAW));
         }
 
         // Convert to perfetto metric format.
         if (mConvertToMetricFile) {
-            File convertedMetricFile = convertToMetricProto(processSrcFile);
+            File convertedMetricFile = trace.addFile(convertToMetricProto(processSrcFile));
             if (convertedMetricFile != null) {
-                try (InputStreamSource source = new FileInputStreamSource(convertedMetricFile,
-                        true)) {
-                    testLog(convertedMetricFile.getName(), getLogDataType(), source);
-                }
+                trace.mLogs.put(convertedMetricFile, getLogDataType());
             }
         }
 
@@ -246,7 +358,7 @@ public class PerfettoPullerMetricCollector extends FilePullerDeviceMetricCollect
                 // Update the script duration metrics.
                 Metric.Builder metricDurationBuilder = Metric.newBuilder();
                 metricDurationBuilder.getMeasurementsBuilder().setSingleDouble(scriptDuration);
-                data.addMetric(
+                trace.mMetrics.put(
                         String.format("%s_%s", mMetricPrefix, EXTRACTOR_RUNTIME),
                         metricDurationBuilder.setType(DataType.RAW));
 
@@ -272,7 +384,7 @@ public class PerfettoPullerMetricCollector extends FilePullerDeviceMetricCollect
                         if (kv != null) {
                             Metric.Builder metricBuilder = Metric.newBuilder();
                             metricBuilder.getMeasurementsBuilder().setSingleString(kv.second);
-                            data.addMetric(
+                            trace.mMetrics.put(
                                     String.format("%s_%s", mMetricPrefix, kv.first),
                                     metricBuilder.setType(DataType.RAW));
                         } else {
@@ -292,26 +404,88 @@ public class PerfettoPullerMetricCollector extends FilePullerDeviceMetricCollect
                 Metric.Builder metricStatusBuilder = Metric.newBuilder();
                 metricStatusBuilder.getMeasurementsBuilder()
                         .setSingleString(traceExtractorStatus);
-                data.addMetric(
+                trace.mMetrics.put(
                         String.format("%s_%s", mMetricPrefix, EXTRACTOR_STATUS),
                         metricStatusBuilder.setType(DataType.RAW));
             }
         }
 
         // Upload and delete the host trace file.
-        try (InputStreamSource source = new FileInputStreamSource(metricFile, true)) {
-            if (mCompressPerfetto) {
-                if (processSrcFile != null) {
-                    testLog(metricFile.getName(), LogDataType.GZIP, source);
-                } else {
-                    metricFile.delete();
-                }
-
+        if (mCompressPerfetto) {
+            if (processSrcFile != null) {
+                trace.mLogs.put(metricFile, LogDataType.GZIP);
             } else {
-                testLog(metricFile.getName(), LogDataType.PERFETTO, source);
+                metricFile.delete();
             }
+        } else {
+            trace.mLogs.put(metricFile, LogDataType.PERFETTO);
         }
+        return trace;
+    }
 
+    /** Report the metrics of a processed trace, and log then delete its files. */
+    private void reportProcessedTrace(ProcessedTrace trace, DeviceMetricData data) {
+        for (Map.Entry<String, Metric.Builder> metric : trace.mMetrics.entrySet()) {
+            data.addMetric(metric.getKey(), metric.getValue());
+        }
+        for (Map.Entry<File, LogDataType> log : trace.mLogs.entrySet()) {
+            try (InputStreamSource source = new FileInputStreamSource(log.getKey(), true)) {
+                testLog(log.getKey().getName(), log.getValue(), source);
+            }
+        }
+    }
+
+    /**
+     * Report the traces processed so far, in the order they were pulled.
+     *
+     * @param wait whether to wait for all the traces to be processed.
+     */
+    private void reportProcessedTraces(boolean wait) {
+        Iterator<Pair<Future<ProcessedTrace>, DeviceMetricData>> it = mPendingTraces.iterator();
+        while (it.hasNext()) {
+            Pair<Future<ProcessedTrace>, DeviceMetricData> pending = it.next();
+            if (!wait && !pending.first.isDone()) {
+                return;
+            }
+            try {
+                reportProcessedTrace(pending.first.get(), pending.second);
+            } catch (ExecutionException e) {
+                CLog.e("Failed to process a perfetto trace.");
+                CLog.e(e.getCause());
+                mPendingTraceFiles.get(pending.first).discard();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                CLog.e("Interrupted while processing the perfetto traces.");
+                discardPendingTraces();
+                return;
+            }
+            it.remove();
+            mPendingTraceFiles.remove(pending.first);
+        }
+    }
+
+    /** Cancel the traces not reported yet and delete their files. */
+    private void discardPendingTraces() {
+        for (Pair<Future<ProcessedTrace>, DeviceMetricData> pending : mPendingTraces) {
+            pending.first.cancel(true);
+            mPendingTraceFiles.get(pending.first).discard();
+        }
+        mPendingTraces.clear();
+        mPendingTraceFiles.clear();
+    }
+
+    /** Wait for the traces being processed and report them. */
+    private void finishProcessingTraces() {
+        try {
+            reportProcessedTraces(true);
+        } finally {
+            // Only left if reporting failed or was interrupted.
+            discardPendingTraces();
+            if (mTraceExecutor != null) {
+                mTraceExecutor.shutdownNow();
+                mTraceExecutor = null;
+            }
+        }
     }
 
     /**
@@ -323,21 +497,15 @@ public class PerfettoPullerMetricCollector extends FilePullerDeviceMetricCollect
      */
     private File convertToMetricProto(File perfettoRawTraceFile) {
 
-        // Use absolute path to the trace file if it is available otherwise
-        // resolve the trace processor name from the test or module artifacts.
-        if (mTraceProcessorBinary == null) {
-            mTraceProcessorBinary = getFileFromTestArtifacts(mTraceProcessorName);
-        }
-
+        File traceProcessorBinary = getTraceProcessorBinary();
         File metricOutputFile = null;
-        if (mTraceProcessorBinary == null) {
+        if (traceProcessorBinary == null) {
             CLog.e("Failed to locate the trace processor shell binary file.");
             return metricOutputFile;
         }
 
-        FileUtil.chmodGroupRWX(mTraceProcessorBinary);
         List<String> commandArgsList = new ArrayList<String>();
-        commandArgsList.add(mTraceProcessorBinary.getAbsolutePath());
+        commandArgsList.add(traceProcessorBinary.getAbsolutePath());
 
         // Comma separated list of metrics to extract.
         if (!mTraceProcessorMetrics.isEmpty()) {
@@ -396,6 +564,24 @@ public class PerfettoPullerMetricCollector extends FilePullerDeviceMetricCollect
     }
 
 
+    /**
+     * Returns the trace processor shell, made executable, or null if it cannot be found. It is
+     * looked up once for all the traces.
+     */
+    private synchronized File getTraceProcessorBinary() {
+        // Use absolute path to the trace file if it is available otherwise
+        // resolve the trace processor name from the test or module artifacts.
+        if (mTraceProcessorBinary == null) {
+            mTraceProcessorBinary = getFileFromTestArtifacts(mTraceProcessorName);
+            if (mTraceProcessorBinary != null) {
+                FileUtil.chmodGroupRWX(mTraceProcessorBinary);
+            }
+        } else if (!mTraceProcessorBinary.canExecute()) {
+            FileUtil.chmodGroupRWX(mTraceProcessorBinary);
+        }
+        return mTraceProcessorBinary;
+    }
+
     /**
      * Pull the file from the specified path in the device. Pull the compressed content of the
      * perfetto file if the compress perfetto option is enabled.
@@ -49,6 +49,7 @@ import com.android.tradefed.util.SystemUtil;
 import com.google.common.annotations.VisibleForTesting;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
@@ -163,14 +164,32 @@ public class IsolatedHostTest
             description = TestTimeoutEnforcer.TEST_CASE_TIMEOUT_DESCRIPTION)
     private Duration mTestCaseTimeout = Duration.ofSeconds(0L);
 
+    @Option(
+            name = "reuse-isolation-runner",
+            description =
+                    "Keep the isolation runner for the following modules with the same java "
+                            + "options, environment and jar directory. Each module is loaded in a "
+                            + "new classloader instead of a new process. Ignored with coverage "
+                            + "and for modules with native libraries, since a JNI library cannot "
+                            + "be loaded again by the classloader of another module.")
+    private boolean mReuseIsolationRunner = false;
+
+    @Option(
+            name = "isolation-runner-max-runs",
+            description = "Number of modules after which a reused isolation runner is stopped.")
+    private int mIsolationRunnerMaxRuns = 100;
+
     private static final String QUALIFIED_PATH = "/com/android/tradefed/isolation";
     private IBuildInfo mBuildInfo;
     private Set<String> mIncludeFilters = new HashSet<>();
     private Set<String> mExcludeFilters = new HashSet<>();
     private boolean mCollectTestsOnly = false;
     private File mSubprocessLog;
+    private long mSubprocessLogOffset = 0L;
     private File mWorkDir;
     private boolean mReportedFailure = false;
+    private boolean mRunnerFinishedOk = false;
+    private IsolationRunnerWorker mWorker = null;
     private IConfiguration mConfiguration;
 
     private static final String ROOT_DIR = "ROOT_DIR";
@@ -185,40 +204,54 @@ public class IsolatedHostTest
     public void run(TestInformation testInfo, ITestInvocationListener listener)
             throws DeviceNotAvailableException {
         mReportedFailure = false;
+        mRunnerFinishedOk = false;
         mCoverageDestination = null;
         mAgent = null;
         try {
-            mServer = new ServerSocket(0);
-            mServer.setSoTimeout(mSocketTimeout);
+            Socket socket;
+            Process isolationRunner = null;
+            List<String> testClasspath = new ArrayList<>();
+            if (canReuseIsolationRunner()) {
+                testClasspath = compileTestClassPath();
+                mWorker = acquireWorker();
+                socket = mWorker.getSocket();
+                mWorkDir = mWorker.getWorkDir();
+                mSubprocessLog = mWorker.getLog();
+                mSubprocessLogOffset = mSubprocessLog.length();
+                CLog.v("Using isolation runner for its run #%s.", mWorker.getRuns());
+            } else {
+                mServer = new ServerSocket(0);
+                mServer.setSoTimeout(mSocketTimeout);
 
-            String classpath = this.compileClassPath();
-            List<String> cmdArgs = this.compileCommandArgs(classpath);
-            CLog.v(String.join(" ", cmdArgs));
-            RunUtil runner = new RunUtil();
+                String classpath = this.compileClassPath();
+                List<String> cmdArgs = this.compileCommandArgs(classpath);
+                CLog.v(String.join(" ", cmdArgs));
+                RunUtil runner = new RunUtil();
 
-            String ldLibraryPath = this.compileLdLibraryPath();
-            if (ldLibraryPath != null) {
-                runner.setEnvVariable("LD_LIBRARY_PATH", ldLibraryPath);
-            }
+                String ldLibraryPath = this.compileLdLibraryPath();
+                if (ldLibraryPath != null) {
+                    runner.setEnvVariable("LD_LIBRARY_PATH", ldLibraryPath);
+                }
 
-            // Note the below chooses a working directory based on the jar that happens to
-            // be first in the list of configured jars.  The baked-in assumption is that
-            // all configured jars are in the same parent directory, otherwise the behavior
-            // here is non-deterministic.
-            mWorkDir = findJarDirectory();
-            runner.setWorkingDir(mWorkDir);
-            CLog.v("Using PWD: %s", mWorkDir.getAbsolutePath());
+                // Note the below chooses a working directory based on the jar that happens to
+                // be first in the list of configured jars.  The baked-in assumption is that
+                // all configured jars are in the same parent directory, otherwise the behavior
+                // here is non-deterministic.
+                mWorkDir = findJarDirectory();
+                runner.setWorkingDir(mWorkDir);
+                CLog.v("Using PWD: %s", mWorkDir.getAbsolutePath());
 
-            mSubprocessLog = FileUtil.createTempFile("subprocess-logs", "");
-            runner.setRedirectStderrToStdout(true);
+                mSubprocessLog = FileUtil.createTempFile("subprocess-logs", "");
+                mSubprocessLogOffset = 0L;
+                runner.setRedirectStderrToStdout(true);
 
-            Process isolationRunner =
-                    runner.runCmdInBackground(Redirect.to(mSubprocessLog), cmdArgs);
-            CLog.v("Started subprocess.");
+                isolationRunner = runner.runCmdInBackground(Redirect.to(mSubprocessLog), cmdArgs);
+                CLog.v("Started subprocess.");
 
-            Socket socket = mServer.accept();
-            socket.setSoTimeout(mSocketTimeout);
-            CLog.v("Connected to subprocess.");
+                socket = mServer.accept();
+                socket.setSoTimeout(mSocketTimeout);
+                CLog.v("Connected to subprocess.");
+            }
 
             List<String> testJarAbsPaths = getJarPaths(mJars);
 
@@ -227,7 +260,8 @@ public class IsolatedHostTest
                             .addAllTestClasses(mClasses)
                             .addAllTestJarAbsPaths(testJarAbsPaths)
                             .addAllExcludePaths(mExcludePaths)
-                            .setDryRun(mCollectTestsOnly);
+                            .setDryRun(mCollectTestsOnly)
+                            .addAllClasspath(testClasspath);
 
             if (!mIncludeFilters.isEmpty()
                     || !mExcludeFilters.isEmpty()
@@ -242,12 +276,14 @@ public class IsolatedHostTest
             }
             executeTests(socket, listener, paramsBuilder.build());
 
-            RunnerMessage.newBuilder()
-                    .setCommand(RunnerOp.RUNNER_OP_STOP)
-                    .build()
-                    .writeDelimitedTo(socket.getOutputStream());
-            // Ensure the subprocess finishes
-            isolationRunner.waitFor(1, TimeUnit.MINUTES);
+            if (isolationRunner != null) {
+                RunnerMessage.newBuilder()
+                        .setCommand(RunnerOp.RUNNER_OP_STOP)
+                        .build()
+                        .writeDelimitedTo(socket.getOutputStream());
+                // Ensure the subprocess finishes
+                isolationRunner.waitFor(1, TimeUnit.MINUTES);
+            }
         } catch (IOException | InterruptedException e) {
             if (!mReportedFailure) {
                 // Avoid overriding the failure
@@ -258,6 +294,15 @@ public class IsolatedHostTest
                 listener.testRunEnded(0L, new HashMap<String, Metric>());
             }
         } finally {
+            if (mWorker != null) {
+                // A runner that did not finish its module cleanly is not reused.
+                if (mRunnerFinishedOk) {
+                    mWorker.release(mIsolationRunnerMaxRuns);
+                } else {
+                    mWorker.stop();
+                }
+                mWorker = null;
+            }
             FileUtil.deleteFile(mIsolationJar);
             FileUtil.deleteFile(mAgent);
             mAgent = null;
@@ -271,6 +316,94 @@ public class IsolatedHostTest
         }
     }
 
+    private boolean isCoverageEnabled() {
+        return mConfiguration != null && mConfiguration.getCoverageOptions().isCoverageEnabled();
+    }
+
+    /**
+     * Returns whether the module can run in a reused isolation runner.
+     *
+     * <p>A JNI library can only be loaded by one classloader of a process, so a module with native
+     * libraries, found through its LD_LIBRARY_PATH, always gets a new runner: a following module
+     * loading the same library in the same runner would fail with an {@link UnsatisfiedLinkError}.
+     * Libraries loaded in other ways, for example extracted from a jar, are not detected.
+     */
+    private boolean canReuseIsolationRunner() {
+        if (!mReuseIsolationRunner || isCoverageEnabled()) {
+            return false;
+        }
+        if (this.compileLdLibraryPath() != null) {
+            CLog.d("Module has native libraries, not reusing the isolation runner.");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Take an idle isolation runner started for the same java command and environment, or start a
+     * new one. Like a runner used for a single module, it is started in the directory of the jars,
+     * but with only its own jar on the classpath. The tests are loaded from the classpath sent with
+     * each module. Reused runners are never started with a LD_LIBRARY_PATH, see {@link
+     * #canReuseIsolationRunner()}.
+     */
+    private IsolationRunnerWorker acquireWorker() throws IOException {
+        File testDir = findTestDirectory();
+        File workDir = findJarDirectory();
+        List<String> keyParts = new ArrayList<>();
+        keyParts.add(mJdkFolder == null ? "" : mJdkFolder.getAbsolutePath());
+        keyParts.addAll(mJavaFlags);
+        if (mRobolectricResources) {
+            keyParts.addAll(compileRobolectricOptions());
+        }
+        keyParts.add(testDir.getAbsolutePath());
+        keyParts.add(workDir.getAbsolutePath());
+        keyParts.add(Integer.toString(mSocketTimeout));
+        String key = String.join("\n", keyParts);
+
+        IsolationRunnerWorker worker = IsolationRunnerWorker.poll(key);
+        if (worker != null) {
+            return worker;
+        }
+        File isolationJar = null;
+        File log = null;
+        Process process = null;
+        try {
+            // The jar and the log are owned by the worker, outside of the invocation folder.
+            isolationJar = getIsolationJar(null);
+            mIsolationJar = null;
+            mServer = new ServerSocket(0);
+            mServer.setSoTimeout(mSocketTimeout);
+            List<String> cmdArgs = this.compileCommandArgs(isolationJar.getAbsolutePath());
+            CLog.v(String.join(" ", cmdArgs));
+            RunUtil runner = new RunUtil();
+            runner.setWorkingDir(workDir);
+            CLog.v("Using PWD: %s", workDir.getAbsolutePath());
+            log = FileUtil.createTempFile("isolation-runner-logs", "");
+            runner.setRedirectStderrToStdout(true);
+            process = runner.runCmdInBackground(Redirect.to(log), cmdArgs);
+            CLog.v("Started reusable subprocess.");
+
+            Socket socket = mServer.accept();
+            socket.setSoTimeout(mSocketTimeout);
+            CLog.v("Connected to subprocess.");
+            worker =
+                    new IsolationRunnerWorker(
+                            key, process, socket, workDir, isolationJar, log, mSocketTimeout);
+            worker.start();
+            return worker;
+        } catch (IOException | RuntimeException e) {
+            if (process != null) {
+                process.destroy();
+            }
+            FileUtil.deleteFile(isolationJar);
+            FileUtil.deleteFile(log);
+            throw e;
+        } finally {
+            StreamUtil.close(mServer);
+            mServer = null;
+        }
+    }
+
     /** Assembles the command arguments to execute the subprocess runner. */
     public List<String> compileCommandArgs(String classpath) {
         List<String> cmdArgs = new ArrayList<>();
@@ -290,7 +423,7 @@ public class IsolatedHostTest
             cmdArgs.add(javaPath);
             CLog.v("Using java executable at %s", javaPath);
         }
-        if (mConfiguration != null && mConfiguration.getCoverageOptions().isCoverageEnabled()) {
+        if (isCoverageEnabled()) {
             try {
                 mCoverageDestination = FileUtil.createTempFile("coverage", ".exec");
                 mAgent = extractJacocoAgent();
@@ -366,7 +499,6 @@ public class IsolatedHostTest
      */
     private String compileClassPath() {
         List<String> paths = new ArrayList<>();
-        File testDir = findTestDirectory();
 
         try {
             File isolationJar = getIsolationJar(CurrentInvocation.getWorkFolder());
@@ -374,6 +506,21 @@ public class IsolatedHostTest
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+        paths.addAll(compileTestClassPath());
+
+        String jarClasspath = String.join(java.io.File.pathSeparator, paths);
+
+        return jarClasspath;
+    }
+
+    /**
+     * Creates the classpath entries of the tests, without the isolation runner.
+     *
+     * @return the list of classpath entries.
+     */
+    private List<String> compileTestClassPath() {
+        List<String> paths = new ArrayList<>();
+        File testDir = findTestDirectory();
 
         if (mClasspathOverride != null) {
             paths.add(mClasspathOverride);
@@ -400,10 +547,7 @@ public class IsolatedHostTest
                 }
             }
         }
-
-        String jarClasspath = String.join(java.io.File.pathSeparator, paths);
-
-        return jarClasspath;
+        return paths;
     }
 
     @VisibleForTesting
@@ -545,6 +689,7 @@ public class IsolatedHostTest
                     switch (reply.getRunnerStatus()) {
                         case RUNNER_STATUS_FINISHED_OK:
                             CLog.v("Received message that runner finished successfully");
+                            mRunnerFinishedOk = true;
                             break mainLoop;
                         case RUNNER_STATUS_FINISHED_ERROR:
                             CLog.e("Received message that runner errored");
@@ -634,9 +779,33 @@ public class IsolatedHostTest
             }
         } finally {
             // This will get associated with the module since it can contains several test runs
+            logSubprocessOutput(listener);
+        }
+    }
+
+    /**
+     * Log the output of the subprocess for this module. A reused runner keeps logging to the same
+     * file, so only the part written since the module started is logged.
+     */
+    private void logSubprocessOutput(ITestInvocationListener listener) {
+        if (mWorker == null) {
             try (FileInputStreamSource source = new FileInputStreamSource(mSubprocessLog, true)) {
                 listener.testLog("isolated-java-logs", LogDataType.TEXT, source);
             }
+            return;
+        }
+        File moduleLog = null;
+        try (InputStream input = new FileInputStream(mSubprocessLog)) {
+            input.skip(mSubprocessLogOffset);
+            moduleLog = FileUtil.createTempFile("subprocess-logs", "");
+            FileUtil.writeToFile(input, moduleLog);
+        } catch (IOException e) {
+            CLog.e(e);
+            FileUtil.deleteFile(moduleLog);
+            return;
+        }
+        try (FileInputStreamSource source = new FileInputStreamSource(moduleLog, true)) {
+            listener.testLog("isolated-java-logs", LogDataType.TEXT, source);
         }
     }
 
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.testtype;
+
+import com.android.tradefed.isolation.RunnerMessage;
+import com.android.tradefed.isolation.RunnerOp;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An isolation runner process reused by the {@link IsolatedHostTest} of successive modules.
+ *
+ * <p>Idle workers are kept by key, which describes the java command and environment of the
+ * process. A worker is only reused while it is alive and has been idle for less than half of its
+ * socket timeout, since the runner exits once it has heard nothing from the host for that long.
+ * While workers are idle, a reaper periodically stops the ones that can no longer be reused and
+ * deletes their files.
+ */
+class IsolationRunnerWorker {
+
+    private static final long STOP_TIMEOUT_MS = 10 * 1000;
+    private static final long REAPER_INTERVAL_MS = 15 * 1000;
+
+    // Idle workers by key. Guarded by itself.
+    private static final Map<String, Deque<IsolationRunnerWorker>> sIdleWorkers = new HashMap<>();
+    // Running while workers are idle. Guarded by sIdleWorkers.
+    private static ScheduledExecutorService sReaper = null;
+
+    private final String mKey;
+    private final Process mProcess;
+    private final Socket mSocket;
+    private final File mWorkDir;
+    private final File mIsolationJar;
+    private final File mLog;
+    private final long mMaxIdleMs;
+    private int mRuns = 0;
+    private long mIdleSince;
+
+    /**
+     * @param key the key of the java command and environment of the process.
+     * @param process the isolation runner {@link Process}, or null if it is not a subprocess.
+     * @param socket the {@link Socket} connected to the runner.
+     * @param workDir the working directory of the runner.
+     * @param isolationJar the isolation runner jar, deleted once the worker is stopped.
+     * @param log the file the runner logs to, deleted once the worker is stopped.
+     * @param socketTimeout the socket timeout of the runner in milliseconds.
+     */
+    IsolationRunnerWorker(
+            String key,
+            Process process,
+            Socket socket,
+            File workDir,
+            File isolationJar,
+            File log,
+            int socketTimeout) {
+        mKey = key;
+        mProcess = process;
+        mSocket = socket;
+        mWorkDir = workDir;
+        mIsolationJar = isolationJar;
+        mLog = log;
+        mMaxIdleMs = socketTimeout / 2;
+    }
+
+    /**
+     * Take an idle worker.
+     *
+     * @param key the key of the java command and environment of the process.
+     * @return the worker, or null if none can be reused.
+     */
+    static IsolationRunnerWorker poll(String key) {
+        while (true) {
+            IsolationRunnerWorker worker;
+            synchronized (sIdleWorkers) {
+                Deque<IsolationRunnerWorker> idle = sIdleWorkers.get(key);
+                worker = idle == null ? null : idle.pollFirst();
+                if (idle != null && idle.isEmpty()) {
+                    sIdleWorkers.remove(key);
+                }
+            }
+            if (worker == null) {
+                return null;
+            }
+            if (worker.isReusable()) {
+                worker.mRuns++;
+                return worker;
+            }
+            worker.stop();
+        }
+    }
+
+    /** Returns how many workers are idle. */
+    @VisibleForTesting
+    static int getIdleWorkerCount() {
+        synchronized (sIdleWorkers) {
+            return sIdleWorkers.values().stream().mapToInt(Deque::size).sum();
+        }
+    }
+
+    /** Stop all the idle workers. */
+    @VisibleForTesting
+    static void stopIdleWorkers() {
+        synchronized (sIdleWorkers) {
+            for (Deque<IsolationRunnerWorker> idle : sIdleWorkers.values()) {
+                for (IsolationRunnerWorker worker : idle) {
+                    worker.stop();
+                }
+            }
+            sIdleWorkers.clear();
+            stopReaper();
+        }
+    }
+
+    /** Stop the idle workers that can no longer be reused, and the reaper once none is idle. */
+    @VisibleForTesting
+    static void reapIdleWorkers() {
+        List<IsolationRunnerWorker> expired = new ArrayList<>();
+        synchronized (sIdleWorkers) {
+            Iterator<Deque<IsolationRunnerWorker>> groups = sIdleWorkers.values().iterator();
+            while (groups.hasNext()) {
+                Deque<IsolationRunnerWorker> idle = groups.next();
+                Iterator<IsolationRunnerWorker> workers = idle.iterator();
+                while (workers.hasNext()) {
+                    IsolationRunnerWorker worker = workers.next();
+                    if (!worker.isReusable()) {
+                        workers.remove();
+                        expired.add(worker);
+                    }
+                }
+                if (idle.isEmpty()) {
+                    groups.remove();
+                }
+            }
+            if (sIdleWorkers.isEmpty()) {
+                stopReaper();
+            }
+        }
+        for (IsolationRunnerWorker worker : expired) {
+            worker.stop();
+        }
+    }
+
+    /** Start the reaper if it is not running. Must hold the idle workers lock. */
+    private static void startReaper() {
+        if (sReaper != null) {
+            return;
+        }
+        sReaper =
+                Executors.newSingleThreadScheduledExecutor(
+                        r -> {
+                            Thread thread = new Thread(r, "IsolationRunnerWorker-reaper");
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+        sReaper.scheduleWithFixedDelay(
+                IsolationRunnerWorker::reapIdleWorkers,
+                REAPER_INTERVAL_MS,
+                REAPER_INTERVAL_MS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /** Stop the reaper if it is running. Must hold the idle workers lock. */
+    private static void stopReaper() {
+        if (sReaper != null) {
+            sReaper.shutdown();
+            sReaper = null;
+        }
+    }
+
+    /** Returns the {@link Socket} connected to the runner. */
+    Socket getSocket() {
+        return mSocket;
+    }
+
+    /** Returns the working directory of the runner. */
+    File getWorkDir() {
+        return mWorkDir;
+    }
+
+    /** Returns the file the runner logs to. */
+    File getLog() {
+        return mLog;
+    }
+
+    /** Returns how many modules ran in this worker, including the current one. */
+    int getRuns() {
+        return mRuns;
+    }
+
+    /** Marks the start of the first module of a new worker. */
+    void start() {
+        mRuns = 1;
+    }
+
+    /**
+     * Return the worker once a module is done. It is kept idle for the next modules unless it ran
+     * the maximum number of modules.
+     *
+     * @param maxRuns the number of modules after which the worker is stopped.
+     */
+    void release(int maxRuns) {
+        if (mRuns >= maxRuns || !isAlive()) {
+            stop();
+            return;
+        }
+        mIdleSince = System.currentTimeMillis();
+        synchronized (sIdleWorkers) {
+            sIdleWorkers.computeIfAbsent(mKey, k -> new ArrayDeque<>()).addFirst(this);
+            startReaper();
+        }
+    }
+
+    /** Stop the runner and delete its files. */
+    void stop() {
+        try {
+            if (isAlive()) {
+                RunnerMessage.newBuilder()
+                        .setCommand(RunnerOp.RUNNER_OP_STOP)
+                        .build()
+                        .writeDelimitedTo(mSocket.getOutputStream());
+                mSocket.getOutputStream().flush();
+                if (mProcess != null) {
+                    mProcess.waitFor(STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                }
+            }
+        } catch (IOException e) {
+            CLog.d("Failed to stop isolation runner: %s", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            StreamUtil.close(mSocket);
+            if (mProcess != null) {
+                mProcess.destroy();
+            }
+            FileUtil.deleteFile(mIsolationJar);
+            FileUtil.deleteFile(mLog);
+        }
+    }
+
+    private boolean isAlive() {
+        return !mSocket.isClosed() && (mProcess == null || mProcess.isAlive());
+    }
+
+    private boolean isReusable() {
+        return isAlive() && System.currentTimeMillis() - mIdleSince < mMaxIdleMs;
+    }
+}